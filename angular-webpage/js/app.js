@@ -10,6 +10,10 @@ app.config(['$routeProvider', function($routeProvider) {
 			templateUrl: 'views/room.html',
 			controller: 'RoomCtrl'
 		})
+		.when('/broadcasts/:roomName', {
+			templateUrl: 'views/broadcast.html',
+			controller: 'BroadcastCtrl'
+		})
 		.otherwise({
 			redirectTo: '/'
 		});
@@ -29,6 +33,7 @@ app.config(['$translateProvider',function($translateProvider) {
             'HIDE_SETTINGS':'Hide advanced stream settings',
             'MICRO_ONLY':'Microphone only',
             'END_USER_MEDIA':'Watch only',
+            'TAKE_PART':'Take part',
             'STREAM_SETTING':'Stream settings',
             'FUNCTIONNALITIES':'Func.',
             'DOWNLOAD':'Download',
@@ -45,7 +50,10 @@ app.config(['$translateProvider',function($translateProvider) {
             'BUTTON_TEXT_EN': 'English (EN)',
             'BUTTON_TEXT_FR': 'Français (FR)',
             'PLAYER_SETTING' : 'Player setting',
-            'TEST_MODE' : 'Test mode : 640 px'
+            'TEST_MODE' : 'Test mode : 640 px',
+            'BROADCAST' : 'Live broadcast of the room',
+            'BROADCAST_WAITING' : 'Waiting for the broadcast...',
+            'BROADCAST_ENDED' : 'The broadcast has ended.'
         });    
         
         $translateProvider.translations('fr', {
@@ -58,6 +66,7 @@ app.config(['$translateProvider',function($translateProvider) {
             'HIDE_SETTINGS':'Cacher les réglages avancés',
             'MICRO_ONLY':'Microphone seulement',
             'END_USER_MEDIA':'Regarder seulement',
+            'TAKE_PART':'Participer',
             'CONFIRMATION':'Entrez !',
             'STREAM_SETTING':'Réglages',
             'FUNCTIONNALITIES':'Options',
@@ -75,7 +84,10 @@ app.config(['$translateProvider',function($translateProvider) {
             'BUTTON_TEXT_EN': 'English (EN)',
             'BUTTON_TEXT_FR': 'Français (FR)',
             'PLAYER_SETTING' : 'Paramètre du lecteur',
-            'TEST_MODE' : 'Mode de test : 640 px'
+            'TEST_MODE' : 'Mode de test : 640 px',
+            'BROADCAST' : 'Diffusion en direct de la salle',
+            'BROADCAST_WAITING' : 'En attente de la diffusion...',
+            'BROADCAST_ENDED' : 'La diffusion est terminée.'
         });  
     
     
@@ -86,6 +98,7 @@ app.config(['$translateProvider',function($translateProvider) {
 // Injections
 app.controller('UserCtrl', ['$scope', '$rootScope', '$location', 'socket', 'constraints', 'LxNotificationService', 'participants', UserCtrl]);
 app.controller('RoomCtrl', ['$scope', '$rootScope', '$location', '$window', '$routeParams', '$timeout', 'socket', 'constraints', 'LxNotificationService', 'LxProgressService', 'participants', RoomCtrl]);
+app.controller('BroadcastCtrl', ['$scope', '$routeParams', '$http', '$timeout', 'variables', BroadcastCtrl]);
 app.controller('TranslateController', function($translate, $scope, $rootScope) {
   $rootScope.langKey = 'en';    
   $scope.changeLanguage = function (langKey) {
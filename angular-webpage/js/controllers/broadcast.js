@@ -0,0 +1,162 @@
+/**
+* Javascript controller of the page watching the live broadcast of a room. The agent lists the last segments of
+* the broadcast in a JSON playlist, each segment being a whole MP4 file. The segments are played one after the
+* other in two video elements, the next one loading while the current one plays.
+* @constructor
+* @param {function} $scope - Enable to focus a component. See Angular doc for further informations
+* @param {String{}} $params - Contain the main parameters of the page such as RoomName
+* @param {object} $http - Enable the controller to fetch the playlist
+* @param {object} $timeout - Enable to schedule the next reading of the playlist
+* @param {Variables} variables - See variables.js
+*/
+function BroadcastCtrl($scope, $params, $http, $timeout, variables) {
+
+	// Segments played when joining a broadcast already running, the newest ones
+	var LIVE_EDGE = 2;
+
+	// Delay before reading the playlist again after a failure, in milliseconds
+	var RETRY_DELAY = 2000;
+
+	var playlistUri;
+	var broadcastId = null;
+	var lastSequence = null;
+	var queue = [];
+	var poller = null;
+	var played = false;
+	var destroyed = false;
+
+	$scope.roomName = $params.roomName;
+	$scope.state = 'waiting';
+	$scope.current = 0;
+
+	variables.get().then(function(data) {
+		var base = (window.location.protocol == 'https:') ? data.https_uri : data.http_uri;
+		playlistUri = base + '/broadcasts/' + encodeURIComponent($params.roomName) + '/';
+		poll();
+	});
+
+	/**
+	* @function poll() - Read the playlist, queue its new segments and schedule the next reading
+	*/
+	function poll() {
+		if (destroyed)
+			return;
+
+		$http.get(playlistUri + 'live.json').then(function(result) {
+			var playlist = result.data;
+
+			// A new broadcast of the room, the segments of the last one are gone
+			if (playlist.broadcast !== broadcastId) {
+				broadcastId = playlist.broadcast;
+				lastSequence = null;
+				queue = [];
+			}
+
+			var segments = playlist.segments;
+
+			if (lastSequence === null)
+				segments = segments.slice(-LIVE_EDGE);
+
+			_.each(segments, function(segment) {
+				if (lastSequence === null || segment.sequence > lastSequence) {
+					queue.push(playlistUri + segment.file);
+					lastSequence = segment.sequence;
+				}
+			});
+
+			if ($scope.state != 'playing')
+				playNext();
+
+			if (playlist.ended) {
+				if ($scope.state != 'playing')
+					$scope.state = 'ended';
+
+				$scope.ended = true;
+				return;
+			}
+
+			$scope.ended = false;
+			schedule(Math.max(playlist.targetDuration / 2, 500));
+		}, function(error) {
+			// No broadcast yet, or the agent is unreachable
+			console.warn('Could not read the playlist of the broadcast', error.status);
+			schedule(RETRY_DELAY);
+		});
+	}
+
+	function schedule(delay) {
+		poller = $timeout(poll, delay);
+	}
+
+	function player(index) {
+		return document.getElementById('broadcast-' + index);
+	}
+
+	/**
+	* @function playNext() - Play the next queued segment in the other video element, and load the one after
+	*/
+	function playNext() {
+		var next = queue.shift();
+
+		if (next === undefined) {
+			$scope.state = $scope.ended ? 'ended' : 'waiting';
+			return;
+		}
+
+		// The other element, where the next segment is already loading
+		var index = played ? 1 - $scope.current : $scope.current;
+		var video = player(index);
+
+		if (video.getAttribute('src') !== next)
+			video.src = next;
+
+		video.play();
+		player(1 - index).pause();
+
+		$scope.current = index;
+		$scope.state = 'playing';
+		played = true;
+
+		if (queue.length > 0)
+			preload(1 - index, queue[0]);
+	}
+
+	function preload(index, uri) {
+		var video = player(index);
+		video.src = uri;
+		video.load();
+	}
+
+	// Called outside of Angular by the video elements
+	function onEnded(event) {
+		if (destroyed || event.target !== player($scope.current))
+			return;
+
+		$timeout(playNext);
+	}
+
+	_.each([0, 1], function(index) {
+		var video = player(index);
+
+		if (video) {
+			video.addEventListener('ended', onEnded);
+			// A segment which cannot be played is skipped
+			video.addEventListener('error', onEnded);
+		}
+	});
+
+	$scope.$on('$destroy', function() {
+		destroyed = true;
+		$timeout.cancel(poller);
+
+		_.each([0, 1], function(index) {
+			var video = player(index);
+
+			if (video) {
+				video.removeEventListener('ended', onEnded);
+				video.removeEventListener('error', onEnded);
+				video.pause();
+			}
+		});
+	});
+}
@@ -53,6 +53,27 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 	};
 
 	$scope.participantNames = [];
+
+	// Name of the participant speaking the most, set by the server
+	$scope.dominantSpeaker = null;
+
+	// True while this client only watches the room
+	$scope.isViewer = false;
+
+	// Version of the roster known by this client
+	var rosterVersion;
+
+	// True while the whole roster has been asked for and not received yet
+	var rosterResyncing = false;
+
+	// How the video reaches this client, 'mcu' or 'sfu'
+	var topology = 'mcu';
+
+	// The server has built the pipeline of the presentation of this client
+	var presentationReady = false;
+
+	// The screen to share was chosen before the pipeline was built
+	var presentationChosen = false;
     
     /**
     *End of initialisation
@@ -75,8 +96,11 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 				break;
 
 			case 'presentationInfo':
-				if (constraints.browserIsFirefox)
+				presentationReady = true;
+				if (constraints.browserIsFirefox || presentationChosen) {
+					presentationChosen = false;
 					sendStream(parsedMessage, 'presentation');
+				}
 				break;
 
 			case 'presenterReady':
@@ -95,6 +119,49 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 				onParticipantLeft(parsedMessage);
 				break;
 
+			case 'rosterDelta':
+				onRosterDelta(parsedMessage);
+				break;
+
+			case 'rosterSnapshot':
+				onRosterSnapshot(parsedMessage);
+				break;
+
+			case 'newPublisher':
+				if (topology == 'sfu')
+					receiveSfu(parsedMessage.userId, parsedMessage.name);
+				break;
+
+			case 'topologyChanged':
+				setTopology(parsedMessage.topology, parsedMessage.publishers);
+				break;
+
+			case 'promoted':
+				onPromoted();
+				break;
+
+			case 'roomFull':
+				notifications.notify('The room is full, please try again later.');
+				if (!$scope.isViewer || parsedMessage.role == 'viewer')
+					$scope.leave();
+				break;
+
+			case 'renegotiate':
+				renegotiate();
+				break;
+
+			case 'renewRefused':
+				setTimeout(function() {
+					socket.send({ 'id': 'renew' });
+					renegotiate();
+				}, parsedMessage.retryAfter);
+				break;
+
+			case 'dominantSpeaker':
+				$scope.dominantSpeaker = parsedMessage.name;
+				updateScope();
+				break;
+
 			case 'receiveVideoAnswer':
 				receiveVideoResponse(parsedMessage);
 				break;
@@ -134,6 +201,21 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 
 				break;
 
+			case 'iceCandidates':
+
+				var rtcPeer = participants.get(parsedMessage.userId).rtcPeer[parsedMessage.type];
+
+				parsedMessage.candidates.forEach(function(candidate) {
+					rtcPeer.addIceCandidate(candidate, function(error) {
+						if (error) {
+							console.error("Error adding candidate: " + error);
+							return;
+						}
+					});
+				});
+
+				break;
+
 			case 'lineAvailable':
 				setLineExtension(parsedMessage.extension);$scope.lineAvailable = false
 				break;
@@ -142,13 +224,30 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 				notifications.notify(parsedMessage.message);
 				console.log(parsedMessage.message);
 				break;
+
+			case 'serverBusy':
+				notifications.notify('The server is busy, please try again.');
+				console.warn('Request dropped by the server: ' + parsedMessage.request);
+				break;
                 
             case 'recordJava':
                 recordJava(parsedMessage);
                 break;
                 
+            case 'recordRefused':
+                $scope.record.set(parsedMessage.recording);
+                break;
+
             case 'stopRecordJava':
                 stopRecordJava(parsedMessage);
+                break;
+
+            case 'broadcastStarted':
+                notifications.notify(parsedMessage.name + ' started the live broadcast of the room, watch it at #/broadcasts/' + parsedMessage.roomName, 'account-plus');
+                break;
+
+            case 'broadcastStopped':
+                notifications.notify(parsedMessage.name + ' stopped the live broadcast of the room', 'account-plus');
                 break;
                 
 			default:
@@ -168,7 +267,10 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 			// user chose a stream
 			if (event.data.type && (event.data.type === 'SS_DIALOG_SUCCESS')) {
 				constraints.setId(event.data.streamId);
-				sendStream({}, 'presentation');
+				if (presentationReady)
+					sendStream({}, 'presentation');
+				else
+					presentationChosen = true;
 			}
 
 			// user clicked on 'cancel' in choose media dialog
@@ -194,6 +296,8 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 		}
 
 		$scope.presentation.presenterIsMe = false;
+		presentationReady = false;
+		presentationChosen = false;
 		constraints.setType('composite');
 		socket.send({ id: 'stopPresenting' });
 	};
@@ -244,6 +348,7 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 
 				constraints.setType(type);
 				$scope.presentation.presenterIsMe = true;
+				presentationReady = false;
 
 				socket.send({
 					id: 'newPresenter',
@@ -313,7 +418,10 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
             updateScope();
         },
         update: function() {
-            this.recording = !this.recording;
+            this.set(!this.recording);
+        },
+        set: function(recording) {
+            this.recording = recording;
             this.text = (this.recording) ? "STOP_RECORD" : "RECORD";
             updateScope();
         }
@@ -393,6 +501,28 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 		sendStream({}, 'composite');
 	}
 
+    //The media of this client has been rebuilt by the server, a new offer is needed
+	function renegotiate() {
+		participants.me().disposeType('composite');
+		sendStream({}, 'composite');
+	}
+
+    //Ask to take part in the room while watching it
+	$scope.takePart = function() {
+		socket.send({ id: 'promote' });
+	};
+
+    //The server has made room for the media of this client
+	function onPromoted() {
+		$scope.isViewer = false;
+		updateScope();
+
+		var participant = participants.me();
+		participant.disposeType('composite');
+		constraints.setCompositeOptions('normal');
+		sendStream({}, 'composite');
+	}
+
     //No user media
 	$scope.watchOnly = function() {
 		renewConstraints('watchOnly');
@@ -467,6 +597,7 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 
 		if (type == 'composite') {
 			if (!_.isEmpty(message)) {
+				rosterVersion = message.rosterVersion;
 				$scope.participantNames = message.data;
 				$scope.participantNames.push(participant.name);
 				updateScope();
@@ -509,6 +640,17 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 				this.generateOffer(participant.offerToReceive[type].bind(participant));
 			});
 
+		if (message.topology && type == 'composite')
+			setTopology(message.topology, message.publishers);
+
+		if (message.recording !== undefined && type == 'composite')
+			$scope.record.set(message.recording);
+
+		if (message.viewer !== undefined && type == 'composite') {
+			$scope.isViewer = message.viewer;
+			updateScope();
+		}
+
 		if (message.existingScreensharer && type == 'composite') {
 			enablePresentationClass();
 
@@ -519,6 +661,66 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 
 	}
     
+    //Receive the video of a participant straight from the server, without the Composite
+	function receiveSfu(userId, name) {
+
+		if (participants.get(userId) === undefined)
+			participants.add(userId, name);
+
+		var participant = participants.get(userId);
+
+		if (participant.rtcPeer.sfu)
+			return;
+
+		var composite = document.getElementById('composite');
+		var video = document.createElement('video');
+		video.autoplay = true;
+		// The audio is still mixed by the Composite
+		video.muted = true;
+		video.className = composite.className;
+		video.title = name;
+		composite.parentNode.appendChild(video);
+		participant.sfuVideo = video;
+
+		var options = {
+			remoteVideo: video,
+			mediaConstraints: { audio: false, video: true },
+			onicecandidate: participant.onIceCandidate.sfu.bind(participant)
+		};
+
+		participant.rtcPeer.sfu = new kurentoUtils.WebRtcPeer.WebRtcPeerRecvonly(options,
+			function(error) {
+				if (error) {
+					return console.error(error);
+				}
+
+				this.generateOffer(participant.offerToReceive.sfu.bind(participant));
+			});
+	}
+
+    //Switch between the video of the Composite and the videos of each publisher
+	function setTopology(newTopology, publishers) {
+
+		topology = newTopology;
+		console.log('Room topology: ' + topology);
+
+		if (topology == 'sfu') {
+			// Hidden but still playing the audio mix
+			$('#composite').hide();
+
+			(publishers || []).forEach(function(publisher) {
+				if (publisher.userId != participants.me().userId)
+					receiveSfu(publisher.userId, publisher.name);
+			});
+		} else {
+			$('#composite').show();
+
+			participants.each(function(participant) {
+				participant.disposeType('sfu');
+			});
+		}
+	}
+
     /**
     * End of the flow bloc
     */
@@ -538,6 +740,8 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 		console.log("Cancelling Presentation");
 
 		disablePresentationClass();
+		presentationReady = false;
+		presentationChosen = false;
 
 		if (message.userId != participants.me().userId) {
 			if (participants.get(message.userId) !== undefined)
@@ -564,7 +768,7 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
     //Inform all users that a record has begin
     function recordJava (request) {
         if (!(request.userJava === participants.me().userId)) {
-            $scope.record.update();
+            $scope.record.set(true);
             if ($rootScope.langKey === 'en') {
             notifications.notify("A record of room " + request.roomJava + " has been started by " + request.nameJava + " who have ID " + request.userJava, 'account-plus');
             } else if ($rootScope.langKey === 'fr') {
@@ -582,7 +786,7 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
     //Inform all users that a record has been closed
     function stopRecordJava (request) {
         if (!(request.userJava === participants.me().userId)) {
-            $scope.record.update();
+            $scope.record.set(false);
             if ($rootScope.langKey === 'en') {
             notifications.notify("A record of room " + request.roomJava + " has been cancelled by " + request.nameJava + " who have ID " + request.userJava, 'account-plus');
             } else if ($rootScope.langKey === 'fr') {
@@ -612,13 +816,76 @@ function RoomCtrl($scope, $rootScope, $location, $window, $params, $timeout, soc
 
 		participants.remove(request.userId);
 
+		if ($scope.dominantSpeaker == request.name)
+			$scope.dominantSpeaker = null;
+
         if ($rootScope.langKey === 'en') {
 		notifications.notify(request.name + ' has left the room', 'account-remove');
         } else if ($rootScope.langKey === 'fr')  {
         notifications.notify(request.name + ' a quitté la salle', 'account-remove');    
         }
 
-		$scope.participantNames = request.data;
+		if (request.data !== undefined) {
+			$scope.participantNames = request.data;
+		} else {
+			removeParticipantName(request.name);
+		}
+		updateScope();
+	}
+
+	function removeParticipantName(name) {
+		var index = $scope.participantNames.indexOf(name);
+		if (index >= 0)
+			$scope.participantNames.splice(index, 1);
+	}
+
+    //Apply a change of the roster, ask for the whole roster if a version was missed
+	function onRosterDelta(delta) {
+
+		// The roster is not known yet or the change is already applied
+		if (rosterVersion === undefined || delta.version <= rosterVersion)
+			return;
+
+		// The snapshot gives the version, the deltas until then are dropped
+		if (delta.version != rosterVersion + 1) {
+			if (!rosterResyncing) {
+				console.log('Missed roster version ' + (rosterVersion + 1) + ', asking for a resync');
+				rosterResyncing = true;
+				socket.send({ id: 'rosterResync' });
+			}
+			return;
+		}
+
+		rosterVersion = delta.version;
+
+		switch (delta.op) {
+
+			case 'add':
+				if (delta.userId != participants.me().userId)
+					onNewParticipant(delta);
+				break;
+
+			case 'remove':
+				onParticipantLeft(delta);
+				break;
+
+			case 'rename':
+				var index = $scope.participantNames.indexOf(delta.oldName);
+				if (index >= 0)
+					$scope.participantNames[index] = delta.name;
+				if ($scope.dominantSpeaker == delta.oldName)
+					$scope.dominantSpeaker = delta.name;
+				updateScope();
+				break;
+		}
+	}
+
+    //Replace the roster by the one sent by the server
+	function onRosterSnapshot(snapshot) {
+
+		rosterVersion = snapshot.version;
+		rosterResyncing = false;
+		$scope.participantNames = snapshot.data;
 		updateScope();
 	}
 
@@ -59,7 +59,9 @@ function UserCtrl($scope, $rootScope, $location, socket, constraints, notificati
 					userId: userId,
 					name: participant.name,
 					room: participant.room,
-					mediaSource: 'composite'
+					mediaSource: 'composite',
+					// Watching only takes no place in the mix of the room
+					role: (participant.compositeOptions == 'watchOnly') ? 'viewer' : 'participant'
 				});
 
 				constraints.setCompositeOptions(participant.compositeOptions);
@@ -16,7 +16,7 @@ app.factory('participants', ['socket', function(socket) {
         * @constructs
         * @typedef {String} UserID - unique identifier for the user
         * @typedef {String} Name - Name chossen by the used
-        * @typedef {function{}} rtcPeer - Set the function composite and presentation to null
+        * @typedef {function{}} rtcPeer - Set the function composite, presentation and sfu to null
         * @typedef {function} offer - Function that allow user to send its signal
         * @typedef {function} offerToReceive - Describe composite and presentation in this case
         * @typedef {function} iceCanddate - Function that allow user to send its ICE request
@@ -30,9 +30,12 @@ app.factory('participants', ['socket', function(socket) {
 			name: n,
 			rtcPeer: {
 				presentation: null,
-				composite: null
+				composite: null,
+				sfu: null
 			},
 
+			sfuVideo: null,
+
 			offer: function(type, error, offerSdp, wp) {
 				if (error)
 					return console.error("sdp offer error");
@@ -56,6 +59,9 @@ app.factory('participants', ['socket', function(socket) {
 				},
 				presentation: function(error, offerSdp, wp) {
 					this.offer('presentation', error, offerSdp, wp);
+				},
+				sfu: function(error, offerSdp, wp) {
+					this.offer('sfu', error, offerSdp, wp);
 				}
 			},
 
@@ -64,6 +70,7 @@ app.factory('participants', ['socket', function(socket) {
 
 				var message = {
 					id: 'onIceCandidate',
+					userId: userId,
 					candidate: candidate,
 					type: type
 				};
@@ -78,12 +85,25 @@ app.factory('participants', ['socket', function(socket) {
 
 				presentation: function(candidate, wp) {
 					this.iceCandidate('presentation', candidate, wp);
+				},
+
+				sfu: function(candidate, wp) {
+					this.iceCandidate('sfu', candidate, wp);
 				}
 			},
 
 			disposeType: function(type) {
 				if (this.rtcPeer[type])
 					this.rtcPeer[type].dispose();
+
+				if (type == 'sfu') {
+					this.rtcPeer.sfu = null;
+
+					if (this.sfuVideo) {
+						$(this.sfuVideo).remove();
+						this.sfuVideo = null;
+					}
+				}
 			},
 
 			dispose: function() {
@@ -91,6 +111,7 @@ app.factory('participants', ['socket', function(socket) {
 
 				this.disposeType('presentation');
 				this.disposeType('composite');
+				this.disposeType('sfu');
 			},
 
 			getIceCandidate: function(type) {
@@ -109,6 +130,10 @@ app.factory('participants', ['socket', function(socket) {
 			writable: true
 		});
 
+		Object.defineProperty(participant.rtcPeer, 'sfu', {
+			writable: true
+		});
+
 		participants[userId] = participant;
 
 		if (name === null) {
@@ -141,6 +166,17 @@ app.factory('participants', ['socket', function(socket) {
 		return participants[id];
 	}
     
+    /**
+    * @function each() - Call a function with every participant
+    * @param function - callback
+    */
+	function each(callback) {
+		for (var key in participants) {
+			if (participants[key] !== undefined)
+				callback(participants[key]);
+		}
+	}
+
     /**
     * @function isEmpty() - Check if the participants tab is empty
     * @return booleam - isEmpty
@@ -167,6 +203,7 @@ app.factory('participants', ['socket', function(socket) {
 	return {
 		add: add,
 		clear: clear,
+		each: each,
 		get: get,
 		isEmpty: isEmpty,
 		me: me,
@@ -15,11 +15,14 @@
 package cz.cvut.fel.webrtc;
 
 import cz.cvut.fel.webrtc.db.LineRegistry;
+import cz.cvut.fel.webrtc.db.MediaServerPool;
 import cz.cvut.fel.webrtc.db.RoomManager;
 import cz.cvut.fel.webrtc.db.WebRegistry;
 import cz.cvut.fel.webrtc.handlers.SipHandler;
 import cz.cvut.fel.webrtc.handlers.WebHandler;
-import org.kurento.client.KurentoClient;
+import cz.cvut.fel.webrtc.utils.EventLoopGroup;
+import cz.cvut.fel.webrtc.utils.SessionQueueFactory;
+import cz.cvut.fel.webrtc.utils.SignalingExecutor;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
@@ -34,6 +37,7 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * 
@@ -45,8 +49,9 @@ import java.util.ArrayList;
 @EnableAutoConfiguration
 public class GroupCallApp implements WebSocketConfigurer {
 
+	// Comma separated list of KMS
 	@Value("${kurento.websocket}")
-	private String kms_uri;
+	private String[] kms_uris;
 
 	@Value("${xivo.websocket}")
 	private String xivo_ws;
@@ -60,6 +65,93 @@ public class GroupCallApp implements WebSocketConfigurer {
 	@Value("${xivo.rest.password}")
 	private String xivo_rest_password;
 
+	@Value("${websocket.send.threads:16}")
+	private int send_threads;
+
+	@Value("${websocket.send.queue-limit:1000}")
+	private int send_queue_limit;
+
+	@Value("${websocket.send.buffer-limit:1048576}")
+	private int send_buffer_limit;
+
+	@Value("${signaling.threads:32}")
+	private int signaling_threads;
+
+	@Value("${signaling.queue-limit:5000}")
+	private int signaling_queue_limit;
+
+	@Value("${signaling.session-queue-limit:200}")
+	private int signaling_session_queue_limit;
+
+	@Value("${room.loops:0}")
+	private int room_loops;
+
+	@Value("${room.shard-capacity:0}")
+	private int room_shard_capacity;
+
+	@Value("${room.topology:mcu}")
+	private String room_topology;
+
+	@Value("${room.sfu-max-participants:4}")
+	private int room_sfu_max_participants;
+
+	@Value("${room.last-n:0}")
+	private int room_last_n;
+
+	@Value("${room.max-participants:0}")
+	private int room_max_participants;
+
+	@Value("${room.max-viewers:0}")
+	private int room_max_viewers;
+
+	@Value("${room.presentation-grace:60}")
+	private long room_presentation_grace;
+
+	@Value("${room.presentation-fanout:0}")
+	private int room_presentation_fanout;
+
+	@Value("${room.media-recovery-grace:10}")
+	private long room_media_recovery_grace;
+
+	@Value("${record.directory:/record}")
+	private String record_directory;
+
+	@Value("${record.segment-duration:300}")
+	private long record_segment_duration;
+
+	@Value("${record.segment-size:0}")
+	private long record_segment_size;
+
+	@Value("${record.max-downloads:8}")
+	private int record_max_downloads;
+
+	@Value("${broadcast.directory:/record/live}")
+	private String broadcast_directory;
+
+	@Value("${broadcast.segment-duration:4}")
+	private long broadcast_segment_duration;
+
+	@Value("${broadcast.window:6}")
+	private int broadcast_window;
+
+	@Value("${overlay.enabled:false}")
+	private boolean overlay_enabled;
+
+	@Value("${overlay.tiles-url:http://localhost:8080/names/}")
+	private String overlay_tiles_url;
+
+	@Value("${overlay.cache-size:1024}")
+	private int overlay_cache_size;
+
+	@Value("${overlay.max-renders:2}")
+	private int overlay_max_renders;
+
+	@Value("${media.pool.size:2}")
+	private int media_pool_size;
+
+	@Value("${media.pool.idle-timeout:1800}")
+	private long media_pool_idle_timeout;
+
 	@Bean
 	public WebRegistry registry() {
 		return new WebRegistry();
@@ -67,7 +159,52 @@ public class GroupCallApp implements WebSocketConfigurer {
 
 	@Bean
 	public RoomManager roomManager() {
-		return new RoomManager();
+		RoomManager manager = new RoomManager(room_shard_capacity, room_topology, room_sfu_max_participants,
+				room_last_n);
+		manager.setLimits(room_max_participants, room_max_viewers);
+		manager.setPresentationGrace(room_presentation_grace);
+		manager.setPresentationFanout(room_presentation_fanout);
+		manager.setMediaRecoveryGrace(room_media_recovery_grace);
+		manager.setRecording(record_directory, record_segment_duration, record_segment_size);
+		manager.setBroadcast(broadcast_directory, broadcast_segment_duration, broadcast_window);
+		manager.setNameOverlay(overlay_tiles_url, overlay_enabled);
+		return manager;
+	}
+
+	@Bean
+	public MediaServerPool mediaServerPool() {
+		return new MediaServerPool(Arrays.asList(kms_uris), media_pool_size, media_pool_idle_timeout);
+	}
+
+	@Bean
+	public MediaServerController mediaServerController() {
+		return new MediaServerController();
+	}
+
+	@Bean
+	public ImageController imageController() {
+		return new ImageController(overlay_cache_size, overlay_max_renders);
+	}
+
+	@Bean
+	public RecordingController recordingController() {
+		return new RecordingController(record_directory, broadcast_directory, record_max_downloads);
+	}
+
+	@Bean
+	public EventLoopGroup eventLoopGroup() {
+		int loops = (room_loops > 0) ? room_loops : Runtime.getRuntime().availableProcessors();
+		return new EventLoopGroup(loops);
+	}
+
+	@Bean
+	public SessionQueueFactory sessionQueueFactory() {
+		return new SessionQueueFactory(send_threads, send_queue_limit, send_buffer_limit);
+	}
+
+	@Bean
+	public SignalingExecutor signalingExecutor() {
+		return new SignalingExecutor(signaling_threads, signaling_queue_limit, signaling_session_queue_limit);
 	}
 
 	@Bean
@@ -98,11 +235,6 @@ public class GroupCallApp implements WebSocketConfigurer {
 		return manager;
 	}
 
-	@Bean
-	public KurentoClient kurentoClient() {
-		return KurentoClient.create(kms_uri);
-	}
-
 	public static void main(String[] args) throws Exception {
 		SpringApplication.run(GroupCallApp.class, args);
 	}
@@ -111,11 +243,4 @@ public class GroupCallApp implements WebSocketConfigurer {
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
 		registry.addHandler(webHandler(), "/groupcall");
 	}
-
-	/*
-	 * For ImageOverlay
-	 * 
-	 * @Bean public ImageController imageController() { return new
-	 * ImageController(); }
-	 */
 }
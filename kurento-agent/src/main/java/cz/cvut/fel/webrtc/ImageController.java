@@ -1,67 +1,214 @@
 package cz.cvut.fel.webrtc;
 
-import org.springframework.core.io.InputStreamResource;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Names of the participants drawn on a transparent image, laid over their
+ * video by the media server. A tile only changes with the name and the size,
+ * so the PNG of the most recent ones is kept, and a tile already known to
+ * the client is answered with a 304. Only a few tiles are drawn at once.
+ *
+ */
 @Controller
 public class ImageController {
-	@RequestMapping(value = "names/{userName}", method = RequestMethod.GET)
+
+	private static final Logger log = LoggerFactory.getLogger(ImageController.class);
+
+	/**
+	 * Time a render waits for its turn, in milliseconds
+	 */
+	static final long RENDER_WAIT = 1000;
+
+	static final int MAX_SIDE = 1920;
+
+	private static final Font FONT = new Font("Arial", Font.PLAIN, 25);
+	private static final String CACHE_CONTROL = "public, max-age=86400";
+
+	/**
+	 * Name and size of a tile
+	 */
+	static final class Key {
+		private final String name;
+		private final int width;
+		private final int height;
+
+		Key(String name, int width, int height) {
+			this.name = name;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+
+			Key other = (Key) o;
+			return name.equals(other.name) && width == other.width && height == other.height;
+		}
+
+		@Override
+		public int hashCode() {
+			return (name.hashCode() * 31 + width) * 31 + height;
+		}
+	}
+
+	/**
+	 * PNG of a tile and its strong ETag
+	 */
+	static final class Tile {
+		private final byte[] png;
+		private final String etag;
+
+		Tile(byte[] png) {
+			this.png = png;
+			this.etag = "\"" + Hashing.sha1().hashBytes(png).toString() + "\"";
+		}
+
+		byte[] getPng() {
+			return png;
+		}
+
+		String getEtag() {
+			return etag;
+		}
+	}
+
+	private final Cache<Key, Tile> tiles;
+	private final Semaphore renders;
+
+	/**
+	 * Constructor of ImageController
+	 *
+	 * @param cacheSize
+	 *            - number of tiles kept
+	 * @param maxRenders
+	 *            - number of tiles drawn at once
+	 */
+	public ImageController(int cacheSize, int maxRenders) {
+		this.tiles = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+		this.renders = new Semaphore(maxRenders);
+	}
+
+	@RequestMapping(value = "names/{userName:.+}", method = RequestMethod.GET)
 	@ResponseBody
-	public ResponseEntity<InputStreamResource> downloadUserAvatarImage(@PathVariable String userName)
-			throws IOException {
-		BufferedImage img = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
-		Graphics2D g2d = img.createGraphics();
-		final ByteArrayOutputStream output;
-		Font font = new Font("Arial", Font.PLAIN, 25);
-		g2d.setFont(font);
-		FontMetrics fm = g2d.getFontMetrics();
-		// int width = fm.stringWidth(userName);
-		// int height = fm.getHeight();
-		g2d.dispose();
-
-		img = new BufferedImage(320, 240, BufferedImage.TYPE_INT_ARGB);
-		g2d = img.createGraphics();
-		g2d.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
-		g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-		g2d.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
-		g2d.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_ENABLE);
-		g2d.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-		g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-		g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
-		g2d.setFont(font);
-		fm = g2d.getFontMetrics();
-		g2d.setColor(Color.MAGENTA);
-		g2d.drawString(userName, (320 - fm.stringWidth(userName)) / 2, 232);
-		g2d.dispose();
-		output = new ByteArrayOutputStream() {
-			@Override
-			public synchronized byte[] toByteArray() {
-				return this.buf;
+	public ResponseEntity<byte[]> downloadUserAvatarImage(@PathVariable String userName,
+			@RequestParam(value = "width", defaultValue = "320") int width,
+			@RequestParam(value = "height", defaultValue = "240") int height,
+			@RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) throws IOException {
+		if (width <= 0 || height <= 0 || width > MAX_SIDE || height > MAX_SIDE)
+			return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+
+		Tile tile = getTile(new Key(userName, width, height));
+
+		if (tile == null)
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header("Retry-After", "1").build();
+
+		if (ifNoneMatch != null && ifNoneMatch.contains(tile.getEtag())) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(tile.getEtag())
+					.header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL).build();
+		}
+
+		return ResponseEntity.ok().contentType(MediaType.IMAGE_PNG).contentLength(tile.getPng().length)
+				.eTag(tile.getEtag()).header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL).body(tile.getPng());
+	}
+
+	/**
+	 * @return the tile, drawn if it is not kept, null if too many tiles are
+	 *         being drawn
+	 */
+	Tile getTile(final Key key) throws IOException {
+		try {
+			// Requests for a tile being drawn wait for it rather than draw it
+			// again
+			return tiles.get(key, new Callable<Tile>() {
+
+				@Override
+				public Tile call() throws Exception {
+					if (!renders.tryAcquire(RENDER_WAIT, TimeUnit.MILLISECONDS))
+						throw new RenderRefusedException();
+
+					try {
+						return new Tile(render(key));
+					} finally {
+						renders.release();
+					}
+				}
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			if (e.getCause() instanceof RenderRefusedException) {
+				log.debug("Too many names being drawn, {} refused", key.name);
+				return null;
 			}
-		};
 
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Draw the name at the bottom of a transparent image
+	 */
+	static byte[] render(Key key) throws IOException {
+		BufferedImage img = new BufferedImage(key.width, key.height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2d = img.createGraphics();
+
+		try {
+			g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g2d.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+			g2d.setFont(FONT);
+			g2d.setColor(Color.MAGENTA);
+
+			FontMetrics fm = g2d.getFontMetrics();
+			g2d.drawString(key.name, (key.width - fm.stringWidth(key.name)) / 2, key.height - 8);
+		} finally {
+			g2d.dispose();
+		}
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
 		ImageIO.write(img, "png", output);
+		return output.toByteArray();
+	}
 
-		// ByteArrayInputStream is = new
-		// ByteArrayInputStream(output.toByteArray(), 0, output.size());
-		InputStream is = new ByteArrayInputStream(output.toByteArray());
-		return ResponseEntity.ok().contentLength(output.size())
-				.contentType(MediaType.parseMediaType(MediaType.IMAGE_PNG_VALUE)).body(new InputStreamResource(is));
+	/**
+	 * A render which could not start in time
+	 */
+	private static class RenderRefusedException extends Exception {
+		private static final long serialVersionUID = 1L;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * @return the number of tiles kept
+	 */
+	public long getCachedTiles() {
+		return tiles.size();
+	}
+}
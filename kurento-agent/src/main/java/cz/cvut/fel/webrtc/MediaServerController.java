@@ -0,0 +1,166 @@
+package cz.cvut.fel.webrtc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import cz.cvut.fel.webrtc.db.MediaServer;
+import cz.cvut.fel.webrtc.db.MediaServerPool;
+import cz.cvut.fel.webrtc.db.RoomManager;
+import cz.cvut.fel.webrtc.handlers.WebHandler;
+import cz.cvut.fel.webrtc.resources.Room;
+import cz.cvut.fel.webrtc.resources.RoomBroadcast;
+import cz.cvut.fel.webrtc.resources.RoomRecorder;
+import cz.cvut.fel.webrtc.utils.QueuedSession;
+import cz.cvut.fel.webrtc.utils.SignalingExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.concurrent.Callable;
+
+/**
+ * State of the media servers, of the rooms and of the signaling queues, and
+ * drain of a server before its maintenance
+ *
+ */
+@Controller
+public class MediaServerController {
+
+	@Autowired
+	private MediaServerPool mediaServers;
+
+	@Autowired
+	private RoomManager roomManager;
+
+	@Autowired
+	private SignalingExecutor signaling;
+
+	@Autowired
+	private WebHandler webHandler;
+
+	@RequestMapping(value = "media-servers", method = RequestMethod.GET)
+	@ResponseBody
+	public ResponseEntity<String> getMediaServers() {
+		JsonArray servers = new JsonArray();
+
+		for (MediaServer server : mediaServers.getServers()) {
+			JsonObject json = new JsonObject();
+			json.addProperty("uri", server.getUri());
+			json.addProperty("available", server.isAvailable());
+			json.addProperty("draining", server.isDraining());
+			json.addProperty("usedCpu", server.getUsedCpu());
+			json.addProperty("pipelines", server.getPipelines());
+			json.addProperty("rooms", server.getRooms());
+			json.addProperty("pooledMedia", server.getMediaPool().getIdleCount());
+			json.addProperty("score", server.getScore());
+			servers.add(json);
+		}
+
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(servers.toString());
+	}
+
+	@RequestMapping(value = "signaling", method = RequestMethod.GET)
+	@ResponseBody
+	public ResponseEntity<String> getSignaling() {
+		JsonObject json = new JsonObject();
+		json.addProperty("queuedTasks", signaling.getQueuedTasks());
+		json.addProperty("activeTasks", signaling.getActiveTasks());
+		json.addProperty("rejectedTasks", signaling.getRejectedTasks());
+		json.addProperty("signalingSessions", signaling.getSessionCount());
+
+		// Messages waiting to be written to the clients
+		int sessions = 0;
+		long queuedMessages = 0;
+		long queuedBytes = 0;
+		int largestQueue = 0;
+
+		for (QueuedSession session : webHandler.getQueuedSessions()) {
+			sessions++;
+			queuedMessages += session.getQueuedMessages();
+			queuedBytes += session.getQueuedBytes();
+			largestQueue = Math.max(largestQueue, session.getQueuedBytes());
+		}
+
+		json.addProperty("sessions", sessions);
+		json.addProperty("queuedMessages", queuedMessages);
+		json.addProperty("queuedBytes", queuedBytes);
+		json.addProperty("largestQueuedBytes", largestQueue);
+
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(json.toString());
+	}
+
+	@RequestMapping(value = "rooms", method = RequestMethod.GET)
+	@ResponseBody
+	public ResponseEntity<String> getRooms() {
+		JsonArray rooms = new JsonArray();
+
+		for (Room room : roomManager.getRooms()) {
+			JsonObject json = new JsonObject();
+			json.addProperty("name", room.getName());
+			json.addProperty("topology", room.getTopology().getName());
+			json.addProperty("participants", room.getParticipantCount());
+			json.addProperty("viewers", room.getViewerCount());
+			json.addProperty("shards", room.getCascade() == null ? 1 : room.getCascade().getShards().size());
+
+			RoomRecorder recorder = room.getRecorder();
+			json.addProperty("recorder", recorder.getState().getName());
+
+			if (recorder.isRecording()) {
+				json.addProperty("recording", recorder.getRecordingId());
+				json.addProperty("recordingSegment", recorder.getCurrentSegment());
+				json.addProperty("recordingSegments", recorder.getSegmentCount());
+				json.addProperty("recordingStartedBy", recorder.getStartedBy());
+				json.addProperty("recordingStartedAt", recorder.getStartedAt());
+			}
+
+			json.addProperty("names", room.isShowingNames());
+
+			RoomBroadcast broadcast = room.getBroadcast();
+			json.addProperty("broadcasting", broadcast.isBroadcasting());
+
+			if (broadcast.isBroadcasting()) {
+				json.addProperty("broadcast", broadcast.getBroadcastId());
+				json.addProperty("broadcastSegments", broadcast.getSegmentCount());
+			}
+
+			rooms.add(json);
+		}
+
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(rooms.toString());
+	}
+
+	@RequestMapping(value = "rooms/names", method = RequestMethod.POST)
+	@ResponseBody
+	public ResponseEntity<String> showNames(@RequestParam("room") String roomName,
+			@RequestParam(value = "shown", defaultValue = "true") final boolean shown) throws Exception {
+		final Room room = roomManager.getRoom(roomName, false);
+
+		if (room == null)
+			return new ResponseEntity<>("Unknown room " + roomName, HttpStatus.NOT_FOUND);
+
+		room.call(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				return room.showNames(shown);
+			}
+		});
+
+		return new ResponseEntity<>(HttpStatus.OK);
+	}
+
+	@RequestMapping(value = "media-servers/drain", method = RequestMethod.POST)
+	@ResponseBody
+	public ResponseEntity<String> drain(@RequestParam("uri") String uri,
+			@RequestParam(value = "draining", defaultValue = "true") boolean draining) {
+		if (!mediaServers.setDraining(uri, draining))
+			return new ResponseEntity<>("Unknown media server " + uri, HttpStatus.NOT_FOUND);
+
+		return new ResponseEntity<>(HttpStatus.OK);
+	}
+}
@@ -0,0 +1,342 @@
+package cz.cvut.fel.webrtc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import cz.cvut.fel.webrtc.resources.RoomBroadcast;
+import cz.cvut.fel.webrtc.resources.RoomRecorder;
+import cz.cvut.fel.webrtc.utils.ByteRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recordings and live broadcasts of the rooms, served straight from their
+ * directories. The files go to the response through FileChannel.transferTo in
+ * small buffers, never read whole into the heap. Ranges let a player seek in a
+ * long recording without reading what comes before, and only a few large
+ * downloads of recordings run at once.
+ *
+ * A broadcast is read by every viewer of a room every few seconds: its
+ * playlist is kept in memory for a moment, and its segments, which never
+ * change once listed, may be cached by the browsers and by any proxy.
+ *
+ */
+@Controller
+public class RecordingController {
+
+	private static final Logger log = LoggerFactory.getLogger(RecordingController.class);
+
+	/**
+	 * Responses of this many bytes or more need a download slot
+	 */
+	static final long LARGE_DOWNLOAD = 1024 * 1024;
+
+	/**
+	 * Time a playlist is served from memory before being read again, in
+	 * milliseconds
+	 */
+	static final long PLAYLIST_TTL = 500;
+
+	private static final String PLAYLIST_TYPE = MediaType.APPLICATION_JSON_VALUE;
+	private static final String PLAYLIST_CACHE = "public, max-age=1";
+	private static final String SEGMENT_CACHE = "public, max-age=86400";
+
+	private static class Playlist {
+		private final byte[] content;
+		private final String etag;
+		private final long readAt;
+
+		private Playlist(byte[] content, long readAt) {
+			this.content = content;
+			this.etag = "\"" + Integer.toHexString(Arrays.hashCode(content)) + "\"";
+			this.readAt = readAt;
+		}
+	}
+
+	private final File directory;
+	private final File broadcastDirectory;
+	private final Semaphore downloads;
+
+	// Playlists of the broadcasts, by file
+	private final ConcurrentMap<String, Playlist> playlists = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor of RecordingController
+	 *
+	 * @param directory
+	 *            - directory of the recordings
+	 * @param broadcastDirectory
+	 *            - directory of the live broadcasts
+	 * @param maxDownloads
+	 *            - number of large downloads at once
+	 */
+	public RecordingController(String directory, String broadcastDirectory, int maxDownloads) {
+		this.directory = new File(directory);
+		this.broadcastDirectory = new File(broadcastDirectory);
+		this.downloads = new Semaphore(maxDownloads);
+	}
+
+	@RequestMapping(value = "recordings/{roomName}", method = RequestMethod.GET)
+	@ResponseBody
+	public ResponseEntity<String> getRecordings(@PathVariable String roomName) throws IOException {
+		JsonArray recordings = new JsonArray();
+		String[] files = directory.list();
+
+		if (files != null) {
+			Arrays.sort(files);
+
+			for (String file : files) {
+				if (!RoomRecorder.isManifest(roomName, file))
+					continue;
+
+				String manifest = new String(Files.readAllBytes(new File(directory, file).toPath()),
+						StandardCharsets.UTF_8);
+				recordings.add(new JsonParser().parse(manifest));
+			}
+		}
+
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(recordings.toString());
+	}
+
+	@RequestMapping(value = "recordings/{roomName}/{file:.+}", method = { RequestMethod.GET, RequestMethod.HEAD })
+	public void getRecording(@PathVariable String roomName, @PathVariable String file, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		File target = new File(directory, file);
+
+		// The name is checked against the pattern of the recordings, so no
+		// other file of the directory, nor outside it, can be asked for
+		if (!RoomRecorder.isRecordingFile(roomName, file) || !target.isFile()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		if (file.endsWith(".json"))
+			send(target, MediaType.APPLICATION_JSON_VALUE, "no-cache", true, request, response);
+		else
+			send(target, "video/mp4", null, true, request, response);
+	}
+
+	@RequestMapping(value = "broadcasts/{roomName}/{file:.+}", method = { RequestMethod.GET, RequestMethod.HEAD })
+	public void getBroadcast(@PathVariable String roomName, @PathVariable String file, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if (file.equals(RoomBroadcast.PLAYLIST)) {
+			sendPlaylist(new File(broadcastDirectory, RoomBroadcast.playlistFile(roomName)), request, response);
+			return;
+		}
+
+		File target = new File(broadcastDirectory, file);
+
+		if (!RoomBroadcast.isBroadcastSegment(roomName, file) || !target.isFile()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		// A whole audience fetches the same segments, none waits for a slot
+		send(target, "video/mp4", SEGMENT_CACHE, false, request, response);
+	}
+
+	/**
+	 * Send a file, or the part of it asked for
+	 *
+	 * @param limited
+	 *            - true if a large response needs a download slot
+	 */
+	private void send(File target, String contentType, String cacheControl, boolean limited,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String file = target.getName();
+		long length = target.length();
+		long lastModified = target.lastModified() / 1000 * 1000;
+		String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", lastModified);
+
+		response.setContentType(contentType);
+
+		if (cacheControl != null)
+			response.setHeader("Cache-Control", cacheControl);
+
+		if (notModified(request, etag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		ByteRange range = null;
+
+		if (rangeApplies(request, etag, lastModified))
+			range = ByteRange.parse(request.getHeader("Range"), length);
+
+		if (range != null && !range.isSatisfiable()) {
+			response.setHeader("Content-Range", range.toContentRange(length));
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+
+		long start = (range == null) ? 0 : range.getStart();
+		long count = (range == null) ? length : range.getLength();
+
+		if (range != null) {
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", range.toContentRange(length));
+		} else {
+			response.setStatus(HttpServletResponse.SC_OK);
+		}
+
+		response.setHeader("Content-Length", Long.toString(count));
+
+		if ("HEAD".equals(request.getMethod()))
+			return;
+
+		boolean large = limited && count >= LARGE_DOWNLOAD;
+
+		if (large && !downloads.tryAcquire()) {
+			log.info("Too many downloads, {} refused", file);
+			response.setHeader("Retry-After", "10");
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		try {
+			transfer(target, start, count, response);
+		} finally {
+			if (large)
+				downloads.release();
+		}
+	}
+
+	/**
+	 * Send a playlist from memory, read again from the disk once it is older
+	 * than PLAYLIST_TTL
+	 */
+	private void sendPlaylist(File target, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		String file = target.getName();
+		long now = System.nanoTime();
+		Playlist playlist = playlists.get(file);
+
+		if (playlist == null || now - playlist.readAt >= TimeUnit.MILLISECONDS.toNanos(PLAYLIST_TTL)) {
+			if (!target.isFile()) {
+				playlists.remove(file);
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+
+			// Several threads may read it again at once, the last one stays
+			playlist = new Playlist(Files.readAllBytes(target.toPath()), now);
+			playlists.put(file, playlist);
+		}
+
+		response.setContentType(PLAYLIST_TYPE);
+		response.setHeader("Cache-Control", PLAYLIST_CACHE);
+
+		// Read by the broadcast page, served from another origin
+		response.setHeader("Access-Control-Allow-Origin", "*");
+		response.setHeader("ETag", playlist.etag);
+
+		String ifNoneMatch = request.getHeader("If-None-Match");
+
+		if (ifNoneMatch != null && matches(ifNoneMatch, playlist.etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setHeader("Content-Length", Integer.toString(playlist.content.length));
+
+		if (!"HEAD".equals(request.getMethod()))
+			response.getOutputStream().write(playlist.content);
+	}
+
+	/**
+	 * Copy a part of a file to the response without bringing it into the heap
+	 */
+	private void transfer(File file, long start, long count, HttpServletResponse response) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+			long position = start;
+			long remaining = count;
+
+			while (remaining > 0) {
+				long sent = channel.transferTo(position, remaining, out);
+
+				// The file has shrunk meanwhile
+				if (sent <= 0)
+					break;
+
+				position += sent;
+				remaining -= sent;
+			}
+		}
+	}
+
+	/**
+	 * The copy of the browser is still the right one
+	 */
+	private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+
+		if (ifNoneMatch != null)
+			return matches(ifNoneMatch, etag);
+
+		long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+	}
+
+	/**
+	 * The range is only sent if the file has not changed since the browser
+	 * got its first part
+	 */
+	private static boolean rangeApplies(HttpServletRequest request, String etag, long lastModified) {
+		String ifRange = request.getHeader("If-Range");
+
+		if (ifRange == null)
+			return true;
+
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return ifRange.equals(etag);
+
+		long date = request.getDateHeader("If-Range");
+		return date >= 0 && lastModified <= date;
+	}
+
+	private static boolean matches(String header, String etag) {
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+
+			if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the number of large downloads which may start now
+	 */
+	public int getAvailableDownloads() {
+		return downloads.availablePermits();
+	}
+}
@@ -0,0 +1,231 @@
+package cz.cvut.fel.webrtc.db;
+
+import com.google.common.base.Ticker;
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import org.kurento.client.KurentoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warm pool of room media. A new room takes a set already built on the KMS
+ * instead of waiting for its pipelines and Composite, and the pool is refilled
+ * in the background. The pooled sets are checked periodically and released
+ * when no room has been created for a while. There is one pool per
+ * MediaServer.
+ *
+ */
+public class MediaPool {
+
+	private final Logger log = LoggerFactory.getLogger(MediaPool.class);
+
+	/**
+	 * Period of the health check, in seconds
+	 */
+	private static final long CHECK_PERIOD = 30;
+
+	private final KurentoClient kurento;
+
+	private final int size;
+	private final long idleTimeout;
+	private final Ticker ticker;
+	private final ScheduledExecutorService executor;
+
+	private final BlockingDeque<RoomMedia> idle = new LinkedBlockingDeque<>();
+	private final AtomicLong lastAcquire;
+	private final AtomicBoolean refilling = new AtomicBoolean();
+	private volatile boolean suspended;
+
+	private final Runnable refillTask = new Runnable() {
+
+		@Override
+		public void run() {
+			refilling.set(false);
+			refill();
+		}
+	};
+
+	/**
+	 * Constructor of MediaPool
+	 *
+	 * @param kurento
+	 *            - client of the KMS on which the sets are built
+	 * @param size
+	 *            - number of sets kept ready, 0 disables the pool
+	 * @param idleTimeout
+	 *            - seconds without new room after which the pool is emptied
+	 */
+	public MediaPool(KurentoClient kurento, int size, long idleTimeout) {
+		this(kurento, size, idleTimeout, Ticker.systemTicker(),
+				Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "media-pool");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}));
+	}
+
+	MediaPool(int size, long idleTimeout, Ticker ticker, ScheduledExecutorService executor) {
+		this(null, size, idleTimeout, ticker, executor);
+	}
+
+	MediaPool(KurentoClient kurento, int size, long idleTimeout, Ticker ticker, ScheduledExecutorService executor) {
+		this.kurento = kurento;
+		this.size = size;
+		this.idleTimeout = TimeUnit.SECONDS.toNanos(idleTimeout);
+		this.ticker = ticker;
+		this.executor = executor;
+		this.lastAcquire = new AtomicLong(ticker.read());
+	}
+
+	public void start() {
+		if (size <= 0)
+			return;
+
+		executor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, 0, CHECK_PERIOD, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Take a set of media for a new room. If the pool is empty, the set is
+	 * built on the calling thread.
+	 *
+	 * @return - the media of the room
+	 */
+	public RoomMedia acquire() {
+		lastAcquire.set(ticker.read());
+		RoomMedia media = idle.pollFirst();
+		scheduleRefill();
+
+		if (media != null) {
+			log.debug("Media taken from the pool, {} left", idle.size());
+			return media;
+		}
+
+		return createMedia();
+	}
+
+	/**
+	 * Stop keeping sets ready and release the ones in the pool, e.g. while
+	 * the server is drained
+	 */
+	public void suspend() {
+		suspended = true;
+		releaseIdle();
+	}
+
+	/**
+	 * Keep sets ready again
+	 */
+	public void resume() {
+		suspended = false;
+		scheduleRefill();
+	}
+
+	/**
+	 * @return the number of sets ready to be used
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Build a set of media on the KMS
+	 */
+	protected RoomMedia createMedia() {
+		return RoomMedia.create(kurento);
+	}
+
+	/**
+	 * Empty the pool when it has been idle for too long, otherwise drop the
+	 * dead sets and refill it
+	 */
+	void maintain() {
+		if (suspended) {
+			releaseIdle();
+			return;
+		}
+
+		if (ticker.read() - lastAcquire.get() > idleTimeout) {
+			if (!idle.isEmpty())
+				log.info("No room created for a while, releasing {} pooled media", idle.size());
+
+			releaseIdle();
+			return;
+		}
+
+		Iterator<RoomMedia> it = idle.iterator();
+
+		while (it.hasNext()) {
+			RoomMedia media = it.next();
+
+			if (!media.isAlive()) {
+				log.warn("Pooled media is not available anymore, dropping it");
+				it.remove();
+				release(media);
+			}
+		}
+
+		refill();
+	}
+
+	private void scheduleRefill() {
+		if (size <= 0 || suspended || !refilling.compareAndSet(false, true))
+			return;
+
+		try {
+			executor.execute(refillTask);
+		} catch (RejectedExecutionException e) {
+			refilling.set(false);
+		}
+	}
+
+	private void refill() {
+		while (idle.size() < size && !suspended && !executor.isShutdown()) {
+			try {
+				idle.addLast(createMedia());
+			} catch (Exception e) {
+				log.warn("Could not fill the media pool: {}", e.getMessage());
+				return;
+			}
+		}
+	}
+
+	private void releaseIdle() {
+		RoomMedia media;
+
+		while ((media = idle.pollFirst()) != null) {
+			release(media);
+		}
+	}
+
+	private void release(RoomMedia media) {
+		try {
+			media.release();
+		} catch (Exception e) {
+			log.debug("Could not release pooled media: {}", e.getMessage());
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+		releaseIdle();
+	}
+}
@@ -0,0 +1,196 @@
+package cz.cvut.fel.webrtc.db;
+
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.ServerManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One KMS of the pool, with its client, its warm pool of room media and the
+ * load last measured on it.
+ *
+ */
+public class MediaServer {
+
+	private final Logger log = LoggerFactory.getLogger(MediaServer.class);
+
+	/**
+	 * Interval over which the CPU usage is measured, in milliseconds
+	 */
+	private static final int CPU_INTERVAL = 1000;
+
+	/**
+	 * Cost of a pipeline, in percents of CPU
+	 */
+	private static final float PIPELINE_COST = 1;
+
+	private final String uri;
+	private final KurentoClient client;
+	private final MediaPool mediaPool;
+
+	private volatile boolean draining;
+	private volatile boolean available = true;
+	private volatile float usedCpu;
+	private volatile int pipelines;
+
+	// Pipelines created since the last measure
+	private final AtomicInteger placed = new AtomicInteger();
+	private final AtomicInteger rooms = new AtomicInteger();
+
+	/**
+	 * Constructor of MediaServer
+	 *
+	 * @param uri
+	 *            - WebSocket URI of the KMS
+	 * @param client
+	 *            - client connected to the KMS
+	 * @param mediaPool
+	 *            - warm pool of room media on the KMS
+	 */
+	public MediaServer(String uri, KurentoClient client, MediaPool mediaPool) {
+		this.uri = uri;
+		this.client = client;
+		this.mediaPool = mediaPool;
+	}
+
+	/**
+	 * Measure the load of the KMS. The call blocks for the measure of the CPU.
+	 */
+	void sample() {
+		try {
+			ServerManager manager = client.getServerManager();
+			usedCpu = manager.getUsedCpu(CPU_INTERVAL);
+			pipelines = manager.getPipelines().size();
+			placed.set(0);
+
+			if (!available)
+				log.info("Media server {} is available again", uri);
+
+			available = true;
+		} catch (Exception e) {
+			if (available)
+				log.warn("Media server {} is not available: {}", uri, e.getMessage());
+
+			available = false;
+		}
+	}
+
+	/**
+	 * Score of the server for a new room, the lower the better. The rooms
+	 * placed since the last measure are counted so that a burst of rooms does
+	 * not land on the same server.
+	 *
+	 * @return - the score
+	 */
+	public float getScore() {
+		return usedCpu + PIPELINE_COST * (pipelines + placed.get());
+	}
+
+	/**
+	 * Count a new room on this server before its media is created
+	 */
+	void reserve() {
+		// A room holds one pipeline, the presentation one only while someone
+		// presents
+		placed.incrementAndGet();
+		rooms.incrementAndGet();
+	}
+
+	/**
+	 * Take the media of a room reserved on this server
+	 *
+	 * @return - the media of the room
+	 */
+	RoomMedia acquire() {
+		try {
+			return mediaPool.acquire();
+		} catch (RuntimeException e) {
+			rooms.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Forget a room closed on this server
+	 */
+	void roomClosed() {
+		rooms.decrementAndGet();
+	}
+
+	void start() {
+		mediaPool.start();
+	}
+
+	void shutdown() {
+		mediaPool.shutdown();
+		client.destroy();
+	}
+
+	/**
+	 * @return the URI of the KMS
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * @return the client of the KMS
+	 */
+	public KurentoClient getClient() {
+		return client;
+	}
+
+	/**
+	 * @return true if no new room is placed on the server
+	 */
+	public boolean isDraining() {
+		return draining;
+	}
+
+	void setDraining(boolean draining) {
+		this.draining = draining;
+
+		if (draining)
+			mediaPool.suspend();
+		else
+			mediaPool.resume();
+	}
+
+	/**
+	 * @return false if the last measure has failed
+	 */
+	public boolean isAvailable() {
+		return available;
+	}
+
+	/**
+	 * @return the CPU usage last measured, in percents
+	 */
+	public float getUsedCpu() {
+		return usedCpu;
+	}
+
+	/**
+	 * @return the number of pipelines last counted
+	 */
+	public int getPipelines() {
+		return pipelines;
+	}
+
+	/**
+	 * @return the number of rooms placed on the server by this agent
+	 */
+	public int getRooms() {
+		return rooms.get();
+	}
+
+	/**
+	 * @return the warm pool of the server
+	 */
+	public MediaPool getMediaPool() {
+		return mediaPool;
+	}
+}
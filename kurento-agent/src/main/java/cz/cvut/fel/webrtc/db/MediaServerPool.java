@@ -0,0 +1,268 @@
+package cz.cvut.fel.webrtc.db;
+
+import cz.cvut.fel.webrtc.resources.Room;
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import org.kurento.client.KurentoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of the KMS used by the agent. A new room is placed on the least loaded
+ * server, scored by the CPU usage and the number of pipelines reported by its
+ * ServerManager, and stays on it until it is closed. A server can be drained:
+ * it keeps its rooms but does not get new ones.
+ *
+ */
+public class MediaServerPool {
+
+	private final Logger log = LoggerFactory.getLogger(MediaServerPool.class);
+
+	/**
+	 * Period of the load measures, in seconds
+	 */
+	private static final long SAMPLE_PERIOD = 5;
+
+	private final List<String> uris;
+	private final int mediaPoolSize;
+	private final long mediaPoolIdleTimeout;
+
+	private final List<MediaServer> servers = new ArrayList<>();
+	private final ScheduledExecutorService sampler;
+
+	/**
+	 * Constructor of MediaServerPool
+	 *
+	 * @param uris
+	 *            - WebSocket URIs of the KMS
+	 * @param mediaPoolSize
+	 *            - number of room media kept ready on each server
+	 * @param mediaPoolIdleTimeout
+	 *            - seconds without new room after which a warm pool is emptied
+	 */
+	public MediaServerPool(List<String> uris, int mediaPoolSize, long mediaPoolIdleTimeout) {
+		this(uris, mediaPoolSize, mediaPoolIdleTimeout, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "media-servers");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+	}
+
+	MediaServerPool(List<String> uris, int mediaPoolSize, long mediaPoolIdleTimeout,
+			ScheduledExecutorService sampler) {
+		if (uris.isEmpty())
+			throw new IllegalArgumentException("No media server configured");
+
+		this.uris = uris;
+		this.mediaPoolSize = mediaPoolSize;
+		this.mediaPoolIdleTimeout = mediaPoolIdleTimeout;
+		this.sampler = sampler;
+	}
+
+	@PostConstruct
+	public void start() {
+		for (String uri : uris) {
+			try {
+				MediaServer server = connect(uri.trim());
+				server.start();
+				servers.add(server);
+				log.info("Media server {} added to the pool", server.getUri());
+			} catch (Exception e) {
+				log.error("Could not connect to media server {}: {}", uri, e.getMessage());
+			}
+		}
+
+		if (servers.isEmpty())
+			throw new IllegalStateException("No media server reachable");
+
+		sampler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				sample();
+			}
+		}, 0, SAMPLE_PERIOD, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Connect to a KMS
+	 *
+	 * @param uri
+	 *            - WebSocket URI of the KMS
+	 * @return - the server
+	 */
+	protected MediaServer connect(String uri) {
+		KurentoClient client = KurentoClient.create(uri);
+		return new MediaServer(uri, client, new MediaPool(client, mediaPoolSize, mediaPoolIdleTimeout));
+	}
+
+	/**
+	 * Measure the load of every server
+	 */
+	void sample() {
+		for (MediaServer server : servers) {
+			server.sample();
+		}
+	}
+
+	/**
+	 * Take the media of a new room on the least loaded server
+	 *
+	 * @return - the media of the room
+	 */
+	public RoomMedia acquire() {
+		MediaServer server;
+
+		synchronized (this) {
+			server = select();
+			server.reserve();
+		}
+
+		log.debug("New room placed on media server {} (score {})", server.getUri(), server.getScore());
+		return server.acquire();
+	}
+
+	/**
+	 * Choose the server of a new room. The servers which failed their last
+	 * measure are only used when no other one is left.
+	 *
+	 * @return - the server
+	 */
+	MediaServer select() {
+		MediaServer best = null;
+		MediaServer fallback = null;
+
+		for (MediaServer server : servers) {
+			if (server.isDraining())
+				continue;
+
+			if (!server.isAvailable()) {
+				if (fallback == null)
+					fallback = server;
+
+				continue;
+			}
+
+			if (best == null || server.getScore() < best.getScore())
+				best = server;
+		}
+
+		if (best == null)
+			best = fallback;
+
+		if (best == null)
+			throw new IllegalStateException("Every media server is drained");
+
+		return best;
+	}
+
+	/**
+	 * Forget a closed room
+	 *
+	 * @param room
+	 *            - the room
+	 */
+	public void roomClosed(Room room) {
+		MediaServer server = getServer(room.getKurentoClient());
+
+		if (server != null)
+			server.roomClosed();
+	}
+
+	/**
+	 * Release media which is not used by a room anymore, e.g. the media of a
+	 * shard
+	 *
+	 * @param media
+	 *            - the media
+	 */
+	public void release(RoomMedia media) {
+		MediaServer server = getServer(media.getKurentoClient());
+
+		try {
+			media.release();
+		} catch (Exception e) {
+			log.debug("Could not release media: {}", e.getMessage());
+		}
+
+		if (server != null)
+			server.roomClosed();
+	}
+
+	/**
+	 * Take a server out of the rotation, or put it back
+	 *
+	 * @param uri
+	 *            - WebSocket URI of the KMS
+	 * @param draining
+	 *            - true to stop placing rooms on the server
+	 * @return - false if there is no such server
+	 */
+	public boolean setDraining(String uri, boolean draining) {
+		MediaServer server = getServer(uri);
+
+		if (server == null)
+			return false;
+
+		server.setDraining(draining);
+
+		if (draining)
+			log.info("Media server {} drained, {} rooms left on it", uri, server.getRooms());
+		else
+			log.info("Media server {} back in rotation", uri);
+
+		return true;
+	}
+
+	/**
+	 * @param uri
+	 *            - WebSocket URI of the KMS
+	 * @return - the server, null if there is none
+	 */
+	public MediaServer getServer(String uri) {
+		for (MediaServer server : servers) {
+			if (server.getUri().equals(uri))
+				return server;
+		}
+
+		return null;
+	}
+
+	private MediaServer getServer(KurentoClient client) {
+		for (MediaServer server : servers) {
+			if (server.getClient() == client)
+				return server;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the servers of the pool
+	 */
+	public List<MediaServer> getServers() {
+		return Collections.unmodifiableList(servers);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		sampler.shutdownNow();
+
+		for (MediaServer server : servers) {
+			server.shutdown();
+		}
+	}
+}
@@ -14,16 +14,33 @@
  */
 package cz.cvut.fel.webrtc.db;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 import cz.cvut.fel.webrtc.handlers.SipHandler;
 import cz.cvut.fel.webrtc.resources.Room;
-import org.kurento.client.KurentoClient;
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import cz.cvut.fel.webrtc.resources.RtpShardFactory;
+import cz.cvut.fel.webrtc.resources.Topology;
+import cz.cvut.fel.webrtc.utils.EventLoopGroup;
+import org.kurento.client.Continuation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Kurento room manager represents an SDK for any developer that wants to
@@ -41,7 +58,10 @@ public class RoomManager {
 	private final Logger log = LoggerFactory.getLogger(RoomManager.class);
 
 	@Autowired
-	private KurentoClient kurento;
+	private MediaServerPool mediaServers;
+
+	@Autowired
+	private EventLoopGroup eventLoops;
 
 	@Autowired
 	private SipHandler sipHandler;
@@ -51,6 +71,309 @@ public class RoomManager {
 
 	private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
 
+	/**
+	 * Number of participants in a Composite before a room is cascaded, 0 to
+	 * keep every room in one Composite
+	 */
+	private final int shardCapacity;
+
+	/**
+	 * Topology of the new rooms
+	 */
+	private final Topology topology;
+
+	/**
+	 * Largest room kept in SFU when the topology follows the size of the
+	 * rooms, 0 when it is fixed
+	 */
+	private final int sfuMaxParticipants;
+
+	/**
+	 * Number of last speakers whose video is mixed, 0 to mix everyone
+	 */
+	private final int lastN;
+
+	/**
+	 * Largest number of participants sending media and of viewers in a room,
+	 * 0 for no limit
+	 */
+	private volatile int maxParticipants;
+	private volatile int maxViewers;
+
+	/**
+	 * Time the presentation pipeline of a room is kept once nobody presents,
+	 * in milliseconds
+	 */
+	private volatile long presentationGrace;
+
+	/**
+	 * Number of viewers and of relays an element of a presentation feeds, 0
+	 * to feed every viewer from the presenter
+	 */
+	private volatile int presentationFanout;
+
+	/**
+	 * Time the media of a web user may stop flowing before the server
+	 * rebuilds it, in milliseconds, 0 to leave it to the browser
+	 */
+	private volatile long mediaRecoveryGrace;
+
+	/**
+	 * Where the recordings are written and how they are cut into segments,
+	 * in milliseconds and in bytes, 0 for no limit
+	 */
+	private volatile String recordDirectory = "/record";
+	private volatile long segmentMillis;
+	private volatile long segmentBytes;
+
+	/**
+	 * Where the live broadcasts are written, the length of their segments in
+	 * milliseconds and the number of segments in their playlist
+	 */
+	private volatile String broadcastDirectory = "/record/live";
+	private volatile long broadcastSegmentMillis = 4000;
+	private volatile int broadcastWindow = 6;
+
+	/**
+	 * Where the media servers get the tiles of the names drawn over the
+	 * videos, and whether new rooms draw them
+	 */
+	private volatile String nameTilesUrl;
+	private volatile boolean namesShown;
+
+	/**
+	 * Take the media of the new shards, which may be built on the spot when
+	 * the pool of a server is empty, without holding the loops of the rooms
+	 */
+	private final ExecutorService shardExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "shard-media");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Shards take their media from the pool of media servers
+	 */
+	private final RtpShardFactory shardFactory = new RtpShardFactory() {
+
+		@Override
+		protected void acquireMedia(final Continuation<RoomMedia> acquired) {
+			shardExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					RoomMedia media;
+
+					try {
+						media = mediaServers.acquire();
+					} catch (Exception e) {
+						fail(acquired, e);
+						return;
+					}
+
+					try {
+						acquired.onSuccess(media);
+					} catch (Exception e) {
+						log.warn("Could not build a shard on the new media", e);
+					}
+				}
+			});
+		}
+
+		@Override
+		protected void releaseMedia(RoomMedia media) {
+			mediaServers.release(media);
+		}
+	};
+
+	/**
+	 * Start the sampling of the audio of the rooms mixing the last speakers
+	 * only, the checks of their media, the rotation of their recordings and
+	 * the release of their presentation pipelines left unused. The tasks
+	 * only hand the work over to the loops of the rooms.
+	 */
+	private final ScheduledExecutorService roomTimer = Executors.newScheduledThreadPool(2,
+			new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "room-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Rooms being created. Concurrent callers wait for the same creation.
+	 */
+	private final ConcurrentMap<String, FutureTask<Room>> creations = new ConcurrentHashMap<>();
+
+	/**
+	 * Bind the new rooms to Asterisk without holding up the join
+	 */
+	private final ExecutorService sipExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "sip-register");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	public RoomManager() {
+		this(0);
+	}
+
+	/**
+	 * Constructor of RoomManager
+	 * 
+	 * @param shardCapacity
+	 *            = number of participants in a Composite, 0 to disable the
+	 *            cascading of the rooms
+	 */
+	public RoomManager(int shardCapacity) {
+		this(shardCapacity, Topology.MCU.getName(), 0, 0);
+	}
+
+	/**
+	 * Constructor of RoomManager
+	 * 
+	 * @param shardCapacity
+	 *            = number of participants in a Composite, 0 to disable the
+	 *            cascading of the rooms
+	 * @param topology
+	 *            = "mcu", "sfu", or "auto" for rooms in SFU while they are
+	 *            small and in MCU once they grow
+	 * @param sfuMaxParticipants
+	 *            = largest room in SFU when the topology is "auto"
+	 * @param lastN
+	 *            = number of last speakers whose video is mixed, 0 to mix
+	 *            the video of everyone
+	 */
+	public RoomManager(int shardCapacity, String topology, int sfuMaxParticipants, int lastN) {
+		this.shardCapacity = shardCapacity;
+		this.lastN = lastN;
+
+		if ("auto".equalsIgnoreCase(topology) && sfuMaxParticipants > 0) {
+			this.topology = Topology.SFU;
+			this.sfuMaxParticipants = sfuMaxParticipants;
+		} else {
+			this.topology = Topology.SFU.getName().equalsIgnoreCase(topology) ? Topology.SFU : Topology.MCU;
+			this.sfuMaxParticipants = 0;
+		}
+	}
+
+	/**
+	 * Limit the size of the rooms created from now on
+	 * 
+	 * @param maxParticipants
+	 *            = largest number of participants sending media, 0 for no
+	 *            limit
+	 * @param maxViewers
+	 *            = largest number of viewers, 0 for no limit
+	 */
+	public void setLimits(int maxParticipants, int maxViewers) {
+		this.maxParticipants = maxParticipants;
+		this.maxViewers = maxViewers;
+	}
+
+	/**
+	 * Keep the presentation pipeline of the rooms created from now on for a
+	 * while after a presentation, in case it starts again
+	 * 
+	 * @param graceSeconds
+	 *            = time the pipeline is kept, 0 to release it right away
+	 */
+	public void setPresentationGrace(long graceSeconds) {
+		this.presentationGrace = TimeUnit.SECONDS.toMillis(graceSeconds);
+	}
+
+	/**
+	 * Spread the presentations of the rooms created from now on through
+	 * relays, so that no element feeds the whole audience
+	 * 
+	 * @param fanout
+	 *            = number of viewers and of relays an element feeds, 0 to
+	 *            feed every viewer from the presenter
+	 */
+	public void setPresentationFanout(int fanout) {
+		this.presentationFanout = fanout;
+	}
+
+	/**
+	 * Rebuild the media of the web users of the rooms created from now on
+	 * once it has stopped flowing for a while
+	 * 
+	 * @param graceSeconds
+	 *            = time the media may stop flowing, 0 to leave the recovery
+	 *            to the browser
+	 */
+	public void setMediaRecoveryGrace(long graceSeconds) {
+		this.mediaRecoveryGrace = TimeUnit.SECONDS.toMillis(graceSeconds);
+	}
+
+	/**
+	 * Cut the recordings of the rooms created from now on into segments
+	 * 
+	 * @param directory
+	 *            = directory of the segments and of their manifests, seen
+	 *            alike by the media servers and by the agent
+	 * @param segmentSeconds
+	 *            = length of a segment, 0 for no limit
+	 * @param segmentMegabytes
+	 *            = size of a segment, 0 for no limit
+	 */
+	public void setRecording(String directory, long segmentSeconds, long segmentMegabytes) {
+		this.recordDirectory = directory;
+		this.segmentMillis = TimeUnit.SECONDS.toMillis(segmentSeconds);
+		this.segmentBytes = segmentMegabytes * 1024 * 1024;
+	}
+
+	/**
+	 * Cut the live broadcasts of the rooms created from now on into segments
+	 * 
+	 * @param directory
+	 *            = directory of the segments and of the playlists, seen alike
+	 *            by the media servers and by the agent
+	 * @param segmentSeconds
+	 *            = length of a segment
+	 * @param window
+	 *            = number of segments listed in a playlist
+	 */
+	public void setBroadcast(String directory, long segmentSeconds, int window) {
+		this.broadcastDirectory = directory;
+		this.broadcastSegmentMillis = TimeUnit.SECONDS.toMillis(segmentSeconds);
+		this.broadcastWindow = window;
+	}
+
+	/**
+	 * Draw the names of the participants over their video in the mix of the
+	 * rooms created from now on
+	 * 
+	 * @param tilesUrl
+	 *            = URL of the name tiles of the agent, as seen by the media
+	 *            servers
+	 * @param shown
+	 *            = true to draw the names from the creation of a room, a
+	 *            room can draw them or stop at any time
+	 */
+	public void setNameOverlay(String tilesUrl, boolean shown) {
+		this.nameTilesUrl = tilesUrl;
+		this.namesShown = shown;
+	}
+
+	/**
+	 * @return the rooms currently active
+	 */
+	public Collection<Room> getRooms() {
+		return Collections.unmodifiableCollection(rooms.values());
+	}
+
 	/**
 	 * Return a currently active Room via its identifier. If the room does not
 	 * exist, it is create and return.
@@ -62,28 +385,14 @@ public class RoomManager {
 	 *         first time this room is accessed
 	 */
 	public Room getRoom(String roomName) {
-		log.debug("Searching for room {}", roomName);
-		Room room = rooms.get(roomName);
-
-		if (room == null) {
-			log.debug("Room {} not existent. Will create now!", roomName);
-			room = new Room(roomName, kurento);
-			try {
-				sipHandler.register(room, null);
-			} catch (Exception e) {
-				log.info("Room {} cannot be bound to Asterisk", roomName);
-			}
-			rooms.put(roomName, room);
-		}
-
-		log.debug("Room {} found!", roomName);
-		return room;
+		return getRoom(roomName, true);
 	}
 
 	/**
 	 * 
 	 * Return a currently active Room via its identifier. If the room does not
-	 * exist and the boolean true, it is create and return.
+	 * exist and the boolean true, it is create and return. A room is only
+	 * created once, concurrent callers wait for the same creation.
 	 * 
 	 * @param roomName
 	 *            = name or identifier of the room
@@ -92,19 +401,43 @@ public class RoomManager {
 	 * @return the room if it was already created, or a new one if it is the
 	 *         first time this room is accessed and the boolean is true
 	 */
-	public Room getRoom(String roomName, boolean create) {
+	public Room getRoom(final String roomName, boolean create) {
 		log.debug("Searching for room {}", roomName);
 		Room room = rooms.get(roomName);
 
-		if ((room == null) && create) {
-			log.debug("Room {} not existent. Will create now!", roomName);
-			room = new Room(roomName, kurento);
-			try {
-				sipHandler.register(room, null);
-			} catch (Exception e) {
-				log.info("Room {} cannot be bound to Asterisk", roomName);
+		if (room == null) {
+			FutureTask<Room> creation = creations.get(roomName);
+
+			if (creation == null && create) {
+				FutureTask<Room> task = new FutureTask<>(new Callable<Room>() {
+
+					@Override
+					public Room call() throws Exception {
+						// Created between the lookup and this creation
+						Room existing = rooms.get(roomName);
+
+						if (existing != null)
+							return existing;
+
+						log.debug("Room {} not existent. Will create now!", roomName);
+						Room room = createRoom(roomName);
+						rooms.put(roomName, room);
+						register(room);
+						return room;
+					}
+				});
+
+				creation = creations.putIfAbsent(roomName, task);
+
+				if (creation == null) {
+					creation = task;
+					task.run();
+					creations.remove(roomName, task);
+				}
 			}
-			rooms.put(roomName, room);
+
+			if (creation != null)
+				room = await(creation);
 		}
 
 		if (room != null)
@@ -114,26 +447,116 @@ public class RoomManager {
 	}
 
 	/**
-	 * Removes a room from the list of available rooms
+	 * Create the media of a new room on the least loaded media server
+	 * 
+	 * @param roomName
+	 *            = name or identifier of the room
+	 * @return the new room
+	 */
+	protected Room createRoom(String roomName) {
+		Room room = new Room(roomName, mediaServers.acquire(), eventLoops.next());
+
+		// A room fixed in SFU forwards the video in one pipeline
+		if (shardCapacity > 0 && (topology == Topology.MCU || sfuMaxParticipants > 0))
+			room.enableCascade(shardCapacity, shardFactory);
+
+		room.configureTopology(topology, sfuMaxParticipants);
+		room.setLimits(maxParticipants, maxViewers);
+		room.configurePresentation(presentationGrace, presentationFanout, roomTimer);
+		room.configureRecording(recordDirectory, segmentMillis, segmentBytes, roomTimer);
+		room.configureBroadcast(broadcastDirectory, broadcastSegmentMillis, broadcastWindow);
+		room.configureNameOverlay(nameTilesUrl, namesShown);
+
+		if (lastN > 0)
+			room.enableLastN(lastN, roomTimer);
+
+		if (mediaRecoveryGrace > 0)
+			room.enableMediaRecovery(mediaRecoveryGrace, roomTimer);
+
+		return room;
+	}
+
+	/**
+	 * Wait for the creation of a room
+	 */
+	private Room await(FutureTask<Room> creation) {
+		try {
+			return Uninterruptibles.getUninterruptibly(creation);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	/**
+	 * Bind a new room to Asterisk asynchronously
+	 */
+	private void register(final Room room) {
+		sipExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				// Removed before its turn
+				if (room.isClosing() || rooms.get(room.getName()) != room)
+					return;
+
+				try {
+					sipHandler.register(room, null);
+				} catch (Exception e) {
+					log.info("Room {} cannot be bound to Asterisk", room.getName());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Removes a room from the list of available rooms. The room is closed on
+	 * its loop.
 	 *
 	 * @param room
-	 * @throws IOException
 	 */
-	public void removeRoom(Room room) {
+	public void removeRoom(final Room room) {
 		if (room != null) {
-			this.rooms.remove(room.getName());
+			this.rooms.remove(room.getName(), room);
 
-			room.getCompositePipeline().release();
-			room.getPresentationPipeline().release();
+			try {
+				room.call(new Callable<Void>() {
 
-			if (room.getLine() != null) {
-				sipRegistry.pushLine(room.getLine());
-			}
+					@Override
+					public Void call() throws Exception {
+						// A registration still to come takes no line for it
+						room.setClosing();
+
+						if (room.getLine() != null) {
+							sipRegistry.pushLine(room.getLine());
+						}
 
-			room.close();
+						room.close();
+						mediaServers.roomClosed(room);
+						return null;
+					}
+				});
+			} catch (Exception e) {
+				log.warn("Room {} could not be closed: {}", room.getName(), e.getMessage());
+				return;
+			}
 
 			log.info("Room {} removed and closed", room.getName());
 		}
 	}
 
+	private void fail(Continuation<?> continuation, Throwable cause) {
+		try {
+			continuation.onError(cause);
+		} catch (Exception e) {
+			log.warn("Could not hand over a failure", e);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		sipExecutor.shutdown();
+		shardExecutor.shutdown();
+		roomTimer.shutdownNow();
+	}
+
 }
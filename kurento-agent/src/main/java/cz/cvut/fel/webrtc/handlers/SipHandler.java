@@ -4,10 +4,14 @@ import com.google.gson.JsonObject;
 import cz.cvut.fel.webrtc.db.LineRegistry;
 import cz.cvut.fel.webrtc.db.RoomManager;
 import cz.cvut.fel.webrtc.resources.Line;
+import cz.cvut.fel.webrtc.resources.Participant;
 import cz.cvut.fel.webrtc.resources.Room;
 import cz.cvut.fel.webrtc.resources.Softphone;
+import cz.cvut.fel.webrtc.utils.Completion;
 import cz.cvut.fel.webrtc.utils.DigestAuth;
+import cz.cvut.fel.webrtc.utils.SessionQueueFactory;
 import cz.cvut.fel.webrtc.utils.SipMessageFactory;
+import org.kurento.client.Continuation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -26,6 +30,7 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
 
 /**
  * This class allows to receive and send messages via the Session Initial
@@ -40,6 +45,9 @@ public class SipHandler extends TextWebSocketHandler {
 	@Autowired
 	private LineRegistry lineRegistry;
 
+	@Autowired
+	private SessionQueueFactory sessionQueues;
+
 	protected final Logger log = LoggerFactory.getLogger(SipHandler.class);
 
 	private final SipMessageFactory sipFactory;
@@ -61,7 +69,8 @@ public class SipHandler extends TextWebSocketHandler {
 	}
 
 	@Override
-	public void afterConnectionEstablished(final WebSocketSession session) throws Exception {
+	public void afterConnectionEstablished(final WebSocketSession containerSession) throws Exception {
+		final WebSocketSession session = sessionQueues.decorate(containerSession);
 		this.session = session;
 		TimerTask task = new TimerTask() {
 
@@ -212,41 +221,67 @@ public class SipHandler extends TextWebSocketHandler {
 
 	public void sendMessage(Message message) {
 		try {
-			synchronized (session) {
-				String textMessage = message.toString();
-				log.info("Sending message \n{}", textMessage);
-				session.sendMessage(new TextMessage(textMessage));
-			}
+			String textMessage = message.toString();
+			log.info("Sending message \n{}", textMessage);
+			session.sendMessage(new TextMessage(textMessage));
 		} catch (IOException e) {
 			log.debug(e.getMessage());
 		}
 	}
 
-	private void processInviteResponse(Room room, Response response) throws ParseException, InvalidArgumentException {
+	private void processInviteResponse(final Room room, Response response)
+			throws ParseException, InvalidArgumentException {
 
 		// Process SDP Answer
 		String sdpAnswer = (String) response.getContent();
 		ToHeader toHeader = (ToHeader) response.getHeader("To");
 
-		Softphone callee = (Softphone) room.getParticipant(toHeader.getAddress().getURI().toString());
+		final Softphone callee = (Softphone) room.getParticipant(toHeader.getAddress().getURI().toString());
 		callee.getRtpEndpoint().processAnswer(sdpAnswer);
-		room.joinRoom(callee);
+
+		room.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				room.joinRoom(callee);
+			}
+		});
 
 		Request request = sipFactory.createRequest(response, Request.ACK);
 		sendMessage(request);
 	}
 
-	public void unregister(Room room) throws Exception {
-		room.setClosing();
-		register(room, null);
+	public void unregister(final Room room) throws Exception {
+		room.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				room.setClosing();
+				register(room, null);
+				return null;
+			}
+		});
+	}
+
+	public void register(final Room room, final Response response) throws Exception {
+		// A line may be bound to the room
+		room.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				sendRegister(room, response);
+				return null;
+			}
+		});
 	}
 
-	public void register(Room room, Response response) throws Exception {
+	private void sendRegister(Room room, Response response) throws Exception {
 		Line line = room.getLine();
 
 		int expire = (room.isClosing()) ? 0 : 604800;
 
-		if (line == null)
+		// A closing room only gives back the line it holds
+		if (line == null && !room.isClosing())
 			line = lineRegistry.popLine(room);
 
 		if (line != null) {
@@ -280,15 +315,15 @@ public class SipHandler extends TextWebSocketHandler {
 		}
 	}
 
-	public void generateInviteRequest(Room room, String extension) {
+	public void generateInviteRequest(final Room room, final String extension) {
 
 		try {
 
-			String address = String.format("sip:%s@%s", extension, pbxIp);
+			final String address = String.format("sip:%s@%s", extension, pbxIp);
 			ToHeader toHeader = sipFactory.createToHeader(address, extension);
 
-			final Softphone user = (Softphone) room.join(address, session, Softphone.class);
-			user.setName(extension);
+			// Listed once the callee answers
+			final Softphone user = join(room, address, extension, false);
 
 			// Find a more appropriate name
 			getName(user, extension);
@@ -301,6 +336,51 @@ public class SipHandler extends TextWebSocketHandler {
 		}
 	}
 
+	/**
+	 * Let a call join a room and name it on the loop of the room, once its
+	 * media is created
+	 * 
+	 * @param listed
+	 *            - true to list the call in the roster at once
+	 * @return the call, null if its media could not be created
+	 */
+	private Softphone join(final Room room, final String userId, final String name, final boolean listed)
+			throws Exception {
+		final Completion<Participant> joined = new Completion<>();
+
+		room.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				room.join(userId, session, Softphone.class, new Continuation<Participant>() {
+
+					@Override
+					public void onSuccess(Participant user) throws Exception {
+						try {
+							if (user != null) {
+								user.setName(name);
+
+								if (listed)
+									room.joinRoom(user);
+							}
+						} finally {
+							joined.onSuccess(user);
+						}
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						joined.onError(cause);
+					}
+				});
+
+				return null;
+			}
+		});
+
+		return (Softphone) joined.await();
+	}
+
 	@Async
 	private void getName(Softphone user, String extension) {
 		String name = lineRegistry.getName(extension);
@@ -340,7 +420,7 @@ public class SipHandler extends TextWebSocketHandler {
 		String callId = room.getCallId();
 		String sip = String.format("sip:%s@%s", username, pbxIp);
 
-		long cseq = (response == null) ? room.setCSeq(room.getCSeq() + 1)
+		long cseq = (response == null) ? room.nextCSeq()
 				: room.setCSeq(((CSeqHeader) response.getHeader("CSeq")).getSeqNumber() + 1);
 		FromHeader from = sipFactory.createFromHeader(sip, room.getName());
 
@@ -377,7 +457,7 @@ public class SipHandler extends TextWebSocketHandler {
 
 			String sdpOffer = request.getContent().toString();
 
-			Room room = lineRegistry.getRoomBySipURI(uri);
+			final Room room = lineRegistry.getRoomBySipURI(uri);
 
 			// Trying
 			Response tryingResponse = sipFactory.createResponseFromRequest(request, 100);
@@ -388,19 +468,16 @@ public class SipHandler extends TextWebSocketHandler {
 			sendMessage(ringingResponse);
 
 			// Create a new user
-			String userId = sender.getURI().toString();
-			Softphone user = (Softphone) room.join(userId, session, Softphone.class);
-			String name = sender.getDisplayName();
+			final String userId = sender.getURI().toString();
+			final String name = (sender.getDisplayName() != null) ? sender.getDisplayName()
+					: sender.getURI().toString();
 
-			if (name == null)
-				name = sender.getURI().toString();
+			Softphone user = join(room, userId, name, true);
 
 			if (user == null)
 				return;
 
 			String sdpAnswer = user.getSdpAnswer(sdpOffer);
-			user.setName(name);
-			room.joinRoom(user);
 
 			// 200 OK
 			ContentTypeHeader contentTypeHeader = sipFactory.createContentTypeHeader("application", "sdp");
@@ -419,14 +496,21 @@ public class SipHandler extends TextWebSocketHandler {
 		Address sender = ((FromHeader) request.getHeader("From")).getAddress();
 		Address receiver = ((ToHeader) request.getHeader("To")).getAddress();
 		String uri = receiver.getURI().toString();
-		Room room = lineRegistry.getRoomBySipURI(uri);
+		final Room room = lineRegistry.getRoomBySipURI(uri);
 
-		String userId = sender.getURI().toString();
+		final String userId = sender.getURI().toString();
 
 		if (room != null) {
 			try {
 
-				room.leave(userId);
+				room.call(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						room.leave(userId);
+						return null;
+					}
+				});
 				Response response = sipFactory.createResponseFromRequest(request, 200);
 				sendMessage(response);
 
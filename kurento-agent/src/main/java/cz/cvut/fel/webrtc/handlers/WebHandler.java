@@ -14,28 +14,47 @@
  */
 package cz.cvut.fel.webrtc.handlers;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.common.base.Ticker;
 import com.google.gson.JsonObject;
 import cz.cvut.fel.webrtc.db.LineRegistry;
 import cz.cvut.fel.webrtc.db.RoomManager;
 import cz.cvut.fel.webrtc.db.WebRegistry;
 import cz.cvut.fel.webrtc.resources.Participant;
 import cz.cvut.fel.webrtc.resources.Room;
+import cz.cvut.fel.webrtc.resources.RoomBroadcast;
 import cz.cvut.fel.webrtc.resources.WebUser;
-import org.kurento.client.IceCandidate;
+import cz.cvut.fel.webrtc.utils.Completion;
+import cz.cvut.fel.webrtc.utils.InboundMessage;
+import cz.cvut.fel.webrtc.utils.QueuedSession;
+import cz.cvut.fel.webrtc.utils.SessionQueueFactory;
+import cz.cvut.fel.webrtc.utils.SignalingExecutor;
+import cz.cvut.fel.webrtc.utils.TimingWheel;
+import org.kurento.client.Continuation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class allows to receive and send messages via the WebSocket and run the
@@ -48,7 +67,20 @@ public class WebHandler extends TextWebSocketHandler {
 
 	private static final Logger log = LoggerFactory.getLogger(WebHandler.class);
 
-	private static final Gson gson = new GsonBuilder().create();
+	/**
+	 * Seconds without message before a session is pinged, and then before it
+	 * is considered unreachable
+	 */
+	private static final long IDLE_TIMEOUT = 20;
+
+	/**
+	 * Messages starting something new, refused while the signaling is
+	 * overloaded. The others continue or end what a session has started, and
+	 * are always queued so that a negotiation under way or a leave is not
+	 * lost.
+	 */
+	private static final Set<String> SHEDDABLE = new HashSet<>(
+			Arrays.asList("joinRoom", "invite", "newPresenter", "record", "broadcast"));
 
 	@Autowired
 	private RoomManager roomManager;
@@ -62,60 +94,193 @@ public class WebHandler extends TextWebSocketHandler {
 	@Autowired
 	private SipHandler sipHandler;
 
+	@Autowired
+	private SessionQueueFactory sessionQueues;
+
+	@Autowired
+	private SignalingExecutor signaling;
+
+	/**
+	 * Queued sessions by identifier of the container session
+	 */
+	private final ConcurrentMap<String, QueuedSession> sessions = new ConcurrentHashMap<>();
+
+	/**
+	 * Sessions by time of their last message
+	 */
+	private final TimingWheel<String> liveness = new TimingWheel<>(IDLE_TIMEOUT, 1, TimeUnit.SECONDS,
+			Ticker.systemTicker());
+
+	/**
+	 * Idle sessions which have been sent a ping
+	 */
+	private final Set<String> pinged = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final ScheduledExecutorService livenessTimer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "liveness");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
 	/**
 	 * Constructor of WebHandler. It's an Handler for events triggered from
 	 * WebSocket.
 	 */
 	public WebHandler() {
 		super();
-		TimerTask task = new TimerTask() {
+	}
+
+	@PostConstruct
+	public void start() {
+		livenessTimer.scheduleWithFixedDelay(new Runnable() {
 
 			@Override
 			public void run() {
-				Calendar currentDate = Calendar.getInstance();
+				checkLiveness();
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
 
-				for (WebUser user : registry.getAll()) {
-					Calendar ping = user.getLastPing();
-					ping.add(Calendar.SECOND, 40);
+	@PreDestroy
+	public void stop() {
+		livenessTimer.shutdown();
+	}
 
-					if (ping.before(currentDate)) {
-						try {
-							log.info("{} is unreachable.", user.getName());
-							leaveRoom(user);
-						} catch (Exception e) {
-						}
-					}
+	@Override
+	public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+		sessions.put(session.getId(), sessionQueues.decorate(session));
+		liveness.touch(session.getId());
+	}
+
+	/**
+	 * The browser answered a ping
+	 */
+	@Override
+	protected void handlePongMessage(WebSocketSession session, PongMessage message) throws Exception {
+		alive(session.getId());
+	}
+
+	/**
+	 * Push back the deadline of a session which sent a message
+	 * 
+	 * @param sessionId
+	 *            - identifier of the session
+	 */
+	private void alive(String sessionId) {
+		liveness.touch(sessionId);
+		pinged.remove(sessionId);
+	}
+
+	/**
+	 * Ping the sessions idle for IDLE_TIMEOUT, and close the ones which have
+	 * not answered after another IDLE_TIMEOUT
+	 */
+	private void checkLiveness() {
+		for (String sessionId : liveness.expire()) {
+			final WebSocketSession session = sessions.get(sessionId);
+
+			if (session == null)
+				continue;
+
+			if (pinged.add(sessionId)) {
+				liveness.touch(sessionId);
+
+				try {
+					session.sendMessage(new PingMessage());
+				} catch (IOException e) {
+					log.debug("Session {}: could not send ping: {}", sessionId, e.getMessage());
 				}
+
+				continue;
 			}
 
-		};
+			pinged.remove(sessionId);
+			final Participant user = registry.getBySession(session);
+			log.info("{} is unreachable.", (user != null) ? user.getName() : sessionId);
+
+			leaveOnClose(session);
 
-		Timer timer = new Timer();
-		timer.scheduleAtFixedRate(task, 30000, 30000);
+			try {
+				session.close(CloseStatus.SESSION_NOT_RELIABLE);
+			} catch (IOException e) {
+				log.debug("Session {}: could not be closed: {}", sessionId, e.getMessage());
+			}
+		}
 	}
 
 	/**
-	 * Get the message from the WebSocker and call the function associated
+	 * Get the message from the WebSocker and hand it to the signaling
+	 * executor, so that the calls to the KMS do not hold the threads of the
+	 * container
 	 */
 	@Override
-	public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+	public void handleTextMessage(WebSocketSession containerSession, TextMessage message) throws Exception {
+		final WebSocketSession session = getQueuedSession(containerSession);
+
+		alive(session.getId());
+
+		final InboundMessage inbound;
+
+		try {
+			inbound = InboundMessage.decode(message.getPayload());
+		} catch (IOException e) {
+			log.warn("Session {}: malformed message: {}", session.getId(), e.getMessage());
+			return;
+		}
 
-		final JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
+		final String id = inbound.getId();
 
+		// Never waits behind the negotiations of the session
+		if ("stay-alive".equals(id))
+			return;
+
+		final Runnable task = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					handleMessage(session, inbound);
+				} catch (Exception e) {
+					log.warn("Session {}: could not handle message {}: {}", session.getId(), id, e.getMessage());
+				}
+			}
+		};
+
+		if (!SHEDDABLE.contains(id))
+			signaling.execute(session.getId(), task);
+		else if (!signaling.offer(session.getId(), task))
+			refuse(session, id);
+	}
+
+	/**
+	 * Call the function associated to a message, on the signaling executor
+	 * 
+	 * @param session
+	 *            - the queued session of the sender
+	 * @param message
+	 *            - the message
+	 * @throws Exception
+	 */
+	private void handleMessage(WebSocketSession session, InboundMessage message) throws Exception {
 		final Participant userSession = registry.getBySession(session);
 		WebUser user = null;
 
 		if (userSession != null) {
-			log.debug("Incoming message from user '{}': {}", userSession.getName(), jsonMessage);
+			log.debug("Incoming message from user '{}': {}", userSession.getName(), message);
 			user = (WebUser) userSession;
 		} else {
-			log.debug("Incoming message from new user: {}", jsonMessage);
+			log.debug("Incoming message from new user: {}", message);
 		}
 
-		switch (jsonMessage.get("id").getAsString()) {
+		switch (message.getId()) {
 		case "invite":
 			if (user != null) {
-				String extension = jsonMessage.get("callee").getAsString();
+				String extension = message.getCallee();
 				Room room = roomManager.getRoom(user.getRoomName());
 
 				if (room.getLine() != null) {
@@ -126,7 +291,7 @@ public class WebHandler extends TextWebSocketHandler {
 			break;
 
 		case "joinRoom":
-			joinRoom(jsonMessage, session);
+			joinRoom(message, session);
 			break;
 
 		case "newPresenter":
@@ -154,14 +319,14 @@ public class WebHandler extends TextWebSocketHandler {
 
 		case "receiveVideoFrom":
 			if (user != null) {
-				final String senderId = jsonMessage.get("userId").getAsString();
+				final String senderId = message.getUserId();
 				final Room room = roomManager.getRoom(user.getRoomName());
 				final Participant sender = room.getParticipant(senderId);
 
 				if (sender != null && (sender instanceof WebUser)) {
 					final WebUser webSender = (WebUser) sender;
-					final String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
-					final String type = jsonMessage.get("type").getAsString();
+					final String sdpOffer = message.getSdpOffer();
+					final String type = message.getType();
 					user.receiveVideoFrom(webSender, type, sdpOffer, room);
 				}
 			}
@@ -174,34 +339,57 @@ public class WebHandler extends TextWebSocketHandler {
 			break;
 
 		case "onIceCandidate":
-			JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
-
-			if (user != null) {
-				IceCandidate cand = new IceCandidate(candidate.get("candidate").getAsString(),
-						candidate.get("sdpMid").getAsString(), candidate.get("sdpMLineIndex").getAsInt());
-				user.addCandidate(cand, jsonMessage.get("type").getAsString());
+			if (user != null && message.getIceCandidate() != null) {
+				user.addCandidate(message.getIceCandidate(), message.getType(), message.getUserId());
 			}
 			break;
 
+		case "promote":
+			if (user != null)
+				promote(user, message.getUserId());
+			break;
+
 		case "renew":
-			// maybe need a secure to avoid to abuse this
 			if (user != null) {
-				user.renewOutgoingMedia();
+				if (user.tryRenew()) {
+					user.renewOutgoingMedia();
+					renewed(user);
+				} else {
+					log.info("USER {}: renewed too often, asked to retry later", user.getName());
+					JsonObject msg = new JsonObject();
+					msg.addProperty("id", "renewRefused");
+					msg.addProperty("retryAfter", WebUser.RENEW_INTERVAL);
+					user.sendMessage(msg);
+				}
 			}
 			break;
 
-		case "stay-alive":
+		case "rename":
+			if (user != null && message.getName() != null)
+				rename(user, message.getName());
+			break;
+
+		case "rosterResync":
 			if (user != null) {
-				user.setLastPing(Calendar.getInstance());
+				Room room = roomManager.getRoom(user.getRoomName());
+				room.sendRoster(user);
 			}
 			break;
 
 		case "record":
-			record(jsonMessage);
+			record(message);
 			break;
 
 		case "stopRecord":
-			stopRecord(jsonMessage);
+			stopRecord(message);
+			break;
+
+		case "broadcast":
+			broadcast(message, true);
+			break;
+
+		case "stopBroadcast":
+			broadcast(message, false);
 			break;
 
 		default:
@@ -254,13 +442,21 @@ public class WebHandler extends TextWebSocketHandler {
 	 * 
 	 * @param user
 	 *            - Instance of WebUser
-	 * @throws IOException
+	 * @throws Exception
 	 */
-	private void stopPresenting(WebUser user) throws IOException {
+	private void stopPresenting(final WebUser user) throws Exception {
 		if (user.isScreensharer()) {
 			final Room room = roomManager.getRoom(user.getRoomName());
-			user.isScreensharer(false);
-			room.cancelPresentation();
+
+			room.call(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					user.isScreensharer(false);
+					room.cancelPresentation();
+					return null;
+				}
+			});
 		}
 	}
 
@@ -270,38 +466,116 @@ public class WebHandler extends TextWebSocketHandler {
 	 * 
 	 * @param user
 	 *            - Instance of WebUser
-	 * @throws IOException
+	 * @throws Exception
 	 */
-	private void presenter(WebUser user) throws IOException {
-		Room room = roomManager.getRoom(user.getRoomName());
+	private void presenter(final WebUser user) throws Exception {
+		final Room room = roomManager.getRoom(user.getRoomName());
+
+		room.call(new Callable<Void>() {
 
-		if (!room.hasScreensharer()) {
+			@Override
+			public Void call() throws Exception {
+				if (!room.hasScreensharer()) {
 
-			room.sendInformation(user, "presentationInfo");
-			room.setScreensharer(user);
-			user.isScreensharer(true);
+					// The presenter sends its offer once told the pipeline exists
+					user.isScreensharer(true);
+					room.setScreensharer(user);
 
-		} else {
+				} else {
+
+					JsonObject msg = new JsonObject();
+					msg.addProperty("id", "existingPresentation");
+					user.sendMessage(msg);
+
+				}
+				return null;
+			}
+		});
+	}
 
-			JsonObject msg = new JsonObject();
-			WebSocketSession session = user.getSession();
+	@Override
+	public void afterConnectionClosed(final WebSocketSession session, CloseStatus status) throws Exception {
+
+		sessions.remove(session.getId());
+		liveness.remove(session.getId());
+		pinged.remove(session.getId());
+
+		leaveOnClose(session);
+		signaling.remove(session.getId());
+	}
+
+	/**
+	 * Remove the user of a closed session from its room, after the messages
+	 * already received from the session
+	 * 
+	 * @param session
+	 *            - the closed session
+	 */
+	private void leaveOnClose(final WebSocketSession session) {
+		signaling.execute(session.getId(), new Runnable() {
 
-			msg.addProperty("id", "existingPresentation");
-			synchronized (session) {
-				session.sendMessage(new TextMessage(msg.toString()));
+			@Override
+			public void run() {
+				Participant user = registry.removeBySession(session);
+
+				if (user != null) {
+					try {
+						leaveRoom(user);
+					} catch (Exception e) {
+						log.warn("Session {}: could not leave the room: {}", session.getId(), e.getMessage());
+					}
+				}
 			}
+		});
+	}
 
+	/**
+	 * Tell the client that its message has been dropped because the server is
+	 * overloaded
+	 * 
+	 * @param session
+	 *            - the queued session of the sender
+	 * @param id
+	 *            - identifier of the dropped message
+	 */
+	private void refuse(WebSocketSession session, String id) {
+		JsonObject busy = new JsonObject();
+		busy.addProperty("id", "serverBusy");
+		busy.addProperty("request", id);
+
+		try {
+			session.sendMessage(new TextMessage(busy.toString()));
+		} catch (IOException e) {
+			log.debug("Session {}: could not send serverBusy: {}", session.getId(), e.getMessage());
 		}
 	}
 
-	@Override
-	public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+	/**
+	 * Return the queued session wrapping a session of the container
+	 * 
+	 * @param session
+	 *            - session of the container
+	 * @return - the queued session
+	 */
+	private WebSocketSession getQueuedSession(WebSocketSession session) {
+		QueuedSession queued = sessions.get(session.getId());
 
-		Participant user = registry.removeBySession(session);
+		if (queued == null) {
+			queued = sessionQueues.decorate(session);
+			QueuedSession existing = sessions.putIfAbsent(session.getId(), queued);
 
-		if (user != null) {
-			leaveRoom(user);
+			if (existing != null)
+				queued = existing;
 		}
+
+		return queued;
+	}
+
+	/**
+	 * @return the queued sessions currently open
+	 */
+	public Collection<QueuedSession> getQueuedSessions() {
+		return Collections.unmodifiableCollection(sessions.values());
 	}
 
 	/**
@@ -309,48 +583,161 @@ public class WebHandler extends TextWebSocketHandler {
 	 * 
 	 * @param params
 	 * @param session
-	 * @throws IOException
+	 * @throws Exception
 	 */
-	private void joinRoom(JsonObject params, WebSocketSession session) throws IOException {
-		final String roomName = params.get("room").getAsString();
-		final String userId = params.get("userId").getAsString();
-		final String name = params.get("name").getAsString();
+	private void joinRoom(InboundMessage params, final WebSocketSession session) throws Exception {
+		final String roomName = params.getRoom();
+		final String userId = params.getUserId();
+		final String name = params.getName();
+		final boolean viewer = "viewer".equals(params.getRole());
 		final JsonObject scParams;
 
 		log.info("PARTICIPANT {}: trying to join room {}", name, roomName);
 
-		Room room = roomManager.getRoom(roomName);
+		final Room room = roomManager.getRoom(roomName);
 		// TODO
 		/*
 		 * if (room.getParticipant(name) != null) { scParams = new JsonObject();
 		 * scParams.addProperty("id", "existingName"); synchronized (session) {
 		 * session.sendMessage(new TextMessage(scParams.toString())); } } else {
 		 */
-		final WebUser user = (WebUser) room.join(userId, session, WebUser.class);
-		user.setName(name);
-		room.joinRoom(user);
+		final Completion<Participant> joined = new Completion<>();
+
+		room.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				final Continuation<Participant> named = new Continuation<Participant>() {
+
+					@Override
+					public void onSuccess(Participant user) throws Exception {
+						try {
+							// No place left, or the media could not be created
+							if (user != null) {
+								user.setName(name);
+								room.joinRoom(user);
+							}
+						} finally {
+							joined.onSuccess(user);
+						}
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						joined.onError(cause);
+					}
+				};
+
+				if (viewer)
+					room.joinAsViewer(userId, session, named);
+				else
+					room.join(userId, session, WebUser.class, named);
+
+				return null;
+			}
+		});
+
+		// Only this session waits for the media, the loop of the room goes on
+		final WebUser user = (WebUser) joined.await();
 
 		if (user != null)
 			registry.register(user);
 		// }
 	}
 
+	/**
+	 * Let a viewer take part in its room
+	 * 
+	 * @param user
+	 *            - the user asking
+	 * @param userId
+	 *            - identifier of the viewer, null for the user itself
+	 * @throws Exception
+	 */
+	private void promote(final WebUser user, final String userId) throws Exception {
+		final Room room = roomManager.getRoom(user.getRoomName());
+
+		room.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				final Participant viewer = (userId == null) ? user : room.getParticipant(userId);
+
+				if (viewer instanceof WebUser)
+					room.promote((WebUser) viewer);
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Let the subscribers of a user receive its renewed media
+	 * 
+	 * @param user
+	 *            - the user whose media has been renewed
+	 * @throws Exception
+	 */
+	private void renewed(final WebUser user) throws Exception {
+		final Room room = roomManager.getRoom(user.getRoomName());
+
+		room.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				room.outgoingMediaRenewed(user);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Give a new name to a user, the others see it in their roster
+	 * 
+	 * @param user
+	 *            - the user
+	 * @param name
+	 *            - its new name
+	 * @throws Exception
+	 */
+	private void rename(final WebUser user, final String name) throws Exception {
+		final Room room = roomManager.getRoom(user.getRoomName());
+
+		room.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				room.renameParticipant(user, name);
+				return null;
+			}
+		});
+	}
+
 	/**
 	 * Run the Room method to leave the room
 	 * 
 	 * @param user
 	 * @throws Exception
 	 */
-	private void leaveRoom(Participant user) throws Exception {
+	private void leaveRoom(final Participant user) throws Exception {
 		if (user != null) {
 			final Room room = roomManager.getRoom(user.getRoomName());
-			room.leave(user);
-			if (room.getParticipants().isEmpty()) {
-				if (room.getLine() == null)
-					roomManager.removeRoom(room);
-				else
-					sipHandler.unregister(room);
-			}
+
+			room.call(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					room.leave(user);
+					if (room.getParticipants().isEmpty()) {
+						if (room.getLine() == null)
+							roomManager.removeRoom(room);
+						else
+							sipHandler.unregister(room);
+					}
+					return null;
+				}
+			});
+
 			registry.removeBySession(user.getSession());
 		}
 	}
@@ -360,18 +747,23 @@ public class WebHandler extends TextWebSocketHandler {
 	 * 
 	 * @param params
 	 */
-	public void record(JsonObject params) {
-		final String roomName = params.get("roomName").getAsString();
-		log.info("PARTICIPANT {}: Start recording the room {}", roomName);
-		Room room = roomManager.getRoom(roomName);
-		room.record();
-		final JsonObject newPresenterMsg = new JsonObject();
-		newPresenterMsg.addProperty("id", "recordJava");
-		newPresenterMsg.addProperty("roomJava", roomName);
-		newPresenterMsg.addProperty("userJava", params.get("userId").getAsString());
-		newPresenterMsg.addProperty("nameJava", params.get("userName").getAsString());
-
-		room.broadcast(newPresenterMsg);
+	public void record(final InboundMessage params) throws Exception {
+		final String roomName = params.getRoomName();
+		log.info("PARTICIPANT {}: Start recording the room {}", params.getUserName(), roomName);
+		final Room room = roomManager.getRoom(roomName);
+
+		final Completion<Boolean> started = new Completion<>();
+
+		room.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				room.record(params.getUserId(), started);
+				return null;
+			}
+		});
+
+		recordState(room, params, started.await() ? "recordJava" : null);
 	}
 
 	/**
@@ -379,17 +771,92 @@ public class WebHandler extends TextWebSocketHandler {
 	 * 
 	 * @param params
 	 */
-	public void stopRecord(JsonObject params) {
-		final String roomName = params.get("roomName").getAsString();
-		log.info("PARTICIPANT {}: Stop recording the room {}", roomName);
-		Room room = roomManager.getRoom(roomName);
-		room.stopRecord();
-
-		final JsonObject newPresenterMsg = new JsonObject();
-		newPresenterMsg.addProperty("id", "stopRecordJava");
-		newPresenterMsg.addProperty("roomJava", roomName);
-		newPresenterMsg.addProperty("userJava", params.get("userId").getAsString());
-		newPresenterMsg.addProperty("nameJava", params.get("userName").getAsString());
-		room.broadcast(newPresenterMsg);
+	public void stopRecord(InboundMessage params) throws Exception {
+		final String roomName = params.getRoomName();
+		log.info("PARTICIPANT {}: Stop recording the room {}", params.getUserName(), roomName);
+		final Room room = roomManager.getRoom(roomName);
+
+		boolean stopped = room.call(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				return room.stopRecord();
+			}
+		});
+
+		recordState(room, params, stopped ? "stopRecordJava" : null);
+	}
+
+	/**
+	 * Tell the room that the record has started or stopped, or tell the user
+	 * who asked for it that nothing changed
+	 */
+	private void recordState(Room room, InboundMessage params, String id) throws IOException {
+		final JsonObject msg = new JsonObject();
+		msg.addProperty("id", (id != null) ? id : "recordRefused");
+		msg.addProperty("roomJava", room.getName());
+		msg.addProperty("userJava", params.getUserId());
+		msg.addProperty("nameJava", params.getUserName());
+
+		if (id != null) {
+			room.broadcast(msg);
+			return;
+		}
+
+		msg.addProperty("recording", room.getRecorder().isRecording());
+		final Participant user = room.getParticipant(params.getUserId());
+
+		if (user != null)
+			user.sendMessage(msg);
+	}
+
+	/**
+	 * Start or stop the live broadcast of a room, and tell its participants
+	 * where to watch it, or tell the user who asked for it that nothing
+	 * changed
+	 * 
+	 * @param params
+	 * @param start
+	 *            - true to start the broadcast, false to stop it
+	 */
+	public void broadcast(final InboundMessage params, final boolean start) throws Exception {
+		final String roomName = params.getRoomName();
+		log.info("PARTICIPANT {}: {} the broadcast of the room {}", params.getUserName(), start ? "Start" : "Stop",
+				roomName);
+		final Room room = roomManager.getRoom(roomName);
+
+		final Completion<Boolean> changed = new Completion<>();
+
+		room.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				if (start)
+					room.broadcast(changed);
+				else
+					changed.onSuccess(room.stopBroadcast());
+
+				return null;
+			}
+		});
+
+		final JsonObject msg = new JsonObject();
+		msg.addProperty("roomName", room.getName());
+		msg.addProperty("userId", params.getUserId());
+		msg.addProperty("name", params.getUserName());
+		msg.addProperty("playlist", "broadcasts/" + room.getName() + "/" + RoomBroadcast.PLAYLIST);
+
+		if (changed.await()) {
+			msg.addProperty("id", start ? "broadcastStarted" : "broadcastStopped");
+			room.broadcast(msg);
+			return;
+		}
+
+		msg.addProperty("id", "broadcastRefused");
+		msg.addProperty("broadcasting", room.getBroadcast().isBroadcasting());
+		final Participant user = room.getParticipant(params.getUserId());
+
+		if (user != null)
+			user.sendMessage(msg);
 	}
 }
@@ -0,0 +1,277 @@
+package cz.cvut.fel.webrtc.resources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The last N speakers of a room, whose video is kept in the Composite, and the
+ * dominant one. The level of a participant is the bitrate of its audio, which
+ * drops when it stops talking. A participant is speaking when its level is
+ * well above its own floor, the bitrate it sends in silence.
+ *
+ * Both choices hold for a while to avoid flapping: a participant has to speak
+ * for some time before its video is brought back, the video of someone
+ * speaking is never dropped, and a new dominant speaker has to be the loudest
+ * for some time. Only used from the loop of its room.
+ *
+ */
+public class ActiveSpeakers {
+
+	/**
+	 * Speaking when the level is this many times the floor
+	 */
+	static final double SPEAKING_RATIO = 1.5;
+
+	/**
+	 * Speaking when above this level, whatever the floor, in bit/s
+	 */
+	static final double SPEAKING_MIN = 1000;
+
+	// Share of the distance to the level the floor goes up at each sample,
+	// much slower while speaking so that a long talk is not taken for noise
+	private static final double FLOOR_RISE = 0.02;
+	private static final double FLOOR_RISE_SPEAKING = 0.001;
+
+	private static class Speaker {
+		private double level;
+		private double floor = -1;
+		private long speakingSince = -1;
+		private long lastSpoke;
+	}
+
+	private final int lastN;
+	private final long enterMillis;
+	private final long dominantMillis;
+
+	private final Map<String, Speaker> speakers = new LinkedHashMap<>();
+
+	// Ordered from the least to the most recent speaker
+	private final Set<String> forwarded = new LinkedHashSet<>();
+
+	private String dominant;
+	private String challenger;
+	private long challengerSince;
+
+	/**
+	 * Constructor of ActiveSpeakers
+	 *
+	 * @param lastN
+	 *            - number of participants whose video is kept
+	 * @param enterMillis
+	 *            - time someone has to speak before its video is kept
+	 * @param dominantMillis
+	 *            - time someone has to be the loudest before becoming the
+	 *            dominant speaker
+	 */
+	public ActiveSpeakers(int lastN, long enterMillis, long dominantMillis) {
+		if (lastN <= 0)
+			throw new IllegalArgumentException("Number of speakers must be positive");
+
+		this.lastN = lastN;
+		this.enterMillis = enterMillis;
+		this.dominantMillis = dominantMillis;
+	}
+
+	/**
+	 * Add a participant, its video is kept while there is room for it
+	 *
+	 * @param id
+	 *            - identifier of the participant
+	 * @param now
+	 *            - current time in milliseconds
+	 */
+	public void add(String id, long now) {
+		if (speakers.containsKey(id))
+			return;
+
+		Speaker speaker = new Speaker();
+		speaker.lastSpoke = now;
+		speakers.put(id, speaker);
+
+		if (forwarded.size() < lastN)
+			forwarded.add(id);
+	}
+
+	/**
+	 * Forget a participant who has left, the place of its video goes to the
+	 * most recent speaker without one
+	 *
+	 * @param id
+	 *            - identifier of the participant
+	 */
+	public void remove(String id) {
+		if (speakers.remove(id) == null)
+			return;
+
+		if (id.equals(dominant))
+			dominant = null;
+
+		if (id.equals(challenger))
+			challenger = null;
+
+		if (forwarded.remove(id)) {
+			String next = null;
+
+			for (Map.Entry<String, Speaker> entry : speakers.entrySet()) {
+				if (!forwarded.contains(entry.getKey())
+						&& (next == null || entry.getValue().lastSpoke > speakers.get(next).lastSpoke))
+					next = entry.getKey();
+			}
+
+			if (next != null)
+				forwarded.add(next);
+		}
+	}
+
+	/**
+	 * Record the audio level of a participant
+	 *
+	 * @param id
+	 *            - identifier of the participant
+	 * @param level
+	 *            - bitrate of its audio, in bit/s
+	 * @param now
+	 *            - current time in milliseconds
+	 */
+	public void update(String id, double level, long now) {
+		Speaker speaker = speakers.get(id);
+
+		if (speaker == null)
+			return;
+
+		speaker.level = level;
+
+		if (speaker.floor < 0 || level < speaker.floor)
+			speaker.floor = level;
+		else
+			speaker.floor += (level - speaker.floor) * (isSpeaking(speaker) ? FLOOR_RISE_SPEAKING : FLOOR_RISE);
+
+		if (isSpeaking(speaker)) {
+			if (speaker.speakingSince < 0)
+				speaker.speakingSince = now;
+
+			speaker.lastSpoke = now;
+		} else {
+			speaker.speakingSince = -1;
+		}
+	}
+
+	/**
+	 * Bring back the video of the participants who have been speaking long
+	 * enough and choose the dominant speaker, after a round of updates
+	 *
+	 * @param now
+	 *            - current time in milliseconds
+	 * @return - true if the dominant speaker has changed
+	 */
+	public boolean select(long now) {
+		for (Map.Entry<String, Speaker> entry : speakers.entrySet()) {
+			Speaker speaker = entry.getValue();
+
+			if (speaker.speakingSince >= 0 && now - speaker.speakingSince >= enterMillis)
+				keep(entry.getKey());
+		}
+
+		return selectDominant(now);
+	}
+
+	private void keep(String id) {
+		if (forwarded.remove(id)) {
+			forwarded.add(id);
+			return;
+		}
+
+		if (forwarded.size() >= lastN) {
+			String evicted = null;
+
+			// The least recent speaker which is not speaking right now
+			for (String candidate : forwarded) {
+				Speaker speaker = speakers.get(candidate);
+
+				if (speaker.speakingSince < 0
+						&& (evicted == null || speaker.lastSpoke < speakers.get(evicted).lastSpoke))
+					evicted = candidate;
+			}
+
+			if (evicted == null)
+				return;
+
+			forwarded.remove(evicted);
+		}
+
+		forwarded.add(id);
+	}
+
+	private boolean selectDominant(long now) {
+		String loudest = null;
+
+		for (Map.Entry<String, Speaker> entry : speakers.entrySet()) {
+			Speaker speaker = entry.getValue();
+
+			if (isSpeaking(speaker) && (loudest == null || speaker.level > speakers.get(loudest).level))
+				loudest = entry.getKey();
+		}
+
+		if (loudest == null || loudest.equals(dominant)) {
+			challenger = null;
+			return false;
+		}
+
+		if (!loudest.equals(challenger)) {
+			challenger = loudest;
+			challengerSince = now;
+		}
+
+		if (now - challengerSince < dominantMillis)
+			return false;
+
+		setDominant(loudest);
+		return true;
+	}
+
+	private void setDominant(String id) {
+		dominant = id;
+		challenger = null;
+		keep(id);
+	}
+
+	private static boolean isSpeaking(Speaker speaker) {
+		return speaker.level > SPEAKING_MIN && speaker.level > speaker.floor * SPEAKING_RATIO;
+	}
+
+	/**
+	 * @param id
+	 *            - identifier of the participant
+	 * @return - true if the video of the participant is kept
+	 */
+	public boolean isForwarded(String id) {
+		return forwarded.contains(id);
+	}
+
+	/**
+	 * @return the participants whose video is kept, the most recent speaker
+	 *         last
+	 */
+	public List<String> getForwarded() {
+		return Collections.unmodifiableList(new ArrayList<>(forwarded));
+	}
+
+	/**
+	 * @return the dominant speaker, null if nobody has spoken yet
+	 */
+	public String getDominant() {
+		return dominant;
+	}
+
+	/**
+	 * @return the number of participants
+	 */
+	public int size() {
+		return speakers.size();
+	}
+}
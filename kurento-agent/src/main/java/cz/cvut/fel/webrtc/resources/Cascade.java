@@ -0,0 +1,247 @@
+package cz.cvut.fel.webrtc.resources;
+
+import cz.cvut.fel.webrtc.utils.EventLoop;
+import org.kurento.client.Continuation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shards of a room too large for one Composite. A participant joins the
+ * least filled shard with a free place, a new shard is built when every shard
+ * is full, and a shard left empty is torn down unless the others are nearly
+ * full. The participants stay in their shard until they leave, moving them
+ * would renegotiate their media. A shard is built without holding the loop,
+ * the participants coming meanwhile wait for it. Only used from the loop of
+ * its room.
+ *
+ */
+public class Cascade {
+
+	private static final Logger log = LoggerFactory.getLogger(Cascade.class);
+
+	private final Shard root;
+	private final int capacity;
+	private final ShardFactory factory;
+
+	private final EventLoop loop;
+
+	private final List<Shard> shards = new ArrayList<>();
+	private final Map<String, Shard> placements = new HashMap<>();
+
+	// Placements waiting for the shard being built, null while none is built
+	private List<Placement> waiting;
+	private boolean closed;
+
+	/**
+	 * Constructor of Cascade
+	 *
+	 * @param root
+	 *            - the shard of the room's own Composite
+	 * @param capacity
+	 *            - number of participants in a shard
+	 * @param factory
+	 *            - builder of the other shards
+	 * @param loop
+	 *            - the loop of the room
+	 */
+	public Cascade(Shard root, int capacity, ShardFactory factory, EventLoop loop) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity of a shard must be positive");
+
+		this.root = root;
+		this.capacity = capacity;
+		this.factory = factory;
+		this.loop = loop;
+		this.shards.add(root);
+	}
+
+	/**
+	 * Choose the shard of a participant
+	 *
+	 * @param participantId
+	 *            - identifier of the participant
+	 * @param placed
+	 *            - told on the loop the shard, at once unless a new shard has
+	 *            to be built
+	 */
+	public void place(String participantId, Continuation<Shard> placed) {
+		Shard shard = placements.get(participantId);
+
+		if (shard == null) {
+			for (Shard candidate : shards) {
+				if (candidate.size() < capacity && (shard == null || candidate.size() < shard.size()))
+					shard = candidate;
+			}
+		}
+
+		if (shard == null) {
+			waitForShard(new Placement(participantId, placed));
+			return;
+		}
+
+		if (!placements.containsKey(participantId)) {
+			shard.increment();
+			placements.put(participantId, shard);
+		}
+
+		tell(placed, shard);
+	}
+
+	/**
+	 * Wait for the shard being built, or build one
+	 */
+	private void waitForShard(Placement placement) {
+		if (waiting != null) {
+			waiting.add(placement);
+			return;
+		}
+
+		waiting = new ArrayList<>();
+		waiting.add(placement);
+
+		factory.create(root, loop.onLoop(new Continuation<Shard>() {
+
+			@Override
+			public void onSuccess(Shard shard) throws Exception {
+				final List<Placement> waited = waiting;
+				waiting = null;
+
+				// Built for a room closed meanwhile
+				if (closed) {
+					factory.destroy(shard);
+
+					for (Placement placement : waited) {
+						fail(placement.placed, new IllegalStateException("the room is closed"));
+					}
+
+					return;
+				}
+
+				shards.add(shard);
+				log.info("New shard built, {} shards", shards.size());
+
+				for (Placement placement : waited) {
+					place(placement.participantId, placement.placed);
+				}
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				final List<Placement> waited = waiting;
+				waiting = null;
+
+				log.warn("Could not build a new shard: {}", cause.getMessage());
+
+				for (Placement placement : waited) {
+					fail(placement.placed, cause);
+				}
+			}
+		}));
+	}
+
+	private void tell(Continuation<Shard> placed, Shard shard) {
+		try {
+			placed.onSuccess(shard);
+		} catch (Exception e) {
+			log.warn("Could not hand over the shard of a participant", e);
+		}
+	}
+
+	private void fail(Continuation<Shard> placed, Throwable cause) {
+		try {
+			placed.onError(cause);
+		} catch (Exception e) {
+			log.warn("Could not tell a participant that it has no shard", e);
+		}
+	}
+
+	/**
+	 * A participant waiting for a new shard
+	 */
+	private static class Placement {
+		private final String participantId;
+		private final Continuation<Shard> placed;
+
+		Placement(String participantId, Continuation<Shard> placed) {
+			this.participantId = participantId;
+			this.placed = placed;
+		}
+	}
+
+	/**
+	 * Forget a participant who has left, and tear down its shard if it is of
+	 * no use anymore
+	 *
+	 * @param participantId
+	 *            - identifier of the participant
+	 */
+	public void release(String participantId) {
+		Shard shard = placements.remove(participantId);
+
+		if (shard == null)
+			return;
+
+		shard.decrement();
+
+		if (shard != root && shard.size() == 0 && getFreePlaces() - capacity >= capacity / 4) {
+			shards.remove(shard);
+			factory.destroy(shard);
+			log.info("Empty shard torn down, {} shards left", shards.size());
+		}
+	}
+
+	/**
+	 * Tear down every shard but the root one
+	 */
+	public void close() {
+		closed = true;
+
+		for (Shard shard : shards) {
+			if (shard != root)
+				factory.destroy(shard);
+		}
+
+		shards.clear();
+		shards.add(root);
+		placements.clear();
+	}
+
+	/**
+	 * @param participantId
+	 *            - identifier of the participant
+	 * @return - the shard of the participant, null if there is none
+	 */
+	public Shard getShard(String participantId) {
+		return placements.get(participantId);
+	}
+
+	/**
+	 * @return the shards, the root one first
+	 */
+	public List<Shard> getShards() {
+		return Collections.unmodifiableList(shards);
+	}
+
+	/**
+	 * @return the number of participants placed in the shards
+	 */
+	public int size() {
+		return placements.size();
+	}
+
+	private int getFreePlaces() {
+		int free = 0;
+
+		for (Shard shard : shards) {
+			free += capacity - shard.size();
+		}
+
+		return free;
+	}
+}
@@ -15,10 +15,14 @@
 package cz.cvut.fel.webrtc.resources;
 
 import com.google.gson.JsonObject;
+import org.kurento.client.Continuation;
 import org.kurento.client.Hub;
 import org.kurento.client.HubPort;
+import org.kurento.client.ImageOverlayFilter;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.PassThrough;
+import org.kurento.client.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.TextMessage;
@@ -26,6 +30,8 @@ import org.springframework.web.socket.WebSocketSession;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 
 /**
  * 
@@ -36,16 +42,32 @@ public abstract class Participant implements Closeable {
 
 	private static final Logger log = LoggerFactory.getLogger(Participant.class);
 
+	// Identifier of the name in the overlay filter
+	private static final String NAME_IMAGE = "name";
+
 	private final String id;
 	protected String name;
 	protected final WebSocketSession session;
 	protected final String roomName;
 	private final Hub hub;
 	protected HubPort hubPort;
+	private final MediaPipeline compositePipeline;
 
-	// Record
+	// Record, built on first use
 	private PassThrough passThru;
 
+	/**
+	 * Name drawn over the video of the participant before it enters the
+	 * Composite, from the tiles at nameTiles. The filter lives as long as the
+	 * port in the hub, and only exists while the room shows the names.
+	 */
+	private String nameTiles;
+	private ImageOverlayFilter nameOverlay;
+	private String shownName;
+
+	// Creation of the participant, for the join latency
+	private final long createdAt = System.nanoTime();
+
 	/**
 	 * constructor of the class participant
 	 * 
@@ -57,20 +79,56 @@ public abstract class Participant implements Closeable {
 	 *            the link between internet and the participant
 	 * @param compositePipeline
 	 *            container of MediaElements, canal from kurento to user
-	 * @param presentationPipeline
-	 *            container of MediaElements, canal from user to kurento
 	 * @param hub
 	 *            this is where all the participant of the room connect themself
+	 * @param tx
+	 *            transaction in which the media elements are created, they
+	 *            can only be used once it is committed
 	 */
 	public Participant(final String id, String roomName, final WebSocketSession session,
-			MediaPipeline compositePipeline, MediaPipeline presentationPipeline, Hub hub) {
+			MediaPipeline compositePipeline, Hub hub, Transaction tx) {
+
+		this(id, roomName, session, compositePipeline, hub);
+		this.hubPort = buildHubPort(tx);
+	}
+
+	/**
+	 * constructor of a participant without a port in the hub yet, e.g. a
+	 * viewer only receiving the mix of the room
+	 * 
+	 * @param id
+	 *            identifier of the participant
+	 * @param roomName
+	 *            The room to which the user is currently attending
+	 * @param session
+	 *            the link between internet and the participant
+	 * @param compositePipeline
+	 *            container of MediaElements, canal from kurento to user
+	 * @param hub
+	 *            the hub the participant will connect to, if it ever does
+	 */
+	protected Participant(final String id, String roomName, final WebSocketSession session,
+			MediaPipeline compositePipeline, Hub hub) {
 
 		this.id = id;
 		this.session = session;
 		this.roomName = roomName;
-		this.passThru = new PassThrough.Builder(compositePipeline).build();
+		this.compositePipeline = compositePipeline;
 		this.hub = hub;
-		this.hubPort = new HubPort.Builder(hub).build();
+	}
+
+	/**
+	 * Called once the transaction creating the media of the participant is
+	 * committed, for what cannot be done in a transaction
+	 */
+	public void onMediaCreated() {
+	}
+
+	/**
+	 * @return the milliseconds elapsed since the participant has been created
+	 */
+	public long getElapsedSinceCreation() {
+		return (System.nanoTime() - createdAt) / 1000000;
 	}
 
 	/**
@@ -86,8 +144,162 @@ public abstract class Participant implements Closeable {
 	 * @param name
 	 *            new name of the participant
 	 */
-	public void setName(String name) {
+	public synchronized void setName(String name) {
 		this.name = name;
+
+		if (nameOverlay == null || name == null || name.equals(shownName))
+			return;
+
+		// The tile of the old name is swapped for the new one at once
+		Transaction tx = compositePipeline.beginTransaction();
+		drawName(tx);
+		tx.commit(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.trace("USER {}: Name drawn over the video", Participant.this.name);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("USER {}: Could not draw the name over the video: {}", Participant.this.name,
+						cause.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Draw the name of the participant over its video in the mix of the room.
+	 * A participant without a port in the hub gets it once it has one.
+	 * 
+	 * @param tilesUrl
+	 *            - URL of the name tiles of the agent, the media server gets
+	 *            the name appended to it
+	 * @param tx
+	 *            - transaction in which the media is rewired
+	 */
+	public synchronized void showName(String tilesUrl, Transaction tx) {
+		this.nameTiles = tilesUrl;
+
+		if (hubPort == null || nameOverlay != null)
+			return;
+
+		newNameOverlay(tx);
+		moveMixInput(hubPort, tx);
+	}
+
+	/**
+	 * Draw the name of the participant over its video or stop drawing it, in
+	 * a transaction of its own
+	 * 
+	 * @param tilesUrl
+	 *            - URL of the name tiles of the agent, null to stop drawing
+	 *            the name
+	 */
+	public synchronized void setNameTiles(String tilesUrl) {
+		if (tilesUrl == null ? nameTiles == null : tilesUrl.equals(nameTiles))
+			return;
+
+		Transaction tx = compositePipeline.beginTransaction();
+
+		if (tilesUrl != null)
+			showName(tilesUrl, tx);
+		else
+			hideName(tx);
+
+		tx.commit(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.trace("USER {}: Name overlay changed", Participant.this.name);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("USER {}: Could not change the name overlay: {}", Participant.this.name,
+						cause.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Stop drawing the name of the participant over its video
+	 * 
+	 * @param tx
+	 *            - transaction in which the media is rewired
+	 */
+	public synchronized void hideName(Transaction tx) {
+		this.nameTiles = null;
+
+		if (nameOverlay == null)
+			return;
+
+		ImageOverlayFilter overlay = nameOverlay;
+		nameOverlay = null;
+		shownName = null;
+		moveMixInput(overlay, tx);
+		overlay.release(tx);
+	}
+
+	private void newNameOverlay(Transaction tx) {
+		nameOverlay = buildNameOverlay(tx);
+		nameOverlay.connect(tx, hubPort);
+		shownName = null;
+
+		if (name != null)
+			drawName(tx);
+	}
+
+	protected ImageOverlayFilter buildNameOverlay(Transaction tx) {
+		return new ImageOverlayFilter.Builder(compositePipeline).build(tx);
+	}
+
+	protected HubPort buildHubPort(Transaction tx) {
+		return new HubPort.Builder(hub).build(tx);
+	}
+
+	private void drawName(Transaction tx) {
+		if (shownName != null)
+			nameOverlay.removeImage(tx, NAME_IMAGE);
+
+		// The tile covers the whole video, the name is at its bottom
+		nameOverlay.addImage(tx, NAME_IMAGE, nameTiles + encode(name), 0, 0, 1, 1, false, false);
+		shownName = name;
+	}
+
+	private static String encode(String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the element the media of the participant enters the mix
+	 *         through: the overlay drawing its name, or its port in the hub
+	 */
+	protected synchronized MediaElement getMixInput() {
+		return (nameOverlay != null) ? nameOverlay : hubPort;
+	}
+
+	/**
+	 * Connect the media of the participant to its new mix input instead of
+	 * the previous one
+	 * 
+	 * @param previous
+	 *            - the element the media entered the mix through
+	 * @param tx
+	 *            - transaction in which the media is rewired
+	 */
+	protected void moveMixInput(MediaElement previous, Transaction tx) {
+	}
+
+	/**
+	 * @return true if the name of the participant is drawn over its video
+	 */
+	public synchronized boolean isNameShown() {
+		return nameOverlay != null;
 	}
 
 	/**
@@ -113,9 +325,19 @@ public abstract class Participant implements Closeable {
 	 */
 	public void sendMessage(JsonObject message) throws IOException {
 		log.debug("USER {}: Sending message {}", name, message);
-		synchronized (session) {
-			session.sendMessage(new TextMessage(message.toString()));
-		}
+		session.sendMessage(new TextMessage(message.toString()));
+	}
+
+	/**
+	 * send an already encoded message to the participant. The same frame can
+	 * be sent to several participants, it is never modified.
+	 * 
+	 * @param frame
+	 *            - the encoded message
+	 */
+	public void sendMessage(TextMessage frame) throws IOException {
+		log.debug("USER {}: Sending message {}", name, frame.getPayload());
+		session.sendMessage(frame);
 	}
 
 	/*
@@ -159,9 +381,14 @@ public abstract class Participant implements Closeable {
 	 * 
 	 * 
 	 */
-	private void newHubPort() {
-		if (hubPort == null)
-			this.hubPort = new HubPort.Builder(hub).build();
+	protected synchronized void newHubPort(Transaction tx) {
+		if (hubPort != null)
+			return;
+
+		this.hubPort = buildHubPort(tx);
+
+		if (nameTiles != null)
+			newNameOverlay(tx);
 	}
 
 	/**
@@ -169,9 +396,35 @@ public abstract class Participant implements Closeable {
 	 * 
 	 * 
 	 */
-	protected void releaseHubPort() {
-		hubPort.release();
-		hubPort = null;
+	protected synchronized void releaseHubPort() {
+		if (hubPort != null) {
+			hubPort.release(releaseLog("port in the hub"));
+			hubPort = null;
+		}
+
+		if (nameOverlay != null) {
+			nameOverlay.release(releaseLog("name overlay"));
+			nameOverlay = null;
+		}
+	}
+
+	/**
+	 * @return a continuation logging the release of an element, so that it
+	 *         is released without waiting for the media server
+	 */
+	private Continuation<Void> releaseLog(final String element) {
+		return new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.trace("PARTICIPANT {}: Released {}", name, element);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("PARTICIPANT {}: Could not release {}", name, element);
+			}
+		};
 	}
 
 	/**
@@ -179,9 +432,9 @@ public abstract class Participant implements Closeable {
 	 * 
 	 * 
 	 */
-	protected void renewHubPort() {
+	protected void renewHubPort(Transaction tx) {
 		releaseHubPort();
-		newHubPort();
+		newHubPort(tx);
 	}
 
 	/**
@@ -200,11 +453,14 @@ public abstract class Participant implements Closeable {
 		this.hubPort = hubPort;
 	}
 
-	public PassThrough getPassThru() {
+	public synchronized PassThrough getPassThru() {
+		if (passThru == null)
+			passThru = new PassThrough.Builder(compositePipeline).build();
+
 		return passThru;
 	}
 
-	public void setPassThru(PassThrough passThru) {
+	public synchronized void setPassThru(PassThrough passThru) {
 		this.passThru = passThru;
 	}
 
@@ -0,0 +1,260 @@
+package cz.cvut.fel.webrtc.resources;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kurento.client.MediaElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays spreading the screen of the presenter to a large audience, so that
+ * no element feeds more than a few others. Every element of the tree, the
+ * screen of the presenter included, feeds at most degree viewers and degree
+ * relays. A viewer gets the free place nearest to the presenter, a new relay
+ * is only built when every place is taken, and a relay left without viewer
+ * nor relay is torn down. The viewers are never moved, moving them would
+ * freeze their video until the next key frame. Only used from the loop of
+ * its room.
+ *
+ */
+public class RelayTree {
+
+	private static final Logger log = LoggerFactory.getLogger(RelayTree.class);
+
+	/**
+	 * Build and tear down the relays of a tree
+	 *
+	 */
+	public interface Factory {
+
+		/**
+		 * Build a new relay fed by an element of the tree
+		 *
+		 * @param parent
+		 *            - the element feeding the relay
+		 * @return - the new relay
+		 */
+		MediaElement create(MediaElement parent);
+
+		/**
+		 * Release a relay
+		 *
+		 * @param relay
+		 *            - the relay, feeding nothing anymore
+		 */
+		void destroy(MediaElement relay);
+	}
+
+	/**
+	 * An element of the tree, the screen of the presenter or a relay
+	 *
+	 */
+	public static class Relay {
+
+		private final MediaElement element;
+		private final Relay parent;
+		private final int depth;
+		private final List<Relay> children = new ArrayList<>();
+		private int viewers;
+
+		private Relay(MediaElement element, Relay parent) {
+			this.element = element;
+			this.parent = parent;
+			this.depth = (parent == null) ? 0 : parent.depth + 1;
+		}
+
+		/**
+		 * @return the element the viewers of this relay are connected to
+		 */
+		public MediaElement getElement() {
+			return element;
+		}
+
+		/**
+		 * @return the number of relays between the presenter and the viewers
+		 *         of this relay
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+		/**
+		 * @return the number of viewers fed by this relay
+		 */
+		public int getViewers() {
+			return viewers;
+		}
+
+		/**
+		 * @return the number of relays fed by this relay
+		 */
+		public int getChildren() {
+			return children.size();
+		}
+	}
+
+	private final Relay root;
+	private final int degree;
+	private final Factory factory;
+
+	private final Map<String, Relay> placements = new HashMap<>();
+	private int relays;
+
+	/**
+	 * Constructor of RelayTree
+	 *
+	 * @param source
+	 *            - the screen of the presenter
+	 * @param degree
+	 *            - number of viewers and of relays an element feeds
+	 * @param factory
+	 *            - builder of the relays
+	 */
+	public RelayTree(MediaElement source, int degree, Factory factory) {
+		if (degree <= 0)
+			throw new IllegalArgumentException("Degree of the relays must be positive");
+
+		this.root = new Relay(source, null);
+		this.degree = degree;
+		this.factory = factory;
+	}
+
+	/**
+	 * Choose the element a viewer is connected to
+	 *
+	 * @param viewerId
+	 *            - identifier of the viewer
+	 * @return - the relay feeding the viewer
+	 */
+	public Relay attach(String viewerId) {
+		Relay relay = placements.get(viewerId);
+
+		if (relay != null)
+			return relay;
+
+		relay = find(true);
+
+		if (relay == null) {
+			Relay parent = find(false);
+			relay = new Relay(factory.create(parent.element), parent);
+			parent.children.add(relay);
+			relays++;
+			log.info("New relay built at depth {}, {} relays for {} viewers", relay.depth, relays,
+					placements.size() + 1);
+		}
+
+		relay.viewers++;
+		placements.put(viewerId, relay);
+		return relay;
+	}
+
+	/**
+	 * Give back the place of a viewer
+	 *
+	 * @param viewerId
+	 *            - identifier of the viewer
+	 */
+	public void detach(String viewerId) {
+		Relay relay = placements.remove(viewerId);
+
+		if (relay == null)
+			return;
+
+		relay.viewers--;
+
+		// Up the tree as long as relays are left feeding nothing
+		while (relay != root && relay.viewers == 0 && relay.children.isEmpty()) {
+			relay.parent.children.remove(relay);
+			factory.destroy(relay.element);
+			relays--;
+			relay = relay.parent;
+		}
+	}
+
+	/**
+	 * The element nearest to the presenter with a free place, for a viewer or
+	 * for a relay
+	 */
+	private Relay find(boolean forViewer) {
+		Deque<Relay> queue = new ArrayDeque<>();
+		queue.add(root);
+
+		while (!queue.isEmpty()) {
+			Relay relay = queue.poll();
+
+			if ((forViewer ? relay.viewers : relay.children.size()) < degree)
+				return relay;
+
+			queue.addAll(relay.children);
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param viewerId
+	 *            - identifier of the viewer
+	 * @return - the relay feeding the viewer, null if it has none
+	 */
+	public Relay getRelay(String viewerId) {
+		return placements.get(viewerId);
+	}
+
+	/**
+	 * @return the elements of the tree, the nearest to the presenter first
+	 */
+	public List<Relay> getRelays() {
+		List<Relay> list = new ArrayList<>();
+		Deque<Relay> queue = new ArrayDeque<>();
+		queue.add(root);
+
+		while (!queue.isEmpty()) {
+			Relay relay = queue.poll();
+			list.add(relay);
+			queue.addAll(relay.children);
+		}
+
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * @return the largest number of relays between the presenter and a viewer
+	 */
+	public int getDepth() {
+		int depth = 0;
+
+		for (Relay relay : placements.values()) {
+			depth = Math.max(depth, relay.depth);
+		}
+
+		return depth;
+	}
+
+	/**
+	 * @return the number of viewers
+	 */
+	public int size() {
+		return placements.size();
+	}
+
+	/**
+	 * Tear down every relay, e.g. when the presentation stops
+	 */
+	public void close() {
+		for (Relay relay : getRelays()) {
+			if (relay != root)
+				factory.destroy(relay.element);
+		}
+
+		root.children.clear();
+		root.viewers = 0;
+		placements.clear();
+		relays = 0;
+	}
+}
@@ -14,23 +14,35 @@
  */
 package cz.cvut.fel.webrtc.resources;
 
+import com.google.common.base.Throwables;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
+import cz.cvut.fel.webrtc.utils.EventLoop;
 import org.kurento.client.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import javax.annotation.PreDestroy;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 //import org.kurento.client.HubPort;
 
@@ -58,21 +70,148 @@ public class Room implements Closeable {
 	private final Logger log = LoggerFactory.getLogger(Room.class);
 
 	private ConcurrentMap<String, Participant> participants;
-	private MediaPipeline presentationPipeline;
 	private MediaPipeline compositePipeline;
 	private Composite composite;
+	private KurentoClient kurento;
 	private final String name;
 
-	private Line line;
+	/**
+	 * The state of the room is only changed from this loop
+	 */
+	private final EventLoop loop;
+
+	private volatile Line line;
 	private final String callId;
-	private long cseq;
-	private boolean closing;
+	private final AtomicLong cseq;
+	private volatile boolean closing;
+
+	private volatile WebUser screensharer;
+
+	/**
+	 * Pipeline of the screen sharing, only built while someone presents and
+	 * kept for a grace period after, in case the presentation starts again
+	 */
+	private volatile MediaPipeline presentationPipeline;
+	private boolean presentationBuilding;
+	private long presentationGrace;
+	private ScheduledExecutorService presentationTimer;
+	private ScheduledFuture<?> presentationRelease;
+
+	/**
+	 * Relays between the presenter and a large audience, null while the
+	 * viewers are fed by the presenter or if the room has no relays
+	 */
+	private RelayTree presentationRelays;
+	private int presentationFanout;
+
+	private final RelayTree.Factory relayFactory = new RelayTree.Factory() {
+
+		@Override
+		public MediaElement create(MediaElement parent) {
+			PassThrough relay = new PassThrough.Builder(presentationPipeline).build();
+			parent.connect(relay);
+			return relay;
+		}
+
+		@Override
+		public void destroy(MediaElement relay) {
+			relay.release(releaseLog("presentation relay"));
+		}
+	};
+
+	private final Roster roster = new Roster();
+
+	/**
+	 * Shards of a large room, null while the room fits in its Composite
+	 */
+	private Cascade cascade;
+
+	private volatile Topology topology = Topology.MCU;
+
+	// Largest room in SFU when the topology follows the size, 0 if it does not
+	private int sfuMaxParticipants;
+
+	/**
+	 * Audio of the web users is sampled this often, their video is brought
+	 * back after speaking that long, and a new dominant speaker has to be the
+	 * loudest for that long, in milliseconds
+	 */
+	static final long SPEAKERS_INTERVAL = 500;
+	static final long SPEAKERS_ENTER = 1000;
+	static final long SPEAKERS_DOMINANT = 1500;
+
+	/**
+	 * Last speakers whose video is mixed, null to mix everyone
+	 */
+	private ActiveSpeakers speakers;
+	private ScheduledFuture<?> speakersSampling;
+
+	// Audio bytes received from each web user at the last sample
+	private final Map<String, long[]> audioSamples = new HashMap<>();
+
+	// Round of sampling waiting for the stats of the web users, null between
+	// rounds
+	private SpeakersRound speakersRound;
+
+	/**
+	 * The media of the web users is checked this often, in milliseconds
+	 */
+	static final long MEDIA_CHECK_INTERVAL = 1000;
 
-	private WebUser screensharer;
+	// Time the media of a web user may stop flowing before it is rebuilt
+	private long mediaRecoveryGrace;
+	private ScheduledFuture<?> mediaChecks;
 
-	// Record
-	private HubPort hubPort;
-	private RecorderEndpoint recorderEndpoint;
+	/**
+	 * Largest number of participants sending media and of viewers, 0 for no
+	 * limit
+	 */
+	private int maxParticipants;
+	private int maxViewers;
+
+	/**
+	 * Mix of the room shared by the viewers: a port of the Composite with
+	 * nothing connected to its input, built with the first viewer
+	 */
+	private HubPort viewerPort;
+	private PassThrough viewerSource;
+
+	// Joins of the viewers waiting for the mix of the viewers to be built,
+	// null while it is not being built
+	private List<Runnable> viewerSourceWaiting;
+
+	// Participants and viewers whose media is being created
+	private int joining;
+	private int joiningViewers;
+
+	/**
+	 * Recorder of the mix, holding a port of the Composite only while the
+	 * room is recorded
+	 */
+	private RoomRecorder recorder;
+
+	/**
+	 * The recorder and the broadcast are told the time this often while they
+	 * run, to cut their media into segments, in milliseconds
+	 */
+	static final long RECORDING_TICK = 1000;
+
+	private ScheduledExecutorService recordingTimer;
+	private ScheduledFuture<?> recordingTicks;
+
+	/**
+	 * Live broadcast of the mix to the audiences too large for WebRTC,
+	 * holding a port of the Composite only while the room is broadcast
+	 */
+	private RoomBroadcast broadcast;
+	private ScheduledFuture<?> broadcastTicks;
+
+	/**
+	 * Tiles of the names drawn over the videos in the mix, and the same URL
+	 * while the room shows them, null otherwise
+	 */
+	private String nameTilesUrl;
+	private volatile String nameTiles;
 
 	/**
 	 * @return the name
@@ -87,10 +226,22 @@ public class Room implements Closeable {
 	 *            this is the name user want to give to the room
 	 */
 	public Room(String roomName) {
+		this(roomName, EventLoop.direct());
+	}
+
+	/**
+	 * 
+	 * @param roomname
+	 *            this is the name user want to give to the room
+	 * @param loop
+	 *            the loop changing the state of the room
+	 */
+	private Room(String roomName, EventLoop loop) {
 		this.callId = UUID.randomUUID().toString();
-		this.cseq = (new Random()).nextInt(100);
+		this.cseq = new AtomicLong((new Random()).nextInt(100));
 		this.name = roomName;
 		this.participants= new ConcurrentSkipListMap<>();
+		this.loop = loop;
 	}
 
 	/**
@@ -101,12 +252,27 @@ public class Room implements Closeable {
 	 * @kurotoClient it's the link between the WebRTC serveur and the room
 	 */
 	public Room(String roomName, KurentoClient kurento) {
-		this(roomName);
+		this(roomName, RoomMedia.create(kurento), EventLoop.direct());
+	}
 
-		this.compositePipeline = kurento.createMediaPipeline();
-		this.presentationPipeline = kurento.createMediaPipeline();
-		this.composite = new Composite.Builder(compositePipeline).build();
-		this.participants= new ConcurrentSkipListMap<>();
+	/**
+	 * creat the room on media already built
+	 * 
+	 * @param roomName
+	 *            this is the name user want to give to the room
+	 * @param media
+	 *            the pipelines and the composite of the room
+	 * @param loop
+	 *            the loop changing the state of the room
+	 */
+	public Room(String roomName, RoomMedia media, EventLoop loop) {
+		this(roomName, loop);
+
+		this.compositePipeline = media.getCompositePipeline();
+		this.composite = media.getComposite();
+		this.kurento = media.getKurentoClient();
+		this.recorder = new RoomRecorder(roomName, compositePipeline, composite, loop);
+		this.broadcast = new RoomBroadcast(roomName, compositePipeline, composite, loop);
 		log.info("ROOM {} has been created", roomName);
 	}
 
@@ -115,9 +281,41 @@ public class Room implements Closeable {
 		this.close();
 	}
 
+	/**
+	 * Run a task later on the loop of the room
+	 * 
+	 * @param task
+	 *            - the task
+	 */
+	public void execute(Runnable task) {
+		loop.execute(task);
+	}
+
+	/**
+	 * Run a task on the loop of the room and wait for its result. Every
+	 * change of the state of the room goes through this method.
+	 * 
+	 * @param task
+	 *            - the task
+	 * @return - the result of the task
+	 * @throws Exception
+	 *             - the exception thrown by the task
+	 */
+	public <T> T call(Callable<T> task) throws Exception {
+		return loop.call(task);
+	}
+
+	/**
+	 * @return true if the calling thread can change the state of the room
+	 */
+	public boolean inEventLoop() {
+		return loop.inEventLoop();
+	}
+
 	/**
 	 * Represents a client's request to join a room. The room must exist in
-	 * order to perform the join.
+	 * order to perform the join. The media of the participant is created
+	 * without holding the loop.
 	 * 
 	 * @param userID
 	 *            - name or identifier of the user in the room. Will be used to
@@ -126,277 +324,1436 @@ public class Room implements Closeable {
 	 *            - conversation between two web socket endpoints
 	 * @param sessionClass
 	 *            - it permit to instantiate the created new participant
-	 * 
-	 * @return an existing peers of type Participant, can be empty if first
+	 * @param joined
+	 *            - told on the loop the new participant once its media is
+	 *            created, null if the room has no place for it or if its
+	 *            media could not be created
 	 */
-	public Participant join(String userId, WebSocketSession session, Class<? extends Participant> sessionClass) {
+	public void join(final String userId, WebSocketSession session, Class<? extends Participant> sessionClass,
+			final Continuation<Participant> joined) {
+		assert inEventLoop();
 		log.info("ROOM {}: adding participant {}", name, userId);
 
+		final boolean counted = WebUser.class.isAssignableFrom(sessionClass);
+
+		if (counted && maxParticipants > 0 && getParticipantCount() + joining >= maxParticipants) {
+			refuse(session, "participant");
+			tell(joined, null);
+			return;
+		}
+
+		if (counted)
+			joining++;
+
+		// The calls of the PBX stay in the root Composite, and the SFU in one
+		// pipeline
+		if (cascade != null && topology == Topology.MCU && counted) {
+			final WebSocketSession placedSession = session;
+			final Class<? extends Participant> placedClass = sessionClass;
+
+			cascade.place(userId, new Continuation<Shard>() {
+
+				@Override
+				public void onSuccess(Shard shard) throws Exception {
+					createMedia(userId, placedSession, placedClass, shard.getPipeline(), shard.getComposite(),
+							counted, joined);
+				}
+
+				@Override
+				public void onError(Throwable cause) throws Exception {
+					joining--;
+					joinFailed(userId, null, cause, joined);
+				}
+			});
+
+			return;
+		}
+
+		createMedia(userId, session, sessionClass, compositePipeline, composite, counted, joined);
+	}
+
+	/**
+	 * Create and connect the media of a participant in one exchange
+	 */
+	private void createMedia(final String userId, WebSocketSession session,
+			Class<? extends Participant> sessionClass, MediaPipeline pipeline, Hub hub, final boolean counted,
+			final Continuation<Participant> joined) {
 		Participant participant = null;
 
 		try {
+			Transaction tx = pipeline.beginTransaction();
 
 			participant = sessionClass.getConstructor(String.class, String.class, WebSocketSession.class,
-					MediaPipeline.class, MediaPipeline.class, Hub.class).newInstance(userId, this.name, session,
-							this.compositePipeline, this.presentationPipeline, this.composite);
+					MediaPipeline.class, Hub.class, Transaction.class).newInstance(userId, this.name, session,
+							pipeline, hub, tx);
+
+			if (nameTiles != null)
+				participant.showName(nameTiles, tx);
+
+			if (participant instanceof WebUser) {
+				((WebUser) participant).useTopology(topology, tx);
+
+				if (speakers != null) {
+					speakers.add(userId, now());
+					((WebUser) participant).setVideoMixed(speakers.isForwarded(userId), tx);
+				}
+			}
+
+			final Participant created = participant;
+
+			tx.commit(loop.onLoop(new Continuation<Void>() {
+
+				@Override
+				public void onSuccess(Void result) throws Exception {
+					if (counted)
+						joining--;
+
+					joined(created, joined);
+				}
+
+				@Override
+				public void onError(Throwable cause) throws Exception {
+					if (counted)
+						joining--;
+
+					joinFailed(userId, created, cause, joined);
+				}
+			}));
+
+		} catch (Exception e) {
+			if (counted)
+				joining--;
+
+			joinFailed(userId, participant, e, joined);
+		}
+	}
+
+	/**
+	 * Add a participant whose media has been created, and catch up with the
+	 * changes of the room made meanwhile
+	 */
+	private void joined(Participant participant, Continuation<Participant> joined) {
+		final String userId = participant.getId();
+
+		try {
+			if (closing)
+				throw new IllegalStateException("the room is closing");
+
+			participant.onMediaCreated();
+			log.debug("ROOM {}: media of participant {} created in {} ms", name, userId,
+					participant.getElapsedSinceCreation());
 
 			add(participant);
+
+			if (participant instanceof WebUser) {
+				((WebUser) participant).useTopology(topology);
+
+				if (speakers != null && !isViewer(participant))
+					((WebUser) participant).setVideoMixed(speakers.isForwarded(userId));
+			}
+
+			participant.setNameTiles(nameTiles);
+			updateTopology();
 			sendInformation(participant, "compositeInfo");
-			this.hubPort = new HubPort.Builder(this.composite).build();
+			logCounts();
 
 		} catch (Exception e) {
-			log.info("ROOM {}: adding participant {} failed: {}", name, userId, e);
+			joinFailed(userId, participant, e, joined);
+			return;
 		}
-		return participant;
+
+		tell(joined, participant);
 	}
 
 	/**
-	 * Add to a set of participant a Participant
-	 * 
-	 * @param participant
-	 *            - instance of Participant
+	 * Leave the room as before a join which failed, whatever the step which
+	 * failed
 	 */
-	public void add(Participant participant) {
-		if (participant != null)
-			participants.put(participant.getId(), participant);
+	private void joinFailed(String userId, Participant participant, Throwable cause,
+			Continuation<Participant> joined) {
+		log.info("ROOM {}: adding participant {} failed: {}", name, userId, cause);
+
+		if (participant != null && discard(participant))
+			updateTopology();
+
+		if (cascade != null && getParticipant(userId) == null)
+			cascade.release(userId);
+
+		if (speakers != null && getParticipant(userId) == null)
+			speakers.remove(userId);
+
+		// The mix of the viewers goes with the last of them
+		try {
+			releaseViewerSource();
+		} catch (Exception e) {
+			log.debug("ROOM {}: could not release the mix of the viewers", name, e);
+		}
+
+		tell(joined, null);
+	}
+
+	private void tell(Continuation<Participant> joined, Participant participant) {
+		try {
+			joined.onSuccess(participant);
+		} catch (Exception e) {
+			log.warn("ROOM {}: could not hand over participant {}", name,
+					(participant != null) ? participant.getId() : null, e);
+		}
 	}
 
 	/**
-	 * Allows a participant to leave a room
+	 * Let a web user watch the room. It receives the mix shared by the
+	 * viewers, takes no port in the Composite and is not in the roster.
 	 * 
-	 * @param user
-	 *            - The participant
-	 * @throws IOException
-	 *             - on error leaving the room
+	 * @param userId
+	 *            - identifier of the user
+	 * @param session
+	 *            - conversation between two web socket endpoints
+	 * @param joined
+	 *            - told on the loop the viewer once its media is created,
+	 *            null if the room has no place for it or if its media could
+	 *            not be created
 	 */
-	public void leave(Participant user) throws IOException {
+	public void joinAsViewer(final String userId, final WebSocketSession session,
+			final Continuation<Participant> joined) {
+		assert inEventLoop();
+
+		if (maxViewers > 0 && getViewerCount() + joiningViewers >= maxViewers) {
+			log.info("ROOM {}: adding viewer {}", name, userId);
+			refuse(session, "viewer");
+			tell(joined, null);
+			return;
+		}
 
-		log.debug("PARTICIPANT {}: Leaving room {}", user.getName(), this.name);
-		this.removeParticipant(user);
+		joiningViewers++;
 
-		if (user.equals(screensharer)) {
-			this.screensharer = null;
+		// Connected to the mix once it is built
+		if (viewerSourceWaiting != null) {
+			viewerSourceWaiting.add(new Runnable() {
+
+				@Override
+				public void run() {
+					joiningViewers--;
+					joinAsViewer(userId, session, joined);
+				}
+			});
+
+			return;
+		}
+
+		log.info("ROOM {}: adding viewer {}", name, userId);
+		WebUser viewer = null;
+		final boolean building = viewerSource == null;
+
+		try {
+			Transaction tx = compositePipeline.beginTransaction();
+
+			if (building) {
+				viewerPort = new HubPort.Builder(composite).build(tx);
+				viewerSource = new PassThrough.Builder(compositePipeline).build(tx);
+				viewerPort.connect(tx, viewerSource);
+				viewerSourceWaiting = new ArrayList<>();
+			}
+
+			viewer = new WebUser(userId, this.name, session, compositePipeline, composite, viewerSource, tx);
+			viewer.useTopology(topology, tx);
+
+			// Drawn once the viewer takes part
+			if (nameTiles != null)
+				viewer.showName(nameTiles, tx);
+
+			final WebUser created = viewer;
+
+			tx.commit(loop.onLoop(new Continuation<Void>() {
+
+				@Override
+				public void onSuccess(Void result) throws Exception {
+					joiningViewers--;
+					final List<Runnable> waiting = building ? takeViewersWaiting()
+							: Collections.<Runnable> emptyList();
+
+					joined(created, joined);
+
+					for (Runnable join : waiting) {
+						join.run();
+					}
+				}
+
+				@Override
+				public void onError(Throwable cause) throws Exception {
+					joiningViewers--;
+					viewerFailed(userId, created, building, cause, joined);
+				}
+			}));
+
+		} catch (Exception e) {
+			joiningViewers--;
+			viewerFailed(userId, viewer, building, e, joined);
+		}
+	}
+
+	private void viewerFailed(String userId, WebUser viewer, boolean building, Throwable cause,
+			Continuation<Participant> joined) {
+		log.info("ROOM {}: adding viewer {} failed: {}", name, userId, cause);
+
+		if (viewer != null)
+			discard(viewer);
+
+		// The viewers waiting for the mix try to build it again
+		final List<Runnable> waiting = building ? takeViewersWaiting() : Collections.<Runnable> emptyList();
+
+		try {
+			releaseViewerSource();
+		} catch (Exception e) {
+			log.debug("ROOM {}: could not release the mix of the viewers", name, e);
+		}
+
+		tell(joined, null);
+
+		for (Runnable join : waiting) {
+			join.run();
 		}
-		user.close();
 	}
 
 	/**
-	 * Allows a participant to leave a room via its identifier.
+	 * @return the joins of the viewers which waited for the mix of the
+	 *         viewers to be built
+	 */
+	private List<Runnable> takeViewersWaiting() {
+		final List<Runnable> waiting = viewerSourceWaiting;
+		viewerSourceWaiting = null;
+		return waiting;
+	}
+
+	/**
+	 * Forget a participant whose join failed, and release its media
 	 * 
-	 * @param userId
-	 *            - Identifier of a participant
-	 * @throws IOException
-	 *             - on error leaving the room
+	 * @param participant
+	 *            - the participant
+	 * @return - true if it had been added to the room
 	 */
-	public void leave(String userId) throws IOException {
-		Participant user = this.getParticipantbyId(userId);
-		if (user != null)
-			leave(user);
+	private boolean discard(Participant participant) {
+		boolean added = participants.remove(participant.getId(), participant);
+
+		try {
+			participant.close();
+		} catch (Exception e) {
+			log.debug("ROOM {}: could not release the media of {}", name, participant.getId(), e);
+		}
+
+		return added;
 	}
 
 	/**
-	 * Allows a participant to join a room.
+	 * Let a viewer take part in the room, if there is a place for it. Its
+	 * browser is told to send its media once its new media is created.
 	 * 
-	 * @param newParticipant
-	 *            - Instance of Participant
+	 * @param viewer
+	 *            - the viewer
+	 * @return - true if the viewer is taking part
 	 */
-	public void joinRoom(Participant newParticipant) {
-		final JsonObject newParticipantMsg = new JsonObject();
-		newParticipantMsg.addProperty("id", "newParticipantArrived");
-		newParticipantMsg.addProperty("name", newParticipant.getName());
-		newParticipantMsg.addProperty("userId", newParticipant.getId());
-		broadcast(newParticipantMsg, newParticipant);
+	public boolean promote(final WebUser viewer) {
+		assert inEventLoop();
+
+		if (!viewer.isViewer())
+			return false;
+
+		if (maxParticipants > 0 && getParticipantCount() + joining >= maxParticipants) {
+			refuse(viewer.getSession(), "participant");
+			return false;
+		}
+
+		log.info("ROOM {}: promoting viewer {}", name, viewer.getName());
+
+		viewer.promote(loop.onLoop(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				promoted(viewer);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: could not promote viewer {}: {}", name, viewer.getName(), cause.getMessage());
+			}
+		}));
+
+		releaseViewerSource();
+		updateTopology();
+		logCounts();
+		return true;
+	}
+
+	private void promoted(WebUser viewer) throws IOException {
+		// Left meanwhile
+		if (participants.get(viewer.getId()) != viewer)
+			return;
+
+		if (speakers != null) {
+			speakers.add(viewer.getId(), now());
+			viewer.setVideoMixed(speakers.isForwarded(viewer.getId()));
+		}
+
+		final JsonObject promoted = new JsonObject();
+		promoted.addProperty("id", "promoted");
+		viewer.sendMessage(promoted);
+
+		joinRoom(viewer);
+	}
+
+	private void refuse(WebSocketSession session, String role) {
+		log.info("ROOM {}: no place left for a new {}", name, role);
+
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", "roomFull");
+		message.addProperty("role", role);
+
+		try {
+			session.sendMessage(new TextMessage(message.toString()));
+		} catch (IOException e) {
+			log.debug("ROOM {}: could not tell that the room is full", name, e);
+		}
+	}
+
+	/**
+	 * Release the mix of the viewers once the last one is gone
+	 */
+	private void releaseViewerSource() {
+		if (viewerSource == null || viewerSourceWaiting != null || getViewerCount() > 0)
+			return;
+
+		final PassThrough source = viewerSource;
+		final HubPort port = viewerPort;
+		viewerSource = null;
+		viewerPort = null;
+
+		// The port is released even if the media server refuses the source
+		source.release(releaseLog("mix of the viewers"));
+		port.release(releaseLog("port of the viewers"));
+	}
+
+	private Continuation<Void> releaseLog(final String element) {
+		return new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.trace("ROOM {}: Released {}", name, element);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: Could not release {}", name, element);
+			}
+		};
+	}
+
+	private void logCounts() {
+		log.info("ROOM {}: {} participants, {} viewers", name, getParticipantCount(), getViewerCount());
+	}
+
+	/**
+	 * @param participant
+	 *            - a participant of the room
+	 * @return - true if the participant only watches the room
+	 */
+	private static boolean isViewer(Participant participant) {
+		return participant instanceof WebUser && ((WebUser) participant).isViewer();
+	}
+
+	/**
+	 * @return the number of participants sending their media into the room
+	 */
+	public int getParticipantCount() {
+		int count = 0;
+
+		for (final Participant participant : participants.values()) {
+			if (!isViewer(participant))
+				count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return the number of viewers of the room
+	 */
+	public int getViewerCount() {
+		int count = 0;
+
+		for (final Participant participant : participants.values()) {
+			if (isViewer(participant))
+				count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Limit the size of the room, before anyone joins
+	 * 
+	 * @param maxParticipants
+	 *            - largest number of participants sending media, 0 for no
+	 *            limit
+	 * @param maxViewers
+	 *            - largest number of viewers, 0 for no limit
+	 */
+	public void setLimits(int maxParticipants, int maxViewers) {
+		this.maxParticipants = maxParticipants;
+		this.maxViewers = maxViewers;
+	}
+
+	/**
+	 * Add to a set of participant a Participant
+	 * 
+	 * @param participant
+	 *            - instance of Participant
+	 */
+	public void add(Participant participant) {
+		if (participant != null)
+			participants.put(participant.getId(), participant);
+	}
+
+	/**
+	 * Allows a participant to leave a room
+	 * 
+	 * @param user
+	 *            - The participant
+	 * @throws IOException
+	 *             - on error leaving the room
+	 */
+	public void leave(Participant user) throws IOException {
+		assert inEventLoop();
+
+		log.debug("PARTICIPANT {}: Leaving room {}", user.getName(), this.name);
+		this.removeParticipant(user);
+
+		if (user.equals(screensharer)) {
+			this.screensharer = null;
+			schedulePresentationRelease();
+		} else if (presentationRelays != null) {
+			presentationRelays.detach(user.getId());
+		}
+		user.close();
+
+		if (cascade != null)
+			cascade.release(user.getId());
+
+		for (final Participant participant : participants.values()) {
+			if (participant instanceof WebUser)
+				((WebUser) participant).unsubscribe(user.getId());
+		}
+
+		// The place of its video goes to another speaker
+		if (speakers != null) {
+			speakers.remove(user.getId());
+			mixForwarded();
+		}
+
+		releaseViewerSource();
+		updateTopology();
+		logCounts();
+	}
+
+	/**
+	 * Allows a participant to leave a room via its identifier.
+	 * 
+	 * @param userId
+	 *            - Identifier of a participant
+	 * @throws IOException
+	 *             - on error leaving the room
+	 */
+	public void leave(String userId) throws IOException {
+		Participant user = this.getParticipantbyId(userId);
+		if (user != null)
+			leave(user);
+	}
+
+	/**
+	 * Allows a participant to join a room.
+	 * 
+	 * @param newParticipant
+	 *            - Instance of Participant
+	 */
+	public void joinRoom(Participant newParticipant) {
+		assert inEventLoop();
+
+		// The viewers are not listed
+		if (isViewer(newParticipant))
+			return;
+
+		synchronized (roster) {
+			final JsonObject delta = roster.add(newParticipant.getId(), newParticipant.getName());
+
+			if (delta != null)
+				broadcast(delta);
+		}
+
+		// The others receive the video of the newcomer straight from it
+		if (topology == Topology.SFU && newParticipant instanceof WebUser) {
+			final JsonObject publisher = new JsonObject();
+			publisher.addProperty("id", "newPublisher");
+			publisher.addProperty("userId", newParticipant.getId());
+			publisher.addProperty("name", newParticipant.getName());
+			broadcast(publisher, newParticipant);
+		}
+	}
+
+	/**
+	 * Change the name of a participant and notify every members of this room.
+	 * 
+	 * @param participant
+	 *            - Instance of Participant
+	 * @param name
+	 *            - the new name
+	 */
+	public void renameParticipant(Participant participant, String name) {
+		assert inEventLoop();
+		participant.setName(name);
+
+		synchronized (roster) {
+			final JsonObject delta = roster.rename(participant.getId(), name);
+
+			if (delta != null)
+				broadcast(delta);
+		}
+	}
+
+	/**
+	 * Send the whole roster to a participant who missed a rosterDelta
+	 * 
+	 * @param participant
+	 *            - Instance of Participant
+	 * @throws IOException
+	 */
+	public void sendRoster(Participant participant) throws IOException {
+		synchronized (roster) {
+			participant.sendMessage(roster.snapshotMessage());
+		}
+	}
+
+	/**
+	 * Send a Json message to a the participants of a room
+	 * 
+	 * @param message
+	 *            - Instance of JsonObject
+	 * @param exception
+	 *            - ???
+	 */
+	public void broadcast(JsonObject message, Participant exception) {
+		broadcast(new TextMessage(message.toString()), exception);
+	}
+
+	/**
+	 * Send an encoded message to the participants of a room. The message is
+	 * serialized once and the same frame is queued for every participant.
+	 * 
+	 * @param frame
+	 *            - the encoded message
+	 * @param exception
+	 *            - participant who does not receive the message, can be null
+	 */
+	public void broadcast(TextMessage frame, Participant exception) {
+
+		for (final Participant participant : this.getParticipants()) {
+
+			if ((participant.equals(exception)) || !(participant instanceof WebUser))
+				continue;
+
+			try {
+				participant.sendMessage(frame);
+			} catch (final IOException e) {
+				log.debug("ROOM {}: participant {} could not be notified", name, participant.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Send a Json message to all the participants of a room
+	 * 
+	 * @param message
+	 *            - Instance of JsonObject
+	 */
+	public void broadcast(JsonObject message) {
+		broadcast(message, null);
+	}
+
+	/**
+	 * Remove a participant of the room and notify every members of this room.
+	 * 
+	 * @param participant
+	 *            - Instance of Participant
+	 * @throws IOException
+	 *             - if the participant does not exist
+	 */
+	public void removeParticipant(Participant participant) throws IOException {
+		assert inEventLoop();
+		participants.remove(participant.getId());
+
+		boolean isScreensharer = (screensharer != null && participant.equals(screensharer));
+
+		log.debug("ROOM {}: notifying all users that {} is leaving the room", this.name, participant.getName());
+
+		if (isScreensharer) {
+			for (final Participant p : participants.values()) {
+				if (p instanceof WebUser)
+					((WebUser) p).cancelPresentation();
+			}
+
+			closePresentationRelays();
+		}
+
+		synchronized (roster) {
+			final JsonObject delta = roster.remove(participant.getId());
+
+			if (delta != null) {
+				delta.addProperty("isScreensharer", isScreensharer);
+				broadcast(delta);
+			}
+		}
+	}
+
+	/**
+	 * close the channel of video communication
+	 * 
+	 * 
+	 * @throws IOException
+	 *             - if there is no Participant
+	 */
+	public void cancelPresentation() throws IOException {
+		assert inEventLoop();
+		if (screensharer != null) {
+			final JsonObject cancelPresentationMsg = new JsonObject();
+			cancelPresentationMsg.addProperty("id", "cancelPresentation");
+			cancelPresentationMsg.addProperty("userId", screensharer.getId());
+			final TextMessage cancelPresentationFrame = new TextMessage(cancelPresentationMsg.toString());
+
+			for (final Participant participant : participants.values()) {
+				if (participant instanceof WebUser) {
+					final WebUser webParticipant = (WebUser) participant;
+					webParticipant.cancelPresentation();
+					webParticipant.sendMessage(cancelPresentationFrame);
+				}
+			}
+			screensharer = null;
+			closePresentationRelays();
+			schedulePresentationRelease();
+		}
+	}
+
+	/**
+	 * send the names of all participants in the room exept the one who send it
+	 * to an over user.
+	 * 
+	 * @param participant
+	 *            - Instance of Participant
+	 * @param id
+	 *            id of the one who received the information
+	 * @throws IOException
+	 *             - if the participant does not exist
+	 */
+	public void sendInformation(Participant user, String id) throws IOException {
+
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", id);
+		message.addProperty("existingScreensharer", (screensharer != null));
+
+		if (line != null)
+			message.addProperty("lineExtension", line.getExtension());
+
+		if (screensharer != null) {
+			message.addProperty("presenterId", screensharer.getId());
+			message.addProperty("screensharer", screensharer.getName());
+		}
+
+		message.addProperty("topology", topology.getName());
+		message.addProperty("viewer", isViewer(user));
+		message.addProperty("recording", recorder != null && recorder.isRecording());
+		message.addProperty("broadcasting", broadcast != null && broadcast.isBroadcasting());
+
+		if (topology == Topology.SFU)
+			message.add("publishers", getPublishers(user));
+
+		synchronized (roster) {
+			final JsonArray participantsArray = roster.getNames(user.getId());
+			message.add("data", participantsArray);
+			message.addProperty("rosterVersion", roster.getVersion());
+
+			log.debug("PARTICIPANT {}: sending a list of {} participants", user.getName(), participantsArray.size());
+
+			user.sendMessage(message);
+		}
+	}
+
+	/**
+	 * @return a collection with all the participants in the room
+	 */
+	public Collection<Participant> getParticipants() {
+		return participants.values();
+	}
+
+	/**
+	 * @return all the information about the id
+	 */
+	public Participant getParticipant(String id) {
+		return participants.get(id);
+	}
+
+	@Override
+	public void close() {
+		assert inEventLoop();
+
+		// The media still being built is released when it comes
+		closing = true;
+
+		for (final Participant user : participants.values()) {
+			try {
+				user.close();
+			} catch (IOException e) {
+				log.debug("ROOM {}: Could not invoke close on participant {}", this.name, user.getName(), e);
+			}
+		}
+
+		participants.clear();
+
+		if (speakersSampling != null)
+			speakersSampling.cancel(false);
+
+		if (mediaChecks != null)
+			mediaChecks.cancel(false);
+
+		if (recordingTicks != null)
+			recordingTicks.cancel(false);
+
+		if (recorder != null)
+			recorder.stop(System.currentTimeMillis());
+
+		if (broadcastTicks != null)
+			broadcastTicks.cancel(false);
+
+		if (broadcast != null)
+			broadcast.stop(System.currentTimeMillis());
+
+		if (presentationRelease != null)
+			presentationRelease.cancel(false);
+
+		if (cascade != null)
+			cascade.close();
+
+		compositePipeline.release(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.trace("ROOM {}: Released Composite Pipeline", Room.this.name);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("PARTICIPANT {}: Could not release Composite Pipeline", Room.this.name);
+			}
+		});
+
+		closePresentationRelays();
+		releasePresentationPipeline();
+		log.debug("Room {} closed", this.name);
+	}
+
+	/**
+	 * Let the room grow past one Composite: the participants are spread over
+	 * shards of the given capacity, the root shard being the room's Composite
+	 * 
+	 * @param capacity
+	 *            - number of participants in a shard
+	 * @param factory
+	 *            - builder of the shards
+	 */
+	public void enableCascade(int capacity, ShardFactory factory) {
+		this.cascade = new Cascade(new Shard(compositePipeline, composite, null), capacity, factory, loop);
+	}
+
+	/**
+	 * Keep the presentation pipeline for a while once the presentation has
+	 * stopped, so that a presenter starting again does not wait for a new
+	 * pipeline
+	 * 
+	 * @param graceMillis
+	 *            - time the pipeline is kept, 0 to release it right away
+	 * @param fanout
+	 *            - number of viewers and of relays an element of the
+	 *            presentation feeds, 0 to feed every viewer from the
+	 *            presenter
+	 * @param timer
+	 *            - executor releasing the pipeline once the time is up
+	 */
+	public void configurePresentation(long graceMillis, int fanout, ScheduledExecutorService timer) {
+		this.presentationGrace = graceMillis;
+		this.presentationFanout = fanout;
+		this.presentationTimer = timer;
+	}
+
+	/**
+	 * Connect a viewer to the screen of the presenter, through the relays
+	 * when the room has some
+	 * 
+	 * @param presenter
+	 *            - the screensharer
+	 * @param viewerId
+	 *            - identifier of the viewer
+	 * @param sink
+	 *            - the endpoint sending the presentation to the viewer
+	 */
+	public void connectToPresentation(final WebUser presenter, final String viewerId, final MediaElement sink) {
+		if (presentationFanout <= 0) {
+			presenter.getSharingMedia().connect(sink);
+			return;
+		}
+
+		try {
+			call(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					if (!presenter.equals(screensharer))
+						throw new IllegalStateException("No presentation in room " + name);
+
+					if (presentationRelays == null)
+						presentationRelays = new RelayTree(presenter.getSharingMedia(), presentationFanout,
+								relayFactory);
+
+					RelayTree.Relay relay = presentationRelays.attach(viewerId);
+					relay.getElement().connect(sink);
+					log.trace("ROOM {}: viewer {} of the presentation fed at depth {}", name, viewerId,
+							relay.getDepth());
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			throw Throwables.propagate(e);
+		}
+	}
+
+	private void closePresentationRelays() {
+		if (presentationRelays != null) {
+			presentationRelays.close();
+			presentationRelays = null;
+		}
+	}
+
+	/**
+	 * Build the presentation pipeline if there is none, without waiting for
+	 * the media server, or keep the one waiting to be released. The
+	 * screensharer is told once the pipeline is ready.
+	 */
+	private void acquirePresentationPipeline() throws IOException {
+		if (presentationRelease != null) {
+			presentationRelease.cancel(false);
+			presentationRelease = null;
+		}
+
+		if (presentationPipeline != null) {
+			sendInformation(screensharer, "presentationInfo");
+			return;
+		}
+
+		// Asked for a presenter who stopped before the pipeline was built
+		if (presentationBuilding)
+			return;
+
+		presentationBuilding = true;
+		kurento.createMediaPipeline(loop.onLoop(new Continuation<MediaPipeline>() {
+
+			@Override
+			public void onSuccess(MediaPipeline pipeline) throws Exception {
+				presentationBuilding = false;
+
+				if (closing) {
+					pipeline.release(releaseLog("presentation pipeline"));
+					return;
+				}
+
+				presentationPipeline = pipeline;
+				log.debug("ROOM {}: Presentation Pipeline created", name);
+
+				if (screensharer != null)
+					sendInformation(screensharer, "presentationInfo");
+				else
+					schedulePresentationRelease();
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				presentationBuilding = false;
+				log.warn("ROOM {}: could not create the Presentation Pipeline: {}", name, cause.getMessage());
+
+				if (screensharer != null) {
+					screensharer.isScreensharer(false);
+					cancelPresentation();
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Release the presentation pipeline once the grace period is over, unless
+	 * someone presents again in the meantime
+	 */
+	private void schedulePresentationRelease() {
+		if (presentationPipeline == null || presentationRelease != null)
+			return;
+
+		if (presentationTimer == null || presentationGrace <= 0) {
+			releasePresentationPipeline();
+			return;
+		}
+
+		presentationRelease = presentationTimer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				execute(new Runnable() {
+
+					@Override
+					public void run() {
+						presentationRelease = null;
+
+						if (screensharer == null && !closing)
+							releasePresentationPipeline();
+					}
+				});
+			}
+		}, presentationGrace, TimeUnit.MILLISECONDS);
+	}
+
+	private void releasePresentationPipeline() {
+		final MediaPipeline pipeline = presentationPipeline;
+
+		if (pipeline == null)
+			return;
+
+		presentationPipeline = null;
+		pipeline.release(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.trace("ROOM {}: Released Presentation Pipeline", Room.this.name);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("PARTICIPANT {}: Could not release Presentation Pipeline", Room.this.name);
+			}
+		});
+	}
+
+	/**
+	 * Recover the media of the web users whose media has stopped flowing for
+	 * a while, instead of waiting for their browser to ask for it. The ICE
+	 * checks of the endpoint are given the grace period to bring the media
+	 * back on their own, then ICE is restarted on the same endpoint, and the
+	 * media is only rebuilt if it still does not flow after another grace
+	 * period.
+	 * 
+	 * @param graceMillis
+	 *            - time given to each step of the recovery
+	 * @param timer
+	 *            - executor triggering the checks
+	 */
+	public void enableMediaRecovery(long graceMillis, ScheduledExecutorService timer) {
+		this.mediaRecoveryGrace = graceMillis;
+		this.mediaChecks = timer.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				execute(new Runnable() {
+
+					@Override
+					public void run() {
+						checkMedia();
+					}
+				});
+			}
+		}, MEDIA_CHECK_INTERVAL, MEDIA_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Restart the ICE of the media stalled for longer than the grace period,
+	 * then rebuild the media still stalled, the browser is asked for a new
+	 * offer
+	 */
+	private void checkMedia() {
+		if (closing)
+			return;
+
+		final long now = now();
+
+		for (final Participant participant : participants.values()) {
+			if (!(participant instanceof WebUser))
+				continue;
+
+			final WebUser user = (WebUser) participant;
+			final long stalledSince = user.getStalledSince();
+
+			if (stalledSince < 0 || now - stalledSince < mediaRecoveryGrace)
+				continue;
+
+			final long iceRestartedAt = user.getIceRestartedAt();
+
+			// First on the endpoint the browser is connected to
+			if (iceRestartedAt < stalledSince) {
+				log.info("ROOM {}: media of {} stalled for {} ms, restarting its ICE", name, user.getName(),
+						now - stalledSince);
+				user.restartIce();
+				continue;
+			}
+
+			if (now - iceRestartedAt < mediaRecoveryGrace)
+				continue;
+
+			// Renewed by the browser or by an earlier check not long ago
+			if (!user.tryRenew())
+				continue;
+
+			log.info("ROOM {}: media of {} still stalled {} ms after restarting its ICE, rebuilding it", name,
+					user.getName(), now - iceRestartedAt);
+
+			try {
+				user.renewOutgoingMedia(loop.onLoop(new Continuation<Void>() {
+
+					@Override
+					public void onSuccess(Void result) throws Exception {
+						outgoingMediaRenewed(user);
+
+						final JsonObject message = new JsonObject();
+						message.addProperty("id", "renegotiate");
+						user.sendMessage(message);
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						log.warn("ROOM {}: could not rebuild the media of {}: {}", name, user.getName(),
+								cause.getMessage());
+					}
+				}));
+			} catch (Exception e) {
+				log.warn("ROOM {}: could not rebuild the media of {}", name, user.getName(), e);
+			}
+		}
 	}
 
 	/**
-	 * Send a Json message to a the participants of a room
+	 * Connect the renewed outgoing media of a web user to its subscribers. In
+	 * SFU they receive its video straight from the endpoint which has just
+	 * been replaced.
 	 * 
-	 * @param message
-	 *            - Instance of JsonObject
-	 * @param exception
-	 *            - ???
+	 * @param user
+	 *            - the user whose outgoing media has been renewed
 	 */
-	public void broadcast(JsonObject message, Participant exception) {
+	public void outgoingMediaRenewed(WebUser user) {
+		assert inEventLoop();
 
-		for (final Participant participant : this.getParticipants()) {
+		if (topology != Topology.SFU || participants.get(user.getId()) != user)
+			return;
 
-			if ((participant.equals(exception)) || !(participant instanceof WebUser))
-				continue;
-			
-				try {
-					participant.sendMessage(message);
-				} catch (final IOException e) {
-					log.debug("ROOM {}: participant {} could not be notified", name, participant.getName(), e);
-				}	
+		for (final Participant participant : participants.values()) {
+			if (participant instanceof WebUser && participant != user)
+				((WebUser) participant).resubscribe(user);
 		}
 	}
 
 	/**
-	 * Send a Json message to all the participants of a room
+	 * Only mix the video of the last speakers, to cap the cost of the
+	 * Composite in large rooms. Everyone is still heard.
 	 * 
-	 * @param message
-	 *            - Instance of JsonObject
+	 * @param lastN
+	 *            - number of web users whose video is mixed
+	 * @param timer
+	 *            - timer starting the rounds of sampling on the loop
 	 */
-	public void broadcast(JsonObject message) {
-		broadcast(message, null);
+	public void enableLastN(int lastN, ScheduledExecutorService timer) {
+		this.speakers = new ActiveSpeakers(lastN, SPEAKERS_ENTER, SPEAKERS_DOMINANT);
+		this.speakersSampling = timer.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				execute(new Runnable() {
+
+					@Override
+					public void run() {
+						sampleSpeakers();
+					}
+				});
+			}
+		}, SPEAKERS_INTERVAL, SPEAKERS_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 
 	/**
-	 * Remove a participant of the room and notify every members of this room.
-	 * 
-	 * @param participant
-	 *            - Instance of Participant
-	 * @throws IOException
-	 *             - if the participant does not exist
+	 * Ask the server for the audio received from each web user, without
+	 * waiting for it. The answers come back on the loop and the levels are
+	 * applied once every web user has answered.
 	 */
-	public void removeParticipant(Participant participant) throws IOException {
-		participants.remove(participant.getId());
+	private void sampleSpeakers() {
+		assert inEventLoop();
 
-		boolean isScreensharer = (screensharer != null && participant.equals(screensharer));
+		if (closing)
+			return;
 
-		log.debug("ROOM {}: notifying all users that {} is leaving the room", this.name, participant.getName());
+		final long now = now();
 
-		final JsonObject participantLeftJson = new JsonObject();
-		participantLeftJson.addProperty("id", "participantLeft");
-		participantLeftJson.addProperty("userId", participant.getId());
-		participantLeftJson.addProperty("name", participant.getName());
-		participantLeftJson.addProperty("isScreensharer", isScreensharer);
+		// The server has not answered the previous round yet
+		if (speakersRound != null && now - speakersRound.startedAt < SPEAKERS_INTERVAL * 4)
+			return;
 
-		final JsonArray participantsArray = new JsonArray();
+		final SpeakersRound round = new SpeakersRound(now);
+		speakersRound = round;
+		audioSamples.keySet().retainAll(new HashSet<>(participants.keySet()));
 
-		for (final Participant p : this.getParticipants()) {
-			final JsonElement participantName = new JsonPrimitive(p.getName());
-			participantsArray.add(participantName);
-		}
-		participantLeftJson.add("data", participantsArray);
+		for (final Participant participant : participants.values()) {
+			if (!(participant instanceof WebUser) || isViewer(participant))
+				continue;
 
-		for (final Participant p : participants.values()) {
-			if (p instanceof WebUser) {
-				if (isScreensharer)
-					((WebUser) participant).cancelPresentation();
+			round.pending++;
 
-				p.sendMessage(participantLeftJson);
+			try {
+				((WebUser) participant).getAudioBytesReceived(loop.onLoop(new Continuation<Long>() {
+
+					@Override
+					public void onSuccess(Long bytes) throws Exception {
+						round.sampled(participant.getId(), bytes);
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						log.debug("ROOM {}: no audio stats for {}: {}", name, participant.getName(),
+								cause.getMessage());
+						round.answered();
+					}
+				}));
+			} catch (RuntimeException e) {
+				log.debug("ROOM {}: no audio stats for {}: {}", name, participant.getName(), e.getMessage());
+				round.answered();
 			}
 		}
+
+		// Every request has been sent
+		round.answered();
 	}
 
 	/**
-	 * close the channel of video communication
-	 * 
-	 * 
-	 * @throws IOException
-	 *             - if there is no Participant
+	 * Audio levels of the web users in one round of sampling
 	 */
-	public void cancelPresentation() throws IOException {
-		if (screensharer != null) {
-			final JsonObject cancelPresentationMsg = new JsonObject();
-			cancelPresentationMsg.addProperty("id", "cancelPresentation");
-			cancelPresentationMsg.addProperty("userId", screensharer.getId());
+	private class SpeakersRound {
+		private final long startedAt;
+		private final Map<String, Double> levels = new HashMap<>();
 
-			for (final Participant participant : participants.values()) {
-				if (participant instanceof WebUser) {
-					final WebUser webParticipant = (WebUser) participant;
-					webParticipant.cancelPresentation();
-					webParticipant.sendMessage(cancelPresentationMsg);
-				}
-			}
-			screensharer = null;
+		// Answers still awaited, and the round itself until it is sent
+		private int pending = 1;
+
+		SpeakersRound(long startedAt) {
+			this.startedAt = startedAt;
 		}
-	}
 
-	/**
-	 * send the names of all participants in the room exept the one who send it
-	 * to an over user.
-	 * 
-	 * @param participant
-	 *            - Instance of Participant
-	 * @param id
-	 *            id of the one who received the information
-	 * @throws IOException
-	 *             - if the participant does not exist
-	 */
-	public void sendInformation(Participant user, String id) throws IOException {
+		/**
+		 * Turn the audio received from a web user into a bitrate
+		 */
+		void sampled(String userId, long bytes) {
+			final long[] previous = audioSamples.put(userId, new long[] { bytes, startedAt });
 
-		final JsonArray participantsArray = new JsonArray();
+			// Nothing to compare with, or a renewed endpoint counting again
+			if (previous != null && bytes >= previous[0] && startedAt > previous[1])
+				levels.put(userId, (bytes - previous[0]) * 8000.0 / (startedAt - previous[1]));
 
-		for (final Participant participant : this.getParticipants()) {
-			if (!participant.equals(user)) {
-				final JsonElement participantName = new JsonPrimitive(participant.getName());
-				participantsArray.add(participantName);
-			}
+			answered();
 		}
 
-		final JsonObject message = new JsonObject();
-		message.addProperty("id", id);
-		message.add("data", participantsArray);
-		message.addProperty("existingScreensharer", (screensharer != null));
+		void answered() {
+			if (--pending > 0 || speakersRound != this)
+				return;
 
-		if (line != null)
-			message.addProperty("lineExtension", line.getExtension());
+			speakersRound = null;
 
-		if (screensharer != null) {
-			message.addProperty("presenterId", screensharer.getId());
-			message.addProperty("screensharer", screensharer.getName());
+			if (!closing && !levels.isEmpty())
+				updateSpeakers(levels, startedAt);
+		}
+	}
+
+	private void updateSpeakers(Map<String, Double> levels, long now) {
+		if (closing)
+			return;
+
+		for (Map.Entry<String, Double> level : levels.entrySet()) {
+			speakers.update(level.getKey(), level.getValue(), now);
 		}
 
-		log.debug("PARTICIPANT {}: sending a list of {} participants", user.getName(), participantsArray.size());
+		final boolean dominantChanged = speakers.select(now);
+		mixForwarded();
+
+		if (dominantChanged) {
+			final Participant dominant = participants.get(speakers.getDominant());
+
+			if (dominant == null)
+				return;
+
+			log.debug("ROOM {}: {} is the dominant speaker", name, dominant.getName());
 
-		user.sendMessage(message);
+			final JsonObject message = new JsonObject();
+			message.addProperty("id", "dominantSpeaker");
+			message.addProperty("userId", dominant.getId());
+			message.addProperty("name", dominant.getName());
+			broadcast(message);
+		}
 	}
 
 	/**
-	 * @return a collection with all the participants in the room
+	 * Mix the video of the last speakers only, the users whose video is
+	 * already right are left alone
 	 */
-	public Collection<Participant> getParticipants() {
-		return participants.values();
+	private void mixForwarded() {
+		for (final Participant participant : participants.values()) {
+			if (participant instanceof WebUser && !isViewer(participant))
+				((WebUser) participant).setVideoMixed(speakers.isForwarded(participant.getId()));
+		}
 	}
 
 	/**
-	 * @return all the information about the id
+	 * @return the last speakers of the room, null if every video is mixed
 	 */
-	public Participant getParticipant(String id) {
-		return participants.get(id);
+	public ActiveSpeakers getSpeakers() {
+		return speakers;
 	}
 
-	@Override
-	public void close() {
-		for (final Participant user : participants.values()) {
-			try {
-				user.close();
-			} catch (IOException e) {
-				log.debug("ROOM {}: Could not invoke close on participant {}", this.name, user.getName(), e);
-			}
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	/**
+	 * Choose how the video reaches the participants, before anyone joins
+	 * 
+	 * @param topology
+	 *            - the topology of the room
+	 * @param sfuMaxParticipants
+	 *            - largest room in SFU, the topology then follows the size of
+	 *            the room; 0 to keep the topology
+	 */
+	public void configureTopology(Topology topology, int sfuMaxParticipants) {
+		this.topology = topology;
+		this.sfuMaxParticipants = sfuMaxParticipants;
+	}
+
+	/**
+	 * Switch the topology of the room: every web user is rewired in one
+	 * transaction and the browsers are told to change the way they receive
+	 * the video
+	 * 
+	 * @param topology
+	 *            - the new topology
+	 */
+	public void setTopology(final Topology topology) {
+		assert inEventLoop();
+
+		if (this.topology == topology)
+			return;
+
+		if (topology == Topology.SFU && cascade != null && cascade.getShards().size() > 1) {
+			log.debug("ROOM {}: spread over several shards, staying in MCU", name);
+			return;
 		}
 
-		participants.clear();
+		log.info("ROOM {}: switching from {} to {} with {} participants", name, this.topology, topology,
+				participants.size());
 
-		compositePipeline.release(new Continuation<Void>() {
+		this.topology = topology;
+		Transaction tx = compositePipeline.beginTransaction();
+
+		for (final Participant participant : participants.values()) {
+			if (participant instanceof WebUser)
+				((WebUser) participant).useTopology(topology, tx);
+		}
+
+		// The browsers are told once the media is rewired, unless the room
+		// has switched back meanwhile
+		tx.commit(loop.onLoop(new Continuation<Void>() {
 
 			@Override
 			public void onSuccess(Void result) throws Exception {
-				log.trace("ROOM {}: Released Composite Pipeline", Room.this.name);
+				if (Room.this.topology == topology)
+					topologyChanged();
 			}
 
 			@Override
 			public void onError(Throwable cause) throws Exception {
-				log.warn("PARTICIPANT {}: Could not release Composite Pipeline", Room.this.name);
+				log.warn("ROOM {}: could not rewire the media for {}: {}", name, topology, cause.getMessage());
+
+				if (Room.this.topology == topology)
+					topologyChanged();
 			}
-		});
+		}));
+	}
 
-		presentationPipeline.release(new Continuation<Void>() {
+	private void topologyChanged() {
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", "topologyChanged");
+		message.addProperty("topology", topology.getName());
 
-			@Override
-			public void onSuccess(Void result) throws Exception {
-				log.trace("ROOM {}: Released Presentation Pipeline", Room.this.name);
-			}
+		if (topology == Topology.SFU)
+			message.add("publishers", getPublishers(null));
 
-			@Override
-			public void onError(Throwable cause) throws Exception {
-				log.warn("PARTICIPANT {}: Could not release Presentation Pipeline", Room.this.name);
-			}
-		});
+		broadcast(message);
+	}
 
-		log.debug("Room {} closed", this.name);
+	/**
+	 * Follow the size of the room. A room leaves SFU when it grows past the
+	 * limit and only comes back once it is below it, so that a participant
+	 * coming and going at the limit does not switch the room every time.
+	 */
+	private void updateTopology() {
+		if (sfuMaxParticipants <= 0)
+			return;
+
+		int users = 0;
+
+		for (final Participant participant : participants.values()) {
+			if (participant instanceof WebUser && !isViewer(participant))
+				users++;
+		}
+
+		if (topology == Topology.SFU && users > sfuMaxParticipants)
+			setTopology(Topology.MCU);
+		else if (topology == Topology.MCU && users < sfuMaxParticipants)
+			setTopology(Topology.SFU);
+	}
+
+	/**
+	 * @return the topology of the room
+	 */
+	public Topology getTopology() {
+		return topology;
+	}
+
+	/**
+	 * @param exception
+	 *            - user left out of the list, can be null
+	 * @return the web users whose video can be received, with their names
+	 */
+	private JsonArray getPublishers(Participant exception) {
+		final JsonArray publishers = new JsonArray();
+
+		for (final Participant participant : participants.values()) {
+			if (!(participant instanceof WebUser) || isViewer(participant) || participant.equals(exception))
+				continue;
+
+			final JsonObject publisher = new JsonObject();
+			publisher.addProperty("userId", participant.getId());
+			publisher.addProperty("name", participant.getName());
+			publishers.add(publisher);
+		}
+
+		return publishers;
+	}
+
+	/**
+	 * @return the shards of the room, null if it is not cascaded
+	 */
+	public Cascade getCascade() {
+		return cascade;
 	}
 
 	/**
@@ -407,20 +1764,35 @@ public class Room implements Closeable {
 	}
 
 	/**
-	 * @return the presentation pipeline
+	 * @return the client of the KMS holding the media of the room
+	 */
+	public KurentoClient getKurentoClient() {
+		return kurento;
+	}
+
+	/**
+	 * @return the presentation pipeline, null while nobody presents
 	 */
 	public MediaPipeline getPresentationPipeline() {
 		return presentationPipeline;
 	}
 
 	/**
-	 * change the one who share his screen
+	 * change the one who share his screen. The new screensharer is sent
+	 * presentationInfo once the presentation pipeline is ready.
 	 * 
 	 * @param user
 	 *            the new screensharer
+	 * @throws IOException
+	 *             - if the screensharer cannot be told
 	 */
-	public void setScreensharer(WebUser user) {
+	public void setScreensharer(WebUser user) throws IOException {
+		assert inEventLoop();
+
 		this.screensharer = user;
+
+		if (user != null)
+			acquirePresentationPipeline();
 	}
 
 	/**
@@ -435,7 +1807,7 @@ public class Room implements Closeable {
 	 *            new identification number to the room
 	 */
 	public long setCSeq(long cseq) {
-		this.cseq = cseq;
+		this.cseq.set(cseq);
 		return cseq;
 	}
 
@@ -443,7 +1815,14 @@ public class Room implements Closeable {
 	 * @return give an identification number to the room
 	 */
 	public long getCSeq() {
-		return this.cseq;
+		return this.cseq.get();
+	}
+
+	/**
+	 * @return the next identification number of the room
+	 */
+	public long nextCSeq() {
+		return this.cseq.incrementAndGet();
 	}
 
 	public Line getLine() {
@@ -458,6 +1837,7 @@ public class Room implements Closeable {
 	}
 
 	public void setLine(Line line) {
+		assert inEventLoop();
 		this.line = line;
 	}
 
@@ -472,6 +1852,7 @@ public class Room implements Closeable {
 	 * indicate that the room will be close in a few time
 	 */
 	public void setClosing() {
+		assert inEventLoop();
 		this.closing = true;
 	}
 
@@ -489,21 +1870,213 @@ public class Room implements Closeable {
 
 	/**
 	 * start the record and save it on a web page
+	 * 
+	 * @param userId
+	 *            - identifier of the user starting the record
+	 * @param started
+	 *            - told on the loop whether the room is now recorded, false
+	 *            if it already was
 	 */
-	public void record() {
-		log.info("Start Recording");
-		this.recorderEndpoint = new RecorderEndpoint.Builder(getCompositePipeline(),
-				"file:///record/" + getName() + ".mp4").withMediaProfile(MediaProfileSpecType.MP4).build();
-		this.hubPort.connect(this.recorderEndpoint);
-		this.recorderEndpoint.record();
+	public void record(String userId, final Continuation<Boolean> started) {
+		assert inEventLoop();
+
+		recorder.start(userId, System.currentTimeMillis(), new Continuation<Boolean>() {
+
+			@Override
+			public void onSuccess(Boolean recorded) throws Exception {
+				if (recorded && recordingTicks == null) {
+					recordingTicks = scheduleTicks(new Runnable() {
+
+						@Override
+						public void run() {
+							recorder.tick(System.currentTimeMillis());
+						}
+					});
+				}
 
+				started.onSuccess(recorded);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				started.onError(cause);
+			}
+		});
 	}
 
 	/**
 	 * stop the record
+	 * 
+	 * @return - false if the room was not recorded
+	 */
+	public boolean stopRecord() {
+		assert inEventLoop();
+
+		if (recordingTicks != null) {
+			recordingTicks.cancel(false);
+			recordingTicks = null;
+		}
+
+		return recorder.stop(System.currentTimeMillis());
+	}
+
+	/**
+	 * Cut the recordings of the room into segments
+	 * 
+	 * @param directory
+	 *            - directory of the segments and of their manifests
+	 * @param segmentMillis
+	 *            - length of a segment, 0 for no limit
+	 * @param segmentBytes
+	 *            - size of a segment, 0 for no limit
+	 * @param timer
+	 *            - executor telling the recorder the time
+	 */
+	public void configureRecording(String directory, long segmentMillis, long segmentBytes,
+			ScheduledExecutorService timer) {
+		recorder.configure(directory, segmentMillis, segmentBytes);
+		this.recordingTimer = timer;
+	}
+
+	/**
+	 * @return the recorder of the room
+	 */
+	public RoomRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Broadcast the mix of the room over HTTP
+	 * 
+	 * @param started
+	 *            - told on the loop whether the room is now broadcast, false
+	 *            if it already was
+	 */
+	public void broadcast(final Continuation<Boolean> started) {
+		assert inEventLoop();
+
+		broadcast.start(System.currentTimeMillis(), new Continuation<Boolean>() {
+
+			@Override
+			public void onSuccess(Boolean broadcasting) throws Exception {
+				if (broadcasting && broadcastTicks == null) {
+					broadcastTicks = scheduleTicks(new Runnable() {
+
+						@Override
+						public void run() {
+							broadcast.tick(System.currentTimeMillis());
+						}
+					});
+				}
+
+				started.onSuccess(broadcasting);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				started.onError(cause);
+			}
+		});
+	}
+
+	/**
+	 * Stop the broadcast, its playlist is ended
+	 * 
+	 * @return - false if the room was not broadcast
+	 */
+	public boolean stopBroadcast() {
+		assert inEventLoop();
+
+		if (broadcastTicks != null) {
+			broadcastTicks.cancel(false);
+			broadcastTicks = null;
+		}
+
+		return broadcast.stop(System.currentTimeMillis());
+	}
+
+	/**
+	 * Cut the broadcasts of the room into segments
+	 * 
+	 * @param directory
+	 *            - directory of the segments and of the playlist
+	 * @param segmentMillis
+	 *            - length of a segment
+	 * @param window
+	 *            - number of segments listed in the playlist
 	 */
-	public void stopRecord() {
-		this.recorderEndpoint.stop();
-		this.recorderEndpoint.release();
+	public void configureBroadcast(String directory, long segmentMillis, int window) {
+		broadcast.configure(directory, segmentMillis, window);
+	}
+
+	/**
+	 * @return the broadcast of the room
+	 */
+	public RoomBroadcast getBroadcast() {
+		return broadcast;
+	}
+
+	/**
+	 * Set where the media servers get the tiles of the names
+	 * 
+	 * @param tilesUrl
+	 *            - URL of the name tiles of the agent
+	 * @param shown
+	 *            - true to draw the names from the start
+	 */
+	public void configureNameOverlay(String tilesUrl, boolean shown) {
+		this.nameTilesUrl = tilesUrl;
+		this.nameTiles = shown ? tilesUrl : null;
+	}
+
+	/**
+	 * Draw the names of the participants over their video in the mix, or
+	 * stop drawing them. Each name costs a filter on the media server.
+	 * 
+	 * @param shown
+	 *            - true to draw the names
+	 * @return - false if nothing changed
+	 */
+	public boolean showNames(boolean shown) {
+		assert inEventLoop();
+
+		String tiles = shown ? nameTilesUrl : null;
+
+		if (tiles == null ? nameTiles == null : tiles.equals(nameTiles))
+			return false;
+
+		nameTiles = tiles;
+		log.info("ROOM {}: names {} the mix", name, shown ? "drawn over" : "no longer drawn over");
+
+		for (final Participant participant : participants.values()) {
+			participant.setNameTiles(tiles);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if the names of the participants are drawn over their
+	 *         video in the mix
+	 */
+	public boolean isShowingNames() {
+		return nameTiles != null;
+	}
+
+	/**
+	 * Run a task on the loop of the room every RECORDING_TICK, null without a
+	 * timer
+	 */
+	private ScheduledFuture<?> scheduleTicks(final Runnable task) {
+		if (recordingTimer == null)
+			return null;
+
+		return recordingTimer.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				execute(task);
+			}
+		}, RECORDING_TICK, RECORDING_TICK, TimeUnit.MILLISECONDS);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,561 @@
+package cz.cvut.fel.webrtc.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.regex.Pattern;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaProfileSpecType;
+import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Live broadcast of the mix of a room, for audiences too large to each get a
+ * WebRtcEndpoint. The mix is recorded into short segments and a live playlist
+ * in JSON lists the last ones; the agent serves both over HTTP, so a viewer
+ * costs file reads instead of an encoder on the media server.
+ *
+ * The segments are whole MP4 files, the only kind the recorders of the media
+ * server write besides WebM. HLS players do not take them, they need MPEG-TS
+ * or fragmented MP4: the broadcast page of the web client plays the segments
+ * one after the other instead.
+ *
+ * A segment is only listed once its recorder has stopped, an MP4 file being
+ * unreadable before. A segment leaving the playlist is deleted a whole window
+ * later, so that viewers holding an older playlist can still fetch it. The
+ * last segments of a broadcast stay until the next broadcast of the room.
+ * Only used from the loop of its room; the media server is called
+ * asynchronously and its answers are handled back on the loop.
+ *
+ */
+public class RoomBroadcast {
+
+	private static final Logger log = LoggerFactory.getLogger(RoomBroadcast.class);
+
+	/**
+	 * Name of the playlist of a room, in the URL of the broadcast
+	 */
+	public static final String PLAYLIST = "live.json";
+
+	private static class Segment {
+		private final String broadcastId;
+		private final String file;
+		private final int sequence;
+		private final long startedAt;
+		private RecorderEndpoint recorder;
+		private long duration;
+
+		private Segment(String broadcastId, int sequence, long startedAt) {
+			this.broadcastId = broadcastId;
+			this.file = String.format("%s-%05d.mp4", broadcastId, sequence);
+			this.sequence = sequence;
+			this.startedAt = startedAt;
+		}
+	}
+
+	private final String roomName;
+	private final MediaPipeline pipeline;
+	private final Hub hub;
+	private final EventLoop loop;
+
+	private String directory = "/record/live";
+	private long segmentMillis = 4000;
+	private int window = 6;
+
+	// Null until the first segment records
+	private HubPort port;
+
+	// Broadcast started or starting, null while the room is not broadcast
+	private String broadcastId;
+
+	// Broadcast whose segments are in the playlist
+	private String playlistId;
+
+	private Segment current;
+	private boolean rotating;
+	private int sequence;
+	private long stoppedAt;
+
+	// Segments whose recorder is stopping
+	private int finishing;
+
+	// Finished segments listed in the playlist, the oldest first
+	private final Deque<Segment> listed = new ArrayDeque<>();
+
+	// Segments out of the playlist, kept for the viewers late to read it
+	private final Deque<Segment> retired = new ArrayDeque<>();
+
+	/**
+	 * Constructor of RoomBroadcast
+	 *
+	 * @param roomName
+	 *            - name of the room
+	 * @param pipeline
+	 *            - pipeline of the Composite
+	 * @param hub
+	 *            - the Composite mixing the room
+	 * @param loop
+	 *            - the loop of the room
+	 */
+	public RoomBroadcast(String roomName, MediaPipeline pipeline, Hub hub, EventLoop loop) {
+		this.roomName = roomName;
+		this.pipeline = pipeline;
+		this.hub = hub;
+		this.loop = loop;
+	}
+
+	/**
+	 * Set where and how the next broadcasts are written
+	 *
+	 * @param directory
+	 *            - directory of the segments and of the playlists, seen alike
+	 *            by the media server and by the agent
+	 * @param segmentMillis
+	 *            - length of a segment
+	 * @param window
+	 *            - number of segments listed in the playlist
+	 */
+	public void configure(String directory, long segmentMillis, int window) {
+		this.directory = directory.endsWith("/") ? directory.substring(0, directory.length() - 1) : directory;
+		this.segmentMillis = segmentMillis;
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * Broadcast the mix of the room. The room is broadcast once its first
+	 * segment records; if it cannot, the port is given back.
+	 *
+	 * @param now
+	 *            - current time in milliseconds since the epoch
+	 * @param started
+	 *            - told on the loop whether the room is now broadcast, false
+	 *            if it already was or if it was stopped meanwhile
+	 */
+	public void start(long now, final Continuation<Boolean> started) {
+		if (broadcastId != null) {
+			tell(started, false);
+			return;
+		}
+
+		// What is left of the previous broadcast is no longer listed
+		deleteAll(listed);
+		deleteAll(retired);
+
+		final String broadcastId = RoomRecorder.recordingId(roomName, now);
+		this.broadcastId = broadcastId;
+		this.playlistId = broadcastId;
+		this.rotating = false;
+		this.sequence = 0;
+		this.finishing = 0;
+
+		// An empty playlist first, which also makes the directory
+		writePlaylist(false);
+
+		final Segment first = new Segment(broadcastId, 1, now);
+		final HubPort port;
+		Transaction tx;
+
+		// The port and the first segment are created in one exchange
+		try {
+			tx = pipeline.beginTransaction();
+			port = newPort(tx);
+			newSegment(first, port, tx);
+		} catch (RuntimeException e) {
+			failed(broadcastId, e);
+			fail(started, e);
+			return;
+		}
+
+		record(first, port, tx, new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				// Stopped meanwhile
+				if (!broadcastId.equals(RoomBroadcast.this.broadcastId)) {
+					finish(first, stoppedAt);
+					port.release(releaseLog("broadcast port"));
+					started.onSuccess(false);
+					return;
+				}
+
+				RoomBroadcast.this.port = port;
+				current = first;
+				sequence = first.sequence;
+				log.info("ROOM {}: broadcast {} started", roomName, broadcastId);
+				started.onSuccess(true);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				failed(broadcastId, cause);
+				started.onError(cause);
+			}
+		});
+	}
+
+	private void failed(String broadcastId, Throwable cause) {
+		log.warn("ROOM {}: broadcast {} could not start: {}", roomName, broadcastId, cause.getMessage());
+
+		if (broadcastId.equals(this.broadcastId)) {
+			this.broadcastId = null;
+			writePlaylist(true);
+		}
+	}
+
+	/**
+	 * Start a new segment once the current one is long enough, and list the
+	 * current one in the playlist once its recorder has stopped
+	 *
+	 * @param now
+	 *            - current time in milliseconds since the epoch
+	 */
+	public void tick(final long now) {
+		if (port == null || rotating || now - current.startedAt < segmentMillis)
+			return;
+
+		// Numbered once started, the playlist needs consecutive numbers
+		final String broadcastId = this.broadcastId;
+		final Segment next = new Segment(broadcastId, sequence + 1, now);
+		Transaction tx;
+
+		try {
+			tx = pipeline.beginTransaction();
+			newSegment(next, port, tx);
+		} catch (RuntimeException e) {
+			log.warn("ROOM {}: next segment of {} could not start: {}", roomName, broadcastId, e.getMessage());
+			return;
+		}
+
+		rotating = true;
+
+		// The next recorder starts before the current one stops, and the
+		// current one goes on if the next one cannot start
+		record(next, null, tx, new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				// The current segment has been stopped meanwhile
+				if (!broadcastId.equals(RoomBroadcast.this.broadcastId)) {
+					finish(next, stoppedAt);
+					return;
+				}
+
+				rotating = false;
+				Segment previous = current;
+				current = next;
+				sequence = next.sequence;
+				finish(previous, now);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: next segment of {} could not start: {}", roomName, broadcastId,
+						cause.getMessage());
+
+				if (broadcastId.equals(RoomBroadcast.this.broadcastId))
+					rotating = false;
+			}
+		});
+	}
+
+	/**
+	 * Stop the broadcast. Its last segment is listed and the playlist ended
+	 * once the recorders have written the end of their segment.
+	 *
+	 * @param now
+	 *            - current time in milliseconds since the epoch
+	 * @return - false if the room was not broadcast
+	 */
+	public boolean stop(long now) {
+		if (broadcastId == null)
+			return false;
+
+		log.info("ROOM {}: broadcast {} stopped after {} segments", roomName, broadcastId, sequence);
+
+		// Still starting, the first segment is stopped once it records
+		final HubPort port = this.port;
+		final Segment last = current;
+		this.port = null;
+		this.current = null;
+		this.broadcastId = null;
+		this.stoppedAt = now;
+
+		if (port != null) {
+			finish(last, now);
+			port.release(releaseLog("broadcast port"));
+		}
+
+		return true;
+	}
+
+	private void newSegment(Segment segment, HubPort port, Transaction tx) {
+		segment.recorder = newRecorder("file://" + directory + "/" + segment.file, tx);
+		port.connect(tx, segment.recorder);
+	}
+
+	/**
+	 * Create the media of a segment and make its recorder record. The
+	 * continuation runs on the loop; if the recorder cannot record, it is
+	 * released, with the port created alongside it if any.
+	 */
+	private void record(final Segment segment, final HubPort port, Transaction tx,
+			final Continuation<Void> recorded) {
+		final Continuation<Void> onLoop = loop.onLoop(recorded);
+
+		tx.commit(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				segment.recorder.record(new Continuation<Void>() {
+
+					@Override
+					public void onSuccess(Void result) throws Exception {
+						onLoop.onSuccess(null);
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						segment.recorder.release(releaseLog("recorder of " + segment.file));
+
+						if (port != null)
+							port.release(releaseLog("broadcast port"));
+
+						onLoop.onError(cause);
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				onLoop.onError(cause);
+			}
+		});
+	}
+
+	/**
+	 * Stop the recorder of a segment, the segment is listed once it is
+	 * written
+	 */
+	private void finish(final Segment segment, long now) {
+		segment.duration = now - segment.startedAt;
+
+		if (segment.broadcastId.equals(playlistId))
+			finishing++;
+
+		segment.recorder.stop(loop.onLoop(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				finished(segment, true);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: recorder of {} could not stop: {}", roomName, segment.file, cause.getMessage());
+				finished(segment, false);
+			}
+		}));
+	}
+
+	private void finished(Segment segment, boolean written) {
+		segment.recorder.release(releaseLog("recorder of " + segment.file));
+		segment.recorder = null;
+
+		// Of a broadcast no longer in the playlist
+		if (!segment.broadcastId.equals(playlistId)) {
+			deleteSegment(segment.file);
+			return;
+		}
+
+		finishing--;
+
+		if (written)
+			list(segment);
+		else
+			deleteSegment(segment.file);
+
+		writePlaylist(broadcastId == null && finishing == 0);
+	}
+
+	/**
+	 * List a segment in the order of the numbers, the recorders may stop in
+	 * any order
+	 */
+	private void list(Segment segment) {
+		Deque<Segment> later = new ArrayDeque<>();
+
+		while (!listed.isEmpty() && listed.peekLast().sequence > segment.sequence) {
+			later.push(listed.pollLast());
+		}
+
+		listed.add(segment);
+		listed.addAll(later);
+
+		while (listed.size() > window) {
+			retired.add(listed.poll());
+		}
+
+		while (retired.size() > window) {
+			deleteSegment(retired.poll().file);
+		}
+	}
+
+	private void tell(Continuation<Boolean> started, boolean broadcast) {
+		try {
+			started.onSuccess(broadcast);
+		} catch (Exception e) {
+			log.warn("ROOM {}: could not tell whether the broadcast started", roomName, e);
+		}
+	}
+
+	private void fail(Continuation<Boolean> started, Throwable cause) {
+		try {
+			started.onError(cause);
+		} catch (Exception e) {
+			log.warn("ROOM {}: could not tell that the broadcast failed", roomName, e);
+		}
+	}
+
+	private void deleteAll(Deque<Segment> segments) {
+		for (Segment segment : segments) {
+			deleteSegment(segment.file);
+		}
+
+		segments.clear();
+	}
+
+	private void writePlaylist(boolean ended) {
+		long target = segmentMillis;
+		final JsonArray segments = new JsonArray();
+
+		for (Segment segment : listed) {
+			target = Math.max(target, segment.duration);
+
+			final JsonObject entry = new JsonObject();
+			entry.addProperty("sequence", segment.sequence);
+			entry.addProperty("file", segment.file);
+			entry.addProperty("duration", segment.duration);
+			segments.add(entry);
+		}
+
+		// Durations in milliseconds, the first sequence is the one of the
+		// next segment while none is listed
+		final JsonObject playlist = new JsonObject();
+		playlist.addProperty("broadcast", playlistId);
+		playlist.addProperty("targetDuration", target);
+		playlist.addProperty("sequence", listed.isEmpty() ? sequence + 1 : listed.peek().sequence);
+		playlist.addProperty("ended", ended);
+		playlist.add("segments", segments);
+
+		try {
+			savePlaylist(playlistFile(roomName), playlist.toString());
+		} catch (IOException e) {
+			log.warn("ROOM {}: could not write the playlist of {}: {}", roomName, playlistId, e.getMessage());
+		}
+	}
+
+	/**
+	 * @param roomName
+	 *            - name of a room
+	 * @return the file of the live playlist of the room
+	 */
+	public static String playlistFile(String roomName) {
+		return RoomRecorder.filePrefix(roomName) + PLAYLIST;
+	}
+
+	/**
+	 * @param roomName
+	 *            - name of a room
+	 * @param file
+	 *            - name of a file, without directory
+	 * @return true if the file is a segment of a broadcast of the room
+	 */
+	public static boolean isBroadcastSegment(String roomName, String file) {
+		return file.matches(Pattern.quote(RoomRecorder.filePrefix(roomName)) + RoomRecorder.RECORDING_ID
+				+ "-\\d{5}\\.mp4");
+	}
+
+	protected HubPort newPort(Transaction tx) {
+		return new HubPort.Builder(hub).build(tx);
+	}
+
+	protected RecorderEndpoint newRecorder(String uri, Transaction tx) {
+		return new RecorderEndpoint.Builder(pipeline, uri).withMediaProfile(MediaProfileSpecType.MP4).build(tx);
+	}
+
+	/**
+	 * Replace the playlist at once, so that it is never read half written
+	 */
+	protected void savePlaylist(String file, String content) throws IOException {
+		Path target = new File(directory, file).toPath();
+		Path temp = new File(directory, "." + file + ".tmp").toPath();
+		Files.createDirectories(target.getParent());
+		Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	protected void deleteSegment(String file) {
+		if (!new File(directory, file).delete())
+			log.debug("ROOM {}: segment {} already gone", roomName, file);
+	}
+
+	private Continuation<Void> releaseLog(final String element) {
+		return new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.trace("ROOM {}: Released {}", roomName, element);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: Could not release {}", roomName, element);
+			}
+		};
+	}
+
+	/**
+	 * @return true while the room is broadcast or about to be
+	 */
+	public boolean isBroadcasting() {
+		return broadcastId != null;
+	}
+
+	/**
+	 * @return the identifier of the current broadcast, which names its
+	 *         segments, null if the room is not broadcast
+	 */
+	public String getBroadcastId() {
+		return broadcastId;
+	}
+
+	/**
+	 * @return the number of segments of the current or of the last broadcast
+	 */
+	public int getSegmentCount() {
+		return sequence;
+	}
+
+	/**
+	 * @return the number of segments on disk, listed or waiting to be deleted
+	 */
+	public int getSegmentsKept() {
+		return listed.size() + retired.size() + (current != null ? 1 : 0);
+	}
+}
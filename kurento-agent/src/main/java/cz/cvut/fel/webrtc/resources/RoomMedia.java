@@ -0,0 +1,103 @@
+package cz.cvut.fel.webrtc.resources;
+
+import org.kurento.client.Composite;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+
+/**
+ * Media of a room on the KMS: the pipeline mixing the participants in a
+ * Composite. A set can be built ahead of the room using it, and stays bound to
+ * the client of its KMS. The pipeline of a presentation is only built by the
+ * room while someone presents.
+ *
+ */
+public class RoomMedia {
+
+	private final MediaPipeline compositePipeline;
+	private final Composite composite;
+	private final KurentoClient kurento;
+
+	/**
+	 * Constructor of RoomMedia
+	 *
+	 * @param compositePipeline
+	 *            - pipeline of the Composite
+	 * @param composite
+	 *            - the Composite mixing the participants
+	 */
+	public RoomMedia(MediaPipeline compositePipeline, Composite composite) {
+		this(compositePipeline, composite, null);
+	}
+
+	/**
+	 * Constructor of RoomMedia
+	 *
+	 * @param compositePipeline
+	 *            - pipeline of the Composite
+	 * @param composite
+	 *            - the Composite mixing the participants
+	 * @param kurento
+	 *            - client of the KMS holding the media
+	 */
+	public RoomMedia(MediaPipeline compositePipeline, Composite composite, KurentoClient kurento) {
+		this.compositePipeline = compositePipeline;
+		this.composite = composite;
+		this.kurento = kurento;
+	}
+
+	/**
+	 * Build a new set of media on the KMS
+	 *
+	 * @param kurento
+	 *            - client of the KMS
+	 * @return - the media of a room
+	 */
+	public static RoomMedia create(KurentoClient kurento) {
+		MediaPipeline compositePipeline = kurento.createMediaPipeline();
+		Composite composite = new Composite.Builder(compositePipeline).build();
+		return new RoomMedia(compositePipeline, composite, kurento);
+	}
+
+	/**
+	 * Check that the KMS still knows the media, e.g. after a restart of the
+	 * KMS
+	 *
+	 * @return - true if the media can be used
+	 */
+	public boolean isAlive() {
+		try {
+			compositePipeline.getChilds();
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Release the media on the KMS
+	 */
+	public void release() {
+		compositePipeline.release();
+	}
+
+	/**
+	 * @return the composite pipeline
+	 */
+	public MediaPipeline getCompositePipeline() {
+		return compositePipeline;
+	}
+
+	/**
+	 * @return the composite
+	 */
+	public Composite getComposite() {
+		return composite;
+	}
+
+	/**
+	 * @return the client of the KMS holding the media
+	 */
+	public KurentoClient getKurentoClient() {
+		return kurento;
+	}
+}
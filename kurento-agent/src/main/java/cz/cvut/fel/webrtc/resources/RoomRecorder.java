@@ -0,0 +1,645 @@
+package cz.cvut.fel.webrtc.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaProfileSpecType;
+import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Recording of the mix of a room. The port of the Composite feeding the
+ * recorders only exists while the room is recorded: every port adds an output
+ * to the mixer, recorded or not.
+ *
+ * A recording is cut into segments, each one written by its own recorder, so
+ * that the finished segments can be used while the meeting goes on. A new
+ * segment starts once the current one is old or large enough; its recorder
+ * starts before the previous one stops, so the segments overlap a little
+ * rather than leave a gap. A manifest next to the segments lists them with
+ * their state. Only used from the loop of its room; the media server is
+ * called asynchronously and its answers are handled back on the loop.
+ *
+ */
+public class RoomRecorder {
+
+	private static final Logger log = LoggerFactory.getLogger(RoomRecorder.class);
+
+	/**
+	 * Time the recorders of two segments both record, in milliseconds
+	 */
+	static final long SEGMENT_OVERLAP = 2000;
+
+	// Start of a recording following the name of its room
+	static final String RECORDING_ID = "\\d{8}-\\d{6}-\\d{3}";
+
+	/**
+	 * State of the recorder of a room
+	 *
+	 */
+	public enum State {
+		IDLE, STARTING, RECORDING;
+
+		/**
+		 * @return the name used in the messages and in the REST API
+		 */
+		public String getName() {
+			return name().toLowerCase();
+		}
+	}
+
+	private static class Segment {
+		private final String file;
+		private final int sequence;
+		private final long startedAt;
+		private RecorderEndpoint recorder;
+		private long endedAt;
+		private long size;
+
+		private Segment(String file, int sequence, long startedAt) {
+			this.file = file;
+			this.sequence = sequence;
+			this.startedAt = startedAt;
+		}
+	}
+
+	/**
+	 * A recording and its segments, whose recorders may still be stopping
+	 * once the room is no longer recorded
+	 */
+	private static class Recording {
+		private final String id;
+		private final String startedBy;
+		private final long startedAt;
+
+		// Null until the first segment records
+		private HubPort port;
+		private boolean rotating;
+		private boolean stopped;
+		private long stoppedAt;
+
+		// Segments of the recording, the current one last
+		private final List<Segment> segments = new ArrayList<>();
+
+		// Segments whose recorder still runs alongside the current one
+		private final List<Segment> closing = new ArrayList<>();
+
+		private Recording(String id, String startedBy, long startedAt) {
+			this.id = id;
+			this.startedBy = startedBy;
+			this.startedAt = startedAt;
+		}
+
+		private Segment getCurrent() {
+			return segments.get(segments.size() - 1);
+		}
+	}
+
+	private final String roomName;
+	private final MediaPipeline pipeline;
+	private final Hub hub;
+	private final EventLoop loop;
+
+	private String directory = "/record";
+	private long segmentMillis;
+	private long segmentBytes;
+
+	// Recording started or starting, null while the room is not recorded
+	private Recording recording;
+
+	/**
+	 * Constructor of RoomRecorder
+	 *
+	 * @param roomName
+	 *            - name of the room
+	 * @param pipeline
+	 *            - pipeline of the Composite
+	 * @param hub
+	 *            - the Composite mixing the room
+	 * @param loop
+	 *            - the loop of the room
+	 */
+	public RoomRecorder(String roomName, MediaPipeline pipeline, Hub hub, EventLoop loop) {
+		this.roomName = roomName;
+		this.pipeline = pipeline;
+		this.hub = hub;
+		this.loop = loop;
+	}
+
+	/**
+	 * Set where and how the next recordings are written
+	 *
+	 * @param directory
+	 *            - directory of the segments and manifests, seen alike by
+	 *            the media server and by the agent
+	 * @param segmentMillis
+	 *            - length of a segment, 0 for no limit
+	 * @param segmentBytes
+	 *            - size of a segment, 0 for no limit
+	 */
+	public void configure(String directory, long segmentMillis, long segmentBytes) {
+		this.directory = directory.endsWith("/") ? directory.substring(0, directory.length() - 1) : directory;
+		this.segmentMillis = segmentMillis;
+		this.segmentBytes = segmentBytes;
+	}
+
+	/**
+	 * Record the mix of the room. The room is recorded once its first
+	 * segment records; if it cannot, the port is given back.
+	 *
+	 * @param userId
+	 *            - identifier of the user starting the recording
+	 * @param now
+	 *            - current time in milliseconds since the epoch
+	 * @param started
+	 *            - told on the loop whether the room is now recorded, false
+	 *            if it already was or if it was stopped meanwhile
+	 */
+	public void start(String userId, long now, final Continuation<Boolean> started) {
+		if (recording != null) {
+			log.info("ROOM {}: already recorded since {} as {}, not started again", roomName,
+					recording.startedAt, recording.id);
+			tell(started, false);
+			return;
+		}
+
+		final Recording recording = new Recording(recordingId(roomName, now), userId, now);
+		final HubPort port;
+		final Segment first;
+		Transaction tx;
+
+		// The port and the first segment are created in one exchange
+		try {
+			tx = pipeline.beginTransaction();
+			port = newPort(tx);
+			first = newSegment(recording, port, now, tx);
+		} catch (RuntimeException e) {
+			log.warn("ROOM {}: recording {} could not start: {}", roomName, recording.id, e.getMessage());
+			fail(started, e);
+			return;
+		}
+
+		this.recording = recording;
+
+		record(first, port, tx, new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				recording.segments.add(first);
+
+				if (recording.stopped) {
+					first.endedAt = recording.stoppedAt;
+					finish(recording, first);
+					port.release(releaseLog("recording port"));
+					started.onSuccess(false);
+					return;
+				}
+
+				recording.port = port;
+				writeManifest(recording);
+				log.info("ROOM {}: recording {} started", roomName, recording.id);
+				started.onSuccess(true);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: recording {} could not start: {}", roomName, recording.id, cause.getMessage());
+
+				if (RoomRecorder.this.recording == recording)
+					RoomRecorder.this.recording = null;
+
+				started.onError(cause);
+			}
+		});
+	}
+
+	/**
+	 * Start a new segment if the current one is long or large enough, and
+	 * stop the recorders of the previous segments once they have overlapped
+	 * the current one long enough
+	 *
+	 * @param now
+	 *            - current time in milliseconds since the epoch
+	 */
+	public void tick(final long now) {
+		final Recording recording = this.recording;
+
+		if (recording == null || recording.port == null)
+			return;
+
+		for (Iterator<Segment> it = recording.closing.iterator(); it.hasNext();) {
+			Segment segment = it.next();
+
+			if (now - segment.endedAt >= SEGMENT_OVERLAP) {
+				it.remove();
+				finish(recording, segment);
+			}
+		}
+
+		if (recording.rotating)
+			return;
+
+		final Segment current = recording.getCurrent();
+		boolean rotate = segmentMillis > 0 && now - current.startedAt >= segmentMillis;
+
+		if (!rotate && segmentBytes > 0)
+			rotate = segmentSize(current.file) >= segmentBytes;
+
+		if (!rotate)
+			return;
+
+		final Segment next;
+		Transaction tx;
+
+		try {
+			tx = pipeline.beginTransaction();
+			next = newSegment(recording, recording.port, now, tx);
+		} catch (RuntimeException e) {
+			log.warn("ROOM {}: next segment of {} could not start: {}", roomName, recording.id, e.getMessage());
+			return;
+		}
+
+		recording.rotating = true;
+
+		// The current segment goes on if the next one cannot start
+		record(next, null, tx, new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				recording.rotating = false;
+				recording.segments.add(next);
+
+				// The current segment has been stopped meanwhile
+				if (recording.stopped) {
+					next.endedAt = recording.stoppedAt;
+					finish(recording, next);
+					return;
+				}
+
+				current.endedAt = now;
+				recording.closing.add(current);
+				writeManifest(recording);
+				log.debug("ROOM {}: recording into {}", roomName, next.file);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				recording.rotating = false;
+				log.warn("ROOM {}: next segment of {} could not start: {}", roomName, recording.id,
+						cause.getMessage());
+
+				if (recording.stopped)
+					writeManifest(recording);
+			}
+		});
+	}
+
+	/**
+	 * Stop the recording and give back its port of the Composite. The
+	 * recorders write the end of their segment afterwards.
+	 *
+	 * @param now
+	 *            - current time in milliseconds since the epoch
+	 * @return - false if the room was not recorded
+	 */
+	public boolean stop(long now) {
+		final Recording recording = this.recording;
+
+		if (recording == null)
+			return false;
+
+		this.recording = null;
+		recording.stopped = true;
+		recording.stoppedAt = now;
+
+		// Still starting, the first segment is stopped once it records
+		if (recording.port != null) {
+			for (Segment segment : recording.closing) {
+				finish(recording, segment);
+			}
+
+			recording.closing.clear();
+
+			Segment current = recording.getCurrent();
+			current.endedAt = now;
+			finish(recording, current);
+
+			recording.port.release(releaseLog("recording port"));
+		}
+
+		log.info("ROOM {}: recording {} stopped after {} s in {} segments", roomName, recording.id,
+				(now - recording.startedAt) / 1000, recording.segments.size());
+
+		return true;
+	}
+
+	private Segment newSegment(Recording recording, HubPort port, long now, Transaction tx) {
+		int sequence = recording.segments.size() + 1;
+		Segment segment = new Segment(String.format("%s-%05d.mp4", recording.id, sequence), sequence, now);
+
+		segment.recorder = newRecorder("file://" + directory + "/" + segment.file, tx);
+		port.connect(tx, segment.recorder);
+		return segment;
+	}
+
+	/**
+	 * Create the media of a segment and make its recorder record. The
+	 * continuation runs on the loop; if the recorder cannot record, it is
+	 * released, with the port created alongside it if any.
+	 */
+	private void record(final Segment segment, final HubPort port, Transaction tx,
+			final Continuation<Void> recorded) {
+		final Continuation<Void> onLoop = loop.onLoop(recorded);
+
+		tx.commit(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				segment.recorder.record(new Continuation<Void>() {
+
+					@Override
+					public void onSuccess(Void result) throws Exception {
+						onLoop.onSuccess(null);
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						segment.recorder.release(releaseLog("recorder of " + segment.file));
+
+						if (port != null)
+							port.release(releaseLog("recording port"));
+
+						onLoop.onError(cause);
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				onLoop.onError(cause);
+			}
+		});
+	}
+
+	/**
+	 * Stop the recorder of a segment, the manifest gives its size once it is
+	 * written
+	 */
+	private void finish(final Recording recording, final Segment segment) {
+		segment.recorder.stop(loop.onLoop(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				finished(recording, segment);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: recorder of {} could not stop: {}", roomName, segment.file, cause.getMessage());
+				finished(recording, segment);
+			}
+		}));
+	}
+
+	private void finished(Recording recording, Segment segment) {
+		segment.recorder.release(releaseLog("recorder of " + segment.file));
+		segment.recorder = null;
+		segment.size = segmentSize(segment.file);
+		writeManifest(recording);
+	}
+
+	private void tell(Continuation<Boolean> started, boolean recorded) {
+		try {
+			started.onSuccess(recorded);
+		} catch (Exception e) {
+			log.warn("ROOM {}: could not tell whether the recording started", roomName, e);
+		}
+	}
+
+	private void fail(Continuation<Boolean> started, Throwable cause) {
+		try {
+			started.onError(cause);
+		} catch (Exception e) {
+			log.warn("ROOM {}: could not tell that the recording failed", roomName, e);
+		}
+	}
+
+	/**
+	 * Identifier of a recording, made of the room and of its start so that a
+	 * new recording never overwrites an older one
+	 */
+	static String recordingId(String roomName, long now) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return filePrefix(roomName) + format.format(new Date(now));
+	}
+
+	/**
+	 * The name of the room is kept readable, every byte other than a letter,
+	 * a digit or a dash becoming '_' and its hexadecimal value. Two rooms
+	 * never share a prefix, and the names stay safe in a path and in a URL.
+	 *
+	 * @param roomName
+	 *            - name of a room
+	 * @return the start of the names of the files of its recordings
+	 */
+	public static String filePrefix(String roomName) {
+		StringBuilder prefix = new StringBuilder();
+
+		for (byte b : roomName.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xff);
+
+			if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-')
+				prefix.append(c);
+			else
+				prefix.append(String.format("_%02X", b & 0xff));
+		}
+
+		return prefix.append('-').toString();
+	}
+
+	/**
+	 * @param roomName
+	 *            - name of a room
+	 * @param file
+	 *            - name of a file, without directory
+	 * @return true if the file is a segment or a manifest of a recording of
+	 *         the room
+	 */
+	public static boolean isRecordingFile(String roomName, String file) {
+		return file.matches(Pattern.quote(filePrefix(roomName)) + RECORDING_ID + "(-\\d{5}\\.mp4|\\.json)");
+	}
+
+	/**
+	 * @param roomName
+	 *            - name of a room
+	 * @param file
+	 *            - name of a file, without directory
+	 * @return true if the file is the manifest of a recording of the room
+	 */
+	public static boolean isManifest(String roomName, String file) {
+		return file.matches(Pattern.quote(filePrefix(roomName)) + RECORDING_ID + "\\.json");
+	}
+
+	/**
+	 * The recording is finished once it is stopped and each of its recorders
+	 * has written the end of its segment
+	 */
+	private void writeManifest(Recording recording) {
+		boolean finished = recording.stopped && !recording.rotating;
+
+		for (Segment segment : recording.segments) {
+			finished &= segment.recorder == null;
+		}
+
+		JsonObject manifest = new JsonObject();
+		manifest.addProperty("room", roomName);
+		manifest.addProperty("recording", recording.id);
+		manifest.addProperty("state", finished ? "finished" : "recording");
+		manifest.addProperty("startedBy", recording.startedBy);
+		manifest.addProperty("startedAt", recording.startedAt);
+
+		JsonArray list = new JsonArray();
+
+		for (Segment segment : recording.segments) {
+			JsonObject json = new JsonObject();
+			json.addProperty("file", segment.file);
+			json.addProperty("sequence", segment.sequence);
+			json.addProperty("state", (segment.recorder == null) ? "finished" : "recording");
+			json.addProperty("startedAt", segment.startedAt);
+
+			if (segment.endedAt > 0)
+				json.addProperty("endedAt", segment.endedAt);
+
+			if (segment.recorder == null)
+				json.addProperty("size", segment.size);
+
+			list.add(json);
+		}
+
+		manifest.add("segments", list);
+
+		try {
+			saveManifest(recording.id + ".json", manifest.toString());
+		} catch (IOException e) {
+			log.warn("ROOM {}: could not write the manifest of {}: {}", roomName, recording.id, e.getMessage());
+		}
+	}
+
+	protected HubPort newPort(Transaction tx) {
+		return new HubPort.Builder(hub).build(tx);
+	}
+
+	protected RecorderEndpoint newRecorder(String uri, Transaction tx) {
+		return new RecorderEndpoint.Builder(pipeline, uri).withMediaProfile(MediaProfileSpecType.MP4).build(tx);
+	}
+
+	/**
+	 * @return the size of a segment written so far, 0 if it cannot be seen
+	 */
+	protected long segmentSize(String file) {
+		return new File(directory, file).length();
+	}
+
+	/**
+	 * Replace a manifest at once, so that it is never read half written
+	 */
+	protected void saveManifest(String file, String content) throws IOException {
+		Path target = new File(directory, file).toPath();
+		Path temp = new File(directory, "." + file + ".tmp").toPath();
+		Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Continuation<Void> releaseLog(final String element) {
+		return new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.trace("ROOM {}: Released {}", roomName, element);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: Could not release {}", roomName, element);
+			}
+		};
+	}
+
+	/**
+	 * @return the state of the recorder
+	 */
+	public State getState() {
+		if (recording == null)
+			return State.IDLE;
+
+		return (recording.port == null) ? State.STARTING : State.RECORDING;
+	}
+
+	/**
+	 * @return true while the room is recorded or about to be
+	 */
+	public boolean isRecording() {
+		return recording != null;
+	}
+
+	/**
+	 * @return the identifier of the current recording, which names its
+	 *         segments and its manifest, null if the room is not recorded
+	 */
+	public String getRecordingId() {
+		return (recording == null) ? null : recording.id;
+	}
+
+	/**
+	 * @return the file of the segment being recorded, null if the room is
+	 *         not recorded yet
+	 */
+	public String getCurrentSegment() {
+		return (recording == null || recording.segments.isEmpty()) ? null : recording.getCurrent().file;
+	}
+
+	/**
+	 * @return the number of segments of the current recording
+	 */
+	public int getSegmentCount() {
+		return (recording == null) ? 0 : recording.segments.size();
+	}
+
+	/**
+	 * @return the identifier of the user who started the current recording
+	 */
+	public String getStartedBy() {
+		return (recording == null) ? null : recording.startedBy;
+	}
+
+	/**
+	 * @return the start of the current recording, in milliseconds since the
+	 *         epoch, 0 if the room is not recorded
+	 */
+	public long getStartedAt() {
+		return (recording == null) ? 0 : recording.startedAt;
+	}
+}
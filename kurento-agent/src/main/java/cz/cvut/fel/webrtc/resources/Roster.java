@@ -0,0 +1,168 @@
+package cz.cvut.fel.webrtc.resources;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Versioned list of the participants announced in a room. Every change
+ * increments the version and produces a small rosterDelta message, while the
+ * full list of names is only built once per version for the new comers and
+ * the clients asking for a resync.
+ *
+ */
+public class Roster {
+
+	private final Map<String, String> names = new LinkedHashMap<>();
+	private long version;
+
+	// Names of the current version, built on demand
+	private JsonArray snapshot;
+
+	/**
+	 * Add a participant to the roster
+	 *
+	 * @param userId
+	 *            - identifier of the participant
+	 * @param name
+	 *            - name of the participant
+	 * @return - the rosterDelta message, null if the participant is already
+	 *         in the roster
+	 */
+	public synchronized JsonObject add(String userId, String name) {
+		if (names.containsKey(userId))
+			return null;
+
+		names.put(userId, name);
+		return delta("add", userId, name);
+	}
+
+	/**
+	 * Remove a participant from the roster
+	 *
+	 * @param userId
+	 *            - identifier of the participant
+	 * @return - the rosterDelta message, null if the participant was not in
+	 *         the roster
+	 */
+	public synchronized JsonObject remove(String userId) {
+		if (!names.containsKey(userId))
+			return null;
+
+		String name = names.remove(userId);
+		return delta("remove", userId, name);
+	}
+
+	/**
+	 * Change the name of a participant of the roster
+	 *
+	 * @param userId
+	 *            - identifier of the participant
+	 * @param name
+	 *            - new name of the participant
+	 * @return - the rosterDelta message, null if the participant is not in the
+	 *         roster or keeps its name
+	 */
+	public synchronized JsonObject rename(String userId, String name) {
+		if (!names.containsKey(userId))
+			return null;
+
+		String oldName = names.put(userId, name);
+
+		if (name == null ? oldName == null : name.equals(oldName))
+			return null;
+
+		JsonObject delta = delta("rename", userId, name);
+		delta.addProperty("oldName", oldName);
+		return delta;
+	}
+
+	/**
+	 * @return - the version of the roster
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param userId
+	 *            - identifier of a participant
+	 * @return - true if the participant is in the roster
+	 */
+	public synchronized boolean contains(String userId) {
+		return names.containsKey(userId);
+	}
+
+	/**
+	 * @return - the number of participants in the roster
+	 */
+	public synchronized int size() {
+		return names.size();
+	}
+
+	/**
+	 * Names of the participants at the current version. The array is shared
+	 * between the callers and must not be modified.
+	 *
+	 * @return - names of the participants
+	 */
+	public synchronized JsonArray getNames() {
+		if (snapshot == null) {
+			snapshot = new JsonArray();
+
+			for (String name : names.values()) {
+				snapshot.add(new JsonPrimitive(name));
+			}
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Names of the participants at the current version, except one
+	 *
+	 * @param userId
+	 *            - identifier of the participant to leave out
+	 * @return - names of the participants
+	 */
+	public synchronized JsonArray getNames(String userId) {
+		if (!names.containsKey(userId))
+			return getNames();
+
+		JsonArray array = new JsonArray();
+
+		for (Map.Entry<String, String> entry : names.entrySet()) {
+			if (!entry.getKey().equals(userId))
+				array.add(new JsonPrimitive(entry.getValue()));
+		}
+
+		return array;
+	}
+
+	/**
+	 * @return - the rosterSnapshot message of the current version
+	 */
+	public synchronized JsonObject snapshotMessage() {
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "rosterSnapshot");
+		message.addProperty("version", version);
+		message.add("data", getNames());
+		return message;
+	}
+
+	private JsonObject delta(String op, String userId, String name) {
+		version++;
+		snapshot = null;
+
+		JsonObject delta = new JsonObject();
+		delta.addProperty("id", "rosterDelta");
+		delta.addProperty("op", op);
+		delta.addProperty("version", version);
+		delta.addProperty("userId", userId);
+		delta.addProperty("name", name);
+		return delta;
+	}
+}
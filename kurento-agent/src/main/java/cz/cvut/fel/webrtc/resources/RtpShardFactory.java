@@ -0,0 +1,170 @@
+package cz.cvut.fel.webrtc.resources;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaType;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Link the shards to the root through RtpEndpoint pairs, as the Softphone is
+ * linked to the PBX. The pipelines of the shards may live on other KMS than
+ * the root, the media is then sent over RTP between the servers. The mix of a
+ * shard is one tile of the root's mix. The root only sends its audio back:
+ * its video holds the mix of the shard, which would show the participants of
+ * the shard inside their own mix. The audio of a Composite port leaves out
+ * its own input, so no shard hears itself back. The participants of a shard
+ * thus see their shard and hear the whole room.
+ *
+ * A shard is built without waiting for the media servers: its media is
+ * taken with acquireMedia, then each step goes on when the server answers.
+ *
+ */
+public abstract class RtpShardFactory implements ShardFactory {
+
+	private static final Logger log = LoggerFactory.getLogger(RtpShardFactory.class);
+
+	/**
+	 * Take new media for a shard, possibly on another server, without
+	 * blocking the calling thread
+	 *
+	 * @param acquired
+	 *            - told the media
+	 */
+	protected abstract void acquireMedia(Continuation<RoomMedia> acquired);
+
+	/**
+	 * Give back the media of a shard
+	 *
+	 * @param media
+	 *            - the media
+	 */
+	protected abstract void releaseMedia(RoomMedia media);
+
+	@Override
+	public void create(final Shard root, final Continuation<Shard> created) {
+		acquireMedia(new Continuation<RoomMedia>() {
+
+			@Override
+			public void onSuccess(RoomMedia media) throws Exception {
+				link(root, new Shard(media.getCompositePipeline(), media.getComposite(), media), created);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				created.onError(cause);
+			}
+		});
+	}
+
+	/**
+	 * Create the link between a new shard and the root, then negotiate the
+	 * RTP between them
+	 */
+	private void link(Shard root, final Shard shard, final Continuation<Shard> created) throws Exception {
+		final Transaction rootTx;
+
+		try {
+			Transaction tx = shard.getPipeline().beginTransaction();
+			HubPort port = new HubPort.Builder(shard.getComposite()).build(tx);
+			final RtpEndpoint endpoint = new RtpEndpoint.Builder(shard.getPipeline()).build(tx);
+			port.connect(tx, endpoint);
+			endpoint.connect(tx, port, MediaType.AUDIO);
+
+			rootTx = root.getPipeline().beginTransaction();
+			HubPort rootPort = new HubPort.Builder(root.getComposite()).build(rootTx);
+			final RtpEndpoint rootEndpoint = new RtpEndpoint.Builder(root.getPipeline()).build(rootTx);
+			rootPort.connect(rootTx, rootEndpoint, MediaType.AUDIO);
+			rootEndpoint.connect(rootTx, rootPort);
+
+			shard.link(port, endpoint, rootPort, rootEndpoint);
+
+			tx.commit(new Step<Void>(shard, created) {
+
+				@Override
+				public void onSuccess(Void result) throws Exception {
+					rootTx.commit(new Step<Void>(shard, created) {
+
+						@Override
+						public void onSuccess(Void result) throws Exception {
+							negotiate(shard, created);
+						}
+					});
+				}
+			});
+		} catch (RuntimeException e) {
+			destroy(shard);
+			created.onError(e);
+		}
+	}
+
+	private void negotiate(final Shard shard, final Continuation<Shard> created) {
+		shard.getEndpoint().generateOffer(new Step<String>(shard, created) {
+
+			@Override
+			public void onSuccess(String offer) throws Exception {
+				shard.getRootEndpoint().processOffer(offer, new Step<String>(shard, created) {
+
+					@Override
+					public void onSuccess(String answer) throws Exception {
+						shard.getEndpoint().processAnswer(answer, new Step<String>(shard, created) {
+
+							@Override
+							public void onSuccess(String result) throws Exception {
+								created.onSuccess(shard);
+							}
+						});
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * A step of the creation of a shard. If it fails, the shard is torn down.
+	 */
+	private abstract class Step<T> implements Continuation<T> {
+		private final Shard shard;
+		private final Continuation<Shard> created;
+
+		Step(Shard shard, Continuation<Shard> created) {
+			this.shard = shard;
+			this.created = created;
+		}
+
+		@Override
+		public void onError(Throwable cause) throws Exception {
+			destroy(shard);
+			created.onError(cause);
+		}
+	}
+
+	@Override
+	public void destroy(Shard shard) {
+		release(shard.getRootEndpoint());
+		release(shard.getRootPort());
+
+		// The shard's own elements go with its pipelines
+		releaseMedia(shard.getMedia());
+	}
+
+	private void release(MediaObject object) {
+		if (object == null)
+			return;
+
+		object.release(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("Could not release the link of a shard: {}", cause.getMessage());
+			}
+		});
+	}
+}
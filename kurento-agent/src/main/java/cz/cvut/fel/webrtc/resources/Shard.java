@@ -0,0 +1,120 @@
+package cz.cvut.fel.webrtc.resources;
+
+import org.kurento.client.Composite;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+
+/**
+ * Part of a cascaded room: a Composite mixing a subset of the participants.
+ * Every shard but the root one is linked to the root through a pair of
+ * RtpEndpoint, each one behind a HubPort of its Composite, so that the mix of
+ * the shard is a single input of the root and the audio of the root a single
+ * input of the shard.
+ *
+ */
+public class Shard {
+
+	private final MediaPipeline pipeline;
+	private final Composite composite;
+
+	/**
+	 * Media of the shard, null for the root shard whose media is the room's
+	 */
+	private final RoomMedia media;
+
+	// Link to the root shard
+	private HubPort port;
+	private RtpEndpoint endpoint;
+	private HubPort rootPort;
+	private RtpEndpoint rootEndpoint;
+
+	private int size;
+
+	/**
+	 * Constructor of Shard
+	 *
+	 * @param pipeline
+	 *            - pipeline of the Composite
+	 * @param composite
+	 *            - the Composite mixing the participants of the shard
+	 * @param media
+	 *            - media owned by the shard, null for the root shard
+	 */
+	public Shard(MediaPipeline pipeline, Composite composite, RoomMedia media) {
+		this.pipeline = pipeline;
+		this.composite = composite;
+		this.media = media;
+	}
+
+	/**
+	 * Keep the elements linking the shard to the root
+	 *
+	 * @param port
+	 *            - port of the shard's Composite
+	 * @param endpoint
+	 *            - endpoint of the shard
+	 * @param rootPort
+	 *            - port of the root's Composite
+	 * @param rootEndpoint
+	 *            - endpoint of the root
+	 */
+	void link(HubPort port, RtpEndpoint endpoint, HubPort rootPort, RtpEndpoint rootEndpoint) {
+		this.port = port;
+		this.endpoint = endpoint;
+		this.rootPort = rootPort;
+		this.rootEndpoint = rootEndpoint;
+	}
+
+	/**
+	 * @return the pipeline of the Composite
+	 */
+	public MediaPipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * @return the Composite of the shard
+	 */
+	public Composite getComposite() {
+		return composite;
+	}
+
+	/**
+	 * @return the media owned by the shard, null for the root shard
+	 */
+	public RoomMedia getMedia() {
+		return media;
+	}
+
+	public HubPort getPort() {
+		return port;
+	}
+
+	public RtpEndpoint getEndpoint() {
+		return endpoint;
+	}
+
+	public HubPort getRootPort() {
+		return rootPort;
+	}
+
+	public RtpEndpoint getRootEndpoint() {
+		return rootEndpoint;
+	}
+
+	/**
+	 * @return the number of participants in the shard
+	 */
+	public int size() {
+		return size;
+	}
+
+	void increment() {
+		size++;
+	}
+
+	void decrement() {
+		size--;
+	}
+}
@@ -0,0 +1,29 @@
+package cz.cvut.fel.webrtc.resources;
+
+import org.kurento.client.Continuation;
+
+/**
+ * Build and tear down the shards of a cascaded room
+ *
+ */
+public interface ShardFactory {
+
+	/**
+	 * Build a new shard linked to the root one, without waiting for the media
+	 * servers
+	 *
+	 * @param root
+	 *            - the root shard of the room
+	 * @param created
+	 *            - told the new shard
+	 */
+	void create(Shard root, Continuation<Shard> created);
+
+	/**
+	 * Unlink a shard from the root one and release its media
+	 *
+	 * @param shard
+	 *            - the shard, without participant
+	 */
+	void destroy(Shard shard);
+}
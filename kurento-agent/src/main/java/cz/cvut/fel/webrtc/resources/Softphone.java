@@ -2,8 +2,10 @@ package cz.cvut.fel.webrtc.resources;
 
 import org.kurento.client.Continuation;
 import org.kurento.client.Hub;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.RtpEndpoint;
+import org.kurento.client.Transaction;
 import org.kurento.client.internal.server.KurentoServerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,19 +30,25 @@ public class Softphone extends Participant {
 	 *            - conversation between two web socket endpoints
 	 * @param compositePipeline
 	 *            - container of MediaElements, canal from kurento to user
-	 * @param presentationPipeline
-	 *            - container of MediaElements, canal from user to kurento
 	 * @param hub
 	 *            - Routing MediaObject, connect several endpoints together
+	 * @param tx
+	 *            - transaction in which the media elements are created
 	 */
-	public Softphone(String id, String roomName, WebSocketSession session, MediaPipeline compositePipeline,
-			MediaPipeline presentationPipeline, Hub hub) {
-		super(id, roomName, session, compositePipeline, presentationPipeline, hub);
+	public Softphone(String id, String roomName, WebSocketSession session, MediaPipeline compositePipeline, Hub hub,
+			Transaction tx) {
+		super(id, roomName, session, compositePipeline, hub, tx);
 
-		rtpEndpoint = new RtpEndpoint.Builder(compositePipeline).build();
+		rtpEndpoint = new RtpEndpoint.Builder(compositePipeline).build(tx);
 
-		rtpEndpoint.connect(hubPort);
-		hubPort.connect(rtpEndpoint);
+		rtpEndpoint.connect(tx, getMixInput());
+		hubPort.connect(tx, rtpEndpoint);
+	}
+
+	@Override
+	protected void moveMixInput(MediaElement previous, Transaction tx) {
+		rtpEndpoint.disconnect(tx, previous);
+		rtpEndpoint.connect(tx, getMixInput());
 	}
 
 	/**
@@ -0,0 +1,27 @@
+package cz.cvut.fel.webrtc.resources;
+
+/**
+ * How the video of a room reaches its participants
+ *
+ */
+public enum Topology {
+
+	/**
+	 * The Composite mixes the video of everyone into one stream per
+	 * participant
+	 */
+	MCU,
+
+	/**
+	 * The video of each participant is forwarded to the others without being
+	 * decoded, the Composite only mixes the audio
+	 */
+	SFU;
+
+	/**
+	 * @return the name used in the messages to the browsers
+	 */
+	public String getName() {
+		return name().toLowerCase();
+	}
+}
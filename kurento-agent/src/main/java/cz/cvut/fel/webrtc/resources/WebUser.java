@@ -1,20 +1,37 @@
 package cz.cvut.fel.webrtc.resources;
 
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import cz.cvut.fel.webrtc.utils.Batcher;
 import org.kurento.client.*;
 import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
-import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class WebUser extends Participant {
 
 	private static final Logger log = LoggerFactory.getLogger(WebUser.class);
 
+	// Candidates are gathered in bursts, a window groups most of a burst
+	private static final long CANDIDATES_WINDOW = 50;
+	private static final int CANDIDATES_MAX = 20;
+
+	/**
+	 * Shortest time between two renewals of the outgoing media, asked by the
+	 * browser or after the media has stopped flowing, in milliseconds
+	 */
+	public static final long RENEW_INTERVAL = 5000;
+
 	private WebRtcEndpoint sharingMedia;
 	private boolean isScreensharer = false;
 
@@ -23,10 +40,47 @@ public class WebUser extends Participant {
 	protected WebRtcEndpoint outgoingMedia;
 
 	private final MediaPipeline compositePipeline;
-	private final MediaPipeline presentationPipeline;
-	private Calendar lastPing = Calendar.getInstance();
 
-	private WebSocketSession session;
+	// Pipeline of the presentation the sharing endpoint belongs to
+	private volatile MediaPipeline sharingPipeline;
+
+	// The first composite answer has been sent
+	private boolean answered;
+
+	// Candidates of the server, sent to the browser
+	private final Batcher<IceCandidate> outgoingCandidates;
+	private Batcher<IceCandidate> sharingCandidates;
+
+	// Candidates of the browser, held until the offer has been processed
+	private final Batcher<IceCandidate> remoteOutgoingCandidates;
+	private final Batcher<IceCandidate> remoteSharingCandidates;
+
+	private volatile Topology topology = Topology.MCU;
+
+	// False while the video of the user is left out of the Composite mix
+	private volatile boolean videoMixed = true;
+
+	// Mix of the room shared by the viewers, null once the user takes part
+	private volatile MediaElement viewerSource;
+
+	// Video received from the other users in SFU, by identifier of the sender
+	private final ConcurrentMap<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+	private final RateLimiter renewals = RateLimiter.create(1000.0 / RENEW_INTERVAL);
+
+	// State of the outgoing endpoint, as last reported by the server
+	private volatile boolean mediaFlowing;
+	private volatile boolean iceConnected;
+
+	// Time the outgoing media stopped flowing, -1 while it flows or before it
+	// first did
+	private volatile long stalledSince = -1;
+
+	// Time the ICE of the outgoing endpoint was last restarted, -1 if never
+	private volatile long iceRestartedAt = -1;
+
+	// Candidates of the outgoing endpoint, sent again when ICE is restarted
+	private final List<IceCandidate> localCandidates = new CopyOnWriteArrayList<>();
 
 	/**
 	 * Constructor of the class WebUser
@@ -39,31 +93,89 @@ public class WebUser extends Participant {
 	 *            - conversation between two web socket endpoints
 	 * @param compositePipeline
 	 *            - container of MediaElements, canal from kurento to user
-	 * @param presentationPipeline
-	 *            - container of MediaElements, canal from user to kurento
 	 * @param hub
 	 *            - Routing MediaObject, connect several endpoints together
+	 * @param tx
+	 *            - transaction in which the media elements are created
 	 */
 	public WebUser(final String id, String roomName, WebSocketSession session, MediaPipeline compositePipeline,
-			MediaPipeline presentationPipeline, Hub hub) {
-		super(id, roomName, session, compositePipeline, presentationPipeline, hub);
+			Hub hub, Transaction tx) {
+		this(id, roomName, session, compositePipeline, hub, null, tx);
+	}
+
+	/**
+	 * Constructor of a WebUser which may only watch the room. A viewer has no
+	 * port in the hub: it receives the mix shared by the viewers and sends
+	 * nothing into it, until it is promoted.
+	 * 
+	 * @param id
+	 *            - identifier of the participant
+	 * @param roomName
+	 *            - this is the name user want to give to the room
+	 * @param session
+	 *            - conversation between two web socket endpoints
+	 * @param compositePipeline
+	 *            - container of MediaElements, canal from kurento to user
+	 * @param hub
+	 *            - Routing MediaObject, connect several endpoints together
+	 * @param viewerSource
+	 *            - mix shared by the viewers, null for a user taking part
+	 * @param tx
+	 *            - transaction in which the media elements are created
+	 */
+	public WebUser(final String id, String roomName, WebSocketSession session, MediaPipeline compositePipeline,
+			Hub hub, MediaElement viewerSource, Transaction tx) {
+		super(id, roomName, session, compositePipeline, hub);
 
 		this.userId = id;
-		this.session = session;
 		this.compositePipeline = compositePipeline;
+		this.viewerSource = viewerSource;
+		this.outgoingCandidates = candidatesToBrowser(userId, null, "composite");
+		this.remoteOutgoingCandidates = candidatesToServer(true);
+		this.remoteSharingCandidates = candidatesToServer(false);
+
+		if (viewerSource == null)
+			newHubPort(tx);
 
-		newOutgoingMedia();
-		connectOutgoingMediaToHubPort();
+		newOutgoingMedia(tx);
+		connectOutgoingMedia(tx);
+	}
 
-		this.presentationPipeline = presentationPipeline;
+	@Override
+	public void onMediaCreated() {
+		listenOutgoingCandidates();
+		listenOutgoingState();
 	}
 
 	/**
-	 * Allows to connect a WebRTCEndpoint to a Hub port
+	 * Allows to connect a WebRTCEndpoint to a Hub port, or to the mix of the
+	 * viewers
 	 */
-	private void connectOutgoingMediaToHubPort() {
-		outgoingMedia.connect(hubPort);
-		hubPort.connect(outgoingMedia);
+	private void connectOutgoingMedia(Transaction tx) {
+		if (viewerSource != null) {
+			viewerSource.connect(tx, outgoingMedia);
+			return;
+		}
+
+		outgoingMedia.connect(tx, getMixInput());
+		hubPort.connect(tx, outgoingMedia);
+
+		if (topology == Topology.SFU)
+			disconnectVideo(tx);
+		else if (!videoMixed)
+			outgoingMedia.disconnect(tx, getMixInput(), MediaType.VIDEO);
+	}
+
+	@Override
+	protected void moveMixInput(MediaElement previous, Transaction tx) {
+		if (viewerSource != null)
+			return;
+
+		outgoingMedia.disconnect(tx, previous);
+		outgoingMedia.connect(tx, getMixInput());
+
+		if (topology == Topology.SFU || !videoMixed)
+			outgoingMedia.disconnect(tx, getMixInput(), MediaType.VIDEO);
 	}
 
 	/**
@@ -72,18 +184,235 @@ public class WebUser extends Participant {
 	private void disconnectOutgoingMediaFromHubPort() {
 		hubPort.disconnect(outgoingMedia,
 				asyncLog("Disconnect hubPort from outgoingMedia", "Could not disconnect hubPort from outgoingMedia"));
-		outgoingMedia.disconnect(hubPort,
+		outgoingMedia.disconnect(getMixInput(),
 				asyncLog("Disconnect outgoingMedia from hubPort", "Could not disconnect ougoingMedia from hubPort"));
 	}
 
 	/**
 	 * Allow to renew an WebRTCEndpoint and connect it to a hub port
 	 */
-	public void renewOutgoingMedia() {
-		super.renewHubPort();
+	public synchronized void renewOutgoingMedia() {
+		Transaction tx = rebuildOutgoingMedia();
+
+		tx.commit();
+		listenOutgoingCandidates();
+		listenOutgoingState();
+	}
+
+	/**
+	 * Renew the WebRTCEndpoint without waiting for the media server, e.g. from
+	 * the loop of the room
+	 * 
+	 * @param renewed
+	 *            - told once the new endpoint is created
+	 */
+	public synchronized void renewOutgoingMedia(final Continuation<Void> renewed) {
+		Transaction tx = rebuildOutgoingMedia();
+		final WebRtcEndpoint endpoint = outgoingMedia;
+
+		tx.commit(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				synchronized (WebUser.this) {
+					// Renewed again meanwhile
+					if (outgoingMedia == endpoint) {
+						listenOutgoingCandidates();
+						listenOutgoingState();
+					}
+				}
+
+				renewed.onSuccess(null);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				renewed.onError(cause);
+			}
+		});
+	}
+
+	private Transaction rebuildOutgoingMedia() {
+		Transaction tx = compositePipeline.beginTransaction();
+
+		// Candidates of the previous connection are of no use to the new one
+		outgoingCandidates.clear();
+		localCandidates.clear();
+		remoteOutgoingCandidates.clear();
+		remoteOutgoingCandidates.hold();
+
+		if (viewerSource == null)
+			super.renewHubPort(tx);
+
 		releaseOutgoingMedia();
-		newOutgoingMedia();
-		connectOutgoingMediaToHubPort();
+		newOutgoingMedia(tx);
+		connectOutgoingMedia(tx);
+		return tx;
+	}
+
+	/**
+	 * Take a renewal of the outgoing media, they are rate-limited so that a
+	 * browser cannot have the server rebuild its media over and over
+	 * 
+	 * @return - false if the media has been renewed too recently
+	 */
+	public boolean tryRenew() {
+		return renewals.tryAcquire();
+	}
+
+	/**
+	 * Let a viewer take part: its media is built again with a port in the
+	 * hub, the browser has to send a new offer
+	 * 
+	 * @param promoted
+	 *            - told once the new media is created
+	 */
+	public void promote(Continuation<Void> promoted) {
+		viewerSource = null;
+		renewOutgoingMedia(promoted);
+	}
+
+	/**
+	 * @return true if the user only watches the room
+	 */
+	public boolean isViewer() {
+		return viewerSource != null;
+	}
+
+	/**
+	 * Wire the media of the user for a topology. In SFU the video does not go
+	 * through the Composite anymore, the audio is still mixed.
+	 * 
+	 * @param topology
+	 *            - the topology of the room
+	 * @param tx
+	 *            - transaction in which the media is rewired
+	 */
+	public void useTopology(Topology topology, Transaction tx) {
+		if (this.topology == topology)
+			return;
+
+		this.topology = topology;
+
+		if (viewerSource != null) {
+			if (topology == Topology.MCU)
+				releaseSubscriptions();
+		} else if (topology == Topology.SFU) {
+			disconnectVideo(tx);
+		} else {
+			if (videoMixed)
+				outgoingMedia.connect(tx, getMixInput(), MediaType.VIDEO);
+
+			hubPort.connect(tx, outgoingMedia, MediaType.VIDEO);
+			releaseSubscriptions();
+		}
+	}
+
+	/**
+	 * Wire the media of the user for a topology, in a transaction of its own
+	 * 
+	 * @param topology
+	 *            - the topology of the room
+	 */
+	public void useTopology(Topology topology) {
+		if (this.topology == topology)
+			return;
+
+		Transaction tx = compositePipeline.beginTransaction();
+		useTopology(topology, tx);
+		tx.commit(asyncLog("Media wired for " + topology.getName(),
+				"Could not wire the media for " + topology.getName()));
+	}
+
+	/**
+	 * Put the video of the user in the Composite mix or leave it out. The
+	 * audio stays in the mix and the user still receives the mix.
+	 * 
+	 * @param mixed
+	 *            - true to mix the video of the user
+	 * @param tx
+	 *            - transaction in which the media is rewired
+	 */
+	public void setVideoMixed(boolean mixed, Transaction tx) {
+		if (videoMixed == mixed)
+			return;
+
+		videoMixed = mixed;
+
+		// The video is not in the mix anyway
+		if (topology == Topology.SFU || viewerSource != null)
+			return;
+
+		if (mixed)
+			outgoingMedia.connect(tx, getMixInput(), MediaType.VIDEO);
+		else
+			outgoingMedia.disconnect(tx, getMixInput(), MediaType.VIDEO);
+	}
+
+	/**
+	 * Put the video of the user in the Composite mix or leave it out, in a
+	 * transaction of its own
+	 * 
+	 * @param mixed
+	 *            - true to mix the video of the user
+	 */
+	public void setVideoMixed(boolean mixed) {
+		if (videoMixed == mixed)
+			return;
+
+		Transaction tx = compositePipeline.beginTransaction();
+		setVideoMixed(mixed, tx);
+		tx.commit(asyncLog("Video of " + this.name + (mixed ? " mixed" : " left out of the mix"),
+				"Could not change the mixing of the video of " + this.name));
+	}
+
+	/**
+	 * @return true if the video of the user is in the Composite mix
+	 */
+	public boolean isVideoMixed() {
+		return videoMixed;
+	}
+
+	/**
+	 * Ask the server how much audio it has received from the user, without
+	 * waiting for it. The counter starts again when the outgoing media is
+	 * renewed.
+	 * 
+	 * @param received
+	 *            - told the number of bytes of audio received from the user
+	 */
+	public void getAudioBytesReceived(final Continuation<Long> received) {
+		outgoingMedia.getStats(MediaType.AUDIO, new Continuation<Map<String, Stats>>() {
+
+			@Override
+			public void onSuccess(Map<String, Stats> result) throws Exception {
+				long bytes = 0;
+
+				for (Stats stats : result.values()) {
+					if (stats instanceof RTCInboundRTPStreamStats)
+						bytes += ((RTCInboundRTPStreamStats) stats).getBytesReceived();
+				}
+
+				received.onSuccess(bytes);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				received.onError(cause);
+			}
+		});
+	}
+
+	private void disconnectVideo(Transaction tx) {
+		outgoingMedia.disconnect(tx, getMixInput(), MediaType.VIDEO);
+		hubPort.disconnect(tx, outgoingMedia, MediaType.VIDEO);
+	}
+
+	/**
+	 * @return the topology the media of the user is wired for
+	 */
+	public Topology getTopology() {
+		return topology;
 	}
 
 	/**
@@ -96,26 +425,42 @@ public class WebUser extends Participant {
 	/**
 	 * Allow to create a new WebRTCEndpoint
 	 */
-	private void newOutgoingMedia() {
-		this.outgoingMedia = new WebRtcEndpoint.Builder(compositePipeline).build();
+	private void newOutgoingMedia(Transaction tx) {
+		this.outgoingMedia = buildEndpoint(compositePipeline, tx);
+	}
+
+	protected WebRtcEndpoint buildEndpoint(MediaPipeline pipeline, Transaction tx) {
+		return new WebRtcEndpoint.Builder(pipeline).build(tx);
+	}
+
+	/**
+	 * Subscribe to the candidates of the outgoing WebRTCEndpoint. Listeners
+	 * cannot be added in a transaction, the subscription is sent without
+	 * waiting for it, before the offer of the client is processed.
+	 */
+	private void listenOutgoingCandidates() {
+		final WebRtcEndpoint ep = this.outgoingMedia;
 
-		this.outgoingMedia.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
+		ep.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
 
 			@Override
 			public void onEvent(OnIceCandidateEvent event) {
+				if (ep != outgoingMedia)
+					return;
 
-				JsonObject response = new JsonObject();
-				response.addProperty("id", "iceCandidate");
-				response.addProperty("userId", userId);
-				response.addProperty("type", "composite");
-				response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-				try {
-					synchronized (session) {
-						session.sendMessage(new TextMessage(response.toString()));
-					}
-				} catch (IOException e) {
-					log.debug(e.getMessage());
-				}
+				localCandidates.add(event.getCandidate());
+				outgoingCandidates.add(event.getCandidate());
+			}
+		}, new Continuation<ListenerSubscription>() {
+
+			@Override
+			public void onSuccess(ListenerSubscription result) throws Exception {
+				log.trace("PARTICIPANT {}: Listening to the outgoing candidates", WebUser.this.getName());
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("PARTICIPANT {}: Could not listen to the outgoing candidates", WebUser.this.getName());
 			}
 		});
 	}
@@ -165,7 +510,14 @@ public class WebUser extends Participant {
 
 		log.trace("USER {}: SdpOffer for {} is {}", this.name, sender.getName(), sdpOffer);
 
-		WebRtcEndpoint ep = this.getEndpointForUser(sender, type, room);
+		// Offer sent before the room has switched back to MCU
+		if ("sfu".equals(type) && (topology != Topology.SFU || sender == this))
+			return;
+
+		// Kept from here, the sender may leave or the room switch meanwhile
+		final Subscription subscription = "sfu".equals(type) ? subscribe(sender) : null;
+		WebRtcEndpoint ep = (subscription != null) ? subscription.endpoint
+				: this.getEndpointForUser(sender, type, room);
 
 		try {
 			if (ep.getLocalSessionDescriptor() != null)
@@ -177,6 +529,14 @@ public class WebUser extends Participant {
 
 		log.trace("USER {}: SdpAnswer for {} is {}", this.name, sender.getName(), ipSdpAnswer);
 
+		// The candidates received so far can be used now
+		if (subscription != null)
+			subscription.remoteCandidates.open();
+		else if (ep == sharingMedia)
+			remoteSharingCandidates.open();
+		else
+			remoteOutgoingCandidates.open();
+
 		log.debug("gather candidates");
 		ep.gatherCandidates();
 
@@ -187,6 +547,11 @@ public class WebUser extends Participant {
 		scParams.addProperty("sdpAnswer", ipSdpAnswer);
 		scParams.addProperty("type", type);
 		this.sendMessage(scParams);
+
+		if (!answered && "composite".equals(type)) {
+			answered = true;
+			log.info("USER {}: receiveVideoAnswer sent {} ms after joining", this.name, getElapsedSinceCreation());
+		}
 	}
 
 	/**
@@ -204,28 +569,25 @@ public class WebUser extends Participant {
 			if ((this.isScreensharer && this.equals(sender)) || (sender.isScreensharer)) {
 
 				if (this.sharingMedia == null) {
+					final MediaPipeline pipeline = room.getPresentationPipeline();
+
+					// The presentation has ended meanwhile
+					if (pipeline == null)
+						throw new IllegalStateException("No presentation in room " + room.getName());
 
-					this.sharingMedia = new WebRtcEndpoint.Builder(presentationPipeline).build();
+					this.sharingMedia = new WebRtcEndpoint.Builder(pipeline).build();
+					this.sharingPipeline = pipeline;
 
 					final Participant presenter = (this.isScreensharer) ? this : sender;
+					final Batcher<IceCandidate> candidates = candidatesToBrowser(presenter.getId(), presenter.getName(),
+							type);
+					this.sharingCandidates = candidates;
 
 					this.sharingMedia.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
 
 						@Override
 						public void onEvent(OnIceCandidateEvent event) {
-							JsonObject response = new JsonObject();
-							response.addProperty("id", "iceCandidate");
-							response.addProperty("name", presenter.getName());
-							response.addProperty("userId", presenter.getId());
-							response.addProperty("type", type);
-							response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-							try {
-								synchronized (session) {
-									session.sendMessage(new TextMessage(response.toString()));
-								}
-							} catch (IOException e) {
-								log.debug(e.getMessage());
-							}
+							candidates.add(event.getCandidate());
 						}
 					});
 
@@ -240,7 +602,7 @@ public class WebUser extends Participant {
 				}
 
 				if (!this.isScreensharer)
-					sender.getSharingMedia().connect(sharingMedia);
+					room.connectToPresentation(sender, this.getId(), sharingMedia);
 
 				return this.sharingMedia;
 
@@ -250,6 +612,70 @@ public class WebUser extends Participant {
 		return this.getOutgoingWebRtcPeer();
 	}
 
+	/**
+	 * Receive the video of another user straight from its endpoint
+	 * 
+	 * @param sender
+	 *            - the other user
+	 * @return - the subscription to the video of the user
+	 */
+	private Subscription subscribe(WebUser sender) {
+		Subscription subscription = subscriptions.get(sender.getId());
+
+		if (subscription == null) {
+			final Subscription created = new Subscription(sender);
+			subscription = subscriptions.putIfAbsent(sender.getId(), created);
+
+			// Subscribed meanwhile from another thread
+			if (subscription != null)
+				created.release();
+			else
+				subscription = created;
+		}
+
+		return subscription;
+	}
+
+	/**
+	 * Stop receiving the video of another user, e.g. when it leaves
+	 * 
+	 * @param senderId
+	 *            - identifier of the other user
+	 */
+	public void unsubscribe(String senderId) {
+		Subscription subscription = subscriptions.remove(senderId);
+
+		if (subscription != null)
+			subscription.release();
+	}
+
+	/**
+	 * Receive again the video of another user whose outgoing media has been
+	 * renewed. The endpoint of the subscription is kept, so the browser has
+	 * nothing to negotiate again.
+	 * 
+	 * @param sender
+	 *            - the other user
+	 */
+	public void resubscribe(WebUser sender) {
+		final Subscription subscription = subscriptions.get(sender.getId());
+		final WebRtcEndpoint source = sender.getOutgoingWebRtcPeer();
+
+		if (subscription == null || source == null)
+			return;
+
+		Transaction tx = sender.compositePipeline.beginTransaction();
+		source.connect(tx, subscription.endpoint, MediaType.VIDEO);
+		tx.commit(asyncLog("Receiving the renewed video of " + sender.getName(),
+				"Could not receive the renewed video of " + sender.getName()));
+	}
+
+	private void releaseSubscriptions() {
+		for (String senderId : subscriptions.keySet()) {
+			unsubscribe(senderId);
+		}
+	}
+
 	/**
 	 * Allow to cancel the presentation by releasing the sharing WebRtcEndpoint
 	 */
@@ -261,19 +687,106 @@ public class WebUser extends Participant {
 	}
 
 	/**
-	 * Process an ICE candidate sent by the remote peer of the connection.
+	 * Process an ICE candidate sent by the remote peer of the connection. The
+	 * candidates are kept until the offer of the endpoint has been processed,
+	 * then given to the endpoint in batches.
 	 * 
 	 * @param e
 	 *            - remote ICE candidate
 	 * @param type
+	 *            - String equals to null, composite or sfu
+	 * @param senderId
+	 *            - identifier of the user whose video is received, for sfu
+	 */
+	public void addCandidate(IceCandidate e, String type, String senderId) {
+		if (type.equals("composite")) {
+			remoteOutgoingCandidates.add(e);
+		} else if (type.equals("sfu")) {
+			Subscription subscription = (senderId != null) ? subscriptions.get(senderId) : null;
+
+			if (subscription != null)
+				subscription.remoteCandidates.add(e);
+			else
+				log.debug("USER {}: candidate for an unknown subscription to {}", this.name, senderId);
+		} else {
+			remoteSharingCandidates.add(e);
+		}
+	}
+
+	/**
+	 * Batch the candidates of an endpoint of the server into iceCandidates
+	 * messages
+	 * 
+	 * @param senderId
+	 *            - identifier of the user whose media goes through the endpoint
+	 * @param senderName
+	 *            - name of this user, null if not sent
+	 * @param type
 	 *            - String equals to null or composite
 	 */
-	public void addCandidate(IceCandidate e, String type) {
+	private Batcher<IceCandidate> candidatesToBrowser(final String senderId, final String senderName,
+			final String type) {
+		return new Batcher<>(CANDIDATES_MAX, CANDIDATES_WINDOW, TimeUnit.MILLISECONDS, Batcher.sharedTimer(),
+				new Batcher.Sink<IceCandidate>() {
+
+					@Override
+					public void flush(List<IceCandidate> items) {
+						JsonArray candidates = new JsonArray();
+
+						for (IceCandidate candidate : items) {
+							candidates.add(JsonUtils.toJsonObject(candidate));
+						}
+
+						JsonObject response = new JsonObject();
+						response.addProperty("id", "iceCandidates");
+						response.addProperty("userId", senderId);
+
+						if (senderName != null)
+							response.addProperty("name", senderName);
+
+						response.addProperty("type", type);
+						response.add("candidates", candidates);
+
+						try {
+							sendMessage(response);
+						} catch (IOException e) {
+							log.debug(e.getMessage());
+						}
+
+						log.trace("USER {}: {} {} candidates sent in one message", WebUser.this.getName(),
+								items.size(), type);
+					}
+				}, false);
+	}
+
+	/**
+	 * Batch the candidates of the browser for an endpoint of the server. Each
+	 * batch is added in one transaction.
+	 * 
+	 * @param composite
+	 *            - true for the outgoing endpoint, false for the sharing one
+	 */
+	private Batcher<IceCandidate> candidatesToServer(final boolean composite) {
+		return new Batcher<>(CANDIDATES_MAX, CANDIDATES_WINDOW, TimeUnit.MILLISECONDS, Batcher.sharedTimer(),
+				new Batcher.Sink<IceCandidate>() {
 
-		WebRtcEndpoint ep = (type.equals("composite")) ? this.getOutgoingWebRtcPeer() : sharingMedia;
+					@Override
+					public void flush(List<IceCandidate> items) {
+						WebRtcEndpoint ep = composite ? outgoingMedia : sharingMedia;
 
-		if (ep != null)
-			ep.addIceCandidate(e);
+						if (ep == null)
+							return;
+
+						Transaction tx = (composite ? compositePipeline : sharingPipeline).beginTransaction();
+
+						for (IceCandidate candidate : items) {
+							ep.addIceCandidate(tx, candidate);
+						}
+
+						tx.commit(asyncLog(items.size() + " remote candidates added",
+								"Could not add " + items.size() + " remote candidates"));
+					}
+				}, true);
 	}
 
 	/**
@@ -298,6 +811,10 @@ public class WebUser extends Participant {
 		log.debug("PARTICIPANT {}: Releasing resources", this.getName());
 		super.releaseHubPort();
 
+		outgoingCandidates.clear();
+		remoteOutgoingCandidates.clear();
+
+		releaseSubscriptions();
 		releaseOutgoingMedia();
 		releaseSharingMedia();
 	}
@@ -318,27 +835,125 @@ public class WebUser extends Participant {
 	 * disconnetion the webrtc endpoint
 	 */
 	private void releaseSharingMedia() {
+		if (sharingCandidates != null) {
+			sharingCandidates.clear();
+			sharingCandidates = null;
+		}
+
+		remoteSharingCandidates.clear();
+		remoteSharingCandidates.hold();
+
 		if (sharingMedia != null) {
 			sharingMedia.release(asyncLog("Released sharing endpoint", "Could not release sharing ep"));
 			sharingMedia = null;
+			sharingPipeline = null;
 		}
 	}
 
 	/**
-	 * 
-	 * @return - a Calender
+	 * Follow the media and ICE states of the outgoing endpoint, to find out
+	 * when the media of the user stops flowing. The events of an endpoint
+	 * renewed meanwhile are left out.
 	 */
-	public Calendar getLastPing() {
-		return lastPing;
+	private void listenOutgoingState() {
+		final WebRtcEndpoint ep = this.outgoingMedia;
+
+		mediaFlowing = false;
+		iceConnected = false;
+		stalledSince = -1;
+		iceRestartedAt = -1;
+
+		final Continuation<ListenerSubscription> subscribed = new Continuation<ListenerSubscription>() {
+
+			@Override
+			public void onSuccess(ListenerSubscription result) throws Exception {
+				log.trace("PARTICIPANT {}: Listening to the state of the outgoing media", WebUser.this.getName());
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("PARTICIPANT {}: Could not listen to the state of the outgoing media",
+						WebUser.this.getName());
+			}
+		};
+
+		ep.addMediaStateChangedListener(new EventListener<MediaStateChangedEvent>() {
+
+			@Override
+			public void onEvent(MediaStateChangedEvent event) {
+				if (ep == outgoingMedia)
+					onOutgoingState(event.getNewState() == MediaState.CONNECTED, iceConnected);
+			}
+		}, subscribed);
+
+		ep.addConnectionStateChangedListener(new EventListener<ConnectionStateChangedEvent>() {
+
+			@Override
+			public void onEvent(ConnectionStateChangedEvent event) {
+				if (ep == outgoingMedia)
+					onOutgoingState(mediaFlowing, event.getNewState() == ConnectionState.CONNECTED);
+			}
+		}, subscribed);
+	}
+
+	private void onOutgoingState(boolean flowing, boolean connected) {
+		boolean wasUp = mediaFlowing && iceConnected;
+		mediaFlowing = flowing;
+		iceConnected = connected;
+
+		if (flowing && connected) {
+			if (stalledSince >= 0)
+				log.info("USER {}: media flowing again after {} ms", this.name, now() - stalledSince);
+
+			stalledSince = -1;
+		} else if (wasUp) {
+			stalledSince = now();
+			log.info("USER {}: media stopped flowing (media {}, ICE {})", this.name,
+					flowing ? "connected" : "disconnected", connected ? "connected" : "disconnected");
+		}
 	}
 
 	/**
-	 * Set a Calendar
-	 * 
-	 * @param now
+	 * @return the time the outgoing media stopped flowing, in milliseconds of
+	 *         System.nanoTime(), -1 if it flows or has not flowed yet
 	 */
-	public void setLastPing(Calendar now) {
-		this.lastPing = now;
+	public long getStalledSince() {
+		return stalledSince;
+	}
+
+	/**
+	 * Give the stalled outgoing media a new ICE round on its own endpoint,
+	 * before it is rebuilt. The media server cannot restart ICE with new
+	 * credentials, which would need a new negotiation: the endpoint gathers
+	 * its candidates again, and the browser is sent every one of them again,
+	 * so that the pairs are checked anew and a changed network is picked up.
+	 */
+	public void restartIce() {
+		final WebRtcEndpoint ep = outgoingMedia;
+
+		if (ep == null)
+			return;
+
+		iceRestartedAt = now();
+
+		for (IceCandidate candidate : localCandidates) {
+			outgoingCandidates.add(candidate);
+		}
+
+		ep.gatherCandidates(asyncLog("Gathering the candidates again", "Could not gather the candidates again"));
+	}
+
+	/**
+	 * @return the time the ICE of the outgoing media was last restarted, in
+	 *         milliseconds of System.nanoTime(), -1 if it was not since the
+	 *         endpoint was built
+	 */
+	public long getIceRestartedAt() {
+		return iceRestartedAt;
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
 	}
 
 	/**
@@ -363,4 +978,55 @@ public class WebUser extends Participant {
 			}
 		};
 	}
+
+	/**
+	 * Endpoint receiving the video of another user in SFU, with its own
+	 * candidates
+	 */
+	private class Subscription {
+
+		private final WebRtcEndpoint endpoint;
+		private final Batcher<IceCandidate> candidates;
+		private final Batcher<IceCandidate> remoteCandidates;
+
+		Subscription(WebUser sender) {
+			final MediaPipeline pipeline = sender.compositePipeline;
+
+			Transaction tx = pipeline.beginTransaction();
+			this.endpoint = buildEndpoint(pipeline, tx);
+			sender.getOutgoingWebRtcPeer().connect(tx, endpoint, MediaType.VIDEO);
+			tx.commit();
+
+			this.candidates = candidatesToBrowser(sender.getId(), sender.getName(), "sfu");
+			this.remoteCandidates = new Batcher<>(CANDIDATES_MAX, CANDIDATES_WINDOW, TimeUnit.MILLISECONDS,
+					Batcher.sharedTimer(), new Batcher.Sink<IceCandidate>() {
+
+						@Override
+						public void flush(List<IceCandidate> items) {
+							Transaction tx = pipeline.beginTransaction();
+
+							for (IceCandidate candidate : items) {
+								endpoint.addIceCandidate(tx, candidate);
+							}
+
+							tx.commit(asyncLog(items.size() + " remote candidates added",
+									"Could not add " + items.size() + " remote candidates"));
+						}
+					}, true);
+
+			endpoint.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
+
+				@Override
+				public void onEvent(OnIceCandidateEvent event) {
+					candidates.add(event.getCandidate());
+				}
+			});
+		}
+
+		void release() {
+			candidates.clear();
+			remoteCandidates.clear();
+			endpoint.release(asyncLog("Released subscription endpoint", "Could not release subscription endpoint"));
+		}
+	}
 }
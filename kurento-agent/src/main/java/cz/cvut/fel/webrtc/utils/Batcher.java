@@ -0,0 +1,175 @@
+package cz.cvut.fel.webrtc.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group items arriving one by one and hand them over together, once the batch
+ * is full or once the first item has waited for the window. A batcher can be
+ * held: it keeps its items until it is opened, e.g. until the endpoint they
+ * are meant for is ready. The items are always handed over in their order of
+ * arrival.
+ *
+ * @param <T>
+ *            - type of the items
+ */
+public class Batcher<T> {
+
+	/**
+	 * Receiver of the batches. It is called with the lock of the batcher held,
+	 * so it must not block.
+	 */
+	public interface Sink<T> {
+
+		void flush(List<T> items);
+	}
+
+	private static final ScheduledExecutorService sharedTimer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "batcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final int maxSize;
+	private final long window;
+	private final ScheduledExecutorService timer;
+	private final Sink<T> sink;
+
+	private List<T> items = new ArrayList<>();
+	private boolean held;
+	private ScheduledFuture<?> scheduledFlush;
+
+	private final Runnable flushTask = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Constructor of Batcher
+	 *
+	 * @param maxSize
+	 *            - number of items which triggers a flush
+	 * @param window
+	 *            - longest wait of an item before a flush
+	 * @param unit
+	 *            - unit of the window
+	 * @param timer
+	 *            - executor of the delayed flushes
+	 * @param sink
+	 *            - receiver of the batches
+	 * @param held
+	 *            - true to keep the items until the batcher is opened
+	 */
+	public Batcher(int maxSize, long window, TimeUnit unit, ScheduledExecutorService timer, Sink<T> sink,
+			boolean held) {
+		this.maxSize = maxSize;
+		this.window = unit.toNanos(window);
+		this.timer = timer;
+		this.sink = sink;
+		this.held = held;
+	}
+
+	/**
+	 * @return a timer shared by the batchers of the application
+	 */
+	public static ScheduledExecutorService sharedTimer() {
+		return sharedTimer;
+	}
+
+	/**
+	 * Add an item to the current batch
+	 *
+	 * @param item
+	 *            - the item
+	 */
+	public synchronized void add(T item) {
+		items.add(item);
+
+		if (held)
+			return;
+
+		if (items.size() >= maxSize)
+			flush();
+		else if (scheduledFlush == null)
+			schedule();
+	}
+
+	/**
+	 * Hand over the current batch right away
+	 */
+	public synchronized void flush() {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+
+		if (held || items.isEmpty())
+			return;
+
+		List<T> batch = items;
+		items = new ArrayList<>();
+		sink.flush(batch);
+	}
+
+	/**
+	 * Stop handing over the items until the batcher is opened
+	 */
+	public synchronized void hold() {
+		held = true;
+
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+	}
+
+	/**
+	 * Hand over the items kept while the batcher was held, and batch the next
+	 * ones as usual
+	 */
+	public synchronized void open() {
+		held = false;
+		flush();
+	}
+
+	/**
+	 * Drop the items not handed over yet
+	 */
+	public synchronized void clear() {
+		items.clear();
+
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+	}
+
+	/**
+	 * @return the number of items waiting
+	 */
+	public synchronized int size() {
+		return items.size();
+	}
+
+	private void schedule() {
+		try {
+			scheduledFlush = timer.schedule(flushTask, window, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			flush();
+		}
+	}
+}
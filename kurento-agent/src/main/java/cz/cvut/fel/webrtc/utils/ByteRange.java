@@ -0,0 +1,117 @@
+package cz.cvut.fel.webrtc.utils;
+
+/**
+ * Part of a file asked for with the Range header of an HTTP request. Only a
+ * single range of bytes is served, a request for several ranges gets the
+ * whole file, which HTTP allows.
+ *
+ */
+public class ByteRange {
+
+	/**
+	 * A range starting past the end of the file
+	 */
+	public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+	private final long start;
+	private final long end;
+
+	private ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Read the Range header of a request
+	 *
+	 * @param header
+	 *            - value of the header, may be null
+	 * @param length
+	 *            - length of the file
+	 * @return - the range, UNSATISFIABLE if it lies past the end of the file,
+	 *         null if the whole file is to be sent
+	 */
+	public static ByteRange parse(String header, long length) {
+		if (header == null)
+			return null;
+
+		header = header.trim();
+
+		if (!header.startsWith("bytes=") || header.indexOf(',') >= 0)
+			return null;
+
+		String spec = header.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+
+		if (dash < 0)
+			return null;
+
+		String first = spec.substring(0, dash).trim();
+		String last = spec.substring(dash + 1).trim();
+
+		try {
+			if (first.isEmpty()) {
+				// The last bytes of the file
+				long suffix = Long.parseLong(last);
+
+				if (suffix < 0)
+					return null;
+
+				if (suffix == 0 || length == 0)
+					return UNSATISFIABLE;
+
+				return new ByteRange(Math.max(0, length - suffix), length - 1);
+			}
+
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+
+			if (start < 0 || end < start)
+				return null;
+
+			if (start >= length)
+				return UNSATISFIABLE;
+
+			return new ByteRange(start, Math.min(end, length - 1));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return false if the range lies past the end of the file
+	 */
+	public boolean isSatisfiable() {
+		return start >= 0;
+	}
+
+	/**
+	 * @return the first byte of the range
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the last byte of the range, included
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return the number of bytes of the range
+	 */
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * @param length
+	 *            - length of the file
+	 * @return the value of the Content-Range header of the response
+	 */
+	public String toContentRange(long length) {
+		return isSatisfiable() ? "bytes " + start + "-" + end + "/" + length : "bytes */" + length;
+	}
+}
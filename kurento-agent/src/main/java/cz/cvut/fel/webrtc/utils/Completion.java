@@ -0,0 +1,46 @@
+package cz.cvut.fel.webrtc.utils;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.kurento.client.Continuation;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Result of an asynchronous operation waited for by another thread, e.g. a
+ * signaling thread waiting for a room to let a user in. Never waited for on
+ * the thread which completes it, the loop of a room would wait for itself.
+ *
+ */
+public class Completion<T> implements Continuation<T> {
+
+	private final SettableFuture<T> future = SettableFuture.create();
+
+	@Override
+	public void onSuccess(T result) {
+		future.set(result);
+	}
+
+	@Override
+	public void onError(Throwable cause) {
+		future.setException(cause);
+	}
+
+	/**
+	 * Wait for the operation to end
+	 * 
+	 * @return - the result of the operation
+	 * @throws Exception
+	 *             - the exception the operation failed with
+	 */
+	public T await() throws Exception {
+		try {
+			return Uninterruptibles.getUninterruptibly(future);
+		} catch (ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), Exception.class);
+			throw e;
+		}
+	}
+}
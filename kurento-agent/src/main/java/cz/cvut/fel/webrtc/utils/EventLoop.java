@@ -0,0 +1,158 @@
+package cz.cvut.fel.webrtc.utils;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.kurento.client.Continuation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single thread running the tasks of the rooms bound to it, one at a time and
+ * in their order of submission. The state of a room is only changed from its
+ * loop, so it needs no lock.
+ *
+ */
+public class EventLoop implements Executor {
+
+	private static final Logger log = LoggerFactory.getLogger(EventLoop.class);
+
+	private final ExecutorService executor;
+	private volatile Thread thread;
+
+	/**
+	 * Constructor of EventLoop
+	 *
+	 * @param name
+	 *            - name of the thread of the loop
+	 */
+	public EventLoop(final String name) {
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				EventLoop.this.thread = thread;
+				return thread;
+			}
+		});
+	}
+
+	private EventLoop() {
+		this.executor = null;
+	}
+
+	/**
+	 * Loop running the tasks on the calling thread, for the rooms used by a
+	 * single thread
+	 *
+	 * @return - a new loop
+	 */
+	public static EventLoop direct() {
+		return new EventLoop();
+	}
+
+	/**
+	 * @return true if the calling thread is the thread of the loop
+	 */
+	public boolean inEventLoop() {
+		return executor == null || Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Run a task later on the loop
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if (executor == null)
+			task.run();
+		else
+			executor.execute(task);
+	}
+
+	/**
+	 * Run a task on the loop and wait for its result. Called from the loop,
+	 * the task runs immediately.
+	 *
+	 * @param task
+	 *            - the task
+	 * @return - the result of the task
+	 * @throws Exception
+	 *             - the exception thrown by the task
+	 */
+	public <T> T call(Callable<T> task) throws Exception {
+		if (inEventLoop())
+			return task.call();
+
+		FutureTask<T> future = new FutureTask<>(task);
+		executor.execute(future);
+
+		try {
+			return Uninterruptibles.getUninterruptibly(future);
+		} catch (ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), Exception.class);
+			throw e;
+		}
+	}
+
+	/**
+	 * Hand the result of an asynchronous call of the media server to a
+	 * continuation run on the loop, where it may change the state of the
+	 * rooms. The thread of the client is not held meanwhile.
+	 * 
+	 * @param continuation
+	 *            - the continuation, run on the loop
+	 * @return - the continuation to give to the call
+	 */
+	public <T> Continuation<T> onLoop(final Continuation<T> continuation) {
+		return new Continuation<T>() {
+
+			@Override
+			public void onSuccess(final T result) throws Exception {
+				execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							continuation.onSuccess(result);
+						} catch (Exception e) {
+							log.warn("Could not handle the result of a call", e);
+						}
+					}
+				});
+			}
+
+			@Override
+			public void onError(final Throwable cause) throws Exception {
+				execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							continuation.onError(cause);
+						} catch (Exception e) {
+							log.warn("Could not handle the failure of a call", e);
+						}
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * Stop the loop once its tasks have run
+	 */
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+}
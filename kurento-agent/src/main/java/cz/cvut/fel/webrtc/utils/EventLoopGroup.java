@@ -0,0 +1,52 @@
+package cz.cvut.fel.webrtc.utils;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of event loops shared by the rooms. A room is always bound to the
+ * same loop, and the new rooms are given the loops in turn.
+ *
+ */
+public class EventLoopGroup {
+
+	private final EventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Constructor of EventLoopGroup
+	 *
+	 * @param size
+	 *            - number of loops, usually the number of cores
+	 */
+	public EventLoopGroup(int size) {
+		this.loops = new EventLoop[Math.max(1, size)];
+
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop("room-loop-" + (i + 1));
+		}
+	}
+
+	/**
+	 * Loop for a new room, the loops are given in turn
+	 *
+	 * @return - the loop of the room
+	 */
+	public EventLoop next() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * @return the number of loops
+	 */
+	public int size() {
+		return loops.length;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package cz.cvut.fel.webrtc.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.kurento.client.IceCandidate;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Message received from a browser. It is decoded with a streaming parser
+ * straight into its fields, without building a JSON tree: the fields which
+ * are not used by the server are skipped, and a stay-alive is returned as soon
+ * as its id is read.
+ *
+ */
+public class InboundMessage {
+
+	private String id;
+	private String userId;
+	private String name;
+	private String room;
+	private String roomName;
+	private String userName;
+	private String sdpOffer;
+	private String type;
+	private String callee;
+	private String role;
+
+	// onIceCandidate
+	private String candidate;
+	private String sdpMid;
+	private int sdpMLineIndex;
+
+	/**
+	 * Decode a message
+	 *
+	 * @param payload
+	 *            - the JSON message
+	 * @return - the message
+	 * @throws IOException
+	 *             - if the message is not a JSON object or has no id
+	 */
+	public static InboundMessage decode(String payload) throws IOException {
+		JsonReader reader = new JsonReader(new StringReader(payload));
+		reader.setLenient(true);
+
+		InboundMessage message = new InboundMessage();
+		reader.beginObject();
+
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "id":
+				message.id = nextString(reader);
+
+				// Nothing else to read
+				if ("stay-alive".equals(message.id))
+					return message;
+
+				break;
+			case "userId":
+				message.userId = nextString(reader);
+				break;
+			case "name":
+				message.name = nextString(reader);
+				break;
+			case "room":
+				message.room = nextString(reader);
+				break;
+			case "roomName":
+				message.roomName = nextString(reader);
+				break;
+			case "userName":
+				message.userName = nextString(reader);
+				break;
+			case "sdpOffer":
+				message.sdpOffer = nextString(reader);
+				break;
+			case "type":
+				message.type = nextString(reader);
+				break;
+			case "callee":
+				message.callee = nextString(reader);
+				break;
+			case "role":
+				message.role = nextString(reader);
+				break;
+			case "candidate":
+				readCandidate(reader, message);
+				break;
+			default:
+				reader.skipValue();
+				break;
+			}
+		}
+
+		reader.endObject();
+
+		if (message.id == null)
+			throw new IOException("Message without id");
+
+		return message;
+	}
+
+	private static void readCandidate(JsonReader reader, InboundMessage message) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return;
+		}
+
+		reader.beginObject();
+
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "candidate":
+				message.candidate = nextString(reader);
+				break;
+			case "sdpMid":
+				message.sdpMid = nextString(reader);
+				break;
+			case "sdpMLineIndex":
+				if (reader.peek() == JsonToken.NULL)
+					reader.nextNull();
+				else
+					message.sdpMLineIndex = reader.nextInt();
+				break;
+			default:
+				reader.skipValue();
+				break;
+			}
+		}
+
+		reader.endObject();
+	}
+
+	private static String nextString(JsonReader reader) throws IOException {
+		switch (reader.peek()) {
+		case STRING:
+		case NUMBER:
+			return reader.nextString();
+		case BOOLEAN:
+			return String.valueOf(reader.nextBoolean());
+		case NULL:
+			reader.nextNull();
+			return null;
+		default:
+			reader.skipValue();
+			return null;
+		}
+	}
+
+	/**
+	 * @return the type of the message
+	 */
+	public String getId() {
+		return id;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public String getRoomName() {
+		return roomName;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public String getSdpOffer() {
+		return sdpOffer;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getCallee() {
+		return callee;
+	}
+
+	/**
+	 * @return the role asked for in a joinRoom, "viewer" to only watch
+	 */
+	public String getRole() {
+		return role;
+	}
+
+	/**
+	 * @return the ICE candidate of an onIceCandidate, null if there is none
+	 */
+	public IceCandidate getIceCandidate() {
+		if (candidate == null)
+			return null;
+
+		return new IceCandidate(candidate, sdpMid, sdpMLineIndex);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("{id=").append(id);
+		append(builder, "userId", userId);
+		append(builder, "name", name);
+		append(builder, "room", room);
+		append(builder, "roomName", roomName);
+		append(builder, "userName", userName);
+		append(builder, "type", type);
+		append(builder, "callee", callee);
+		append(builder, "role", role);
+		append(builder, "candidate", candidate);
+
+		if (sdpOffer != null)
+			builder.append(", sdpOffer=").append(sdpOffer.length()).append(" chars");
+
+		return builder.append('}').toString();
+	}
+
+	private static void append(StringBuilder builder, String field, String value) {
+		if (value != null)
+			builder.append(", ").append(field).append('=').append(value);
+	}
+}
@@ -0,0 +1,184 @@
+package cz.cvut.fel.webrtc.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocketSession with a bounded outbound queue. The caller only enqueues the
+ * message, and at most one worker at a time writes the queue to the socket,
+ * so a slow client never blocks the thread sending to it. A session whose
+ * queue goes over its limits is treated as a slow consumer and is closed.
+ *
+ */
+public class QueuedSession extends WebSocketSessionDecorator {
+
+	private static final Logger log = LoggerFactory.getLogger(QueuedSession.class);
+
+	/**
+	 * Maximum number of messages written in one run, so that a busy session
+	 * gives the worker back to the other sessions
+	 */
+	private static final int FLUSH_BATCH = 32;
+
+	private final Executor executor;
+	private final int messageLimit;
+	private final int bufferSizeLimit;
+
+	private final Queue<WebSocketMessage<?>> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queuedMessages = new AtomicInteger();
+	private final AtomicInteger queuedBytes = new AtomicInteger();
+	private final AtomicBoolean flushing = new AtomicBoolean();
+	private final AtomicBoolean evicted = new AtomicBoolean();
+
+	private final Runnable flushTask = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Constructor of QueuedSession
+	 *
+	 * @param delegate
+	 *            - the session of the container
+	 * @param executor
+	 *            - executor running the writes
+	 * @param messageLimit
+	 *            - maximum number of queued messages
+	 * @param bufferSizeLimit
+	 *            - maximum number of queued bytes
+	 */
+	public QueuedSession(WebSocketSession delegate, Executor executor, int messageLimit, int bufferSizeLimit) {
+		super(delegate);
+		this.executor = executor;
+		this.messageLimit = messageLimit;
+		this.bufferSizeLimit = bufferSizeLimit;
+	}
+
+	/**
+	 * Enqueue the message. It never blocks on the network.
+	 *
+	 * @throws IOException
+	 *             - if the session is closed or has been evicted
+	 */
+	@Override
+	public void sendMessage(WebSocketMessage<?> message) throws IOException {
+		if (evicted.get() || !isOpen())
+			throw new IOException(String.format("Session %s is closed", getId()));
+
+		queue.add(message);
+		int messages = queuedMessages.incrementAndGet();
+		int bytes = queuedBytes.addAndGet(message.getPayloadLength());
+
+		if (messages > messageLimit || bytes > bufferSizeLimit) {
+			evict(messages, bytes);
+			return;
+		}
+
+		scheduleFlush();
+	}
+
+	/**
+	 * @return the number of messages waiting to be written
+	 */
+	public int getQueuedMessages() {
+		return queuedMessages.get();
+	}
+
+	/**
+	 * @return the number of bytes waiting to be written
+	 */
+	public int getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * @return true if the session has been closed as a slow consumer
+	 */
+	public boolean isEvicted() {
+		return evicted.get();
+	}
+
+	private void scheduleFlush() {
+		if (flushing.compareAndSet(false, true)) {
+			try {
+				executor.execute(flushTask);
+			} catch (RejectedExecutionException e) {
+				flushing.set(false);
+				log.warn("Session {}: cannot schedule the outbound queue", getId());
+			}
+		}
+	}
+
+	/**
+	 * Write a batch of queued messages. Only one flush runs at a time for a
+	 * session.
+	 */
+	private void flush() {
+		WebSocketMessage<?> message;
+		int written = 0;
+
+		while (written < FLUSH_BATCH && (message = queue.poll()) != null) {
+			queuedMessages.decrementAndGet();
+			queuedBytes.addAndGet(-message.getPayloadLength());
+
+			if (evicted.get())
+				continue;
+
+			try {
+				getDelegate().sendMessage(message);
+				written++;
+			} catch (Exception e) {
+				log.debug("Session {}: could not send message: {}", getId(), e.getMessage());
+			}
+		}
+
+		flushing.set(false);
+
+		if (!queue.isEmpty())
+			scheduleFlush();
+	}
+
+	/**
+	 * Close the session of a client which does not read its messages fast
+	 * enough. The queued messages are dropped.
+	 */
+	private void evict(int messages, int bytes) {
+		if (!evicted.compareAndSet(false, true))
+			return;
+
+		log.warn("Session {}: slow consumer ({} messages, {} bytes queued), closing it", getId(), messages, bytes);
+
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						getDelegate().close(CloseStatus.SESSION_NOT_RELIABLE);
+					} catch (IOException e) {
+						log.debug("Session {}: could not be closed: {}", getId(), e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warn("Session {}: cannot schedule the close of a slow consumer", getId());
+		}
+
+		scheduleFlush();
+	}
+}
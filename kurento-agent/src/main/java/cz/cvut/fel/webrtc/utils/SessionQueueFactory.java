@@ -0,0 +1,67 @@
+package cz.cvut.fel.webrtc.utils;
+
+import org.springframework.web.socket.WebSocketSession;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Create the QueuedSession of every WebSocket and own the pool of threads
+ * writing their messages.
+ *
+ */
+public class SessionQueueFactory {
+
+	private final ExecutorService executor;
+	private final int messageLimit;
+	private final int bufferSizeLimit;
+
+	/**
+	 * Constructor of SessionQueueFactory
+	 *
+	 * @param threads
+	 *            - number of threads writing to the sockets
+	 * @param messageLimit
+	 *            - maximum number of queued messages per session
+	 * @param bufferSizeLimit
+	 *            - maximum number of queued bytes per session
+	 */
+	public SessionQueueFactory(int threads, int messageLimit, int bufferSizeLimit) {
+		this.messageLimit = messageLimit;
+		this.bufferSizeLimit = bufferSizeLimit;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "ws-send-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Wrap the session of the container in a QueuedSession
+	 *
+	 * @param session
+	 *            - the session of the container
+	 * @return - the queued session
+	 */
+	public QueuedSession decorate(WebSocketSession session) {
+		return new QueuedSession(session, executor, messageLimit, bufferSizeLimit);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,216 @@
+package cz.cvut.fel.webrtc.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run the signaling of the sessions on a bounded pool of threads, away from
+ * the threads of the WebSocket container. The tasks of a session run one at a
+ * time and in their order of submission, while different sessions proceed in
+ * parallel. When too many tasks are waiting, the tasks offered are refused so
+ * that the caller can tell its client to retry later, while the ones which
+ * must run are still queued.
+ *
+ */
+public class SignalingExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(SignalingExecutor.class);
+
+	private final ThreadPoolExecutor pool;
+	private final int queueLimit;
+	private final int sessionQueueLimit;
+
+	private final ConcurrentMap<String, SessionQueue> queues = new ConcurrentHashMap<>();
+	private final AtomicInteger queuedTasks = new AtomicInteger();
+	private final AtomicLong rejectedTasks = new AtomicLong();
+
+	/**
+	 * Constructor of SignalingExecutor
+	 *
+	 * @param threads
+	 *            - number of threads running the signaling
+	 * @param queueLimit
+	 *            - maximum number of waiting tasks
+	 * @param sessionQueueLimit
+	 *            - maximum number of waiting tasks per session
+	 */
+	public SignalingExecutor(int threads, int queueLimit, int sessionQueueLimit) {
+		this.queueLimit = queueLimit;
+		this.sessionQueueLimit = sessionQueueLimit;
+		this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "signaling-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queue a task of a session, unless the executor is overloaded
+	 *
+	 * @param sessionId
+	 *            - identifier of the session
+	 * @param task
+	 *            - the task
+	 * @return - false if the task has been refused
+	 */
+	public boolean offer(String sessionId, Runnable task) {
+		SessionQueue queue = getQueue(sessionId);
+
+		if (queuedTasks.get() >= queueLimit || queue.size() >= sessionQueueLimit) {
+			long rejected = rejectedTasks.incrementAndGet();
+			log.warn("Session {}: signaling overloaded ({} tasks queued, {} for the session), {} tasks refused so far",
+					sessionId, queuedTasks.get(), queue.size(), rejected);
+			return false;
+		}
+
+		queue.add(task);
+		return true;
+	}
+
+	/**
+	 * Queue a task of a session which must not be refused, e.g. a message
+	 * continuing a negotiation or the cleanup of a closed session
+	 *
+	 * @param sessionId
+	 *            - identifier of the session
+	 * @param task
+	 *            - the task
+	 */
+	public void execute(String sessionId, Runnable task) {
+		getQueue(sessionId).add(task);
+	}
+
+	/**
+	 * Forget a session. The tasks it has already queued still run.
+	 *
+	 * @param sessionId
+	 *            - identifier of the session
+	 */
+	public void remove(String sessionId) {
+		queues.remove(sessionId);
+	}
+
+	/**
+	 * @return the number of tasks waiting to run
+	 */
+	public int getQueuedTasks() {
+		return queuedTasks.get();
+	}
+
+	/**
+	 * @return the number of tasks running
+	 */
+	public int getActiveTasks() {
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * @return the number of tasks refused since the start
+	 */
+	public long getRejectedTasks() {
+		return rejectedTasks.get();
+	}
+
+	/**
+	 * @return the number of sessions known by the executor
+	 */
+	public int getSessionCount() {
+		return queues.size();
+	}
+
+	private SessionQueue getQueue(String sessionId) {
+		SessionQueue queue = queues.get(sessionId);
+
+		if (queue == null) {
+			queue = new SessionQueue();
+			SessionQueue existing = queues.putIfAbsent(sessionId, queue);
+
+			if (existing != null)
+				queue = existing;
+		}
+
+		return queue;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Tasks of one session. At most one of them is given to the pool at a
+	 * time, and it runs a single task per turn so that a busy session does not
+	 * hold a thread.
+	 */
+	private class SessionQueue implements Runnable {
+
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		int size() {
+			return size.get();
+		}
+
+		void add(Runnable task) {
+			size.incrementAndGet();
+			queuedTasks.incrementAndGet();
+			tasks.add(task);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					pool.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+					log.warn("Signaling executor is shut down, task not run");
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			Runnable task = tasks.poll();
+
+			if (task != null) {
+				size.decrementAndGet();
+				queuedTasks.decrementAndGet();
+
+				try {
+					task.run();
+				} catch (Exception e) {
+					log.error("Signaling task failed", e);
+				}
+			}
+
+			scheduled.set(false);
+
+			if (!tasks.isEmpty())
+				schedule();
+		}
+	}
+}
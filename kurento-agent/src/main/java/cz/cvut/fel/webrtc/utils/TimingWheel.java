@@ -0,0 +1,156 @@
+package cz.cvut.fel.webrtc.utils;
+
+import com.google.common.base.Ticker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel tracking the keys which have not been touched for a
+ * given timeout. Touching a key only moves it to the slot of its new deadline,
+ * and an expiry pass only looks at the slots whose time has come, so its cost
+ * depends on the number of expired keys, not on the number of tracked keys.
+ * Times come from a monotonic Ticker.
+ *
+ * @param <K>
+ *            - type of the keys
+ */
+public class TimingWheel<K> {
+
+	private final Ticker ticker;
+	private final long timeout;
+	private final long tickDuration;
+	private final List<Set<K>> slots;
+	private final Map<K, Entry> entries = new HashMap<>();
+
+	// Next tick to be expired
+	private long currentTick;
+
+	/**
+	 * Constructor of TimingWheel
+	 *
+	 * @param timeout
+	 *            - time after which an untouched key expires
+	 * @param tickDuration
+	 *            - precision of the wheel
+	 * @param unit
+	 *            - unit of the timeout and of the tick duration
+	 * @param ticker
+	 *            - source of the time
+	 */
+	public TimingWheel(long timeout, long tickDuration, TimeUnit unit, Ticker ticker) {
+		this.ticker = ticker;
+		this.timeout = unit.toNanos(timeout);
+		this.tickDuration = unit.toNanos(tickDuration);
+
+		// One turn of the wheel covers the timeout
+		int size = (int) (this.timeout / this.tickDuration) + 2;
+		this.slots = new ArrayList<>(size);
+
+		for (int i = 0; i < size; i++) {
+			slots.add(new LinkedHashSet<K>());
+		}
+
+		this.currentTick = tick(ticker.read());
+	}
+
+	/**
+	 * Start tracking a key or push back its deadline
+	 *
+	 * @param key
+	 *            - the key
+	 */
+	public synchronized void touch(K key) {
+		long tick = tick(ticker.read() + timeout) + 1;
+		Entry entry = entries.get(key);
+
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(key, entry);
+		} else if (entry.tick == tick) {
+			return;
+		} else {
+			slot(entry.tick).remove(key);
+		}
+
+		entry.tick = tick;
+		slot(tick).add(key);
+	}
+
+	/**
+	 * Stop tracking a key
+	 *
+	 * @param key
+	 *            - the key
+	 */
+	public synchronized void remove(K key) {
+		Entry entry = entries.remove(key);
+
+		if (entry != null)
+			slot(entry.tick).remove(key);
+	}
+
+	/**
+	 * @param key
+	 *            - the key
+	 * @return true if the key is tracked
+	 */
+	public synchronized boolean contains(K key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * @return the number of tracked keys
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Remove and return the keys whose deadline has passed
+	 *
+	 * @return - the expired keys
+	 */
+	public synchronized List<K> expire() {
+		List<K> expired = new ArrayList<>();
+		long now = tick(ticker.read());
+
+		// A whole turn visits every slot
+		if (now - currentTick >= slots.size())
+			currentTick = now - slots.size() + 1;
+
+		for (; currentTick <= now; currentTick++) {
+			Iterator<K> it = slot(currentTick).iterator();
+
+			while (it.hasNext()) {
+				K key = it.next();
+
+				if (entries.get(key).tick <= now) {
+					it.remove();
+					entries.remove(key);
+					expired.add(key);
+				}
+			}
+		}
+
+		return expired;
+	}
+
+	private long tick(long nanos) {
+		return nanos / tickDuration;
+	}
+
+	private Set<K> slot(long tick) {
+		return slots.get((int) (tick % slots.size()));
+	}
+
+	private static class Entry {
+		private long tick;
+	}
+}
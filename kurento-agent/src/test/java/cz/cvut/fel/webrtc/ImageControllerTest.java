@@ -0,0 +1,97 @@
+package cz.cvut.fel.webrtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+/**
+ * Tiles of the names of the participants, drawn once and then served from
+ * memory.
+ */
+public class ImageControllerTest {
+
+	private final ImageController controller = new ImageController(16, 2);
+
+	@Test
+	public void testTileIsAWholePng() throws IOException {
+		ResponseEntity<byte[]> response = controller.downloadUserAvatarImage("Alice", 320, 240, null);
+		byte[] png = response.getBody();
+
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertEquals(png.length, response.getHeaders().getContentLength());
+
+		BufferedImage img = ImageIO.read(new ByteArrayInputStream(png));
+		assertEquals(320, img.getWidth());
+		assertEquals(240, img.getHeight());
+	}
+
+	@Test
+	public void testTileIsDrawnOnce() throws IOException {
+		ResponseEntity<byte[]> first = controller.downloadUserAvatarImage("Alice", 320, 240, null);
+		ResponseEntity<byte[]> second = controller.downloadUserAvatarImage("Alice", 320, 240, null);
+
+		assertSame(first.getBody(), second.getBody());
+		assertEquals(first.getHeaders().getETag(), second.getHeaders().getETag());
+		assertEquals(1, controller.getCachedTiles());
+
+		controller.downloadUserAvatarImage("Alice", 640, 480, null);
+		controller.downloadUserAvatarImage("Bob", 320, 240, null);
+		assertEquals(3, controller.getCachedTiles());
+	}
+
+	@Test
+	public void testKnownTileIsNotSentAgain() throws IOException {
+		String etag = controller.downloadUserAvatarImage("Alice", 320, 240, null).getHeaders().getETag();
+		ResponseEntity<byte[]> response = controller.downloadUserAvatarImage("Alice", 320, 240, etag);
+
+		assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+		assertEquals(null, response.getBody());
+
+		response = controller.downloadUserAvatarImage("Bob", 320, 240, etag);
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertTrue(!etag.equals(response.getHeaders().getETag()));
+	}
+
+	@Test
+	public void testCacheIsBounded() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			controller.downloadUserAvatarImage("User " + i, 32, 32, null);
+		}
+
+		assertTrue(controller.getCachedTiles() <= 16);
+	}
+
+	@Test
+	public void testRendersAreLimited() throws IOException {
+		ImageController busy = new ImageController(16, 0);
+		ResponseEntity<byte[]> response = busy.downloadUserAvatarImage("Alice", 320, 240, null);
+
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+		assertEquals(0, busy.getCachedTiles());
+	}
+
+	@Test
+	public void testSizeIsBounded() throws IOException {
+		assertEquals(HttpStatus.BAD_REQUEST, controller.downloadUserAvatarImage("Alice", 0, 240, null)
+				.getStatusCode());
+		assertEquals(HttpStatus.BAD_REQUEST, controller.downloadUserAvatarImage("Alice", 320, 100000, null)
+				.getStatusCode());
+	}
+
+	@Test
+	public void testSameNameSameBytes() throws IOException {
+		assertArrayEquals(ImageController.render(new ImageController.Key("Alice", 320, 240)),
+				ImageController.render(new ImageController.Key("Alice", 320, 240)));
+	}
+}
@@ -0,0 +1,137 @@
+package cz.cvut.fel.webrtc.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Composite;
+import org.kurento.client.MediaPipeline;
+import org.mockito.Mockito;
+
+import com.google.common.base.Ticker;
+
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+
+public class MediaPoolTest {
+
+	private static final int SIZE = 3;
+	private static final long IDLE_TIMEOUT = 60;
+
+	private volatile long now;
+	private List<RoomMedia> created;
+	private ScheduledExecutorService executor;
+	private MediaPool pool;
+
+	@Before
+	public void setUp() {
+		now = 0;
+		created = new ArrayList<>();
+		executor = Executors.newSingleThreadScheduledExecutor();
+
+		Ticker ticker = new Ticker() {
+
+			@Override
+			public long read() {
+				return now;
+			}
+		};
+
+		pool = new MediaPool(SIZE, IDLE_TIMEOUT, ticker, executor) {
+
+			@Override
+			protected RoomMedia createMedia() {
+				RoomMedia media = Mockito.spy(new RoomMedia(Mockito.mock(MediaPipeline.class),
+						Mockito.mock(Composite.class)));
+
+				synchronized (created) {
+					created.add(media);
+				}
+
+				return media;
+			}
+		};
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Wait for the tasks already submitted to the pool thread
+	 */
+	private void drain() throws Exception {
+		executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		}).get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testMaintainFillsThePool() {
+		pool.maintain();
+
+		assertEquals(SIZE, pool.getIdleCount());
+		assertEquals(SIZE, created.size());
+	}
+
+	@Test
+	public void testAcquireTakesPooledMediaAndRefills() throws Exception {
+		pool.maintain();
+		RoomMedia media = pool.acquire();
+
+		assertEquals(created.get(0), media);
+
+		drain();
+		assertEquals(SIZE, pool.getIdleCount());
+		assertEquals(SIZE + 1, created.size());
+	}
+
+	@Test
+	public void testAcquireOnEmptyPool() throws Exception {
+		RoomMedia media = pool.acquire();
+
+		assertNotNull(media);
+
+		drain();
+		assertEquals(SIZE, pool.getIdleCount());
+	}
+
+	@Test
+	public void testDeadMediaIsDropped() {
+		pool.maintain();
+
+		RoomMedia dead = created.get(1);
+		Mockito.doReturn(false).when(dead).isAlive();
+
+		pool.maintain();
+
+		Mockito.verify(dead).release();
+		assertEquals(SIZE, pool.getIdleCount());
+		assertEquals(SIZE + 1, created.size());
+	}
+
+	@Test
+	public void testIdlePoolIsTrimmed() {
+		pool.maintain();
+
+		now += TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT + 1);
+		pool.maintain();
+
+		assertEquals(0, pool.getIdleCount());
+
+		for (RoomMedia media : created) {
+			Mockito.verify(media).release();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package cz.cvut.fel.webrtc.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Composite;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.ServerManager;
+
+import com.google.common.base.Ticker;
+
+import cz.cvut.fel.webrtc.resources.Room;
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+public class MediaServerPoolTest {
+
+	private static final List<String> URIS = Arrays.asList("ws://kms1:8888/kurento", "ws://kms2:8888/kurento",
+			"ws://kms3:8888/kurento");
+
+	private Map<String, ServerManager> managers;
+	private MediaServerPool pool;
+
+	@Before
+	public void setUp() {
+		managers = new HashMap<>();
+
+		// The loads are measured by the tests
+		pool = new MediaServerPool(URIS, 0, 60, mock(ScheduledExecutorService.class)) {
+
+			@Override
+			protected MediaServer connect(final String uri) {
+				final KurentoClient client = mock(KurentoClient.class);
+				ServerManager manager = mock(ServerManager.class);
+				when(client.getServerManager()).thenReturn(manager);
+				managers.put(uri, manager);
+
+				// Stand-in KMS: the media only knows its client
+				MediaPool mediaPool = new MediaPool(client, 0, 60, Ticker.systemTicker(),
+						Executors.newSingleThreadScheduledExecutor()) {
+
+					@Override
+					protected RoomMedia createMedia() {
+						return new RoomMedia(mock(MediaPipeline.class), mock(Composite.class), client);
+					}
+				};
+
+				return new MediaServer(uri, client, mediaPool);
+			}
+		};
+
+		pool.start();
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	private void load(String uri, float cpu, int pipelines) {
+		ServerManager manager = managers.get(uri);
+		when(manager.getUsedCpu(anyInt())).thenReturn(cpu);
+		when(manager.getPipelines()).thenReturn(Collections.nCopies(pipelines, mock(MediaPipeline.class)));
+	}
+
+	@Test
+	public void testRoomGoesToLeastLoadedServer() {
+		load(URIS.get(0), 80, 10);
+		load(URIS.get(1), 20, 10);
+		load(URIS.get(2), 50, 2);
+		pool.sample();
+
+		RoomMedia media = pool.acquire();
+		assertSame(pool.getServer(URIS.get(1)).getClient(), media.getKurentoClient());
+		assertEquals(1, pool.getServer(URIS.get(1)).getRooms());
+	}
+
+	@Test
+	public void testPipelinesCountInTheScore() {
+		load(URIS.get(0), 10, 40);
+		load(URIS.get(1), 30, 2);
+		load(URIS.get(2), 30, 4);
+		pool.sample();
+
+		assertSame(pool.getServer(URIS.get(1)), pool.select());
+	}
+
+	@Test
+	public void testBurstOfRoomsIsSpread() {
+		for (String uri : URIS) {
+			load(uri, 10, 0);
+		}
+
+		pool.sample();
+		List<Integer> rooms = new ArrayList<>();
+
+		for (int i = 0; i < 30; i++) {
+			pool.acquire();
+		}
+
+		for (MediaServer server : pool.getServers()) {
+			rooms.add(server.getRooms());
+		}
+
+		assertEquals(Arrays.asList(10, 10, 10), rooms);
+	}
+
+	@Test
+	public void testDrainedServerGetsNoRoom() {
+		load(URIS.get(0), 0, 0);
+		load(URIS.get(1), 50, 0);
+		load(URIS.get(2), 60, 0);
+		pool.sample();
+
+		assertTrue(pool.setDraining(URIS.get(0), true));
+		assertTrue(pool.getServer(URIS.get(0)).isDraining());
+
+		for (int i = 0; i < 10; i++) {
+			assertFalse(pool.select() == pool.getServer(URIS.get(0)));
+		}
+
+		assertTrue(pool.setDraining(URIS.get(0), false));
+		assertSame(pool.getServer(URIS.get(0)), pool.select());
+		assertFalse(pool.setDraining("ws://unknown:8888/kurento", true));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testEveryServerDrained() {
+		for (String uri : URIS) {
+			pool.setDraining(uri, true);
+		}
+
+		pool.acquire();
+	}
+
+	@Test
+	public void testUnavailableServerIsAvoided() {
+		load(URIS.get(0), 0, 0);
+		load(URIS.get(1), 90, 0);
+		load(URIS.get(2), 95, 0);
+		when(managers.get(URIS.get(0)).getUsedCpu(anyInt())).thenThrow(new RuntimeException("Connection refused"));
+		pool.sample();
+
+		assertFalse(pool.getServer(URIS.get(0)).isAvailable());
+		assertSame(pool.getServer(URIS.get(1)), pool.select());
+	}
+
+	@Test
+	public void testClosedRoomIsForgotten() {
+		load(URIS.get(0), 0, 0);
+		load(URIS.get(1), 50, 0);
+		load(URIS.get(2), 50, 0);
+		pool.sample();
+
+		Room room = new Room("room", pool.acquire(), EventLoop.direct());
+		assertEquals(1, pool.getServer(URIS.get(0)).getRooms());
+
+		pool.roomClosed(room);
+		assertEquals(0, pool.getServer(URIS.get(0)).getRooms());
+	}
+}
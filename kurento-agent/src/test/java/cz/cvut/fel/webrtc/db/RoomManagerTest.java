@@ -0,0 +1,167 @@
+package cz.cvut.fel.webrtc.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.message.Response;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.reflect.Whitebox;
+
+import cz.cvut.fel.webrtc.handlers.SipHandler;
+import cz.cvut.fel.webrtc.resources.Room;
+
+public class RoomManagerTest {
+
+	private static final int JOINS = 500;
+
+	private AtomicInteger created;
+	private volatile boolean failing;
+	private RoomManager manager;
+
+	@Before
+	public void setUp() {
+		created = new AtomicInteger();
+		failing = false;
+
+		manager = new RoomManager() {
+
+			@Override
+			protected Room createRoom(String roomName) {
+				created.incrementAndGet();
+
+				// Creating the media takes a few round trips to the KMS
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				if (failing)
+					throw new IllegalStateException("KMS unavailable");
+
+				return new Room(roomName);
+			}
+		};
+	}
+
+	@Test
+	public void testConcurrentJoinsCreateOneRoom() throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(JOINS);
+		final Room[] rooms = new Room[JOINS];
+		List<Thread> threads = new ArrayList<>();
+
+		for (int i = 0; i < JOINS; i++) {
+			final int index = i;
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						rooms[index] = manager.getRoom("roomTest");
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+
+		if (!done.await(30, TimeUnit.SECONDS))
+			fail("Joins did not complete");
+
+		assertEquals(1, created.get());
+
+		for (Room room : rooms) {
+			assertSame(rooms[0], room);
+		}
+	}
+
+	@Test
+	public void testRoomIsRegisteredOnce() throws Exception {
+		SipHandler sipHandler = Mockito.mock(SipHandler.class);
+		Whitebox.setInternalState(manager, "sipHandler", sipHandler);
+
+		Room room = manager.getRoom("roomTest");
+		manager.getRoom("roomTest");
+
+		Mockito.verify(sipHandler, Mockito.timeout(1000)).register(room, null);
+		Mockito.verify(sipHandler, Mockito.times(1)).register(Mockito.any(Room.class), Mockito.any(Response.class));
+	}
+
+	@Test
+	public void testRemovedRoomIsNotRegistered() throws Exception {
+		final CountDownLatch registering = new CountDownLatch(1);
+		final CountDownLatch removed = new CountDownLatch(1);
+		SipHandler sipHandler = Mockito.mock(SipHandler.class);
+		Whitebox.setInternalState(manager, "sipHandler", sipHandler);
+		Whitebox.setInternalState(manager, "mediaServers", Mockito.mock(MediaServerPool.class));
+
+		// The registration of the first room holds the SIP thread
+		Mockito.doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				registering.countDown();
+				removed.await(5, TimeUnit.SECONDS);
+				return null;
+			}
+		}).when(sipHandler).register(Mockito.any(Room.class), Mockito.any(Response.class));
+
+		Room first = manager.getRoom("first");
+		Room second = manager.getRoom("second");
+		registering.await(5, TimeUnit.SECONDS);
+
+		manager.removeRoom(second);
+		removed.countDown();
+
+		Mockito.verify(sipHandler, Mockito.timeout(1000)).register(first, null);
+		Thread.sleep(100);
+		Mockito.verify(sipHandler, Mockito.never()).register(second, null);
+		assertTrue(second.isClosing());
+	}
+
+	@Test
+	public void testGetRoomWithoutCreate() {
+		assertNull(manager.getRoom("roomTest", false));
+		assertEquals(0, created.get());
+	}
+
+	@Test
+	public void testFailedCreationIsRetried() {
+		failing = true;
+
+		try {
+			manager.getRoom("roomTest");
+			fail("The creation should fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		failing = false;
+		Room room = manager.getRoom("roomTest");
+
+		assertEquals(2, created.get());
+		assertSame(room, manager.getRoom("roomTest", false));
+	}
+}
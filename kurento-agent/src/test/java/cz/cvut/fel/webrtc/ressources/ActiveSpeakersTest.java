@@ -0,0 +1,187 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import cz.cvut.fel.webrtc.resources.ActiveSpeakers;
+
+/**
+ * Choice of the last speakers and of the dominant one from audio bitrates
+ * sampled every 500 ms
+ */
+public class ActiveSpeakersTest {
+
+	private static final double SILENCE = 8000;
+	private static final double SPEECH = 32000;
+	private static final double LOUD = 40000;
+
+	private ActiveSpeakers speakers;
+	private long now;
+
+	@Before
+	public void setUp() {
+		now = 0;
+	}
+
+	private void create(int lastN, int participants) {
+		speakers = new ActiveSpeakers(lastN, 1000, 1500);
+
+		for (int i = 0; i < participants; i++) {
+			speakers.add("user" + i, now);
+		}
+
+		// Learn the floor of everyone
+		for (int i = 0; i < 3; i++) {
+			round();
+		}
+	}
+
+	/**
+	 * One sample of every participant, silent unless a level is given
+	 */
+	private boolean round(double... levels) {
+		now += 500;
+
+		for (int i = 0; i < speakers.size(); i++) {
+			double level = i < levels.length && levels[i] > 0 ? levels[i] : SILENCE;
+			speakers.update("user" + i, level, now);
+		}
+
+		return speakers.select(now);
+	}
+
+	@Test
+	public void testFirstParticipantsAreForwarded() {
+		create(3, 5);
+
+		Assert.assertEquals(Arrays.asList("user0", "user1", "user2"), speakers.getForwarded());
+		Assert.assertFalse(speakers.isForwarded("user3"));
+		Assert.assertNull(speakers.getDominant());
+	}
+
+	@Test
+	public void testSpeakerReplacesTheLeastRecentOne() {
+		create(3, 5);
+
+		round(0, 0, 0, 0, SPEECH);
+		round(0, 0, 0, 0, SPEECH);
+		Assert.assertFalse(speakers.isForwarded("user4"));
+
+		round(0, 0, 0, 0, SPEECH);
+		Assert.assertTrue(speakers.isForwarded("user4"));
+		Assert.assertFalse(speakers.isForwarded("user0"));
+		Assert.assertEquals(3, speakers.getForwarded().size());
+	}
+
+	@Test
+	public void testShortBurstIsIgnored() {
+		create(3, 5);
+
+		round(0, 0, 0, 0, SPEECH);
+		round(0, 0, 0, 0, SPEECH);
+		round();
+		round();
+
+		Assert.assertFalse(speakers.isForwarded("user4"));
+		Assert.assertEquals(Arrays.asList("user0", "user1", "user2"), speakers.getForwarded());
+	}
+
+	@Test
+	public void testSpeakerIsNeverDropped() {
+		create(2, 4);
+
+		for (int i = 0; i < 20; i++) {
+			round(SPEECH, SPEECH, SPEECH);
+		}
+
+		// Both places are taken by people still talking
+		Assert.assertTrue(speakers.isForwarded("user0"));
+		Assert.assertTrue(speakers.isForwarded("user1"));
+		Assert.assertFalse(speakers.isForwarded("user2"));
+
+		// The first one to stop gives its place
+		round(SPEECH, 0, SPEECH);
+		round(SPEECH, 0, SPEECH);
+		Assert.assertTrue(speakers.isForwarded("user0"));
+		Assert.assertTrue(speakers.isForwarded("user2"));
+	}
+
+	@Test
+	public void testDominantSpeakerHolds() {
+		create(3, 5);
+
+		Assert.assertFalse(round(SPEECH));
+		Assert.assertFalse(round(SPEECH));
+		Assert.assertFalse(round(SPEECH));
+		Assert.assertNull(speakers.getDominant());
+
+		Assert.assertTrue(round(SPEECH));
+		Assert.assertEquals("user0", speakers.getDominant());
+
+		// Louder, but not for long enough yet
+		Assert.assertFalse(round(SPEECH, LOUD));
+		Assert.assertFalse(round(SPEECH, LOUD));
+		Assert.assertFalse(round(SPEECH, LOUD));
+		Assert.assertEquals("user0", speakers.getDominant());
+
+		Assert.assertTrue(round(SPEECH, LOUD));
+		Assert.assertEquals("user1", speakers.getDominant());
+		Assert.assertFalse(round(SPEECH, LOUD));
+	}
+
+	@Test
+	public void testAlternatingSpeakersDoNotFlap() {
+		create(3, 5);
+
+		for (int i = 0; i < 4; i++) {
+			round(SPEECH);
+		}
+
+		Assert.assertEquals("user0", speakers.getDominant());
+		int changes = 0;
+
+		for (int i = 0; i < 40; i++) {
+			if (i % 2 == 0 ? round(SPEECH, LOUD) : round(LOUD, SPEECH))
+				changes++;
+		}
+
+		Assert.assertEquals(0, changes);
+		Assert.assertEquals("user0", speakers.getDominant());
+	}
+
+	@Test
+	public void testDominantSpeakerIsForwarded() {
+		create(2, 4);
+
+		for (int i = 0; i < 4; i++) {
+			round(0, 0, 0, SPEECH);
+		}
+
+		Assert.assertEquals("user3", speakers.getDominant());
+		Assert.assertTrue(speakers.isForwarded("user3"));
+		Assert.assertEquals(2, speakers.getForwarded().size());
+	}
+
+	@Test
+	public void testRemoveGivesThePlaceToTheLastSpeaker() {
+		create(2, 4);
+
+		// user3 spoke last but was not long enough to take a place
+		round(0, 0, SPEECH, 0);
+		round(0, 0, SPEECH, 0);
+		round(0, 0, SPEECH, 0);
+		round(0, 0, 0, SPEECH);
+		round();
+
+		Assert.assertTrue(speakers.isForwarded("user2"));
+		Assert.assertFalse(speakers.isForwarded("user3"));
+
+		speakers.remove("user2");
+		Assert.assertTrue(speakers.isForwarded("user3"));
+		Assert.assertEquals(3, speakers.size());
+		Assert.assertNull(speakers.getDominant());
+	}
+}
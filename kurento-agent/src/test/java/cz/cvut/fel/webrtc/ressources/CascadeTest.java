@@ -0,0 +1,315 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Continuation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.cvut.fel.webrtc.resources.Cascade;
+import cz.cvut.fel.webrtc.resources.Shard;
+import cz.cvut.fel.webrtc.resources.ShardFactory;
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Placement of hundreds of participants in the shards of one room. The shards
+ * are stand-ins without media, built at once unless the test holds them.
+ */
+public class CascadeTest {
+
+	private static final Logger log = LoggerFactory.getLogger(CascadeTest.class);
+
+	private static final int CAPACITY = 50;
+
+	private Shard root;
+	private Cascade cascade;
+	private int created;
+	private int destroyed;
+
+	// Builds held by the test, answered when it calls build or refuse
+	private boolean holding;
+	private final List<Continuation<Shard>> held = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		created = 0;
+		destroyed = 0;
+		holding = false;
+		held.clear();
+		root = new Shard(null, null, null);
+
+		cascade = new Cascade(root, CAPACITY, new ShardFactory() {
+
+			@Override
+			public void create(Shard root, Continuation<Shard> built) {
+				created++;
+
+				if (holding)
+					held.add(built);
+				else
+					answer(built, new Shard(null, null, null));
+			}
+
+			@Override
+			public void destroy(Shard shard) {
+				destroyed++;
+			}
+		}, EventLoop.direct());
+	}
+
+	private static void answer(Continuation<Shard> built, Shard shard) {
+		try {
+			built.onSuccess(shard);
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return the shard of the participant, null until it is placed
+	 */
+	private Shard place(String participantId) {
+		final List<Shard> placed = new ArrayList<>();
+
+		cascade.place(participantId, new Continuation<Shard>() {
+
+			@Override
+			public void onSuccess(Shard shard) {
+				placed.add(shard);
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				placed.add(null);
+			}
+		});
+
+		return placed.isEmpty() ? null : placed.get(0);
+	}
+
+	private void checkShards() {
+		int total = 0;
+
+		for (Shard shard : cascade.getShards()) {
+			assertTrue(shard.size() <= CAPACITY);
+			total += shard.size();
+		}
+
+		assertEquals(cascade.size(), total);
+		assertSame(root, cascade.getShards().get(0));
+	}
+
+	@Test
+	public void testHundredsOfParticipantsJoin() {
+		long start = System.nanoTime();
+
+		for (int i = 0; i < 600; i++) {
+			place("user" + i);
+		}
+
+		log.info("600 participants placed in {} us", (System.nanoTime() - start) / 1000);
+
+		checkShards();
+		assertEquals(12, cascade.getShards().size());
+		assertEquals(11, created);
+
+		for (Shard shard : cascade.getShards()) {
+			assertEquals(CAPACITY, shard.size());
+		}
+	}
+
+	@Test
+	public void testParticipantKeepsItsShard() {
+		Shard shard = place("user");
+		assertSame(shard, place("user"));
+		assertSame(shard, cascade.getShard("user"));
+		assertEquals(1, cascade.size());
+	}
+
+	@Test
+	public void testJoinsFillTheEmptiestShard() {
+		for (int i = 0; i < 120; i++) {
+			place("user" + i);
+		}
+
+		// Root full, first shard with 15, second shard with 20
+		for (int i = 50; i < 85; i++) {
+			cascade.release("user" + i);
+		}
+
+		Shard shard = place("new");
+		assertSame(cascade.getShards().get(1), shard);
+	}
+
+	@Test
+	public void testChurnOfAFewHundredParticipants() {
+		Random random = new Random(42);
+		List<String> present = new ArrayList<>();
+		int next = 0;
+
+		for (int i = 0; i < 20000; i++) {
+			boolean join = present.size() < 100 || (present.size() < 500 && random.nextInt(100) < 55);
+
+			if (join) {
+				String id = "user" + next++;
+				place(id);
+				present.add(id);
+			} else {
+				cascade.release(present.remove(random.nextInt(present.size())));
+			}
+
+			if (i % 100 == 0)
+				checkShards();
+		}
+
+		checkShards();
+		int needed = (present.size() + CAPACITY - 1) / CAPACITY;
+		log.info("{} participants in {} shards ({} needed), {} shards built, {} torn down", present.size(),
+				cascade.getShards().size(), needed, created, destroyed);
+		assertTrue(cascade.getShards().size() >= needed);
+
+		for (String id : present) {
+			cascade.release(id);
+		}
+
+		assertEquals(0, cascade.size());
+		assertEquals(1, cascade.getShards().size());
+		assertEquals(created, destroyed);
+	}
+
+	@Test
+	public void testEmptyShardKeptWhenOthersAreNearlyFull() {
+		for (int i = 0; i < 51; i++) {
+			place("user" + i);
+		}
+
+		assertEquals(2, cascade.getShards().size());
+
+		// The root is full, the shard would be built again on the next join
+		cascade.release("user50");
+		assertEquals(2, cascade.getShards().size());
+
+		// Enough free places in the root
+		place("again");
+
+		for (int i = 0; i < 20; i++) {
+			cascade.release("user" + i);
+		}
+
+		cascade.release("again");
+		assertEquals(1, cascade.getShards().size());
+		assertEquals(1, destroyed);
+	}
+
+	@Test
+	public void testJoinsWaitForTheShardBeingBuilt() {
+		for (int i = 0; i < CAPACITY; i++) {
+			place("user" + i);
+		}
+
+		holding = true;
+		final List<String> placed = new ArrayList<>();
+
+		for (final String id : new String[] { "first", "second", "third" }) {
+			cascade.place(id, new Continuation<Shard>() {
+
+				@Override
+				public void onSuccess(Shard shard) {
+					placed.add(id);
+				}
+
+				@Override
+				public void onError(Throwable cause) {
+					throw new AssertionError(cause);
+				}
+			});
+		}
+
+		// One shard built for the three of them
+		assertEquals(1, created);
+		assertTrue(placed.isEmpty());
+
+		Shard shard = new Shard(null, null, null);
+		answer(held.remove(0), shard);
+
+		assertEquals(3, placed.size());
+		assertEquals(3, shard.size());
+		assertSame(shard, cascade.getShard("second"));
+		checkShards();
+	}
+
+	@Test
+	public void testFailedBuildFailsTheWaitingJoins() throws Exception {
+		for (int i = 0; i < CAPACITY; i++) {
+			place("user" + i);
+		}
+
+		holding = true;
+		final List<Throwable> failed = new ArrayList<>();
+
+		for (String id : new String[] { "first", "second" }) {
+			cascade.place(id, new Continuation<Shard>() {
+
+				@Override
+				public void onSuccess(Shard shard) {
+					throw new AssertionError("placed without a shard");
+				}
+
+				@Override
+				public void onError(Throwable cause) {
+					failed.add(cause);
+				}
+			});
+		}
+
+		held.remove(0).onError(new IllegalStateException("no media server"));
+
+		assertEquals(2, failed.size());
+		assertNull(cascade.getShard("first"));
+		assertEquals(1, cascade.getShards().size());
+
+		// The next join tries again
+		holding = false;
+		place("third");
+		assertEquals(2, created);
+		checkShards();
+	}
+
+	@Test
+	public void testShardBuiltAfterCloseIsTornDown() {
+		for (int i = 0; i < CAPACITY; i++) {
+			place("user" + i);
+		}
+
+		holding = true;
+		assertNull(place("late"));
+
+		cascade.close();
+		answer(held.remove(0), new Shard(null, null, null));
+
+		assertEquals(1, destroyed);
+		assertEquals(1, cascade.getShards().size());
+		assertNull(cascade.getShard("late"));
+	}
+
+	@Test
+	public void testCloseTearsDownTheShards() {
+		for (int i = 0; i < 200; i++) {
+			place("user" + i);
+		}
+
+		cascade.close();
+		assertEquals(3, destroyed);
+		assertEquals(1, cascade.getShards().size());
+		assertEquals(0, cascade.size());
+	}
+}
@@ -0,0 +1,327 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaType;
+import org.kurento.client.Transaction;
+import org.kurento.client.WebRtcEndpoint;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import cz.cvut.fel.webrtc.resources.Participant;
+import cz.cvut.fel.webrtc.resources.Room;
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import cz.cvut.fel.webrtc.resources.Topology;
+import cz.cvut.fel.webrtc.resources.WebUser;
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Recovery of the media of the web users which has stopped flowing, run by
+ * the room's checks. The time the media stopped is set by the test, the media
+ * objects are stand-ins counting the candidates gathered and the video sent
+ * to other endpoints.
+ */
+public class MediaRecoveryTest {
+
+	private static final long GRACE = 0;
+
+	// Time the media of each user stopped flowing, by identifier
+	private static final Map<String, Long> stalled = new HashMap<>();
+	private static final Map<String, Integer> gathered = new HashMap<>();
+	private static final Map<String, Integer> videoSent = new HashMap<>();
+	private static final List<String> messages = new ArrayList<>();
+
+	private Runnable checks;
+	private Room room;
+
+	/**
+	 * A web user whose media stopped flowing when the test says
+	 */
+	public static class Stalling extends WebUser {
+
+		public Stalling(String id, String roomName, WebSocketSession session, MediaPipeline pipeline, Hub hub,
+				Transaction tx) {
+			super(id, roomName, session, pipeline, hub, tx);
+		}
+
+		@Override
+		protected HubPort buildHubPort(Transaction tx) {
+			return standIn(HubPort.class, null);
+		}
+
+		@Override
+		protected WebRtcEndpoint buildEndpoint(MediaPipeline pipeline, Transaction tx) {
+			return standIn(WebRtcEndpoint.class, getId());
+		}
+
+		@Override
+		public long getStalledSince() {
+			return stalled.containsKey(getId()) ? stalled.get(getId()) : -1;
+		}
+	}
+
+	/**
+	 * A media object doing nothing, which counts the gathering of the
+	 * candidates of its user. The calls given a continuation complete at
+	 * once.
+	 */
+	private static <T> T standIn(final Class<T> type, final String userId) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Object last = (args == null || args.length == 0) ? null : args[args.length - 1];
+
+						if (method.getName().equals("gatherCandidates") && last instanceof Continuation)
+							count(gathered, userId);
+
+						if (method.getName().equals("connect") && last == MediaType.VIDEO)
+							count(videoSent, userId);
+
+						if (method.getName().equals("sendMessage"))
+							messages.add(((TextMessage) args[0]).getPayload());
+
+						if (last instanceof Continuation)
+							((Continuation<?>) last).onSuccess(null);
+
+						if (method.getName().equals("equals"))
+							return proxy == args[0];
+
+						if (method.getName().equals("hashCode"))
+							return System.identityHashCode(proxy);
+
+						if (method.getReturnType() == Transaction.class)
+							return standIn(Transaction.class, null);
+
+						if (method.getReturnType() == boolean.class)
+							return false;
+
+						return null;
+					}
+				}));
+	}
+
+	private static void count(Map<String, Integer> counts, String userId) {
+		counts.put(userId, counts.containsKey(userId) ? counts.get(userId) + 1 : 1);
+	}
+
+	/**
+	 * A timer keeping the checks for the test to run them
+	 */
+	private ScheduledExecutorService timer() {
+		return (ScheduledExecutorService) Proxy.newProxyInstance(ScheduledExecutorService.class.getClassLoader(),
+				new Class<?>[] { ScheduledExecutorService.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("scheduleWithFixedDelay"))
+							checks = (Runnable) args[0];
+
+						return standIn(ScheduledFuture.class, null);
+					}
+				});
+	}
+
+	@Before
+	public void setUp() {
+		stalled.clear();
+		gathered.clear();
+		videoSent.clear();
+		messages.clear();
+
+		room = new Room("roomTest", new RoomMedia(standIn(MediaPipeline.class, null),
+				standIn(Composite.class, null)), EventLoop.direct());
+	}
+
+	private WebUser join(String userId) {
+		final List<Participant> joined = new ArrayList<>();
+
+		room.join(userId, standIn(WebSocketSession.class, null), Stalling.class, new Continuation<Participant>() {
+
+			@Override
+			public void onSuccess(Participant participant) {
+				joined.add(participant);
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				throw new AssertionError(cause);
+			}
+		});
+
+		assertNotNull(joined.get(0));
+		return (WebUser) joined.get(0);
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	private int countRenegotiations() {
+		int count = 0;
+
+		for (String message : messages) {
+			if (message.contains("renegotiate"))
+				count++;
+		}
+
+		return count;
+	}
+
+	private int gathered(String userId) {
+		return gathered.containsKey(userId) ? gathered.get(userId) : 0;
+	}
+
+	@Test
+	public void testRenewalsAreRateLimited() {
+		WebUser alice = join("alice");
+		WebUser bob = join("bob");
+
+		assertTrue(alice.tryRenew());
+		assertFalse(alice.tryRenew());
+
+		// Each user has its own limit
+		assertTrue(bob.tryRenew());
+	}
+
+	@Test
+	public void testRenewalIsAllowedAgainAfterTheInterval() throws InterruptedException {
+		WebUser alice = join("alice");
+
+		assertTrue(alice.tryRenew());
+		Thread.sleep(WebUser.RENEW_INTERVAL + 100);
+		assertTrue(alice.tryRenew());
+	}
+
+	@Test
+	public void testFlowingMediaIsLeftAlone() {
+		join("alice");
+		room.enableMediaRecovery(GRACE, timer());
+
+		checks.run();
+		checks.run();
+
+		assertEquals(0, gathered("alice"));
+		assertEquals(0, countRenegotiations());
+	}
+
+	@Test
+	public void testMediaWithinTheGraceIsLeftAlone() {
+		join("alice");
+		room.enableMediaRecovery(60000, timer());
+		stalled.put("alice", now());
+
+		checks.run();
+
+		assertEquals(0, gathered("alice"));
+		assertEquals(0, countRenegotiations());
+	}
+
+	@Test
+	public void testIceIsRestartedBeforeTheMediaIsRebuilt() {
+		WebUser alice = join("alice");
+		WebRtcEndpoint endpoint = alice.getOutgoingWebRtcPeer();
+		room.enableMediaRecovery(60000, timer());
+		stalled.put("alice", now() - 61000);
+
+		checks.run();
+		assertEquals(1, gathered("alice"));
+		assertTrue(alice.getIceRestartedAt() >= 0);
+
+		// The restart is given the grace as well, on the same endpoint
+		checks.run();
+		assertEquals(1, gathered("alice"));
+		assertSame(endpoint, alice.getOutgoingWebRtcPeer());
+		assertEquals(0, countRenegotiations());
+	}
+
+	@Test
+	public void testMediaStillStalledIsRebuilt() {
+		WebUser alice = join("alice");
+		WebRtcEndpoint endpoint = alice.getOutgoingWebRtcPeer();
+		room.enableMediaRecovery(GRACE, timer());
+		stalled.put("alice", now() - 1000);
+
+		checks.run();
+		assertSame(endpoint, alice.getOutgoingWebRtcPeer());
+
+		checks.run();
+		assertFalse(endpoint == alice.getOutgoingWebRtcPeer());
+		assertEquals(1, countRenegotiations());
+	}
+
+	@Test
+	public void testRebuildsAreRateLimited() {
+		WebUser alice = join("alice");
+		room.enableMediaRecovery(GRACE, timer());
+		stalled.put("alice", now() - 1000);
+
+		for (int i = 0; i < 10; i++) {
+			checks.run();
+		}
+
+		assertEquals(1, countRenegotiations());
+		assertTrue(gathered("alice") > 1);
+		assertFalse(alice.tryRenew());
+	}
+
+	@Test
+	public void testMediaRenewedByTheBrowserIsNotRebuilt() {
+		WebUser alice = join("alice");
+		room.enableMediaRecovery(GRACE, timer());
+		stalled.put("alice", now() - 1000);
+
+		assertTrue(alice.tryRenew());
+		checks.run();
+		checks.run();
+
+		assertEquals(1, gathered("alice"));
+		assertEquals(0, countRenegotiations());
+	}
+
+	@Test
+	public void testRebuiltPublisherIsReceivedAgain() throws Exception {
+		room.configureTopology(Topology.SFU, 0);
+		WebUser alice = join("alice");
+		WebUser bob = join("bob");
+		bob.receiveVideoFrom(alice, "sfu", "offer", room);
+		assertEquals(1, (int) videoSent.get("alice"));
+
+		room.enableMediaRecovery(GRACE, timer());
+		stalled.put("alice", now() - 1000);
+		checks.run();
+		checks.run();
+
+		assertEquals(1, countRenegotiations());
+
+		// Bob's subscription is fed by the new endpoint of Alice
+		assertEquals(2, (int) videoSent.get("alice"));
+
+		stalled.remove("alice");
+		checks.run();
+		assertEquals(1, countRenegotiations());
+	}
+}
@@ -0,0 +1,167 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Continuation;
+import org.kurento.client.HubPort;
+import org.kurento.client.ImageOverlayFilter;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.Transaction;
+
+import cz.cvut.fel.webrtc.resources.Participant;
+
+/**
+ * Name of a participant drawn over its video before it enters the Composite.
+ * The media elements are stand-ins writing down the calls made to the
+ * overlay and the moves of the media of the participant.
+ */
+public class NameOverlayTest {
+
+	private static final String TILES = "http://agent:8080/names/";
+
+	private final List<String> calls = new ArrayList<>();
+	private HubPort hubPort;
+	private ImageOverlayFilter overlay;
+	private Member member;
+
+	/**
+	 * A media object doing nothing, which writes down the calls made to it
+	 */
+	private <T> T standIn(final Class<T> type, final String name) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("toString"))
+							return name;
+
+						if (name != null) {
+							List<Object> shown = new ArrayList<>();
+
+							for (Object arg : (args == null) ? new Object[0] : args) {
+								if (!(arg instanceof Transaction) && !(arg instanceof Continuation))
+									shown.add(arg);
+							}
+
+							calls.add(name + "." + method.getName() + shown);
+						}
+
+						if (method.getReturnType() == Transaction.class)
+							return standIn(Transaction.class, null);
+
+						return null;
+					}
+				}));
+	}
+
+	/**
+	 * A participant whose media only moves from one input of the mix to the
+	 * other
+	 */
+	private class Member extends Participant {
+
+		Member(MediaPipeline pipeline) {
+			super("member", "roomTest", null, pipeline, null);
+		}
+
+		@Override
+		protected ImageOverlayFilter buildNameOverlay(Transaction tx) {
+			overlay = standIn(ImageOverlayFilter.class, "overlay");
+			return overlay;
+		}
+
+		@Override
+		protected void moveMixInput(MediaElement previous, Transaction tx) {
+			calls.add("moved from " + previous + " to " + getMixInput());
+		}
+
+		@Override
+		public void close() throws IOException {
+			releaseHubPort();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		calls.clear();
+		hubPort = standIn(HubPort.class, "hubPort");
+		member = new Member(standIn(MediaPipeline.class, null));
+		member.setHubPort(hubPort);
+	}
+
+	@Test
+	public void testOverlayIsPutBeforeTheHubPort() {
+		member.setNameTiles(TILES);
+
+		assertTrue(member.isNameShown());
+		assertEquals(Arrays.asList("overlay.connect[hubPort]", "moved from hubPort to overlay"), calls);
+	}
+
+	@Test
+	public void testNameIsDrawnOnlyWhenItChanges() {
+		member.setName("Jane Doe");
+		assertTrue(calls.isEmpty());
+
+		member.setNameTiles(TILES);
+		assertTrue(calls
+				.contains("overlay.addImage[name, " + TILES + "Jane%20Doe, 0.0, 0.0, 1.0, 1.0, false, false]"));
+		calls.clear();
+
+		member.setName("Jane Doe");
+		assertTrue(calls.isEmpty());
+
+		member.setName("J. Doe");
+		assertEquals(Arrays.asList("overlay.removeImage[name]",
+				"overlay.addImage[name, " + TILES + "J.%20Doe, 0.0, 0.0, 1.0, 1.0, false, false]"), calls);
+	}
+
+	@Test
+	public void testOverlayIsTakenOut() {
+		member.setName("Jane");
+		member.setNameTiles(TILES);
+		calls.clear();
+
+		member.setNameTiles(null);
+		assertFalse(member.isNameShown());
+		assertEquals(Arrays.asList("moved from overlay to hubPort", "overlay.release[]"), calls);
+
+		calls.clear();
+		member.setName("John");
+		assertTrue(calls.isEmpty());
+	}
+
+	@Test
+	public void testOverlayGoesWithTheHubPort() throws IOException {
+		member.setNameTiles(TILES);
+		calls.clear();
+
+		member.close();
+		assertFalse(member.isNameShown());
+		assertTrue(calls.contains("hubPort.release[]"));
+		assertTrue(calls.contains("overlay.release[]"));
+	}
+
+	@Test
+	public void testViewerGetsNoOverlay() {
+		Member viewer = new Member(standIn(MediaPipeline.class, null));
+		viewer.setName("Viewer");
+		viewer.setNameTiles(TILES);
+
+		assertFalse(viewer.isNameShown());
+		assertTrue(calls.isEmpty());
+	}
+}
@@ -0,0 +1,185 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.google.gson.JsonObject;
+
+import cz.cvut.fel.webrtc.resources.Room;
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import cz.cvut.fel.webrtc.resources.WebUser;
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Life of the presentation pipeline of a room: built without waiting when
+ * someone presents, kept for a grace period after, then released.
+ */
+public class PresentationTest {
+
+	private static final long GRACE = 60000;
+
+	private KurentoClient kurento;
+	private ScheduledExecutorService timer;
+	private ScheduledFuture<?> release;
+	private WebUser presenter;
+	private Room room;
+
+	@Before
+	public void setUp() {
+		kurento = Mockito.mock(KurentoClient.class);
+		timer = Mockito.mock(ScheduledExecutorService.class);
+		release = Mockito.mock(ScheduledFuture.class);
+		Mockito.doReturn(release).when(timer).schedule(Matchers.any(Runnable.class), Matchers.anyLong(),
+				Matchers.any(TimeUnit.class));
+
+		presenter = Mockito.mock(WebUser.class);
+		Mockito.when(presenter.getId()).thenReturn("alice");
+		Mockito.when(presenter.getName()).thenReturn("Alice");
+
+		room = new Room("roomTest", new RoomMedia(Mockito.mock(MediaPipeline.class), Mockito.mock(Composite.class),
+				kurento), EventLoop.direct());
+		room.configurePresentation(GRACE, 0, timer);
+	}
+
+	/**
+	 * @return the continuation of the pipeline asked to the media server
+	 */
+	@SuppressWarnings("unchecked")
+	private Continuation<MediaPipeline> asked(int times) {
+		ArgumentCaptor<Continuation> built = ArgumentCaptor.forClass(Continuation.class);
+		Mockito.verify(kurento, Mockito.times(times)).createMediaPipeline(built.capture());
+		return built.getValue();
+	}
+
+	/**
+	 * @return the release of the pipeline, as scheduled on the timer
+	 */
+	private Runnable scheduled() {
+		ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+		Mockito.verify(timer).schedule(task.capture(), Matchers.eq(GRACE), Matchers.eq(TimeUnit.MILLISECONDS));
+		return task.getValue();
+	}
+
+	private int countPresentationInfo() throws Exception {
+		ArgumentCaptor<JsonObject> sent = ArgumentCaptor.forClass(JsonObject.class);
+		Mockito.verify(presenter, Mockito.atLeast(0)).sendMessage(sent.capture());
+		int count = 0;
+
+		for (JsonObject message : sent.getAllValues()) {
+			if ("presentationInfo".equals(message.get("id").getAsString()))
+				count++;
+		}
+
+		return count;
+	}
+
+	@Test
+	public void testPipelineIsBuiltWithoutWaiting() throws Exception {
+		room.setScreensharer(presenter);
+
+		Mockito.verify(kurento, Mockito.never()).createMediaPipeline();
+		assertNull(room.getPresentationPipeline());
+		assertEquals(0, countPresentationInfo());
+
+		MediaPipeline pipeline = Mockito.mock(MediaPipeline.class);
+		asked(1).onSuccess(pipeline);
+
+		assertSame(pipeline, room.getPresentationPipeline());
+		assertEquals(1, countPresentationInfo());
+	}
+
+	@Test
+	public void testPipelineIsKeptDuringTheGrace() throws Exception {
+		MediaPipeline pipeline = Mockito.mock(MediaPipeline.class);
+		room.setScreensharer(presenter);
+		asked(1).onSuccess(pipeline);
+
+		room.cancelPresentation();
+		scheduled();
+		assertSame(pipeline, room.getPresentationPipeline());
+
+		// Presenting again takes the same pipeline at once
+		room.setScreensharer(presenter);
+		asked(1);
+		Mockito.verify(release).cancel(false);
+		Mockito.verify(pipeline, Mockito.never()).release(Matchers.<Continuation<Void>> any());
+		assertEquals(2, countPresentationInfo());
+	}
+
+	@Test
+	public void testPipelineIsReleasedAfterTheGrace() throws Exception {
+		MediaPipeline pipeline = Mockito.mock(MediaPipeline.class);
+		room.setScreensharer(presenter);
+		asked(1).onSuccess(pipeline);
+
+		room.cancelPresentation();
+		scheduled().run();
+
+		Mockito.verify(pipeline).release(Matchers.<Continuation<Void>> any());
+		assertNull(room.getPresentationPipeline());
+
+		// A new presentation builds a new pipeline
+		room.setScreensharer(presenter);
+		asked(2);
+	}
+
+	@Test
+	public void testPresentationStoppedWhileThePipelineIsBuilt() throws Exception {
+		room.setScreensharer(presenter);
+		room.cancelPresentation();
+
+		MediaPipeline pipeline = Mockito.mock(MediaPipeline.class);
+		asked(1).onSuccess(pipeline);
+
+		assertEquals(0, countPresentationInfo());
+		scheduled().run();
+		Mockito.verify(pipeline).release(Matchers.<Continuation<Void>> any());
+	}
+
+	@Test
+	public void testNewPresenterWaitsForThePipelineBeingBuilt() throws Exception {
+		room.setScreensharer(presenter);
+		room.cancelPresentation();
+		room.setScreensharer(presenter);
+
+		asked(1).onSuccess(Mockito.mock(MediaPipeline.class));
+		assertEquals(1, countPresentationInfo());
+	}
+
+	@Test
+	public void testPipelineBuiltForAClosedRoomIsReleased() throws Exception {
+		room.setScreensharer(presenter);
+		room.close();
+
+		MediaPipeline pipeline = Mockito.mock(MediaPipeline.class);
+		asked(1).onSuccess(pipeline);
+
+		Mockito.verify(pipeline).release(Matchers.<Continuation<Void>> any());
+		assertNull(room.getPresentationPipeline());
+	}
+
+	@Test
+	public void testFailedPipelineEndsThePresentation() throws Exception {
+		room.setScreensharer(presenter);
+		asked(1).onError(new IllegalStateException("no media server"));
+
+		assertFalse(room.hasScreensharer());
+		Mockito.verify(presenter).isScreensharer(false);
+	}
+}
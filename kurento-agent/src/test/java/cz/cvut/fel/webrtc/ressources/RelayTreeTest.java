@@ -0,0 +1,185 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.MediaElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.cvut.fel.webrtc.resources.RelayTree;
+
+/**
+ * Spreading of a presentation to hundreds of viewers. The relays are
+ * stand-ins without media, the depth of a viewer being the number of hops its
+ * video takes after the presenter.
+ */
+public class RelayTreeTest {
+
+	private static final Logger log = LoggerFactory.getLogger(RelayTreeTest.class);
+
+	private static final int DEGREE = 8;
+
+	private RelayTree tree;
+	private int created;
+	private int destroyed;
+
+	@Before
+	public void setUp() {
+		created = 0;
+		destroyed = 0;
+
+		tree = new RelayTree(null, DEGREE, new RelayTree.Factory() {
+
+			@Override
+			public MediaElement create(MediaElement parent) {
+				created++;
+				return null;
+			}
+
+			@Override
+			public void destroy(MediaElement relay) {
+				destroyed++;
+			}
+		});
+	}
+
+	private void checkRelays() {
+		int total = 0;
+
+		for (RelayTree.Relay relay : tree.getRelays()) {
+			assertTrue(relay.getViewers() <= DEGREE);
+			assertTrue(relay.getChildren() <= DEGREE);
+			total += relay.getViewers();
+		}
+
+		assertEquals(tree.size(), total);
+	}
+
+	@Test
+	public void testSmallAudienceIsFedByThePresenter() {
+		for (int i = 0; i < DEGREE; i++) {
+			assertEquals(0, tree.attach("viewer" + i).getDepth());
+		}
+
+		assertEquals(0, created);
+		assertEquals(1, tree.attach("next").getDepth());
+		assertEquals(1, created);
+	}
+
+	@Test
+	public void testHundredsOfViewersJoin() {
+		for (int audience : new int[] { 10, 100, 1000 }) {
+			setUp();
+			long start = System.nanoTime();
+
+			for (int i = 0; i < audience; i++) {
+				tree.attach("viewer" + i);
+			}
+
+			log.info("{} viewers placed in {} us, {} relays, at most {} hops", audience,
+					(System.nanoTime() - start) / 1000, created, tree.getDepth());
+
+			checkRelays();
+		}
+
+		// 8 at the presenter, 64 one hop away, 512 two hops away
+		assertEquals(3, tree.getDepth());
+		assertEquals(124, created);
+	}
+
+	@Test
+	public void testViewerKeepsItsRelay() {
+		for (int i = 0; i < 20; i++) {
+			tree.attach("viewer" + i);
+		}
+
+		RelayTree.Relay relay = tree.attach("viewer");
+		assertSame(relay, tree.attach("viewer"));
+		assertSame(relay, tree.getRelay("viewer"));
+		assertEquals(21, tree.size());
+	}
+
+	@Test
+	public void testJoinsFillTheNearestPlace() {
+		for (int i = 0; i < 30; i++) {
+			tree.attach("viewer" + i);
+		}
+
+		tree.detach("viewer3");
+		assertEquals(0, tree.attach("new").getDepth());
+	}
+
+	@Test
+	public void testChurnOfAFewHundredViewers() {
+		Random random = new Random(42);
+		List<String> present = new ArrayList<>();
+		int next = 0;
+
+		for (int i = 0; i < 20000; i++) {
+			boolean join = present.size() < 100 || (present.size() < 500 && random.nextInt(100) < 55);
+
+			if (join) {
+				String id = "viewer" + next++;
+				tree.attach(id);
+				present.add(id);
+			} else {
+				tree.detach(present.remove(random.nextInt(present.size())));
+			}
+
+			if (i % 100 == 0)
+				checkRelays();
+		}
+
+		checkRelays();
+		log.info("{} viewers through {} relays, at most {} hops, {} relays built, {} torn down", present.size(),
+				created - destroyed, tree.getDepth(), created, destroyed);
+
+		for (String id : present) {
+			tree.detach(id);
+		}
+
+		assertEquals(0, tree.size());
+		assertEquals(1, tree.getRelays().size());
+		assertEquals(created, destroyed);
+	}
+
+	@Test
+	public void testRelayFeedingARelayIsKept() {
+		// Fill the presenter and the relays it feeds, then one more viewer
+		for (int i = 0; i < DEGREE * (DEGREE + 1) + 1; i++) {
+			tree.attach("viewer" + i);
+		}
+
+		RelayTree.Relay deep = tree.getRelay("viewer" + DEGREE * (DEGREE + 1));
+		assertEquals(2, deep.getDepth());
+
+		// The viewers of the first relay leave, it still feeds the deep one
+		for (int i = DEGREE; i < 2 * DEGREE; i++) {
+			tree.detach("viewer" + i);
+		}
+
+		assertEquals(0, destroyed);
+		tree.detach("viewer" + DEGREE * (DEGREE + 1));
+		assertEquals(2, destroyed);
+	}
+
+	@Test
+	public void testCloseTearsDownTheRelays() {
+		for (int i = 0; i < 200; i++) {
+			tree.attach("viewer" + i);
+		}
+
+		tree.close();
+		assertEquals(created, destroyed);
+		assertEquals(0, tree.size());
+		assertEquals(1, tree.getRelays().size());
+	}
+}
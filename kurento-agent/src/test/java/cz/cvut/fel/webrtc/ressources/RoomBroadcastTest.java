@@ -0,0 +1,533 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Continuation;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import cz.cvut.fel.webrtc.RecordingController;
+import cz.cvut.fel.webrtc.resources.RoomBroadcast;
+import cz.cvut.fel.webrtc.utils.Completion;
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Segments and playlist of the live broadcast of a room, and a thousand
+ * viewers watching it over HTTP. The recorders are stand-ins writing their
+ * whole segment at once into a temporary directory, which the controller
+ * serves to requests made in memory.
+ */
+public class RoomBroadcastTest {
+
+	private static final Logger log = LoggerFactory.getLogger(RoomBroadcastTest.class);
+
+	private static final String ROOM = "roomTest";
+	private static final long SEGMENT_MILLIS = 4000;
+	private static final int WINDOW = 6;
+	private static final int SEGMENT_SIZE = 32 * 1024;
+
+	private static final int VIEWERS = 1000;
+	private static final int SEGMENTS = 12;
+	private static final long REAL_SEGMENT = 300;
+	private static final long POLL = 100;
+
+	private File directory;
+	private RoomBroadcast broadcast;
+	private int ports;
+	private int recorders;
+	private long now;
+	private String failing;
+
+	/**
+	 * A media object doing nothing, which counts down when it is released and
+	 * fails when the method failing is called. The calls given a continuation
+	 * complete at once.
+	 */
+	private <T> T standIn(final Class<T> type, final Runnable onRelease) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("release") && onRelease != null)
+							onRelease.run();
+
+						Object last = (args == null || args.length == 0) ? null : args[args.length - 1];
+
+						if (method.getName().equals(failing)) {
+							IllegalStateException refused = new IllegalStateException("refused by the media server");
+
+							if (!(last instanceof Continuation))
+								throw refused;
+
+							((Continuation<?>) last).onError(refused);
+							return null;
+						}
+
+						if (last instanceof Continuation)
+							((Continuation<?>) last).onSuccess(null);
+
+						if (method.getReturnType() == Transaction.class)
+							return standIn(Transaction.class, null);
+
+						return null;
+					}
+				}));
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("broadcast").toFile();
+		ports = 0;
+		recorders = 0;
+		now = 1000000;
+		failing = null;
+
+		broadcast = new RoomBroadcast(ROOM, standIn(MediaPipeline.class, null), null, EventLoop.direct()) {
+
+			@Override
+			protected HubPort newPort(Transaction tx) {
+				ports++;
+
+				return standIn(HubPort.class, new Runnable() {
+
+					@Override
+					public void run() {
+						ports--;
+					}
+				});
+			}
+
+			@Override
+			protected RecorderEndpoint newRecorder(String uri, Transaction tx) {
+				recorders++;
+
+				try {
+					Files.write(new File(uri.substring("file://".length())).toPath(), new byte[SEGMENT_SIZE]);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+
+				return standIn(RecorderEndpoint.class, new Runnable() {
+
+					@Override
+					public void run() {
+						recorders--;
+					}
+				});
+			}
+		};
+
+		broadcast.configure(directory.getPath(), SEGMENT_MILLIS, WINDOW);
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+
+		directory.delete();
+	}
+
+	private JsonObject playlist() throws IOException {
+		return parse(new String(Files.readAllBytes(new File(directory, RoomBroadcast.playlistFile(ROOM)).toPath()),
+				StandardCharsets.UTF_8));
+	}
+
+	private static JsonObject parse(String playlist) {
+		return new JsonParser().parse(playlist).getAsJsonObject();
+	}
+
+	private static List<String> segments(JsonObject playlist) {
+		List<String> segments = new ArrayList<>();
+
+		for (JsonElement segment : playlist.getAsJsonArray("segments")) {
+			segments.add(segment.getAsJsonObject().get("file").getAsString());
+		}
+
+		return segments;
+	}
+
+	private static boolean ended(JsonObject playlist) {
+		return playlist.get("ended").getAsBoolean();
+	}
+
+	/**
+	 * @return true if a listed segment lasts that many milliseconds
+	 */
+	private static boolean lists(JsonObject playlist, long duration) {
+		for (JsonElement segment : playlist.getAsJsonArray("segments")) {
+			if (segment.getAsJsonObject().get("duration").getAsLong() == duration)
+				return true;
+		}
+
+		return false;
+	}
+
+	private boolean start() throws Exception {
+		Completion<Boolean> started = new Completion<>();
+		broadcast.start(now, started);
+		return started.await();
+	}
+
+	private void rotate(int times) {
+		for (int i = 0; i < times; i++) {
+			now += SEGMENT_MILLIS;
+			broadcast.tick(now);
+		}
+	}
+
+	@Test
+	public void testPortOnlyWhileBroadcasting() throws Exception {
+		assertTrue(start());
+		assertFalse(start());
+		assertEquals(1, ports);
+		assertEquals(1, recorders);
+
+		rotate(3);
+		assertEquals(1, recorders);
+
+		assertTrue(broadcast.stop(now));
+		assertFalse(broadcast.stop(now));
+		assertEquals(0, ports);
+		assertEquals(0, recorders);
+	}
+
+	@Test
+	public void testFailedStartGivesThePortBack() throws Exception {
+		failing = "record";
+
+		try {
+			start();
+			fail("The first segment cannot start");
+		} catch (IllegalStateException e) {
+		}
+
+		assertFalse(broadcast.isBroadcasting());
+		assertEquals(0, ports);
+		assertEquals(0, recorders);
+		assertTrue(ended(playlist()));
+		broadcast.tick(now + SEGMENT_MILLIS);
+
+		failing = null;
+		assertTrue(start());
+		assertEquals(1, ports);
+	}
+
+	@Test
+	public void testFailedRotationKeepsTheCurrentSegment() throws Exception {
+		start();
+
+		failing = "record";
+		rotate(1);
+		assertTrue(segments(playlist()).isEmpty());
+		assertEquals(1, recorders);
+
+		failing = null;
+		rotate(1);
+		List<String> listed = segments(playlist());
+		assertEquals(1, listed.size());
+		assertTrue(listed.get(0).endsWith("-00001.mp4"));
+		assertTrue(lists(playlist(), 8000));
+
+		rotate(1);
+		assertTrue(segments(playlist()).get(1).endsWith("-00002.mp4"));
+	}
+
+	@Test
+	public void testOnlyFinishedSegmentsAreListed() throws Exception {
+		start();
+		assertTrue(segments(playlist()).isEmpty());
+		assertEquals(1, playlist().get("sequence").getAsInt());
+
+		rotate(2);
+		List<String> listed = segments(playlist());
+		assertEquals(2, listed.size());
+		assertTrue(listed.get(0).endsWith("-00001.mp4"));
+		assertEquals(SEGMENT_MILLIS, playlist().get("targetDuration").getAsLong());
+		assertTrue(lists(playlist(), 4000));
+		assertFalse(ended(playlist()));
+
+		now += 1000;
+		broadcast.stop(now);
+		assertEquals(3, segments(playlist()).size());
+		assertTrue(lists(playlist(), 1000));
+		assertTrue(ended(playlist()));
+	}
+
+	@Test
+	public void testWindowRollsAndOldSegmentsAreDeleted() throws Exception {
+		start();
+		rotate(50);
+
+		List<String> listed = segments(playlist());
+		assertEquals(WINDOW, listed.size());
+		assertEquals(50 - WINDOW + 1, playlist().get("sequence").getAsInt());
+
+		// The listed segments, as many retired ones and the one being written
+		assertEquals(2 * WINDOW + 1, broadcast.getSegmentsKept());
+		assertEquals(2 * WINDOW + 1, directory.list().length - 1);
+
+		for (String file : listed) {
+			assertTrue(new File(directory, file).isFile());
+		}
+	}
+
+	@Test
+	public void testNewBroadcastDeletesTheLast() throws Exception {
+		start();
+		rotate(3);
+		broadcast.stop(now);
+		assertEquals(4, segments(playlist()).size());
+
+		now += 1000;
+		start();
+		assertTrue(segments(playlist()).isEmpty());
+
+		// The playlist and the segment being written
+		assertEquals(2, directory.list().length);
+	}
+
+	@Test
+	public void testNamesOfTheSegments() throws Exception {
+		start();
+		rotate(1);
+		String file = segments(playlist()).get(0);
+
+		assertTrue(RoomBroadcast.isBroadcastSegment(ROOM, file));
+		assertFalse(RoomBroadcast.isBroadcastSegment("other", file));
+		assertFalse(RoomBroadcast.isBroadcastSegment(ROOM, "../" + file));
+		assertFalse(RoomBroadcast.isBroadcastSegment(ROOM, RoomBroadcast.playlistFile(ROOM)));
+	}
+
+	/**
+	 * Answer of the controller to a request made in memory
+	 */
+	private static class Answer implements InvocationHandler {
+		private int status = HttpServletResponse.SC_OK;
+		private final Map<String, String> headers = new HashMap<>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "setStatus":
+			case "sendError":
+				status = (Integer) args[0];
+				break;
+
+			case "setHeader":
+				headers.put((String) args[0], (String) args[1]);
+				break;
+
+			case "getOutputStream":
+				return new ServletOutputStream() {
+
+					@Override
+					public void write(int b) {
+						body.write(b);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+						body.write(b, off, len);
+					}
+
+					@Override
+					public boolean isReady() {
+						return true;
+					}
+
+					@Override
+					public void setWriteListener(WriteListener listener) {
+					}
+				};
+
+			default:
+				break;
+			}
+
+			return null;
+		}
+	}
+
+	private static Answer get(RecordingController controller, String file, final String ifNoneMatch)
+			throws IOException {
+		HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						switch (method.getName()) {
+						case "getMethod":
+							return "GET";
+
+						case "getHeader":
+							return "If-None-Match".equals(args[0]) ? ifNoneMatch : null;
+
+						case "getDateHeader":
+							return -1L;
+
+						default:
+							return null;
+						}
+					}
+				});
+
+		Answer answer = new Answer();
+		HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+				HttpServletResponse.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, answer);
+
+		controller.getBroadcast(ROOM, file, request, response);
+		return answer;
+	}
+
+	/**
+	 * A player polling the playlist and fetching every new segment, until
+	 * the end of the broadcast
+	 */
+	private class Viewer implements Runnable {
+		private final RecordingController controller;
+		private final ScheduledExecutorService executor;
+		private final CountDownLatch ended;
+		private final AtomicLong requests;
+		private final AtomicLong fetched;
+		private final AtomicLong failures;
+		private String etag;
+		private int lastSequence;
+
+		private Viewer(RecordingController controller, ScheduledExecutorService executor, CountDownLatch ended,
+				AtomicLong requests, AtomicLong fetched, AtomicLong failures) {
+			this.controller = controller;
+			this.executor = executor;
+			this.ended = ended;
+			this.requests = requests;
+			this.fetched = fetched;
+			this.failures = failures;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Answer answer = get(controller, RoomBroadcast.PLAYLIST, etag);
+				requests.incrementAndGet();
+
+				if (answer.status == HttpServletResponse.SC_OK) {
+					etag = answer.headers.get("ETag");
+					JsonObject playlist = parse(new String(answer.body.toByteArray(), StandardCharsets.UTF_8));
+
+					for (String file : segments(playlist)) {
+						int sequence = Integer.parseInt(file.substring(file.length() - 9, file.length() - 4));
+
+						if (sequence <= lastSequence)
+							continue;
+
+						Answer segment = get(controller, file, null);
+						requests.incrementAndGet();
+
+						if (segment.status != HttpServletResponse.SC_OK || segment.body.size() != SEGMENT_SIZE)
+							failures.incrementAndGet();
+
+						fetched.incrementAndGet();
+						lastSequence = sequence;
+					}
+
+					if (ended(playlist)) {
+						ended.countDown();
+						return;
+					}
+				} else if (answer.status != HttpServletResponse.SC_NOT_MODIFIED) {
+					failures.incrementAndGet();
+				}
+			} catch (Exception e) {
+				failures.incrementAndGet();
+			}
+
+			executor.schedule(this, POLL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Test
+	public void testThousandViewers() throws Exception {
+		RecordingController controller = new RecordingController(directory.getPath(), directory.getPath(), 1);
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(16);
+		CountDownLatch ended = new CountDownLatch(VIEWERS);
+		AtomicLong requests = new AtomicLong();
+		AtomicLong fetched = new AtomicLong();
+		AtomicLong failures = new AtomicLong();
+
+		start();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < VIEWERS; i++) {
+			executor.schedule(new Viewer(controller, executor, ended, requests, fetched, failures), i % POLL,
+					TimeUnit.MILLISECONDS);
+		}
+
+		// The broadcast runs faster than real time, a segment every
+		// REAL_SEGMENT
+		for (int i = 0; i < SEGMENTS; i++) {
+			Thread.sleep(REAL_SEGMENT);
+			rotate(1);
+		}
+
+		broadcast.stop(now);
+
+		try {
+			assertTrue(ended.await(60, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		log.info("{} viewers: {} requests in {} ms, {} segments fetched, {} failures", VIEWERS, requests.get(),
+				millis, fetched.get(), failures.get());
+
+		assertEquals(0, failures.get());
+		assertEquals(0, ports);
+
+		// Every viewer watched the whole broadcast, which never got longer
+		// than the window
+		assertTrue(fetched.get() >= (long) VIEWERS * (SEGMENTS + 1) * 9 / 10);
+		assertTrue(directory.list().length <= 2 * WINDOW + 1);
+	}
+}
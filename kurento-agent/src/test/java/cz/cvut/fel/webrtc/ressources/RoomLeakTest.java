@@ -0,0 +1,213 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.Transaction;
+import org.springframework.web.socket.WebSocketSession;
+
+import cz.cvut.fel.webrtc.resources.Participant;
+import cz.cvut.fel.webrtc.resources.Room;
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Ports of the Composite left behind by participants coming and going many
+ * times. The Composite is a stand-in counting the ports it handed out which
+ * are not released yet, the other media objects do nothing.
+ */
+public class RoomLeakTest {
+
+	private static final int CYCLES = 5000;
+	private static final int STAYING = 3;
+
+	// Every so many joins, the media server refuses the transaction
+	private static final int FAILING_EVERY = 7;
+
+	private static int commits;
+	private CountingComposite composite;
+	private Room room;
+
+	/**
+	 * A Composite doing nothing, which counts the ports it handed out and
+	 * which are not released yet
+	 */
+	private static class CountingComposite implements InvocationHandler {
+		private int created;
+		private int live;
+
+		HubPort newPort() {
+			created++;
+			live++;
+
+			return standIn(HubPort.class, new Runnable() {
+				private boolean released;
+
+				@Override
+				public void run() {
+					if (!released)
+						live--;
+
+					released = true;
+				}
+			});
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			return nothing(proxy, method, args, null);
+		}
+	}
+
+	/**
+	 * A participant taking its port from the counting Composite
+	 */
+	public static class Member extends Participant {
+
+		public Member(String id, String roomName, WebSocketSession session, MediaPipeline pipeline, Hub hub,
+				Transaction tx) {
+			super(id, roomName, session, pipeline, hub);
+			setHubPort(((CountingComposite) Proxy.getInvocationHandler(hub)).newPort());
+		}
+
+		@Override
+		public void close() throws IOException {
+			releaseHubPort();
+		}
+	}
+
+	/**
+	 * A media object doing nothing, which runs onRelease when it is released
+	 */
+	private static <T> T standIn(final Class<T> type, final Runnable onRelease) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						return nothing(proxy, method, args, onRelease);
+					}
+				}));
+	}
+
+	/**
+	 * Answer of the stand-ins. The transactions complete their commit at
+	 * once, and fail one in FAILING_EVERY.
+	 */
+	private static Object nothing(Object proxy, Method method, Object[] args, Runnable onRelease) throws Exception {
+		if (method.getName().equals("release") && onRelease != null)
+			onRelease.run();
+
+		Object last = (args == null || args.length == 0) ? null : args[args.length - 1];
+
+		if (method.getName().equals("commit") && last instanceof Continuation) {
+			if (++commits % FAILING_EVERY == 0)
+				((Continuation<?>) last).onError(new IllegalStateException("refused by the media server"));
+			else
+				((Continuation<?>) last).onSuccess(null);
+		}
+
+		if (method.getName().equals("equals"))
+			return proxy == args[0];
+
+		if (method.getName().equals("hashCode"))
+			return System.identityHashCode(proxy);
+
+		if (method.getReturnType() == Transaction.class)
+			return standIn(Transaction.class, null);
+
+		if (method.getReturnType() == boolean.class)
+			return false;
+
+		return null;
+	}
+
+	@Before
+	public void setUp() {
+		commits = 0;
+		composite = new CountingComposite();
+
+		Composite hub = (Composite) Proxy.newProxyInstance(Composite.class.getClassLoader(),
+				new Class<?>[] { Composite.class }, composite);
+		room = new Room("roomTest", new RoomMedia(standIn(MediaPipeline.class, null), hub), EventLoop.direct());
+	}
+
+	/**
+	 * @return the participant once its media is created, null if its join
+	 *         failed
+	 */
+	private Participant join(String userId) {
+		final List<Participant> joined = new ArrayList<>();
+
+		room.join(userId, standIn(WebSocketSession.class, null), Member.class, new Continuation<Participant>() {
+
+			@Override
+			public void onSuccess(Participant participant) {
+				joined.add(participant);
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				throw new AssertionError(cause);
+			}
+		});
+
+		assertEquals(1, joined.size());
+		return joined.get(0);
+	}
+
+	@Test
+	public void testJoinsAndLeavesLeaveNoPort() throws IOException {
+		List<Participant> staying = new ArrayList<>();
+
+		while (staying.size() < STAYING) {
+			Participant participant = join("staying" + staying.size());
+
+			if (participant != null)
+				staying.add(participant);
+		}
+
+		int refused = 0;
+
+		for (int i = 0; i < CYCLES; i++) {
+			Participant participant = join("user" + i);
+
+			if (participant == null) {
+				refused++;
+				assertNull(room.getParticipant("user" + i));
+			} else {
+				assertNotNull(room.getParticipant("user" + i));
+				room.leave(participant);
+			}
+
+			assertEquals(STAYING, room.getParticipants().size());
+			assertEquals(STAYING, composite.live);
+		}
+
+		assertTrue(refused > 0);
+		assertTrue(composite.created >= CYCLES + STAYING);
+
+		for (Participant participant : staying) {
+			room.leave(participant);
+		}
+
+		assertTrue(room.getParticipants().isEmpty());
+		assertEquals(0, composite.live);
+	}
+}
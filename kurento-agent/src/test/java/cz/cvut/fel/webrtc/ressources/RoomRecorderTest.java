@@ -0,0 +1,402 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Continuation;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.Transaction;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import cz.cvut.fel.webrtc.resources.RoomRecorder;
+import cz.cvut.fel.webrtc.utils.Completion;
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Ports of the Composite held by the recorder of a room, and segments of its
+ * recordings. The media elements are stand-ins counting the elements alive,
+ * the sizes of the segments and the manifests are kept in memory.
+ */
+public class RoomRecorderTest {
+
+	private int ports;
+	private int recorders;
+	private int maxPorts;
+	private long now;
+	private String failing;
+	private boolean deferring;
+	private final List<Continuation<?>> deferred = new ArrayList<>();
+	private final Map<String, Long> sizes = new HashMap<>();
+	private final Map<String, String> manifests = new HashMap<>();
+	private RoomRecorder recorder;
+
+	/**
+	 * A media object doing nothing, which counts down when it is released and
+	 * fails when the method failing is called. The calls given a continuation
+	 * complete at once, or once the deferred ones are completed.
+	 */
+	private <T> T standIn(final Class<T> type, final Runnable onRelease) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("release") && onRelease != null)
+							onRelease.run();
+
+						Object last = (args == null || args.length == 0) ? null : args[args.length - 1];
+
+						if (method.getName().equals(failing)) {
+							IllegalStateException refused = new IllegalStateException("refused by the media server");
+
+							if (!(last instanceof Continuation))
+								throw refused;
+
+							((Continuation<?>) last).onError(refused);
+							return null;
+						}
+
+						if (last instanceof Continuation) {
+							if (deferring)
+								deferred.add((Continuation<?>) last);
+							else
+								((Continuation<?>) last).onSuccess(null);
+						}
+
+						if (method.getReturnType() == Transaction.class)
+							return standIn(Transaction.class, null);
+
+						return null;
+					}
+				}));
+	}
+
+	@Before
+	public void setUp() {
+		ports = 0;
+		recorders = 0;
+		maxPorts = 0;
+		now = 1000000;
+		failing = null;
+		deferring = false;
+		deferred.clear();
+		sizes.clear();
+		manifests.clear();
+
+		recorder = new RoomRecorder("roomTest", standIn(MediaPipeline.class, null), null, EventLoop.direct()) {
+
+			@Override
+			protected HubPort newPort(Transaction tx) {
+				ports++;
+				maxPorts = Math.max(maxPorts, ports);
+
+				return standIn(HubPort.class, new Runnable() {
+
+					@Override
+					public void run() {
+						ports--;
+					}
+				});
+			}
+
+			@Override
+			protected RecorderEndpoint newRecorder(String uri, Transaction tx) {
+				recorders++;
+
+				return standIn(RecorderEndpoint.class, new Runnable() {
+
+					@Override
+					public void run() {
+						recorders--;
+					}
+				});
+			}
+
+			@Override
+			protected long segmentSize(String file) {
+				Long size = sizes.get(file);
+				return (size == null) ? 0 : size;
+			}
+
+			@Override
+			protected void saveManifest(String file, String content) {
+				manifests.put(file, content);
+			}
+		};
+	}
+
+	private boolean start(String userId) throws Exception {
+		Completion<Boolean> started = new Completion<>();
+		recorder.start(userId, now, started);
+		return started.await();
+	}
+
+	private void completeDeferred() throws Exception {
+		deferring = false;
+
+		for (Continuation<?> continuation : new ArrayList<>(deferred)) {
+			continuation.onSuccess(null);
+		}
+
+		deferred.clear();
+	}
+
+	private JsonObject manifest() {
+		return new JsonParser().parse(manifests.get(recorder.getRecordingId() + ".json")).getAsJsonObject();
+	}
+
+	@Test
+	public void testPortOnlyWhileRecording() throws Exception {
+		assertEquals(0, ports);
+
+		assertTrue(start("user"));
+		assertEquals(1, ports);
+		assertEquals(1, recorders);
+
+		assertTrue(recorder.stop(now));
+		assertEquals(0, ports);
+		assertEquals(0, recorders);
+	}
+
+	@Test
+	public void testDoubleStartIsRefused() throws Exception {
+		assertTrue(start("user"));
+		assertFalse(start("other"));
+		assertEquals(1, ports);
+		assertEquals("user", recorder.getStartedBy());
+
+		assertTrue(recorder.stop(now));
+		assertFalse(recorder.stop(now));
+		assertEquals(0, ports);
+	}
+
+	@Test
+	public void testStateIsReported() throws Exception {
+		assertEquals(RoomRecorder.State.IDLE, recorder.getState());
+		assertNull(recorder.getRecordingId());
+
+		start("user");
+		assertEquals(RoomRecorder.State.RECORDING, recorder.getState());
+		assertEquals("recording", recorder.getState().getName());
+		assertEquals("roomTest-19700101-001640-000", recorder.getRecordingId());
+		assertEquals("roomTest-19700101-001640-000-00001.mp4", recorder.getCurrentSegment());
+		assertEquals(now, recorder.getStartedAt());
+
+		recorder.stop(now);
+		assertEquals(RoomRecorder.State.IDLE, recorder.getState());
+		assertNull(recorder.getRecordingId());
+		assertNull(recorder.getStartedBy());
+		assertEquals(0, recorder.getStartedAt());
+	}
+
+	@Test
+	public void testThousandsOfCyclesDoNotLeakPorts() throws Exception {
+		Random random = new Random(42);
+
+		for (int i = 0; i < 10000; i++) {
+			if (random.nextBoolean())
+				start("user" + random.nextInt(20));
+			else
+				recorder.stop(now);
+
+			assertEquals(recorder.isRecording() ? 1 : 0, ports);
+			assertEquals(ports, recorders);
+		}
+
+		recorder.stop(now);
+		assertEquals(1, maxPorts);
+		assertEquals(0, ports);
+		assertEquals(0, recorders);
+	}
+
+	@Test
+	public void testFailedStartGivesThePortBack() throws Exception {
+		failing = "record";
+
+		try {
+			start("user");
+			fail("The first segment cannot start");
+		} catch (IllegalStateException e) {
+		}
+
+		assertFalse(recorder.isRecording());
+		assertEquals(0, ports);
+		assertEquals(0, recorders);
+		assertFalse(recorder.stop(now));
+		recorder.tick(now);
+
+		failing = null;
+		assertTrue(start("user"));
+		assertEquals(1, ports);
+		assertEquals(1, recorders);
+	}
+
+	@Test
+	public void testStopWhileStartingGivesThePortBack() throws Exception {
+		deferring = true;
+		Completion<Boolean> started = new Completion<>();
+		recorder.start("user", now, started);
+
+		assertEquals(RoomRecorder.State.STARTING, recorder.getState());
+		assertFalse(start("other"));
+		assertTrue(recorder.stop(now));
+		assertEquals(RoomRecorder.State.IDLE, recorder.getState());
+
+		completeDeferred();
+		assertFalse(started.await());
+		assertEquals(0, ports);
+		assertEquals(0, recorders);
+	}
+
+	@Test
+	public void testFailedRotationKeepsTheCurrentSegment() throws Exception {
+		recorder.configure("/record", 60000, 0);
+		start("user");
+
+		failing = "record";
+		now += 60000;
+		recorder.tick(now);
+		assertEquals(1, recorder.getSegmentCount());
+		assertEquals(1, recorders);
+
+		failing = null;
+		now += 1000;
+		recorder.tick(now);
+		assertEquals(2, recorder.getSegmentCount());
+
+		assertTrue(recorder.stop(now));
+		assertEquals(0, ports);
+		assertEquals(0, recorders);
+	}
+
+	@Test
+	public void testSegmentsRotateByTime() throws Exception {
+		recorder.configure("/record", 60000, 0);
+		start("user");
+
+		for (int i = 0; i < 150; i++) {
+			now += 1000;
+			recorder.tick(now);
+		}
+
+		assertEquals(3, recorder.getSegmentCount());
+		assertTrue(recorder.getCurrentSegment().endsWith("-00003.mp4"));
+		assertEquals(1, ports);
+		assertEquals(1, recorders);
+	}
+
+	@Test
+	public void testSegmentsRotateBySize() throws Exception {
+		recorder.configure("/record/", 0, 1000);
+		start("user");
+
+		now += 1000;
+		sizes.put(recorder.getCurrentSegment(), 999L);
+		recorder.tick(now);
+		assertEquals(1, recorder.getSegmentCount());
+
+		now += 1000;
+		sizes.put(recorder.getCurrentSegment(), 1000L);
+		recorder.tick(now);
+		assertEquals(2, recorder.getSegmentCount());
+	}
+
+	@Test
+	public void testSegmentsOverlapWithoutGap() throws Exception {
+		recorder.configure("/record", 60000, 0);
+		start("user");
+
+		now += 60000;
+		recorder.tick(now);
+
+		// The new segment records before the previous one stops
+		assertEquals(2, recorders);
+		assertEquals(1, ports);
+
+		now += 1000;
+		recorder.tick(now);
+		assertEquals(2, recorders);
+
+		now += 1000;
+		recorder.tick(now);
+		assertEquals(1, recorders);
+	}
+
+	@Test
+	public void testManifestListsTheSegments() throws Exception {
+		recorder.configure("/record", 60000, 0);
+		start("user");
+		String id = recorder.getRecordingId();
+
+		now += 60000;
+		recorder.tick(now);
+		sizes.put(id + "-00001.mp4", 4242L);
+		now += 2000;
+		recorder.tick(now);
+
+		JsonObject manifest = manifest();
+		assertEquals("recording", manifest.get("state").getAsString());
+		assertEquals("roomTest", manifest.get("room").getAsString());
+
+		JsonArray segments = manifest.getAsJsonArray("segments");
+		assertEquals(2, segments.size());
+
+		JsonObject first = segments.get(0).getAsJsonObject();
+		assertEquals(id + "-00001.mp4", first.get("file").getAsString());
+		assertEquals("finished", first.get("state").getAsString());
+		assertEquals(4242, first.get("size").getAsLong());
+		assertEquals("recording", segments.get(1).getAsJsonObject().get("state").getAsString());
+
+		now += 10000;
+		recorder.stop(now);
+		manifest = new JsonParser().parse(manifests.get(id + ".json")).getAsJsonObject();
+		assertEquals("finished", manifest.get("state").getAsString());
+		assertEquals("finished", manifest.getAsJsonArray("segments").get(1).getAsJsonObject().get("state")
+				.getAsString());
+	}
+
+	@Test
+	public void testRoomsNeverShareTheirFiles() throws Exception {
+		assertEquals("roomTest-", RoomRecorder.filePrefix("roomTest"));
+		assertEquals("a_20b-", RoomRecorder.filePrefix("a b"));
+		assertEquals("a_5Fb-", RoomRecorder.filePrefix("a_b"));
+		assertEquals("_C3_A9t_C3_A9-", RoomRecorder.filePrefix("\u00e9t\u00e9"));
+		assertEquals("_2E_2E_2Fx-", RoomRecorder.filePrefix("../x"));
+
+		String file = RoomRecorder.filePrefix("a b") + "20260101-120000-000-00001.mp4";
+		assertTrue(RoomRecorder.isRecordingFile("a b", file));
+		assertFalse(RoomRecorder.isRecordingFile("a_b", file));
+		assertFalse(RoomRecorder.isRecordingFile("a", file));
+	}
+
+	@Test
+	public void testNewRecordingDoesNotOverwriteTheLast() throws Exception {
+		start("user");
+		String first = recorder.getRecordingId();
+		recorder.stop(now);
+
+		now += 1;
+		start("user");
+		assertFalse(first.equals(recorder.getRecordingId()));
+		assertEquals(2, manifests.size());
+	}
+}
@@ -8,7 +8,11 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.kurento.client.Continuation;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
 
 import com.google.gson.JsonObject;
 
@@ -126,20 +130,78 @@ public class RoomTest {
 		//test if the !(participant=Webuser) and  (participant=exeption)
 		room.add(pMocked);
 		room.broadcast(message, pMocked);
-		Mockito.verify(pMocked,Mockito.never()).sendMessage(message);
+		Mockito.verify(pMocked,Mockito.never()).sendMessage(Mockito.any(TextMessage.class));
 		
 		//Test if the (participant=Webuser) and  !(participant=exeption)
 		room.broadcast(message,wuMocked);
-		Mockito.verify(wuMocked,Mockito.never()).sendMessage(message);
+		Mockito.verify(wuMocked,Mockito.never()).sendMessage(Mockito.any(TextMessage.class));
 		
 		//test if the !(participant=Webuser) and  !(participant=exeption)
 		room.broadcast(message, pMocked2);
-		Mockito.verify(pMocked2,Mockito.never()).sendMessage(message);
+		Mockito.verify(pMocked2,Mockito.never()).sendMessage(Mockito.any(TextMessage.class));
 		
 		//Test if the (participant=Webuser) and  (participant=exeption)
 		room.add(wuMocked2);
 		room.broadcast(message,wuMocked2);
-		Mockito.verify(wuMocked2,Mockito.times(1)).sendMessage(message);
+		Mockito.verify(wuMocked2,Mockito.times(1)).sendMessage(Mockito.any(TextMessage.class));
+	}
+
+	@Test
+	public void testBroadcastEncodesOnce() throws IOException {
+		Room room = new Room("roomTest");
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "test");
+
+		WebUser[] users = new WebUser[3];
+		for (int i = 0; i < users.length; i++) {
+			users[i] = Mockito.mock(WebUser.class);
+			Mockito.when(users[i].getId()).thenReturn("user" + i);
+			room.add(users[i]);
+		}
+
+		room.broadcast(message);
+
+		// Every participant receives the same frame
+		ArgumentCaptor<TextMessage> frame = ArgumentCaptor.forClass(TextMessage.class);
+		Mockito.verify(users[0]).sendMessage(frame.capture());
+		Assert.assertEquals(message.toString(), frame.getValue().getPayload());
+
+		for (WebUser user : users) {
+			Mockito.verify(user).sendMessage(Mockito.same(frame.getValue()));
+			Mockito.verify(user, Mockito.never()).sendMessage(Mockito.any(JsonObject.class));
+		}
+	}
+
+	@Test
+	public void testLeaveIsEncodedOnce() throws IOException {
+		Room room = new Room("roomTest");
+		WebUser leaver = Mockito.mock(WebUser.class);
+		Mockito.when(leaver.getId()).thenReturn("leaver");
+		Mockito.when(leaver.getName()).thenReturn("Leaver");
+
+		// Listed before the others are there to be told
+		room.joinRoom(leaver);
+		room.add(leaver);
+
+		WebUser[] users = new WebUser[3];
+		for (int i = 0; i < users.length; i++) {
+			users[i] = Mockito.mock(WebUser.class);
+			Mockito.when(users[i].getId()).thenReturn("user" + i);
+			room.add(users[i]);
+		}
+
+		room.removeParticipant(leaver);
+
+		ArgumentCaptor<TextMessage> frame = ArgumentCaptor.forClass(TextMessage.class);
+		Mockito.verify(users[0]).sendMessage(frame.capture());
+		Assert.assertTrue(frame.getValue().getPayload().contains("rosterDelta"));
+
+		for (WebUser user : users) {
+			Mockito.verify(user).sendMessage(Mockito.same(frame.getValue()));
+			Mockito.verify(user, Mockito.never()).sendMessage(Mockito.any(JsonObject.class));
+		}
+
+		Mockito.verify(leaver, Mockito.never()).sendMessage(Mockito.any(TextMessage.class));
 	}
 
 	
@@ -238,4 +300,50 @@ public class RoomTest {
 		fail("Not yet implemented");
 	}
 
+	@Test
+	public void testViewersAreCountedApart() {
+		Room room = new Room("roomTest");
+		WebUser viewer = Mockito.mock(WebUser.class);
+		WebUser user = Mockito.mock(WebUser.class);
+		Participant phone = Mockito.mock(Participant.class);
+
+		Mockito.when(viewer.getId()).thenReturn("viewer");
+		Mockito.when(viewer.isViewer()).thenReturn(true);
+		Mockito.when(user.getId()).thenReturn("user");
+		Mockito.when(phone.getId()).thenReturn("phone");
+
+		room.add(viewer);
+		room.add(user);
+		room.add(phone);
+
+		Assert.assertEquals(2, room.getParticipantCount());
+		Assert.assertEquals(1, room.getViewerCount());
+	}
+
+	@Test
+	public void testPromotionRefusedWhenRoomIsFull() throws Exception {
+		Room room = new Room("roomTest");
+		room.setLimits(1, 0);
+
+		WebUser viewer = Mockito.mock(WebUser.class);
+		WebUser user = Mockito.mock(WebUser.class);
+		WebSocketSession session = Mockito.mock(WebSocketSession.class);
+
+		Mockito.when(viewer.getId()).thenReturn("viewer");
+		Mockito.when(viewer.isViewer()).thenReturn(true);
+		Mockito.when(viewer.getSession()).thenReturn(session);
+		Mockito.when(user.getId()).thenReturn("user");
+
+		room.add(viewer);
+		room.add(user);
+
+		Assert.assertFalse(room.promote(viewer));
+		Mockito.verify(viewer, Mockito.never()).promote(Mockito.<Continuation<Void>> any());
+
+		// The viewer is told why
+		ArgumentCaptor<TextMessage> captor = ArgumentCaptor.forClass(TextMessage.class);
+		Mockito.verify(session).sendMessage(captor.capture());
+		Assert.assertTrue(captor.getValue().getPayload().contains("roomFull"));
+	}
+
 }
@@ -0,0 +1,105 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import cz.cvut.fel.webrtc.resources.Roster;
+
+public class RosterTest {
+
+	@Test
+	public void testAddIncrementsVersion() {
+		Roster roster = new Roster();
+
+		JsonObject delta = roster.add("user1", "Alice");
+
+		Assert.assertEquals("rosterDelta", delta.get("id").getAsString());
+		Assert.assertEquals("add", delta.get("op").getAsString());
+		Assert.assertEquals(1, delta.get("version").getAsLong());
+		Assert.assertEquals("user1", delta.get("userId").getAsString());
+		Assert.assertEquals("Alice", delta.get("name").getAsString());
+		Assert.assertEquals(1, roster.getVersion());
+
+		// Adding the same participant twice does not change the roster
+		Assert.assertNull(roster.add("user1", "Alice"));
+		Assert.assertEquals(1, roster.getVersion());
+	}
+
+	@Test
+	public void testRemove() {
+		Roster roster = new Roster();
+		roster.add("user1", "Alice");
+		roster.add("user2", "Bob");
+
+		JsonObject delta = roster.remove("user1");
+
+		Assert.assertEquals("remove", delta.get("op").getAsString());
+		Assert.assertEquals(3, delta.get("version").getAsLong());
+		Assert.assertEquals("Alice", delta.get("name").getAsString());
+		Assert.assertEquals(1, roster.size());
+
+		Assert.assertNull(roster.remove("unknown"));
+		Assert.assertEquals(3, roster.getVersion());
+	}
+
+	@Test
+	public void testRename() {
+		Roster roster = new Roster();
+		roster.add("user1", "Alice");
+
+		JsonObject delta = roster.rename("user1", "Alicia");
+
+		Assert.assertEquals("rename", delta.get("op").getAsString());
+		Assert.assertEquals("Alice", delta.get("oldName").getAsString());
+		Assert.assertEquals("Alicia", roster.getNames().get(0).getAsString());
+
+		Assert.assertNull(roster.rename("user1", "Alicia"));
+		Assert.assertNull(roster.rename("unknown", "Bob"));
+		Assert.assertEquals(2, roster.getVersion());
+	}
+
+	@Test
+	public void testSnapshotIsCachedPerVersion() {
+		Roster roster = new Roster();
+		roster.add("user1", "Alice");
+		roster.add("user2", "Bob");
+
+		JsonArray names = roster.getNames();
+		Assert.assertEquals(2, names.size());
+		Assert.assertSame(names, roster.getNames());
+
+		roster.add("user3", "Carol");
+		JsonArray newNames = roster.getNames();
+		Assert.assertNotSame(names, newNames);
+		Assert.assertEquals(3, newNames.size());
+	}
+
+	@Test
+	public void testNamesExceptOneParticipant() {
+		Roster roster = new Roster();
+		roster.add("user1", "Alice");
+		roster.add("user2", "Bob");
+
+		JsonArray names = roster.getNames("user1");
+		Assert.assertEquals(1, names.size());
+		Assert.assertEquals("Bob", names.get(0).getAsString());
+
+		// Unknown participants get the cached snapshot
+		Assert.assertSame(roster.getNames(), roster.getNames("user3"));
+	}
+
+	@Test
+	public void testSnapshotMessage() {
+		Roster roster = new Roster();
+		roster.add("user1", "Alice");
+
+		JsonObject snapshot = roster.snapshotMessage();
+
+		Assert.assertEquals("rosterSnapshot", snapshot.get("id").getAsString());
+		Assert.assertEquals(1, snapshot.get("version").getAsLong());
+		Assert.assertEquals(1, snapshot.get("data").getAsJsonArray().size());
+	}
+}
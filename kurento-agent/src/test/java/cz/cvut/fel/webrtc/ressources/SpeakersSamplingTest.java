@@ -0,0 +1,206 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.Transaction;
+import org.kurento.client.WebRtcEndpoint;
+import org.springframework.web.socket.WebSocketSession;
+
+import cz.cvut.fel.webrtc.resources.Participant;
+import cz.cvut.fel.webrtc.resources.Room;
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import cz.cvut.fel.webrtc.resources.WebUser;
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Rounds of sampling of the audio of the web users of a room mixing the last
+ * speakers only. The media objects are stand-ins doing nothing, and the
+ * stats of each user are answered by the test.
+ */
+public class SpeakersSamplingTest {
+
+	// Stats asked to the server and not answered yet, by identifier of user
+	private static final Map<String, Continuation<Long>> asked = new LinkedHashMap<>();
+
+	private Runnable sampling;
+	private Room room;
+
+	/**
+	 * A web user whose stats are answered by the test
+	 */
+	public static class Speaker extends WebUser {
+
+		public Speaker(String id, String roomName, WebSocketSession session, MediaPipeline pipeline, Hub hub,
+				Transaction tx) {
+			super(id, roomName, session, pipeline, hub, tx);
+		}
+
+		@Override
+		protected HubPort buildHubPort(Transaction tx) {
+			return standIn(HubPort.class);
+		}
+
+		@Override
+		protected WebRtcEndpoint buildEndpoint(MediaPipeline pipeline, Transaction tx) {
+			return standIn(WebRtcEndpoint.class);
+		}
+
+		@Override
+		public void getAudioBytesReceived(Continuation<Long> received) {
+			asked.put(getId(), received);
+		}
+	}
+
+	/**
+	 * A media object doing nothing. The calls given a continuation complete
+	 * at once.
+	 */
+	private static <T> T standIn(final Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Object last = (args == null || args.length == 0) ? null : args[args.length - 1];
+
+						if (last instanceof Continuation)
+							((Continuation<?>) last).onSuccess(null);
+
+						if (method.getName().equals("equals"))
+							return proxy == args[0];
+
+						if (method.getName().equals("hashCode"))
+							return System.identityHashCode(proxy);
+
+						if (method.getReturnType() == Transaction.class)
+							return standIn(Transaction.class);
+
+						if (method.getReturnType() == boolean.class)
+							return false;
+
+						return null;
+					}
+				}));
+	}
+
+	/**
+	 * A timer keeping the sampling task for the test to run it
+	 */
+	private ScheduledExecutorService timer() {
+		return (ScheduledExecutorService) Proxy.newProxyInstance(ScheduledExecutorService.class.getClassLoader(),
+				new Class<?>[] { ScheduledExecutorService.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("scheduleWithFixedDelay"))
+							sampling = (Runnable) args[0];
+
+						return standIn(ScheduledFuture.class);
+					}
+				});
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		asked.clear();
+
+		room = new Room("roomTest", new RoomMedia(standIn(MediaPipeline.class), standIn(Composite.class)),
+				EventLoop.direct());
+		room.enableLastN(2, timer());
+
+		for (String userId : Arrays.asList("alice", "bob", "carol")) {
+			join(userId);
+		}
+	}
+
+	private void join(String userId) {
+		final List<Participant> joined = new ArrayList<>();
+
+		room.join(userId, standIn(WebSocketSession.class), Speaker.class, new Continuation<Participant>() {
+
+			@Override
+			public void onSuccess(Participant participant) {
+				joined.add(participant);
+			}
+
+			@Override
+			public void onError(Throwable cause) {
+				throw new AssertionError(cause);
+			}
+		});
+
+		assertNotNull(joined.get(0));
+	}
+
+	private void answer(String userId, long bytes) throws Exception {
+		asked.remove(userId).onSuccess(bytes);
+	}
+
+	@Test
+	public void testEveryUserIsAsked() {
+		assertNotNull(sampling);
+		sampling.run();
+
+		assertEquals(Arrays.asList("alice", "bob", "carol"), new ArrayList<>(asked.keySet()));
+	}
+
+	@Test
+	public void testRoundWaitsForEveryAnswer() throws Exception {
+		sampling.run();
+		answer("alice", 1000);
+		answer("bob", 1000);
+
+		// Carol has not answered, no new round is started
+		sampling.run();
+		assertEquals(Arrays.asList("carol"), new ArrayList<>(asked.keySet()));
+
+		answer("carol", 1000);
+		sampling.run();
+		assertEquals(3, asked.size());
+	}
+
+	@Test
+	public void testFailedStatsDoNotHoldTheRound() throws Exception {
+		sampling.run();
+		answer("alice", 1000);
+		answer("bob", 1000);
+		asked.remove("carol").onError(new IllegalStateException("no stats"));
+
+		sampling.run();
+		assertEquals(3, asked.size());
+	}
+
+	@Test
+	public void testUserLeavingDoesNotHoldTheRound() throws Exception {
+		room.leave("carol");
+		asked.clear();
+
+		sampling.run();
+		assertEquals(Arrays.asList("alice", "bob"), new ArrayList<>(asked.keySet()));
+
+		answer("alice", 1000);
+		answer("bob", 1000);
+		sampling.run();
+		assertTrue(asked.containsKey("alice"));
+	}
+}
@@ -0,0 +1,305 @@
+package cz.cvut.fel.webrtc.ressources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.Transaction;
+import org.kurento.client.WebRtcEndpoint;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import cz.cvut.fel.webrtc.resources.Participant;
+import cz.cvut.fel.webrtc.resources.Room;
+import cz.cvut.fel.webrtc.resources.RoomMedia;
+import cz.cvut.fel.webrtc.resources.Topology;
+import cz.cvut.fel.webrtc.resources.WebUser;
+import cz.cvut.fel.webrtc.utils.EventLoop;
+
+/**
+ * Wiring of the media of the web users when a room goes from the Composite
+ * to SFU and back. The media objects are stand-ins recording the calls made
+ * to them, e.g. "ep1.connect(port1,VIDEO)".
+ */
+public class TopologyTest {
+
+	private static final int SFU_MAX = 3;
+
+	private static final Map<Object, String> labels = new IdentityHashMap<>();
+	private static final List<String> calls = new ArrayList<>();
+	private static final List<String> messages = new ArrayList<>();
+
+	private Room room;
+
+	/**
+	 * A web user whose media objects are recording stand-ins
+	 */
+	public static class Publisher extends WebUser {
+
+		public Publisher(String id, String roomName, WebSocketSession session, MediaPipeline pipeline, Hub hub,
+				Transaction tx) {
+			super(id, roomName, session, pipeline, hub, tx);
+		}
+
+		@Override
+		protected HubPort buildHubPort(Transaction tx) {
+			return standIn(HubPort.class, "port");
+		}
+
+		@Override
+		protected WebRtcEndpoint buildEndpoint(MediaPipeline pipeline, Transaction tx) {
+			return standIn(WebRtcEndpoint.class, "ep");
+		}
+	}
+
+	/**
+	 * A media object recording the calls made to it, labelled with a prefix
+	 * and its rank. The calls given a continuation complete at once.
+	 */
+	private static <T> T standIn(final Class<T> type, String prefix) {
+		final T standIn = type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("equals"))
+							return proxy == args[0];
+
+						if (method.getName().equals("hashCode"))
+							return System.identityHashCode(proxy);
+
+						if (method.getName().equals("toString"))
+							return labels.get(proxy);
+
+						record(proxy, method, args);
+
+						Object last = (args == null || args.length == 0) ? null : args[args.length - 1];
+
+						if (last instanceof Continuation)
+							((Continuation<?>) last).onSuccess(null);
+
+						if (method.getReturnType() == Transaction.class)
+							return standIn(Transaction.class, "tx");
+
+						if (method.getReturnType() == boolean.class)
+							return false;
+
+						return null;
+					}
+				}));
+
+		labels.put(standIn, prefix + labels.size());
+		return standIn;
+	}
+
+	private static void record(Object proxy, Method method, Object[] args) {
+		if (args != null && args.length == 1 && args[0] instanceof TextMessage) {
+			messages.add(((TextMessage) args[0]).getPayload());
+			return;
+		}
+
+		StringBuilder call = new StringBuilder(labels.get(proxy)).append('.').append(method.getName()).append('(');
+		String separator = "";
+
+		for (Object arg : (args == null) ? new Object[0] : args) {
+			if (arg instanceof Transaction || arg instanceof Continuation)
+				continue;
+
+			call.append(separator).append(labels.containsKey(arg) ? labels.get(arg) : String.valueOf(arg));
+			separator = ",";
+		}
+
+		calls.add(call.append(')').toString());
+	}
+
+	private static String label(Object standIn) {
+		return labels.get(standIn);
+	}
+
+	@Before
+	public void setUp() {
+		labels.clear();
+		calls.clear();
+		messages.clear();
+
+		room = new Room("roomTest", new RoomMedia(standIn(MediaPipeline.class, "pipeline"),
+				standIn(Composite.class, "composite")), EventLoop.direct());
+		room.configureTopology(Topology.SFU, SFU_MAX);
+	}
+
+	private WebUser join(String userId) {
+		final List<Participant> joined = new ArrayList<>();
+
+		room.join(userId, standIn(WebSocketSession.class, "session"), Publisher.class,
+				new Continuation<Participant>() {
+
+					@Override
+					public void onSuccess(Participant participant) {
+						joined.add(participant);
+					}
+
+					@Override
+					public void onError(Throwable cause) {
+						throw new AssertionError(cause);
+					}
+				});
+
+		assertNotNull(joined.get(0));
+		return (WebUser) joined.get(0);
+	}
+
+	/**
+	 * @return true if the video of the user goes into the mix and comes back
+	 *         from it, as last wired
+	 */
+	private boolean isVideoMixed(WebUser user) {
+		String ep = label(user.getOutgoingWebRtcPeer());
+		String port = label(user.getHubPort());
+		int mixed = Math.max(calls.lastIndexOf(ep + ".connect(" + port + ",VIDEO)"),
+				calls.lastIndexOf(ep + ".connect(" + port + ")"));
+
+		return mixed > calls.lastIndexOf(ep + ".disconnect(" + port + ",VIDEO)")
+				&& calls.lastIndexOf(port + ".connect(" + ep + ",VIDEO)") > calls
+						.lastIndexOf(port + ".disconnect(" + ep + ",VIDEO)");
+	}
+
+	private int countMessages(String content) {
+		int count = 0;
+
+		for (String message : messages) {
+			if (message.contains(content))
+				count++;
+		}
+
+		return count;
+	}
+
+	@Test
+	public void testSmallRoomStaysInSfu() {
+		List<WebUser> users = new ArrayList<>();
+
+		for (int i = 0; i < SFU_MAX; i++) {
+			users.add(join("user" + i));
+		}
+
+		assertEquals(Topology.SFU, room.getTopology());
+
+		for (WebUser user : users) {
+			assertEquals(Topology.SFU, user.getTopology());
+			assertFalse(isVideoMixed(user));
+		}
+
+		assertEquals(0, countMessages("topologyChanged"));
+	}
+
+	@Test
+	public void testRoomGoesToMcuPastTheLimit() {
+		List<WebUser> users = new ArrayList<>();
+
+		for (int i = 0; i <= SFU_MAX; i++) {
+			users.add(join("user" + i));
+		}
+
+		assertEquals(Topology.MCU, room.getTopology());
+
+		// Everyone's video is mixed again, the newcomer's as well
+		for (WebUser user : users) {
+			assertEquals(Topology.MCU, user.getTopology());
+			assertTrue(isVideoMixed(user));
+		}
+
+		assertEquals(SFU_MAX + 1, countMessages("topologyChanged"));
+	}
+
+	@Test
+	public void testRoomComesBackToSfuOnlyBelowTheLimit() throws IOException {
+		List<WebUser> users = new ArrayList<>();
+
+		for (int i = 0; i <= SFU_MAX; i++) {
+			users.add(join("user" + i));
+		}
+
+		// Back at the limit, a participant coming and going would switch
+		// the room every time
+		room.leave(users.remove(0));
+		assertEquals(Topology.MCU, room.getTopology());
+
+		messages.clear();
+		room.leave(users.remove(0));
+		assertEquals(Topology.SFU, room.getTopology());
+
+		for (WebUser user : users) {
+			assertEquals(Topology.SFU, user.getTopology());
+			assertFalse(isVideoMixed(user));
+		}
+
+		assertEquals(users.size(), countMessages("topologyChanged"));
+	}
+
+	@Test
+	public void testGoingToMcuReleasesTheSubscriptions() throws IOException {
+		WebUser alice = join("alice");
+		WebUser bob = join("bob");
+
+		bob.receiveVideoFrom(alice, "sfu", "offer", room);
+		String subscription = calls.get(calls.size() - 1).replaceAll("^(ep\\d+)\\..*", "$1");
+
+		assertTrue(calls.contains(label(alice.getOutgoingWebRtcPeer()) + ".connect(" + subscription + ",VIDEO)"));
+
+		join("carol");
+		join("dave");
+		assertEquals(Topology.MCU, room.getTopology());
+		assertTrue(calls.contains(subscription + ".release()"));
+	}
+
+	@Test
+	public void testRenewedPublisherIsReceivedAgain() throws Exception {
+		WebUser alice = join("alice");
+		WebUser bob = join("bob");
+
+		bob.receiveVideoFrom(alice, "sfu", "offer", room);
+		String subscription = calls.get(calls.size() - 1).replaceAll("^(ep\\d+)\\..*", "$1");
+		String previous = label(alice.getOutgoingWebRtcPeer());
+
+		alice.renewOutgoingMedia();
+		room.outgoingMediaRenewed(alice);
+
+		String renewed = label(alice.getOutgoingWebRtcPeer());
+		assertFalse(previous.equals(renewed));
+		assertTrue(calls.contains(previous + ".release()"));
+
+		// Bob keeps its endpoint, which now receives the renewed one
+		assertTrue(calls.contains(renewed + ".connect(" + subscription + ",VIDEO)"));
+		assertFalse(calls.contains(subscription + ".release()"));
+	}
+
+	@Test
+	public void testRenewedPublisherInMcuSubscribesNoOne() throws Exception {
+		room.configureTopology(Topology.MCU, 0);
+		WebUser alice = join("alice");
+		join("bob");
+
+		alice.renewOutgoingMedia();
+		int before = calls.size();
+		room.outgoingMediaRenewed(alice);
+
+		assertEquals(before, calls.size());
+	}
+}
@@ -0,0 +1,162 @@
+package cz.cvut.fel.webrtc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatcherTest {
+
+	private ScheduledExecutorService timer;
+	private List<List<Integer>> batches;
+	private CountDownLatch flushed;
+
+	@Before
+	public void setUp() {
+		timer = Executors.newSingleThreadScheduledExecutor();
+		batches = Collections.synchronizedList(new ArrayList<List<Integer>>());
+		flushed = new CountDownLatch(1);
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdownNow();
+	}
+
+	private Batcher<Integer> batcher(int maxSize, long window, boolean held) {
+		return new Batcher<>(maxSize, window, TimeUnit.MILLISECONDS, timer, new Batcher.Sink<Integer>() {
+
+			@Override
+			public void flush(List<Integer> items) {
+				batches.add(items);
+				flushed.countDown();
+			}
+		}, held);
+	}
+
+	@Test
+	public void testFullBatchIsFlushedAtOnce() {
+		Batcher<Integer> batcher = batcher(3, 10000, false);
+
+		for (int i = 0; i < 7; i++) {
+			batcher.add(i);
+		}
+
+		assertEquals(2, batches.size());
+		assertEquals(Arrays.asList(0, 1, 2), batches.get(0));
+		assertEquals(Arrays.asList(3, 4, 5), batches.get(1));
+		assertEquals(1, batcher.size());
+	}
+
+	@Test
+	public void testBatchIsFlushedAfterTheWindow() throws InterruptedException {
+		Batcher<Integer> batcher = batcher(100, 20, false);
+		batcher.add(1);
+		batcher.add(2);
+
+		assertTrue(flushed.await(5, TimeUnit.SECONDS));
+		assertEquals(1, batches.size());
+		assertEquals(Arrays.asList(1, 2), batches.get(0));
+		assertEquals(0, batcher.size());
+	}
+
+	@Test
+	public void testHeldItemsWaitUntilOpened() throws InterruptedException {
+		Batcher<Integer> batcher = batcher(2, 10, true);
+
+		for (int i = 0; i < 5; i++) {
+			batcher.add(i);
+		}
+
+		Thread.sleep(50);
+		assertEquals(0, batches.size());
+
+		batcher.open();
+		assertEquals(1, batches.size());
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), batches.get(0));
+
+		batcher.add(5);
+		batcher.add(6);
+		assertEquals(Arrays.asList(5, 6), batches.get(1));
+	}
+
+	@Test
+	public void testClearDropsPendingItems() throws InterruptedException {
+		Batcher<Integer> batcher = batcher(100, 20, false);
+		batcher.add(1);
+		batcher.clear();
+
+		Thread.sleep(100);
+		assertEquals(0, batches.size());
+
+		batcher.hold();
+		batcher.add(2);
+		batcher.clear();
+		batcher.open();
+		assertEquals(0, batches.size());
+	}
+
+	@Test
+	public void testOrderIsKeptAcrossThreads() throws InterruptedException {
+		final Batcher<Integer> batcher = batcher(7, 1, false);
+		final CountDownLatch done = new CountDownLatch(1);
+
+		// A single producer, the flushes run on the timer and on the producer
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				for (int i = 0; i < 1000; i++) {
+					batcher.add(i);
+
+					if (i % 50 == 0)
+						Thread.yield();
+				}
+
+				done.countDown();
+			}
+		}).start();
+
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		batcher.flush();
+
+		List<Integer> all = new ArrayList<>();
+
+		synchronized (batches) {
+			for (List<Integer> batch : batches) {
+				all.addAll(batch);
+			}
+		}
+
+		assertEquals(1000, all.size());
+
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(Integer.valueOf(i), all.get(i));
+		}
+	}
+
+	@Test
+	public void testBurstOfCandidatesNeedsOneMessage() throws InterruptedException {
+		// A browser gathers about a dozen candidates within a few milliseconds
+		Batcher<Integer> batcher = batcher(20, 50, false);
+
+		for (int i = 0; i < 12; i++) {
+			batcher.add(i);
+		}
+
+		assertTrue(flushed.await(5, TimeUnit.SECONDS));
+		assertEquals(1, batches.size());
+		assertEquals(12, batches.get(0).size());
+	}
+}
@@ -0,0 +1,71 @@
+package cz.cvut.fel.webrtc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+	private static final long LENGTH = 1000;
+
+	@Test
+	public void testClosedRange() {
+		ByteRange range = ByteRange.parse("bytes=0-99", LENGTH);
+		assertTrue(range.isSatisfiable());
+		assertEquals(0, range.getStart());
+		assertEquals(99, range.getEnd());
+		assertEquals(100, range.getLength());
+		assertEquals("bytes 0-99/1000", range.toContentRange(LENGTH));
+	}
+
+	@Test
+	public void testOpenRange() {
+		ByteRange range = ByteRange.parse("bytes=500-", LENGTH);
+		assertEquals(500, range.getStart());
+		assertEquals(999, range.getEnd());
+		assertEquals(500, range.getLength());
+	}
+
+	@Test
+	public void testSuffixRange() {
+		ByteRange range = ByteRange.parse("bytes=-100", LENGTH);
+		assertEquals(900, range.getStart());
+		assertEquals(999, range.getEnd());
+
+		// A suffix longer than the file is the whole file
+		range = ByteRange.parse("bytes=-5000", LENGTH);
+		assertEquals(0, range.getStart());
+		assertEquals(LENGTH, range.getLength());
+	}
+
+	@Test
+	public void testEndIsClampedToTheFile() {
+		ByteRange range = ByteRange.parse("bytes=990-2000", LENGTH);
+		assertEquals(990, range.getStart());
+		assertEquals(999, range.getEnd());
+		assertEquals("bytes 990-999/1000", range.toContentRange(LENGTH));
+	}
+
+	@Test
+	public void testUnsatisfiableRange() {
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-", LENGTH));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", LENGTH));
+		assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=0-", 0));
+		assertFalse(ByteRange.UNSATISFIABLE.isSatisfiable());
+		assertEquals("bytes */1000", ByteRange.UNSATISFIABLE.toContentRange(LENGTH));
+	}
+
+	@Test
+	public void testWholeFile() {
+		assertNull(ByteRange.parse(null, LENGTH));
+		assertNull(ByteRange.parse("bytes=0-9,20-29", LENGTH));
+		assertNull(ByteRange.parse("items=0-9", LENGTH));
+		assertNull(ByteRange.parse("bytes=9-0", LENGTH));
+		assertNull(ByteRange.parse("bytes=a-b", LENGTH));
+		assertNull(ByteRange.parse("bytes=100", LENGTH));
+	}
+}
@@ -0,0 +1,169 @@
+package cz.cvut.fel.webrtc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.Continuation;
+
+public class EventLoopTest {
+
+	private EventLoop loop;
+
+	@Before
+	public void setUp() {
+		loop = new EventLoop("test-loop");
+	}
+
+	@After
+	public void tearDown() {
+		loop.shutdown();
+	}
+
+	@Test
+	public void testCallRunsOnTheLoop() throws Exception {
+		assertFalse(loop.inEventLoop());
+
+		boolean inLoop = loop.call(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				return loop.inEventLoop();
+			}
+		});
+
+		assertTrue(inLoop);
+	}
+
+	@Test
+	public void testNestedCallRunsImmediately() throws Exception {
+		final Thread[] threads = new Thread[2];
+
+		loop.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				threads[0] = Thread.currentThread();
+
+				// Would never complete if queued behind the running task
+				return loop.call(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						threads[1] = Thread.currentThread();
+						return null;
+					}
+				});
+			}
+		});
+
+		assertSame(threads[0], threads[1]);
+		assertNotSame(Thread.currentThread(), threads[0]);
+	}
+
+	@Test(expected = IOException.class)
+	public void testCallThrowsTheExceptionOfTheTask() throws Exception {
+		loop.call(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				throw new IOException("failed");
+			}
+		});
+	}
+
+	@Test
+	public void testTasksAreSerialized() throws InterruptedException {
+		final int[] counter = new int[1];
+		final CountDownLatch done = new CountDownLatch(4);
+
+		for (int t = 0; t < 4; t++) {
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						loop.execute(new Runnable() {
+
+							@Override
+							public void run() {
+								counter[0]++;
+							}
+						});
+					}
+
+					done.countDown();
+				}
+			}).start();
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		final CountDownLatch drained = new CountDownLatch(1);
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				drained.countDown();
+			}
+		});
+
+		assertTrue(drained.await(10, TimeUnit.SECONDS));
+		assertEquals(40000, counter[0]);
+	}
+
+	@Test
+	public void testResultIsHandledOnTheLoop() throws Exception {
+		final Completion<Boolean> inLoop = new Completion<>();
+
+		Continuation<Void> continuation = loop.onLoop(new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				inLoop.onSuccess(loop.inEventLoop());
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				inLoop.onError(cause);
+			}
+		});
+
+		// As from a thread of the client of the media server
+		continuation.onSuccess(null);
+		assertTrue(inLoop.await());
+	}
+
+	@Test(expected = IOException.class)
+	public void testFailureIsHandedOver() throws Exception {
+		final Completion<Void> failed = new Completion<>();
+		loop.onLoop(failed).onError(new IOException("refused"));
+		failed.await();
+	}
+
+	@Test
+	public void testDirectLoopRunsOnCaller() throws Exception {
+		final EventLoop direct = EventLoop.direct();
+		assertTrue(direct.inEventLoop());
+
+		Thread thread = direct.call(new Callable<Thread>() {
+
+			@Override
+			public Thread call() throws Exception {
+				return Thread.currentThread();
+			}
+		});
+
+		assertSame(Thread.currentThread(), thread);
+	}
+}
@@ -0,0 +1,136 @@
+package cz.cvut.fel.webrtc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+import org.kurento.client.IceCandidate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+public class InboundMessageTest {
+
+	private static final Logger log = LoggerFactory.getLogger(InboundMessageTest.class);
+
+	private static final Gson gson = new Gson();
+
+	private static final String ICE_CANDIDATE = "{\"id\":\"onIceCandidate\",\"candidate\":{\"candidate\":"
+			+ "\"candidate:842163049 1 udp 1677729535 147.32.211.89 51203 typ srflx raddr 10.0.0.5 rport 51203 "
+			+ "generation 0 ufrag 8rEw network-cost 50\",\"sdpMid\":\"video\",\"sdpMLineIndex\":1,"
+			+ "\"usernameFragment\":\"8rEw\"},\"type\":\"composite\"}";
+
+	private static final int ITERATIONS = 20000;
+
+	@Test
+	public void testIceCandidateMatchesTreeParser() throws IOException {
+		InboundMessage message = InboundMessage.decode(ICE_CANDIDATE);
+		JsonObject tree = gson.fromJson(ICE_CANDIDATE, JsonObject.class);
+		JsonObject candidate = tree.get("candidate").getAsJsonObject();
+
+		IceCandidate ice = message.getIceCandidate();
+
+		assertEquals(tree.get("id").getAsString(), message.getId());
+		assertEquals(tree.get("type").getAsString(), message.getType());
+		assertEquals(candidate.get("candidate").getAsString(), ice.getCandidate());
+		assertEquals(candidate.get("sdpMid").getAsString(), ice.getSdpMid());
+		assertEquals(candidate.get("sdpMLineIndex").getAsInt(), ice.getSdpMLineIndex());
+	}
+
+	@Test
+	public void testJoinRoom() throws IOException {
+		InboundMessage message = InboundMessage
+				.decode("{\"name\":\"Alice\",\"id\":\"joinRoom\",\"room\":\"room1\",\"userId\":\"42\"}");
+
+		assertEquals("joinRoom", message.getId());
+		assertEquals("room1", message.getRoom());
+		assertEquals("42", message.getUserId());
+		assertEquals("Alice", message.getName());
+		assertNull(message.getRole());
+		assertNull(message.getIceCandidate());
+	}
+
+	@Test
+	public void testJoinRoomAsViewer() throws IOException {
+		InboundMessage message = InboundMessage
+				.decode("{\"id\":\"joinRoom\",\"room\":\"room1\",\"userId\":\"42\",\"role\":\"viewer\"}");
+
+		assertEquals("joinRoom", message.getId());
+		assertEquals("viewer", message.getRole());
+	}
+
+	@Test
+	public void testUnknownFieldsAreSkipped() throws IOException {
+		InboundMessage message = InboundMessage.decode("{\"id\":\"receiveVideoFrom\",\"sender\":{\"a\":[1,2,{}]},"
+				+ "\"userId\":\"42\",\"sdpOffer\":\"v=0\",\"type\":\"presentation\",\"extra\":null}");
+
+		assertEquals("receiveVideoFrom", message.getId());
+		assertEquals("42", message.getUserId());
+		assertEquals("v=0", message.getSdpOffer());
+		assertEquals("presentation", message.getType());
+	}
+
+	@Test
+	public void testStayAlive() throws IOException {
+		assertEquals("stay-alive", InboundMessage.decode("{\"id\":\"stay-alive\"}").getId());
+	}
+
+	@Test(expected = IOException.class)
+	public void testMessageWithoutId() throws IOException {
+		InboundMessage.decode("{\"userId\":\"42\"}");
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedMessage() throws IOException {
+		InboundMessage.decode("{\"id\":\"joinRoom\",");
+	}
+
+	private long allocatedBytes(com.sun.management.ThreadMXBean bean, boolean streaming) throws IOException {
+		long threadId = Thread.currentThread().getId();
+		long before = bean.getThreadAllocatedBytes(threadId);
+
+		for (int i = 0; i < ITERATIONS; i++) {
+			if (streaming) {
+				InboundMessage message = InboundMessage.decode(ICE_CANDIDATE);
+				message.getIceCandidate();
+			} else {
+				JsonObject tree = gson.fromJson(ICE_CANDIDATE, JsonObject.class);
+				JsonObject candidate = tree.get("candidate").getAsJsonObject();
+				new IceCandidate(candidate.get("candidate").getAsString(), candidate.get("sdpMid").getAsString(),
+						candidate.get("sdpMLineIndex").getAsInt());
+			}
+		}
+
+		return (bean.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+	}
+
+	@Test
+	public void testStreamingAllocatesLessThanTree() throws IOException {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+			return;
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!bean.isThreadAllocatedMemorySupported())
+			return;
+
+		bean.setThreadAllocatedMemoryEnabled(true);
+
+		// Warm up
+		allocatedBytes(bean, false);
+		allocatedBytes(bean, true);
+
+		long tree = allocatedBytes(bean, false);
+		long streaming = allocatedBytes(bean, true);
+
+		log.info("onIceCandidate decoding: {} bytes allocated with the Gson tree, {} bytes with the streaming decoder",
+				tree, streaming);
+
+		assertTrue(streaming < tree);
+	}
+}
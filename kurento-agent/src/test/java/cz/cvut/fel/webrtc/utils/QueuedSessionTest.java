@@ -0,0 +1,123 @@
+package cz.cvut.fel.webrtc.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueuedSessionTest {
+
+	private WebSocketSession delegate;
+	private List<Runnable> tasks;
+	private Executor manualExecutor;
+
+	@Before
+	public void setUp() {
+		delegate = Mockito.mock(WebSocketSession.class);
+		Mockito.when(delegate.getId()).thenReturn("session");
+		Mockito.when(delegate.isOpen()).thenReturn(true);
+
+		tasks = new ArrayList<>();
+		manualExecutor = new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		};
+	}
+
+	private void runTasks() {
+		while (!tasks.isEmpty()) {
+			tasks.remove(0).run();
+		}
+	}
+
+	@Test
+	public void testSendDoesNotWriteOnCallingThread() throws IOException {
+		QueuedSession session = new QueuedSession(delegate, manualExecutor, 10, 1024);
+		TextMessage message = new TextMessage("hello");
+
+		session.sendMessage(message);
+
+		Mockito.verify(delegate, Mockito.never()).sendMessage(message);
+		assertEquals(1, session.getQueuedMessages());
+
+		runTasks();
+
+		Mockito.verify(delegate).sendMessage(message);
+		assertEquals(0, session.getQueuedMessages());
+		assertEquals(0, session.getQueuedBytes());
+	}
+
+	@Test
+	public void testMessagesKeepTheirOrder() throws IOException {
+		QueuedSession session = new QueuedSession(delegate, manualExecutor, 100, 1024 * 1024);
+		List<TextMessage> messages = new ArrayList<>();
+
+		for (int i = 0; i < 50; i++) {
+			TextMessage message = new TextMessage("message " + i);
+			messages.add(message);
+			session.sendMessage(message);
+		}
+
+		// Only one writer is scheduled at a time
+		assertEquals(1, tasks.size());
+
+		runTasks();
+
+		InOrder inOrder = Mockito.inOrder(delegate);
+		for (TextMessage message : messages) {
+			inOrder.verify(delegate).sendMessage(message);
+		}
+	}
+
+	@Test
+	public void testSlowConsumerIsEvicted() throws IOException {
+		QueuedSession session = new QueuedSession(delegate, manualExecutor, 3, 1024);
+
+		for (int i = 0; i < 4; i++) {
+			session.sendMessage(new TextMessage("message " + i));
+		}
+
+		assertTrue(session.isEvicted());
+
+		runTasks();
+
+		Mockito.verify(delegate).close(CloseStatus.SESSION_NOT_RELIABLE);
+		Mockito.verify(delegate, Mockito.never()).sendMessage(Mockito.any(TextMessage.class));
+		assertEquals(0, session.getQueuedMessages());
+	}
+
+	@Test
+	public void testBufferSizeLimit() throws IOException {
+		QueuedSession session = new QueuedSession(delegate, manualExecutor, 100, 10);
+
+		session.sendMessage(new TextMessage("12345"));
+		assertFalse(session.isEvicted());
+
+		session.sendMessage(new TextMessage("123456"));
+		assertTrue(session.isEvicted());
+	}
+
+	@Test(expected = IOException.class)
+	public void testSendAfterEviction() throws IOException {
+		QueuedSession session = new QueuedSession(delegate, manualExecutor, 1, 1024);
+
+		session.sendMessage(new TextMessage("first"));
+		session.sendMessage(new TextMessage("second"));
+		session.sendMessage(new TextMessage("third"));
+	}
+}
@@ -0,0 +1,150 @@
+package cz.cvut.fel.webrtc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SignalingExecutorTest {
+
+	private SignalingExecutor executor;
+
+	@After
+	public void tearDown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+
+	@Test
+	public void testTasksOfASessionKeepTheirOrder() throws InterruptedException {
+		executor = new SignalingExecutor(8, 10000, 10000);
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(1000);
+
+		for (int i = 0; i < 1000; i++) {
+			final int index = i;
+			assertTrue(executor.offer("session", new Runnable() {
+
+				@Override
+				public void run() {
+					order.add(index);
+					done.countDown();
+				}
+			}));
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(Integer.valueOf(i), order.get(i));
+		}
+	}
+
+	@Test
+	public void testTasksOfASessionNeverOverlap() throws InterruptedException {
+		executor = new SignalingExecutor(8, 10000, 10000);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(200);
+
+		for (int i = 0; i < 200; i++) {
+			executor.offer("session", new Runnable() {
+
+				@Override
+				public void run() {
+					if (running.incrementAndGet() > 1)
+						overlaps.incrementAndGet();
+
+					Thread.yield();
+					running.decrementAndGet();
+					done.countDown();
+				}
+			});
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, overlaps.get());
+	}
+
+	@Test
+	public void testSlowSessionDoesNotBlockOthers() throws InterruptedException {
+		executor = new SignalingExecutor(2, 100, 100);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch other = new CountDownLatch(1);
+
+		executor.offer("slow", new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		executor.offer("fast", new Runnable() {
+
+			@Override
+			public void run() {
+				other.countDown();
+			}
+		});
+
+		assertTrue(other.await(5, TimeUnit.SECONDS));
+		release.countDown();
+	}
+
+	@Test
+	public void testOverloadIsShed() throws InterruptedException {
+		executor = new SignalingExecutor(1, 100, 3);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+
+		executor.offer("session", new Runnable() {
+
+			@Override
+			public void run() {
+				started.countDown();
+
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		Runnable noop = new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		};
+
+		assertTrue(executor.offer("session", noop));
+		assertTrue(executor.offer("session", noop));
+		assertTrue(executor.offer("session", noop));
+		assertFalse(executor.offer("session", noop));
+		assertEquals(3, executor.getQueuedTasks());
+		assertEquals(1, executor.getRejectedTasks());
+
+		// Cleanup is never refused
+		executor.execute("session", noop);
+		assertEquals(4, executor.getQueuedTasks());
+
+		release.countDown();
+	}
+}
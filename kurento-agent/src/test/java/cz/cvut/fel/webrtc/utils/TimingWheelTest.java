@@ -0,0 +1,123 @@
+package cz.cvut.fel.webrtc.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class TimingWheelTest {
+
+	private long now;
+	private TimingWheel<String> wheel;
+
+	@Before
+	public void setUp() {
+		now = TimeUnit.HOURS.toNanos(1);
+
+		Ticker ticker = new Ticker() {
+
+			@Override
+			public long read() {
+				return now;
+			}
+		};
+
+		wheel = new TimingWheel<>(20, 1, TimeUnit.SECONDS, ticker);
+	}
+
+	private void advance(long seconds) {
+		now += TimeUnit.SECONDS.toNanos(seconds);
+	}
+
+	@Test
+	public void testKeyExpiresAfterTimeout() {
+		wheel.touch("a");
+
+		advance(19);
+		assertTrue(wheel.expire().isEmpty());
+
+		advance(2);
+		assertEquals(Arrays.asList("a"), wheel.expire());
+		assertFalse(wheel.contains("a"));
+	}
+
+	@Test
+	public void testTouchPushesBackTheDeadline() {
+		wheel.touch("a");
+
+		for (int i = 0; i < 10; i++) {
+			advance(15);
+			wheel.touch("a");
+			assertTrue(wheel.expire().isEmpty());
+		}
+
+		advance(21);
+		assertEquals(Arrays.asList("a"), wheel.expire());
+	}
+
+	@Test
+	public void testOnlyIdleKeysExpire() {
+		wheel.touch("a");
+		wheel.touch("b");
+		advance(10);
+		wheel.touch("c");
+		advance(11);
+
+		List<String> expired = wheel.expire();
+
+		assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(expired));
+		assertTrue(wheel.contains("c"));
+		assertEquals(1, wheel.size());
+	}
+
+	@Test
+	public void testRemovedKeyNeverExpires() {
+		wheel.touch("a");
+		wheel.remove("a");
+
+		advance(30);
+		assertTrue(wheel.expire().isEmpty());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testLateExpiryCatchesUp() {
+		wheel.touch("a");
+		advance(5);
+		wheel.touch("b");
+
+		// The wheel has not been turned for several turns
+		advance(300);
+
+		assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(wheel.expire()));
+	}
+
+	@Test
+	public void testManyKeys() {
+		for (int i = 0; i < 10000; i++) {
+			wheel.touch("key" + i);
+		}
+
+		advance(10);
+
+		for (int i = 0; i < 5000; i++) {
+			wheel.touch("key" + i);
+		}
+
+		advance(11);
+		assertEquals(5000, wheel.expire().size());
+
+		advance(10);
+		assertEquals(5000, wheel.expire().size());
+		assertEquals(0, wheel.size());
+	}
+}